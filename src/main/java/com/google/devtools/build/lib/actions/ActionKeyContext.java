@@ -33,6 +33,24 @@ public class ActionKeyContext {
     nestedSetFingerprintCache.addNestedSetToFingerprint(mapFn, fingerprint, nestedSet);
   }
 
+  /**
+   * Keeps the fingerprints of nested sets across commands, for as long as the sets are alive, so
+   * that actions that are created again by an incremental build reuse them.
+   */
+  public void setPersistentNestedSetFingerprints(boolean persistent) {
+    nestedSetFingerprintCache.setPersistent(persistent);
+  }
+
+  /** Returns the number of nested set fingerprints that were reused since {@link #clear}. */
+  public long getReusedNestedSetFingerprints() {
+    return nestedSetFingerprintCache.getReusedDigests();
+  }
+
+  /** Returns the number of nested set fingerprints that were computed since {@link #clear}. */
+  public long getComputedNestedSetFingerprints() {
+    return nestedSetFingerprintCache.getComputedDigests();
+  }
+
   public void clear() {
     nestedSetFingerprintCache.clear();
   }
@@ -22,6 +22,8 @@ import com.google.devtools.build.lib.collect.IterablesChain;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec.VisibleForSerialization;
 import com.google.devtools.build.lib.util.Fingerprint;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 
 /** A representation of a list of arguments. */
 public abstract class CommandLine {
@@ -52,6 +54,21 @@ public abstract class CommandLine {
     return arguments();
   }
 
+  /**
+   * Passes the arguments to {@code args} one at a time, with enclosed artifacts expanded by {@code
+   * artifactExpander} if it is not null, as {@link #arguments(ArtifactExpander)} would return them.
+   *
+   * <p>Writing a large command line this way, for example to a parameter file, doesn't need to hold
+   * all its arguments in memory at once. By default, this method iterates over {@link #arguments};
+   * subclasses that compute their arguments should override it to pass them as they are computed.
+   */
+  public void expandArguments(@Nullable ArtifactExpander artifactExpander, Consumer<String> args)
+      throws CommandLineExpansionException {
+    for (String arg : artifactExpander != null ? arguments(artifactExpander) : arguments()) {
+      args.accept(arg);
+    }
+  }
+
   public void addToFingerprint(ActionKeyContext actionKeyContext, Fingerprint fingerprint)
       throws CommandLineExpansionException {
     for (String s : arguments()) {
@@ -102,6 +119,13 @@ public abstract class CommandLine {
         throws CommandLineExpansionException {
       return IterablesChain.concat(executableArgs, commandLine.arguments(artifactExpander));
     }
+
+    @Override
+    public void expandArguments(@Nullable ArtifactExpander artifactExpander, Consumer<String> args)
+        throws CommandLineExpansionException {
+      executableArgs.forEach(args);
+      commandLine.expandArguments(artifactExpander, args);
+    }
   }
 
   @AutoCodec
@@ -126,6 +150,13 @@ public abstract class CommandLine {
         throws CommandLineExpansionException {
       return IterablesChain.concat(commandLine.arguments(artifactExpander), executableArgs);
     }
+
+    @Override
+    public void expandArguments(@Nullable ArtifactExpander artifactExpander, Consumer<String> args)
+        throws CommandLineExpansionException {
+      commandLine.expandArguments(artifactExpander, args);
+      executableArgs.forEach(args);
+    }
   }
 
   /**
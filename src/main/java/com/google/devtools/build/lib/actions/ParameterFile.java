@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.actions;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.unsafe.StringUnsafe;
 import com.google.devtools.build.lib.util.FileType;
 import com.google.devtools.build.lib.util.GccParamFileEscaper;
@@ -23,11 +24,13 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
+import javax.annotation.Nullable;
 
 /**
  * Support for parameter file generation (as used by gcc and other tools, e.g.
@@ -95,34 +98,97 @@ public class ParameterFile {
   public static void writeParameterFile(
       OutputStream out, Iterable<String> arguments, ParameterFileType type, Charset charset)
       throws IOException {
-    OutputStream bufferedOut = new BufferedOutputStream(out);
-    switch (type) {
-      case SHELL_QUOTED:
-        writeContent(bufferedOut, ShellEscaper.escapeAll(arguments), charset);
-        break;
-      case GCC_QUOTED:
-        writeContent(bufferedOut, GccParamFileEscaper.escapeAll(arguments), charset);
-        break;
-      case UNQUOTED:
-        writeContent(bufferedOut, arguments, charset);
-        break;
+    ArgumentWriter writer = new ArgumentWriter(out, type, charset);
+    for (String argument : arguments) {
+      writer.write(argument);
     }
+    writer.flush();
   }
 
-  private static void writeContent(
-      OutputStream outputStream, Iterable<String> arguments, Charset charset) throws IOException {
-    if (charset.equals(StandardCharsets.ISO_8859_1) && StringUnsafe.canUse()) {
-      writeContentLatin1Jdk9(outputStream, arguments);
-    } else if (charset.equals(StandardCharsets.UTF_8) && StringUnsafe.canUse()) {
-      writeContentUtf8Jdk9(outputStream, arguments);
-    } else {
+  /**
+   * Writes the arguments of a command line to a parameter file as they are expanded, with enclosed
+   * artifacts expanded by {@code artifactExpander} if it is not null. Unlike {@link
+   * #writeParameterFile(OutputStream, Iterable, ParameterFileType, Charset)}, this doesn't need the
+   * whole argument list in memory, which matters for the huge command lines of link actions.
+   */
+  public static void writeParameterFile(
+      OutputStream out,
+      CommandLine commandLine,
+      @Nullable ArtifactExpander artifactExpander,
+      ParameterFileType type,
+      Charset charset)
+      throws IOException, CommandLineExpansionException {
+    ArgumentWriter writer = new ArgumentWriter(out, type, charset);
+    try {
+      commandLine.expandArguments(
+          artifactExpander,
+          argument -> {
+            try {
+              writer.write(argument);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    writer.flush();
+  }
+
+  /** Writes the lines of a parameter file one at a time, escaped as the file type requires. */
+  private static final class ArgumentWriter {
+    private final OutputStream outputStream;
+    private final ParameterFileType type;
+    private final boolean latin1Jdk9;
+    @Nullable private final CharsetEncoder utf8Jdk9Encoder;
+    /** The writer for generic charsets, or null if one of the fast paths is used. */
+    @Nullable private final OutputStreamWriter out;
+
+    ArgumentWriter(OutputStream outputStream, ParameterFileType type, Charset charset) {
+      this.outputStream = new BufferedOutputStream(outputStream);
+      this.type = type;
+      this.latin1Jdk9 = charset.equals(StandardCharsets.ISO_8859_1) && StringUnsafe.canUse();
+      this.utf8Jdk9Encoder =
+          charset.equals(StandardCharsets.UTF_8) && StringUnsafe.canUse()
+              ? StandardCharsets.UTF_8.newEncoder()
+              : null;
       // Generic charset support
-      OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-      for (String line : arguments) {
+      this.out =
+          latin1Jdk9 || utf8Jdk9Encoder != null
+              ? null
+              : new OutputStreamWriter(this.outputStream, charset);
+    }
+
+    void write(String argument) throws IOException {
+      String line;
+      switch (type) {
+        case SHELL_QUOTED:
+          line = ShellEscaper.escapeString(argument);
+          break;
+        case GCC_QUOTED:
+          line = GccParamFileEscaper.escapeString(argument);
+          break;
+        case UNQUOTED:
+        default:
+          line = argument;
+          break;
+      }
+      if (latin1Jdk9) {
+        writeLatin1Jdk9(outputStream, line);
+      } else if (utf8Jdk9Encoder != null) {
+        writeUtf8Jdk9(outputStream, utf8Jdk9Encoder, line);
+      } else {
         out.write(line);
         out.write('\n');
       }
-      out.flush();
+    }
+
+    void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      } else {
+        outputStream.flush();
+      }
     }
   }
 
@@ -131,24 +197,20 @@ public class ParameterFile {
    * encoded as either LATIN-1 or UTF-16 under JDK9. When LATIN-1 we can simply copy the byte
    * buffer, when UTF-16 we can fail loudly.
    */
-  private static void writeContentLatin1Jdk9(OutputStream outputStream, Iterable<String> arguments)
-      throws IOException {
+  private static void writeLatin1Jdk9(OutputStream outputStream, String line) throws IOException {
     StringUnsafe stringUnsafe = StringUnsafe.getInstance();
-    for (String line : arguments) {
-      if (stringUnsafe.getCoder(line) == StringUnsafe.LATIN1) {
-        byte[] bytes = stringUnsafe.getByteArray(line);
-        outputStream.write(bytes);
-      } else {
-        // Error case, encode with '?' characters
-        ByteBuffer encodedBytes = StandardCharsets.ISO_8859_1.encode(CharBuffer.wrap(line));
-        outputStream.write(
-            encodedBytes.array(),
-            encodedBytes.arrayOffset(),
-            encodedBytes.arrayOffset() + encodedBytes.limit());
-      }
-      outputStream.write('\n');
+    if (stringUnsafe.getCoder(line) == StringUnsafe.LATIN1) {
+      byte[] bytes = stringUnsafe.getByteArray(line);
+      outputStream.write(bytes);
+    } else {
+      // Error case, encode with '?' characters
+      ByteBuffer encodedBytes = StandardCharsets.ISO_8859_1.encode(CharBuffer.wrap(line));
+      outputStream.write(
+          encodedBytes.array(),
+          encodedBytes.arrayOffset(),
+          encodedBytes.arrayOffset() + encodedBytes.limit());
     }
-    outputStream.flush();
+    outputStream.write('\n');
   }
 
   /**
@@ -157,24 +219,20 @@ public class ParameterFile {
    * ASCII and copy that directly (since this is both valid LATIN-1 and UTF-8), in all other cases
    * we must re-encode.
    */
-  private static void writeContentUtf8Jdk9(OutputStream outputStream, Iterable<String> arguments)
+  private static void writeUtf8Jdk9(OutputStream outputStream, CharsetEncoder encoder, String line)
       throws IOException {
-    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
     StringUnsafe stringUnsafe = StringUnsafe.getInstance();
-    for (String line : arguments) {
-      byte[] bytes = stringUnsafe.getByteArray(line);
-      if (stringUnsafe.getCoder(line) == StringUnsafe.LATIN1 && isAscii(bytes)) {
-        outputStream.write(bytes);
-      } else {
-        ByteBuffer encodedBytes = encoder.encode(CharBuffer.wrap(line));
-        outputStream.write(
-            encodedBytes.array(),
-            encodedBytes.arrayOffset(),
-            encodedBytes.arrayOffset() + encodedBytes.limit());
-      }
-      outputStream.write('\n');
+    byte[] bytes = stringUnsafe.getByteArray(line);
+    if (stringUnsafe.getCoder(line) == StringUnsafe.LATIN1 && isAscii(bytes)) {
+      outputStream.write(bytes);
+    } else {
+      ByteBuffer encodedBytes = encoder.encode(CharBuffer.wrap(line));
+      outputStream.write(
+          encodedBytes.array(),
+          encodedBytes.arrayOffset(),
+          encodedBytes.arrayOffset() + encodedBytes.limit());
     }
-    outputStream.flush();
+    outputStream.write('\n');
   }
 
   private static boolean isAscii(byte[] latin1Bytes) {
@@ -28,6 +28,8 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 
 /**
@@ -147,6 +149,15 @@ public class ResourceManager {
   // Determines if local memory estimates are used.
   private boolean localMemoryEstimate = false;
 
+  // How much of the previous estimate of a mnemonic's memory usage remains with each new
+  // measurement, see recordObservedMemoryUsage.
+  @VisibleForTesting static final double OBSERVED_MEMORY_DECAY = 0.75;
+
+  // Estimated memory usage in MB of spawns, by mnemonic, derived from the peak memory usage
+  // measured for previously executed spawns. Kept across builds for the lifetime of the server, so
+  // that later builds can use measured rather than declared memory requirements.
+  private final ConcurrentMap<String, Double> observedMemoryMb = new ConcurrentHashMap<>();
+
   private ResourceManager() {
     requestList = new LinkedList<>();
   }
@@ -199,6 +210,33 @@ public class ResourceManager {
     localMemoryEstimate = value;
   }
 
+  /**
+   * Records the peak memory usage measured for a spawn with the given mnemonic.
+   *
+   * <p>The estimate for the mnemonic becomes the larger of this measurement and the previous
+   * estimate scaled down by {@link #OBSERVED_MEMORY_DECAY}. It never drops below the latest
+   * measurement, but a single outlier only inflates the reservations of the next few spawns.
+   */
+  public void recordObservedMemoryUsage(String mnemonic, double memoryMb) {
+    observedMemoryMb.merge(
+        mnemonic,
+        memoryMb,
+        (previous, latest) -> Math.max(latest, previous * OBSERVED_MEMORY_DECAY));
+  }
+
+  /**
+   * Returns the given resource set with its memory requirement replaced by the memory usage
+   * estimated from measurements of spawns with the given mnemonic, if there are any. The CPU and
+   * local test requirements are returned unchanged.
+   */
+  public ResourceSet adjustForObservedUsage(String mnemonic, ResourceSet resources) {
+    Double memoryMb = observedMemoryMb.get(mnemonic);
+    if (memoryMb == null || memoryMb == resources.getMemoryMb()) {
+      return resources;
+    }
+    return ResourceSet.create(memoryMb, resources.getCpuUsage(), resources.getLocalTestCount());
+  }
+
   /**
    * Acquires requested resource set. Will block if resource is not available.
    * NB! This method must be thread-safe!
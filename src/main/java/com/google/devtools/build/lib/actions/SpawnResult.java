@@ -184,6 +184,30 @@ public interface SpawnResult {
    */
   Optional<Long> getNumInvoluntaryContextSwitches();
 
+  /**
+   * Returns the peak memory usage of the {@link Spawn}'s execution, in kilobytes.
+   *
+   * @return the measurement, or empty in case of execution errors or when the measurement is not
+   *     implemented for the current platform
+   */
+  Optional<Long> getMemoryInKb();
+
+  /**
+   * Returns the number of bytes read from block devices during the {@link Spawn}'s execution.
+   *
+   * @return the measurement, or empty in case of execution errors or when the measurement is not
+   *     implemented for the current platform
+   */
+  Optional<Long> getNumBytesRead();
+
+  /**
+   * Returns the number of bytes written to block devices during the {@link Spawn}'s execution.
+   *
+   * @return the measurement, or empty in case of execution errors or when the measurement is not
+   *     implemented for the current platform
+   */
+  Optional<Long> getNumBytesWritten();
+
   SpawnMetrics getMetrics();
 
   /** Whether the spawn result was a cache hit. */
@@ -225,6 +249,9 @@ public interface SpawnResult {
     private final Optional<Long> numBlockOutputOperations;
     private final Optional<Long> numBlockInputOperations;
     private final Optional<Long> numInvoluntaryContextSwitches;
+    private final Optional<Long> memoryInKb;
+    private final Optional<Long> numBytesRead;
+    private final Optional<Long> numBytesWritten;
     private final boolean cacheHit;
     private final String failureMessage;
     private final ActionInput inMemoryOutputFile;
@@ -244,6 +271,9 @@ public interface SpawnResult {
       this.numBlockOutputOperations = builder.numBlockOutputOperations;
       this.numBlockInputOperations = builder.numBlockInputOperations;
       this.numInvoluntaryContextSwitches = builder.numInvoluntaryContextSwitches;
+      this.memoryInKb = builder.memoryInKb;
+      this.numBytesRead = builder.numBytesRead;
+      this.numBytesWritten = builder.numBytesWritten;
       this.cacheHit = builder.cacheHit;
       this.failureMessage = builder.failureMessage;
       this.inMemoryOutputFile = builder.inMemoryOutputFile;
@@ -318,6 +348,21 @@ public interface SpawnResult {
       return numInvoluntaryContextSwitches;
     }
 
+    @Override
+    public Optional<Long> getMemoryInKb() {
+      return memoryInKb;
+    }
+
+    @Override
+    public Optional<Long> getNumBytesRead() {
+      return numBytesRead;
+    }
+
+    @Override
+    public Optional<Long> getNumBytesWritten() {
+      return numBytesWritten;
+    }
+
     @Override
     public boolean isCacheHit() {
       return cacheHit;
@@ -389,6 +434,9 @@ public interface SpawnResult {
     private Optional<Long> numBlockOutputOperations = Optional.empty();
     private Optional<Long> numBlockInputOperations = Optional.empty();
     private Optional<Long> numInvoluntaryContextSwitches = Optional.empty();
+    private Optional<Long> memoryInKb = Optional.empty();
+    private Optional<Long> numBytesRead = Optional.empty();
+    private Optional<Long> numBytesWritten = Optional.empty();
     private boolean cacheHit;
     private String failureMessage = "";
     /* Invariant: Either both have a value or both are null. */
@@ -463,6 +511,21 @@ public interface SpawnResult {
       return this;
     }
 
+    public Builder setMemoryInKb(long memoryInKb) {
+      this.memoryInKb = Optional.of(memoryInKb);
+      return this;
+    }
+
+    public Builder setNumBytesRead(long numBytesRead) {
+      this.numBytesRead = Optional.of(numBytesRead);
+      return this;
+    }
+
+    public Builder setNumBytesWritten(long numBytesWritten) {
+      this.numBytesWritten = Optional.of(numBytesWritten);
+      return this;
+    }
+
     public Builder setWallTime(Optional<Duration> wallTime) {
       this.wallTime = wallTime;
       return this;
@@ -32,12 +32,25 @@ public abstract class ActionSketch implements SkyValue {
   public static final int BIGINTEGER_ENCODED_LENGTH = /*length=*/ 1 + /*payload=*/ 17;
   public static final int MAX_BYTES = /*hashes=*/ 2 * BIGINTEGER_ENCODED_LENGTH;
 
+  /**
+   * Returns the hash of the transitively consumed input files, or null if those are not known
+   * before execution, because a volatile action is involved. See {@link #coversAllInputs}.
+   */
   @Nullable
   public abstract BigInteger transitiveSourceHash();
 
   @Nullable
   public abstract BigInteger transitiveActionLookupHash();
 
+  /**
+   * Returns whether this sketch covers everything the result of the action depends on, so that
+   * results can be associated with it. A sketch that depends on a volatile action, whose outputs
+   * change without any change to its inputs, does not.
+   */
+  public boolean coversAllInputs() {
+    return transitiveSourceHash() != null;
+  }
+
   public static Builder builder() {
     return new AutoValue_ActionSketch.Builder();
   }
@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.analysis;
 
 import com.google.devtools.build.lib.util.RegexFilter;
+import com.google.devtools.common.options.Converters;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
@@ -49,6 +50,37 @@ public class AnalysisOptions extends OptionsBase {
   )
   public boolean discardAnalysisCache;
 
+  @Option(
+    name = "experimental_analysis_memory_budget",
+    defaultValue = "100",
+    converter = Converters.PercentageConverter.class,
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOSES_INCREMENTAL_STATE},
+    help =
+        "If less than 100, the analysis cache is discarded after the analysis phase, as with "
+            + "--discard_analysis_cache, whenever the heap retained at that point exceeds this "
+            + "percentage of the maximum heap size. The cache is discarded wholesale; individual "
+            + "values are never evicted. The retained heap is measured by a full garbage "
+            + "collection, which is only triggered when the tenured space in use exceeds the "
+            + "budget. Under -XX:+DisableExplicitGC or -XX:+ExplicitGCInvokesConcurrent, the "
+            + "tenured space in use, garbage included, is compared with the budget instead. The "
+            + "data of the top-level targets and the actions needed for execution are kept; "
+            + "everything else is recomputed by the next build that needs it."
+  )
+  public int analysisMemoryBudget;
+
+  @Option(
+    name = "experimental_incremental_artifact_conflict_checks",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+    help =
+        "If true, the outputs of the actions of a build are kept between builds in a trie of "
+            + "their paths, so that the next build only checks the actions that changed for "
+            + "conflicts. This costs about 200 bytes of heap per output."
+  )
+  public boolean incrementalArtifactConflictChecks;
+
   @Option(
     name = "max_config_changes_to_show",
     defaultValue = "3",
@@ -406,7 +406,8 @@ public class BuildView {
               Suppliers.memoize(configurationLookupSupplier),
               eventBus,
               keepGoing,
-              loadingPhaseThreads);
+              loadingPhaseThreads,
+              viewOptions.incrementalArtifactConflictChecks);
       setArtifactRoots(skyframeAnalysisResult.getPackageRoots());
     } finally {
       skyframeBuildView.clearInvalidatedConfiguredTargets();
@@ -21,8 +21,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Streams;
+import com.google.devtools.build.lib.actions.ActionKeyContext;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactPathResolver;
+import com.google.devtools.build.lib.actions.CommandLineItem;
 import com.google.devtools.build.lib.analysis.configuredtargets.RuleConfiguredTarget.Mode;
 import com.google.devtools.build.lib.cmdline.LabelConstants;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
@@ -73,6 +75,18 @@ public final class Runfiles implements RunfilesApi {
         }
       };
 
+  private static final CommandLineItem.MapFn<SymlinkEntry> SYMLINK_ENTRY_MAP_FN =
+      (symlink, args) -> {
+        args.accept(symlink.getPathString());
+        args.accept(symlink.getArtifact().getExecPathString());
+      };
+
+  private static final CommandLineItem.MapFn<Artifact> RUNFILES_ARTIFACT_MAP_FN =
+      (artifact, args) -> {
+        args.accept(artifact.getRootRelativePathString());
+        args.accept(artifact.getExecPathString());
+      };
+
   private static class DummyEmptyFilesSupplier implements EmptyFilesSupplier {
     private DummyEmptyFilesSupplier() {}
 
@@ -1180,30 +1194,23 @@ public final class Runfiles implements RunfilesApi {
 
   /**
    * Fingerprint this {@link Runfiles} tree.
+   *
+   * <p>The nested sets are fingerprinted through the {@link ActionKeyContext}, without flattening
+   * them, so that the digests of the sets shared by the runfiles of many targets are only computed
+   * once.
    */
-  public void fingerprint(Fingerprint fp) {
+  public void fingerprint(ActionKeyContext actionKeyContext, Fingerprint fp) {
     fp.addBoolean(getLegacyExternalRunfiles());
     fp.addPath(getSuffix());
-    Map<PathFragment, Artifact> symlinks = getSymlinksAsMap(null);
-    fp.addInt(symlinks.size());
-    for (Map.Entry<PathFragment, Artifact> symlink : symlinks.entrySet()) {
-      fp.addPath(symlink.getKey());
-      fp.addPath(symlink.getValue().getExecPath());
-    }
-    Map<PathFragment, Artifact> rootSymlinks = getRootSymlinksAsMap(null);
-    fp.addInt(rootSymlinks.size());
-    for (Map.Entry<PathFragment, Artifact> rootSymlink : rootSymlinks.entrySet()) {
-      fp.addPath(rootSymlink.getKey());
-      fp.addPath(rootSymlink.getValue().getExecPath());
-    }
-
-    for (Artifact artifact : getArtifacts()) {
-      fp.addPath(artifact.getRootRelativePath());
-      fp.addPath(artifact.getExecPath());
-    }
-
-    for (String name : getEmptyFilenames()) {
-      fp.addString(name);
+    actionKeyContext.addNestedSetToFingerprint(SYMLINK_ENTRY_MAP_FN, fp, symlinks);
+    actionKeyContext.addNestedSetToFingerprint(SYMLINK_ENTRY_MAP_FN, fp, rootSymlinks);
+    actionKeyContext.addNestedSetToFingerprint(
+        RUNFILES_ARTIFACT_MAP_FN, fp, unconditionalArtifacts);
+    for (PruningManifest manifest : getPruningManifests()) {
+      actionKeyContext.addNestedSetToFingerprint(
+          RUNFILES_ARTIFACT_MAP_FN, fp, manifest.getCandidateRunfiles());
     }
+    // The empty files only depend on the other entries, and on the stateless supplier.
+    fp.addString(emptyFilesSupplier.getClass().getName());
   }
 }
@@ -16,13 +16,15 @@ package com.google.devtools.build.lib.analysis;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionKeyContext;
 import com.google.devtools.build.lib.actions.ActionOwner;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactPathResolver;
 import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
@@ -35,7 +37,6 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -133,12 +134,13 @@ public final class SourceManifestAction extends AbstractFileWriteAction {
   }
 
   @Override
-  public DeterministicWriter newDeterministicWriter(ActionExecutionContext ctx)
-      throws IOException {
-    final Map<PathFragment, Artifact> runfilesInputs =
-        runfiles.getRunfilesInputs(ctx.getEventHandler(), getOwner().getLocation(),
-            ctx.getPathResolver());
-    return out -> writeFile(out, runfilesInputs);
+  public DeterministicWriter newDeterministicWriter(ActionExecutionContext ctx) {
+    // The runfiles are only flattened into a map while the manifest is written.
+    return out ->
+        writeFile(
+            out,
+            runfiles.getRunfilesInputs(
+                ctx.getEventHandler(), getOwner().getLocation(), ctx.getPathResolver()));
   }
 
   @Override
@@ -152,8 +154,11 @@ public final class SourceManifestAction extends AbstractFileWriteAction {
    * depend on them. The only necessary dependencies are pruning manifests, which must be read
    * to properly prune the tree.
    */
-  public static Collection<Artifact> getDependencies(Runfiles runfiles) {
-    ImmutableList.Builder<Artifact> builder = ImmutableList.builder();
+  public static NestedSet<Artifact> getDependencies(Runfiles runfiles) {
+    if (runfiles.getPruningManifests().isEmpty()) {
+      return NestedSetBuilder.emptySet(Order.STABLE_ORDER);
+    }
+    NestedSetBuilder<Artifact> builder = NestedSetBuilder.stableOrder();
     for (Runfiles.PruningManifest manifest : runfiles.getPruningManifests()) {
       builder.add(manifest.getManifestFile());
     }
@@ -203,7 +208,7 @@ public final class SourceManifestAction extends AbstractFileWriteAction {
   @Override
   protected void computeKey(ActionKeyContext actionKeyContext, Fingerprint fp) {
     fp.addString(GUID);
-    runfiles.fingerprint(fp);
+    runfiles.fingerprint(actionKeyContext, fp);
   }
 
   /**
@@ -27,6 +27,7 @@ import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.SpawnContinuation;
+import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
@@ -169,11 +170,33 @@ public abstract class AbstractFileWriteAction extends AbstractAction {
     return actionExecutionContext.getContext(FileWriteActionContext.class);
   }
 
+  /**
+   * Thrown by a {@link DeterministicWriter} that computes the contents while writing them, when the
+   * contents cannot be computed because of an error of the user rather than an I/O error. Whoever
+   * writes the file reports the {@link UserExecException} it carries.
+   */
+  public static final class UserErrorWhileWritingException extends IOException {
+    public UserErrorWhileWritingException(UserExecException cause) {
+      super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized UserExecException getCause() {
+      return (UserExecException) super.getCause();
+    }
+  }
+
   /**
    * A deterministic writer writes bytes to an output stream. The same byte stream is written
    * on every invocation of writeOutputFile().
    */
   public interface DeterministicWriter {
+    /**
+     * Writes the contents to {@code out}.
+     *
+     * @throws UserErrorWhileWritingException if the contents cannot be computed because of an error
+     *     of the user
+     */
     void writeOutputFile(OutputStream out) throws IOException;
 
     /**
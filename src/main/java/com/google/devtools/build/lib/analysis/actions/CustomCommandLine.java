@@ -64,11 +64,11 @@ public final class CustomCommandLine extends CommandLine {
      *
      * @param arguments The command line's argument vector.
      * @param argi The index of the next available argument.
-     * @param builder The command line builder to which we should add arguments.
+     * @param args The consumer to which we should pass the expanded arguments, in order.
      * @return The index of the next argument, after the ArgvFragment has consumed its args. If the
      *     ArgvFragment doesn't have any args, it should return {@code argi} unmodified.
      */
-    int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder);
+    int eval(List<Object> arguments, int argi, Consumer<String> args);
 
     int addToFingerprint(
         List<Object> arguments,
@@ -84,8 +84,8 @@ public final class CustomCommandLine extends CommandLine {
    */
   private abstract static class StandardArgvFragment implements ArgvFragment {
     @Override
-    public final int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder) {
-      eval(builder);
+    public final int eval(List<Object> arguments, int argi, Consumer<String> args) {
+      eval(args);
       return argi; // Doesn't consume any arguments, so return argi unmodified
     }
 
@@ -99,7 +99,7 @@ public final class CustomCommandLine extends CommandLine {
       return argi; // Doesn't consume any arguments, so return argi unmodified
     }
 
-    abstract void eval(ImmutableList.Builder<String> builder);
+    abstract void eval(Consumer<String> args);
 
     abstract void addToFingerprint(ActionKeyContext actionKeyContext, Fingerprint fingerprint);
   }
@@ -366,64 +366,74 @@ public final class CustomCommandLine extends CommandLine {
         this.hasJoinWith = hasJoinWith;
       }
 
+      /**
+       * Passes the values to {@code args} one at a time, as they are mapped and formatted, so that
+       * only joined values are held in memory together.
+       */
       @SuppressWarnings("unchecked")
       @Override
-      public int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder) {
-        final List<String> mutatedValues;
+      public int eval(List<Object> arguments, int argi, Consumer<String> args) {
         CommandLineItem.MapFn<Object> mapFn =
             hasMapEach ? (CommandLineItem.MapFn<Object>) arguments.get(argi++) : null;
+        // The values come before the strings that say how to format them, so skip them for now.
+        NestedSet<Object> nestedSetValues = null;
+        int valuesIndex = argi;
+        int count = 0;
         if (isNestedSet) {
-          NestedSet<Object> values = (NestedSet<Object>) arguments.get(argi++);
-          ImmutableList<Object> list = values.toList();
-          mutatedValues = new ArrayList<>(list.size());
-          if (mapFn != null) {
-            Consumer<String> args = mutatedValues::add; // Hoist out of loop to reduce GC
-            for (Object object : list) {
-              mapFn.expandToCommandLine(object, args);
-            }
-          } else {
-            for (Object object : list) {
-              mutatedValues.add(CommandLineItem.expandToCommandLine(object));
-            }
-          }
+          nestedSetValues = (NestedSet<Object>) arguments.get(argi++);
         } else {
-          int count = (Integer) arguments.get(argi++);
-          mutatedValues = new ArrayList<>(count);
-          if (mapFn != null) {
-            Consumer<String> args = mutatedValues::add; // Hoist out of loop to reduce GC
-            for (int i = 0; i < count; ++i) {
-              mapFn.expandToCommandLine(arguments.get(argi++), args);
-            }
-          } else {
-            for (int i = 0; i < count; ++i) {
-              mutatedValues.add(CommandLineItem.expandToCommandLine(arguments.get(argi++)));
-            }
-          }
-        }
-        final int count = mutatedValues.size();
-        if (hasFormatEach) {
-          String formatStr = (String) arguments.get(argi++);
-          for (int i = 0; i < count; ++i) {
-            mutatedValues.set(i, SingleStringArgFormatter.format(formatStr, mutatedValues.get(i)));
-          }
+          count = (Integer) arguments.get(argi++);
+          valuesIndex = argi;
+          argi += count;
         }
+        String formatStr = hasFormatEach ? (String) arguments.get(argi++) : null;
+        List<String> joinedValues = null;
+        String joinWith = null;
+        Consumer<String> valueArgs;
         if (hasBeforeEach) {
           String beforeEach = (String) arguments.get(argi++);
-          for (int i = 0; i < count; ++i) {
-            builder.add(beforeEach);
-            builder.add(mutatedValues.get(i));
-          }
+          valueArgs =
+              value -> {
+                args.accept(beforeEach);
+                args.accept(value);
+              };
         } else if (hasJoinWith) {
-          String joinWith = (String) arguments.get(argi++);
-          builder.add(Joiner.on(joinWith).join(mutatedValues));
+          joinWith = (String) arguments.get(argi++);
+          joinedValues = new ArrayList<>();
+          valueArgs = joinedValues::add;
+        } else {
+          valueArgs = args;
+        }
+        if (formatStr != null) {
+          Consumer<String> formattedArgs = valueArgs;
+          valueArgs =
+              value -> formattedArgs.accept(SingleStringArgFormatter.format(formatStr, value));
+        }
+
+        if (nestedSetValues != null) {
+          for (Object object : nestedSetValues.toList()) {
+            evalValue(mapFn, object, valueArgs);
+          }
         } else {
           for (int i = 0; i < count; ++i) {
-            builder.add(mutatedValues.get(i));
+            evalValue(mapFn, arguments.get(valuesIndex + i), valueArgs);
           }
         }
+        if (joinedValues != null) {
+          args.accept(Joiner.on(joinWith).join(joinedValues));
+        }
         return argi;
       }
 
+      private static void evalValue(
+          @Nullable CommandLineItem.MapFn<Object> mapFn, Object value, Consumer<String> args) {
+        if (mapFn != null) {
+          mapFn.expandToCommandLine(value, args);
+        } else {
+          args.accept(CommandLineItem.expandToCommandLine(value));
+        }
+      }
+
       @SuppressWarnings("unchecked")
       @Override
       public int addToFingerprint(
@@ -502,14 +512,14 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    public int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder) {
+    public int eval(List<Object> arguments, int argi, Consumer<String> args) {
       int argCount = (Integer) arguments.get(argi++);
       String formatStr = (String) arguments.get(argi++);
-      Object[] args = new Object[argCount];
+      Object[] formatArgs = new Object[argCount];
       for (int i = 0; i < argCount; ++i) {
-        args[i] = CommandLineItem.expandToCommandLine(arguments.get(argi++));
+        formatArgs[i] = CommandLineItem.expandToCommandLine(arguments.get(argi++));
       }
-      builder.add(String.format(formatStr, args));
+      args.accept(String.format(formatStr, formatArgs));
       return argi;
     }
 
@@ -541,10 +551,10 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    public int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder) {
+    public int eval(List<Object> arguments, int argi, Consumer<String> args) {
       String before = (String) arguments.get(argi++);
       Object arg = arguments.get(argi++);
-      builder.add(before + CommandLineItem.expandToCommandLine(arg));
+      args.accept(before + CommandLineItem.expandToCommandLine(arg));
       return argi;
     }
 
@@ -591,10 +601,10 @@ public final class CustomCommandLine extends CommandLine {
    */
   private abstract static class TreeArtifactExpansionArgvFragment extends StandardArgvFragment {
     /**
-     * Evaluates this argument fragment into an argument string and adds it into {@code builder}.
-     * The enclosed TreeArtifact will be expanded using {@code artifactExpander}.
+     * Evaluates this argument fragment into argument strings and passes them to {@code args}. The
+     * enclosed TreeArtifact will be expanded using {@code artifactExpander}.
      */
-    abstract void eval(ImmutableList.Builder<String> builder, ArtifactExpander artifactExpander);
+    abstract void eval(Consumer<String> args, ArtifactExpander artifactExpander);
 
     /**
      * Returns a string that describes this argument fragment. The string can be used as part of an
@@ -611,8 +621,8 @@ public final class CustomCommandLine extends CommandLine {
      * <p>Internally this method just calls {@link #describe}.
      */
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(describe());
+    void eval(Consumer<String> args) {
+      args.accept(describe());
     }
   }
 
@@ -641,13 +651,13 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder, ArtifactExpander artifactExpander) {
+    void eval(Consumer<String> args, ArtifactExpander artifactExpander) {
       Set<Artifact> expandedArtifacts = new TreeSet<>();
       artifactExpander.expand(treeArtifact, expandedArtifacts);
 
       for (Artifact expandedArtifact : expandedArtifacts) {
         for (String commandLine : expandFunction.apply(expandedArtifact)) {
-          builder.add(commandLine);
+          args.accept(commandLine);
         }
       }
     }
@@ -1241,31 +1251,40 @@ public final class CustomCommandLine extends CommandLine {
 
   private Iterable<String> argumentsInternal(@Nullable ArtifactExpander artifactExpander) {
     ImmutableList.Builder<String> builder = ImmutableList.builder();
+    expandArguments(artifactExpander, builder::add);
+    return builder.build();
+  }
+
+  /**
+   * Passes the arguments to {@code args} as they are evaluated, without building the whole list.
+   * Only the values of a vector arg that are joined into a single argument are held together.
+   */
+  @Override
+  public void expandArguments(@Nullable ArtifactExpander artifactExpander, Consumer<String> args) {
     int count = arguments.size();
     for (int i = 0; i < count; ) {
       Object arg = arguments.get(i++);
       Object substitutedArg = substituteTreeFileArtifactArgvFragment(arg);
       if (substitutedArg instanceof Iterable) {
-        evalSimpleVectorArg((Iterable<?>) substitutedArg, builder);
+        evalSimpleVectorArg((Iterable<?>) substitutedArg, args);
       } else if (substitutedArg instanceof ArgvFragment) {
         if (artifactExpander != null
             && substitutedArg instanceof TreeArtifactExpansionArgvFragment) {
           TreeArtifactExpansionArgvFragment expansionArg =
               (TreeArtifactExpansionArgvFragment) substitutedArg;
-          expansionArg.eval(builder, artifactExpander);
+          expansionArg.eval(args, artifactExpander);
         } else {
-          i = ((ArgvFragment) substitutedArg).eval(arguments, i, builder);
+          i = ((ArgvFragment) substitutedArg).eval(arguments, i, args);
         }
       } else {
-        builder.add(CommandLineItem.expandToCommandLine(substitutedArg));
+        args.accept(CommandLineItem.expandToCommandLine(substitutedArg));
       }
     }
-    return builder.build();
   }
 
-  private void evalSimpleVectorArg(Iterable<?> arg, ImmutableList.Builder<String> builder) {
+  private void evalSimpleVectorArg(Iterable<?> arg, Consumer<String> args) {
     for (Object value : arg) {
-      builder.add(CommandLineItem.expandToCommandLine(value));
+      args.accept(CommandLineItem.expandToCommandLine(value));
     }
   }
 
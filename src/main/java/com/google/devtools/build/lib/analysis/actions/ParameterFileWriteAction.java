@@ -121,14 +121,8 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
   @Override
   public DeterministicWriter newDeterministicWriter(ActionExecutionContext ctx)
       throws ExecException {
-    final Iterable<String> arguments;
-    try {
-      ArtifactExpander artifactExpander = Preconditions.checkNotNull(ctx.getArtifactExpander());
-      arguments = commandLine.arguments(artifactExpander);
-    } catch (CommandLineExpansionException e) {
-      throw new UserExecException(e);
-    }
-    return new ParamFileWriter(arguments, type, charset);
+    ArtifactExpander artifactExpander = Preconditions.checkNotNull(ctx.getArtifactExpander());
+    return new ParamFileWriter(commandLine, artifactExpander, type, charset);
   }
 
   @VisibleForSerialization
@@ -136,20 +130,35 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
     return Iterables.getOnlyElement(outputs);
   }
 
+  /**
+   * Writes the arguments as the command line expands them, so that the parameter file of a huge
+   * command line is written without building the list of its arguments.
+   */
   private static class ParamFileWriter implements DeterministicWriter {
-    private final Iterable<String> arguments;
+    private final CommandLine commandLine;
+    private final ArtifactExpander artifactExpander;
     private final ParameterFileType type;
     private final Charset charset;
 
-    ParamFileWriter(Iterable<String> arguments, ParameterFileType type, Charset charset) {
-      this.arguments = arguments;
+    ParamFileWriter(
+        CommandLine commandLine,
+        ArtifactExpander artifactExpander,
+        ParameterFileType type,
+        Charset charset) {
+      this.commandLine = commandLine;
+      this.artifactExpander = artifactExpander;
       this.type = type;
       this.charset = charset;
     }
 
     @Override
     public void writeOutputFile(OutputStream out) throws IOException {
-      ParameterFile.writeParameterFile(out, arguments, type, charset);
+      try {
+        ParameterFile.writeParameterFile(out, commandLine, artifactExpander, type, charset);
+      } catch (CommandLineExpansionException e) {
+        // The command line is only expanded now; the strategy reports this as a user error.
+        throw new UserErrorWhileWritingException(new UserExecException(e));
+      }
     }
   }
 
@@ -31,6 +31,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.skyframe.serialization.DeserializationContext;
 import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
@@ -76,8 +77,11 @@ import javax.annotation.Nullable;
 // takes fragments and gets names from them.
 @AutoCodec
 public final class BuildOptions implements Cloneable, Serializable {
+  // Serializable, since the sorted maps of the options keep it.
   private static final Comparator<Class<? extends FragmentOptions>>
-      lexicalFragmentOptionsComparator = Comparator.comparing(Class::getName);
+      lexicalFragmentOptionsComparator =
+          (Comparator<Class<? extends FragmentOptions>> & Serializable)
+              (first, second) -> first.getName().compareTo(second.getName());
   private static final Comparator<Label> skylarkOptionsComparator = Ordering.natural();
   private static final Logger logger = Logger.getLogger(BuildOptions.class.getName());
 
@@ -120,7 +124,7 @@ public final class BuildOptions implements Cloneable, Serializable {
     for (FragmentOptions options : retainedOptions) {
       builder.addFragmentOptions(options);
     }
-    return builder.addStarlarkOptions(skylarkOptionsMap).build();
+    return derive(builder.addStarlarkOptions(skylarkOptionsMap).build());
   }
 
   /**
@@ -165,9 +169,14 @@ public final class BuildOptions implements Cloneable, Serializable {
     return builder().addStarlarkOptions(skylarkOptions).build();
   }
 
-  /** Returns the actual instance of a FragmentOptions class. */
+  /**
+   * Returns the actual instance of a FragmentOptions class. If the instance is still shared with
+   * the options these were cloned from or into, it is replaced with a copy first, since the caller
+   * may change it.
+   */
   public <T extends FragmentOptions> T get(Class<T> optionsClass) {
-    FragmentOptions options = fragmentOptionsMap.get(optionsClass);
+    FragmentOptions options =
+        sharedFragments != null ? unshare(optionsClass) : fragmentOptionsMap.get(optionsClass);
     Preconditions.checkNotNull(options, "fragment options unavailable: " + optionsClass.getName());
     return optionsClass.cast(options);
   }
@@ -190,8 +199,13 @@ public final class BuildOptions implements Cloneable, Serializable {
     return keyBuilder.toString();
   }
 
+  /**
+   * Returns a hex digest of these options. Derived from the fingerprint, so that it only digests
+   * again the fragments which differ from the options these were derived from.
+   */
   public String computeChecksum() {
-    return Fingerprint.getHexDigest(computeCacheKey());
+    maybeInitializeFingerprintAndHashCode();
+    return BaseEncoding.base16().lowerCase().encode(fingerprint);
   }
 
   /** String representation of build options. */
@@ -219,18 +233,56 @@ public final class BuildOptions implements Cloneable, Serializable {
   }
 
   /**
-   * Creates a copy of the BuildOptions object that contains copies of the FragmentOptions and
-   * skylark options.
+   * Creates a copy of the BuildOptions object. The FragmentOptions are copied on write: both
+   * options share them until {@link #get} hands one out, so that the fragments a transition doesn't
+   * touch are recognized by identity when fingerprinting.
    */
   @Override
   public BuildOptions clone() {
-    ImmutableMap.Builder<Class<? extends FragmentOptions>, FragmentOptions> nativeOptionsBuilder =
-        ImmutableMap.builder();
+    BuildOptions clone;
+    synchronized (this) {
+      clone = new BuildOptions(fragmentOptionsMap, skylarkOptionsMap);
+      if (!fragmentOptionsMap.isEmpty()) {
+        clone.sharedFragments = new HashSet<>(fragmentOptionsMap.keySet());
+        // Options are not changed any more once they are fingerprinted.
+        if (!fingerprintAndHashCodeInitialized()) {
+          sharedFragments = new HashSet<>(fragmentOptionsMap.keySet());
+        }
+      }
+    }
+    return derive(clone);
+  }
+
+  /** Returns the given fragment, replacing it with a copy first if it is still shared. */
+  @Nullable
+  private synchronized FragmentOptions unshare(Class<? extends FragmentOptions> optionsClass) {
+    FragmentOptions options = fragmentOptionsMap.get(optionsClass);
+    if (options == null || sharedFragments == null || !sharedFragments.remove(optionsClass)) {
+      return options;
+    }
+    if (sharedFragments.isEmpty()) {
+      sharedFragments = null;
+    }
+    FragmentOptions copy = options.clone();
+    ImmutableMap.Builder<Class<? extends FragmentOptions>, FragmentOptions> copiedMap =
+        ImmutableMap.builderWithExpectedSize(fragmentOptionsMap.size());
     for (Map.Entry<Class<? extends FragmentOptions>, FragmentOptions> entry :
         fragmentOptionsMap.entrySet()) {
-      nativeOptionsBuilder.put(entry.getKey(), entry.getValue().clone());
+      copiedMap.put(entry.getKey(), entry.getKey() == optionsClass ? copy : entry.getValue());
     }
-    return new BuildOptions(nativeOptionsBuilder.build(), ImmutableMap.copyOf(skylarkOptionsMap));
+    fragmentOptionsMap = copiedMap.build();
+    return copy;
+  }
+
+  /**
+   * Records that {@code derived} was created from these options, so that it can reuse the digests
+   * of the fragments it didn't change.
+   */
+  private BuildOptions derive(BuildOptions derived) {
+    if (derived != this) {
+      derived.derivedFrom = this;
+    }
+    return derived;
   }
 
   private boolean fingerprintAndHashCodeInitialized() {
@@ -245,6 +297,12 @@ public final class BuildOptions implements Cloneable, Serializable {
    * called. Using {@link #hashCode} after this method is called is safe because it is set here
    * before {@link #fingerprint} is set, so if {@link #fingerprint} is non-null then {@link
    * #hashCode} is definitely set.
+   *
+   * <p>The fingerprint is made of a digest per fragment. Options are mostly created by copying
+   * other options and changing a few values, as transitions do, so the digests of the fragments
+   * which are still equal to the ones of {@link #derivedFrom} are reused instead of recomputed.
+   * Fragments nobody asked for since the copy are still the same objects; the others are compared
+   * field by field.
    */
   private void maybeInitializeFingerprintAndHashCode() {
     if (fingerprintAndHashCodeInitialized()) {
@@ -254,22 +312,63 @@ public final class BuildOptions implements Cloneable, Serializable {
       if (fingerprintAndHashCodeInitialized()) {
         return;
       }
+      BuildOptions origin = derivedFrom;
+      ImmutableMap<Class<? extends FragmentOptions>, byte[]> originDigests =
+          origin != null ? origin.fragmentDigests : null;
+      ImmutableMap.Builder<Class<? extends FragmentOptions>, byte[]> digests =
+          ImmutableMap.builderWithExpectedSize(fragmentOptionsMap.size());
       Fingerprint fingerprint = new Fingerprint();
       for (Map.Entry<Class<? extends FragmentOptions>, FragmentOptions> entry :
           fragmentOptionsMap.entrySet()) {
+        byte[] digest = null;
+        if (originDigests != null && originDigests.containsKey(entry.getKey())) {
+          FragmentOptions originOptions = origin.fragmentOptionsMap.get(entry.getKey());
+          if (originOptions == entry.getValue() || originOptions.equals(entry.getValue())) {
+            digest = originDigests.get(entry.getKey());
+          }
+        }
+        if (digest == null) {
+          digest = fingerprint.addString(entry.getValue().cacheKey()).digestAndReset();
+        }
+        digests.put(entry.getKey(), digest);
+      }
+      ImmutableMap<Class<? extends FragmentOptions>, byte[]> computedDigests = digests.build();
+      for (Map.Entry<Class<? extends FragmentOptions>, byte[]> entry : computedDigests.entrySet()) {
         fingerprint.addString(entry.getKey().getName());
-        fingerprint.addString(entry.getValue().cacheKey());
+        fingerprint.addBytes(entry.getValue());
       }
       for (Map.Entry<Label, Object> entry : skylarkOptionsMap.entrySet()) {
         fingerprint.addString(entry.getKey().toString());
         fingerprint.addString(entry.getValue().toString());
       }
       byte[] computedFingerprint = fingerprint.digestAndReset();
+      fragmentDigests = computedDigests;
+      sharedFragments = null;
+      // Don't keep the whole chain of options these were derived from alive.
+      derivedFrom = null;
       hashCode = Arrays.hashCode(computedFingerprint);
       this.fingerprint = computedFingerprint;
     }
   }
 
+  /**
+   * Returns whether the given fragment is known to be equal in both options, without comparing it
+   * field by field.
+   */
+  private static boolean sameFragmentDigest(
+      Class<? extends FragmentOptions> clazz, BuildOptions first, BuildOptions second) {
+    // The digests are transient, so deserialized options don't have them even though their
+    // fingerprint is set.
+    ImmutableMap<Class<? extends FragmentOptions>, byte[]> firstDigests = first.fragmentDigests;
+    ImmutableMap<Class<? extends FragmentOptions>, byte[]> secondDigests = second.fragmentDigests;
+    if (firstDigests == null || secondDigests == null) {
+      return false;
+    }
+    byte[] firstDigest = firstDigests.get(clazz);
+    byte[] secondDigest = secondDigests.get(clazz);
+    return firstDigest == secondDigest || Arrays.equals(firstDigest, secondDigest);
+  }
+
   @Override
   public boolean equals(Object other) {
     if (this == other) {
@@ -293,9 +392,29 @@ public final class BuildOptions implements Cloneable, Serializable {
   // Lazily initialized.
   @Nullable private volatile byte[] fingerprint;
   private volatile int hashCode;
+  /**
+   * The digest of each fragment's options, set before {@link #fingerprint}. Not serialized, so it
+   * may be null even if {@link #fingerprint} is set.
+   */
+  @Nullable private transient volatile ImmutableMap<Class<? extends FragmentOptions>, byte[]>
+      fragmentDigests;
+  /**
+   * The options these were copied from, whose fragment digests may be reused. Cleared once the
+   * fingerprint is computed.
+   */
+  @Nullable private transient volatile BuildOptions derivedFrom;
 
-  /** Maps options class definitions to FragmentOptions objects. */
-  private final ImmutableMap<Class<? extends FragmentOptions>, FragmentOptions> fragmentOptionsMap;
+  /**
+   * Maps options class definitions to FragmentOptions objects. Only replaced by {@link #unshare}.
+   */
+  private volatile ImmutableMap<Class<? extends FragmentOptions>, FragmentOptions>
+      fragmentOptionsMap;
+  /**
+   * The fragments which may still be shared with the options these were cloned from or into, and
+   * are copied by {@link #get} before they are handed out. Null if there are none, and once the
+   * fingerprint is computed. Only written while holding the lock of these options.
+   */
+  @Nullable private transient volatile Set<Class<? extends FragmentOptions>> sharedFragments;
   /** Maps skylark options names to skylark options values. */
   private final ImmutableMap<Label, Object> skylarkOptionsMap;
 
@@ -342,7 +461,7 @@ public final class BuildOptions implements Cloneable, Serializable {
       }
     }
     skylarkOptions.putAll(optionsDiff.extraSecondStarlarkOptions);
-    reconstructedOptions = builder.addStarlarkOptions(skylarkOptions).build();
+    reconstructedOptions = derive(builder.addStarlarkOptions(skylarkOptions).build());
     optionsDiff.cachedReconstructed = new SoftReference<>(reconstructedOptions);
     return reconstructedOptions;
   }
@@ -381,7 +500,7 @@ public final class BuildOptions implements Cloneable, Serializable {
       starlarkOptions.put(starlarkOption.getKey(), starlarkOption.getValue());
     }
     builder.addStarlarkOptions(starlarkOptions);
-    return builder.build();
+    return derive(builder.build());
   }
 
   private Map<Class<? extends FragmentOptions>, FragmentOptions> toModifiedFragments(
@@ -479,7 +598,12 @@ public final class BuildOptions implements Cloneable, Serializable {
 
   /** Creates a builder operating on a clone of this BuildOptions. */
   public Builder toBuilder() {
-    return builder().merge(clone());
+    // The builder hands out the fragments without copying them, so don't share them.
+    Builder builder = builder();
+    for (FragmentOptions options : fragmentOptionsMap.values()) {
+      builder.addFragmentOptions(options.clone());
+    }
+    return builder.addStarlarkOptions(skylarkOptionsMap);
   }
 
   /** Builder class for BuildOptions. */
@@ -604,8 +728,9 @@ public final class BuildOptions implements Cloneable, Serializable {
       FragmentOptions firstOptions = first.get(clazz);
       FragmentOptions secondOptions = second.get(clazz);
       // Similar to above, we avoid calling #equals because we are going to do a field-by-field
-      // comparison anyway.
-      if (firstOptions == secondOptions) {
+      // comparison anyway. The fragment digests, if already computed, spare that comparison for
+      // the fragments a transition didn't touch.
+      if (firstOptions == secondOptions || sameFragmentDigest(clazz, first, second)) {
         continue;
       }
       for (OptionDefinition definition : OptionsParser.getOptionDefinitions(clazz)) {
@@ -668,6 +793,9 @@ public final class BuildOptions implements Cloneable, Serializable {
 
   private static OptionsDiffForReconstruction createDiffForReconstruction(
       BuildOptions first, BuildOptions second) {
+    // Both fingerprints are needed anyway, and having them lets the diff skip equal fragments.
+    first.maybeInitializeFingerprintAndHashCode();
+    second.maybeInitializeFingerprintAndHashCode();
     OptionsDiff diff = diff(first, second);
     if (diff.areSame()) {
       first.maybeInitializeFingerprintAndHashCode();
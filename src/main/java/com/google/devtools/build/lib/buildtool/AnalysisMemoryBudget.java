@@ -0,0 +1,223 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.buildtool;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.runtime.RetainedHeapLimiter;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Decides whether the analysis cache has to be discarded before the execution phase to keep within
+ * {@code --experimental_analysis_memory_budget}.
+ *
+ * <p>The heap retained by configured targets and aspects can't be measured directly. Right after
+ * the analysis phase they make up most of the live heap though, so the occupancy of the tenured
+ * space stands in for it. The space currently in use includes garbage and only bounds the retained
+ * heap from above, so if it fits the budget nothing else is done. Otherwise a full garbage
+ * collection is triggered and the occupancy is taken from its notification, as {@link
+ * RetainedHeapLimiter} does: the statistics the memory pools keep of their last collection may
+ * predate the analysis phase, and collectors like G1 which mostly collect the tenured space
+ * concurrently hardly ever update them.
+ *
+ * <p>With {@code -XX:+DisableExplicitGC} or {@code -XX:+ExplicitGCInvokesConcurrent}, {@link
+ * System#gc} doesn't lead to a reported full collection, so the space currently in use is compared
+ * with the budget instead, which may discard the cache when a collection would have shown that it
+ * fits.
+ */
+final class AnalysisMemoryBudget implements NotificationListener {
+  private static final Logger logger = Logger.getLogger(AnalysisMemoryBudget.class.getName());
+
+  /** How long to wait for the notification of the triggered collection, which is asynchronous. */
+  private static final long GC_NOTIFICATION_TIMEOUT_SECONDS = 30;
+
+  private final ImmutableList<NotificationEmitter> tenuredGcEmitters;
+  private final LongSupplier tenuredSpaceUsed;
+  private final Runnable gc;
+  private final boolean explicitGcReported;
+  private final long maxHeapSize;
+
+  private volatile CountDownLatch collected;
+  private volatile long retainedHeapSize = -1;
+
+  AnalysisMemoryBudget() {
+    this(
+        RetainedHeapLimiter.findTenuredCollectorBeans(
+            ManagementFactory.getGarbageCollectorMXBeans()),
+        AnalysisMemoryBudget::getTenuredSpaceUsed,
+        System::gc,
+        isExplicitGcReported(),
+        Runtime.getRuntime().maxMemory());
+  }
+
+  @VisibleForTesting
+  AnalysisMemoryBudget(
+      ImmutableList<NotificationEmitter> tenuredGcEmitters,
+      LongSupplier tenuredSpaceUsed,
+      Runnable gc,
+      boolean explicitGcReported,
+      long maxHeapSize) {
+    this.tenuredGcEmitters = tenuredGcEmitters;
+    this.tenuredSpaceUsed = tenuredSpaceUsed;
+    this.gc = gc;
+    this.explicitGcReported = explicitGcReported;
+    this.maxHeapSize = maxHeapSize;
+  }
+
+  private static long getTenuredSpaceUsed() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (RetainedHeapLimiter.isTenuredSpace(pool.getName())) {
+        used += pool.getUsage().getUsed();
+      }
+    }
+    return used;
+  }
+
+  /**
+   * Returns whether {@link System#gc} leads to a full collection reported to the listeners of the
+   * collectors, which isn't the case if the JVM ignores it or turns it into a concurrent cycle.
+   */
+  private static boolean isExplicitGcReported() {
+    HotSpotDiagnosticMXBean hotSpot =
+        ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+    if (hotSpot == null) {
+      return true;
+    }
+    for (String option : ImmutableList.of("DisableExplicitGC", "ExplicitGCInvokesConcurrent")) {
+      try {
+        if (hotSpot.getVMOption(option).getValue().equals("true")) {
+          return false;
+        }
+      } catch (IllegalArgumentException e) {
+        // The option doesn't exist in this JVM.
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether the heap retained after the analysis phase exceeds {@code percentage}% of the
+   * maximum heap size. A full garbage collection is triggered to measure it only if the tenured
+   * space currently in use exceeds the budget. A percentage of 100 disables the budget.
+   */
+  boolean isExceeded(int percentage) throws InterruptedException {
+    if (percentage >= 100 || maxHeapSize <= 0 || maxHeapSize == Long.MAX_VALUE) {
+      return false;
+    }
+    if (tenuredGcEmitters.isEmpty()) {
+      logger.warning("Can't find the tenured space, not enforcing the analysis memory budget");
+      return false;
+    }
+    long budget = maxHeapSize / 100 * percentage;
+    retainedHeapSize = tenuredSpaceUsed.getAsLong();
+    if (retainedHeapSize <= budget) {
+      return false;
+    }
+    if (!explicitGcReported) {
+      logger.info("Explicit garbage collections aren't reported, using the tenured space in use");
+      return true;
+    }
+    long retained = measureRetainedHeapSize();
+    return retained >= 0 && retained > budget;
+  }
+
+  /**
+   * Triggers a full garbage collection and returns the bytes of the tenured space still in use
+   * after it, or -1 if no collection of the tenured space was reported in time.
+   */
+  private long measureRetainedHeapSize() throws InterruptedException {
+    retainedHeapSize = -1;
+    collected = new CountDownLatch(1);
+    tenuredGcEmitters.forEach(e -> e.addNotificationListener(this, null, null));
+    try {
+      gc.run();
+      if (!collected.await(GC_NOTIFICATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        logger.warning("No garbage collection reported, not enforcing the analysis memory budget");
+      }
+    } finally {
+      for (NotificationEmitter emitter : tenuredGcEmitters) {
+        try {
+          emitter.removeNotificationListener(this, null, null);
+        } catch (ListenerNotFoundException e) {
+          logger.warning("Couldn't remove self as listener from " + emitter);
+        }
+      }
+    }
+    return retainedHeapSize;
+  }
+
+  @Override
+  public void handleNotification(Notification notification, Object handback) {
+    if (!notification
+        .getType()
+        .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+      return;
+    }
+    GarbageCollectionNotificationInfo info =
+        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+    recordCollection(info.getGcCause(), info.getGcInfo().getMemoryUsageAfterGc());
+  }
+
+  /**
+   * Records the occupancy of the tenured space after a collection, if it is the one {@link
+   * #measureRetainedHeapSize} triggered rather than one that started before the end of the analysis
+   * phase.
+   */
+  @VisibleForTesting
+  void recordCollection(String gcCause, Map<String, MemoryUsage> memoryUsageAfterGc) {
+    if (!gcCause.equals("System.gc()")) {
+      return;
+    }
+    long retained = 0;
+    boolean collectedTenuredSpace = false;
+    for (Map.Entry<String, MemoryUsage> entry : memoryUsageAfterGc.entrySet()) {
+      if (RetainedHeapLimiter.isTenuredSpace(entry.getKey())) {
+        retained += entry.getValue().getUsed();
+        collectedTenuredSpace = true;
+      }
+    }
+    CountDownLatch collected = this.collected;
+    if (collectedTenuredSpace && collected != null && collected.getCount() > 0) {
+      retainedHeapSize = retained;
+      collected.countDown();
+    }
+  }
+
+  /**
+   * Returns the bytes of the tenured space the last call to {@link #isExceeded} compared with the
+   * budget, or -1 if it wasn't measured.
+   */
+  long getRetainedHeapSize() {
+    return retainedHeapSize;
+  }
+
+  long getMaxHeapSize() {
+    return maxHeapSize;
+  }
+}
@@ -137,6 +137,12 @@ public class BuildTool {
 
       initializeOutputFilter(request);
 
+      env.getSkyframeExecutor()
+          .setNestedSetSpillThreshold(request.getExecutionOptions().nestedSetSpillThreshold);
+      env.getSkyframeExecutor()
+          .getActionKeyContext()
+          .setPersistentNestedSetFingerprints(
+              request.getExecutionOptions().persistentNestedSetFingerprints);
       AnalysisPhaseRunner analysisPhaseRunner = new AnalysisPhaseRunner(env);
       AnalysisResult analysisResult = analysisPhaseRunner.execute(request, buildOptions, validator);
 
@@ -186,6 +192,7 @@ public class BuildTool {
       if (executionTool != null) {
         executionTool.shutdown();
       }
+      env.getSkyframeExecutor().finishNestedSetSpilling();
       if (!catastrophe) {
         // Delete dirty nodes to ensure that they do not accumulate indefinitely.
         long versionWindow = request.getViewOptions().versionWindowForDirtyNodeGc;
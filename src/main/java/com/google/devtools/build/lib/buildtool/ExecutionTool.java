@@ -48,6 +48,7 @@ import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionPhaseCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.EventKind;
@@ -57,6 +58,7 @@ import com.google.devtools.build.lib.exec.BlazeExecutor;
 import com.google.devtools.build.lib.exec.CheckUpToDateFilter;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.exec.SharedRunfilesTrees;
 import com.google.devtools.build.lib.exec.SingleBuildFileCache;
 import com.google.devtools.build.lib.exec.SpawnActionContextMaps;
 import com.google.devtools.build.lib.exec.SymlinkTreeStrategy;
@@ -95,6 +97,7 @@ import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * This class manages the execution phase. The entry point is {@link #executeBuild}.
@@ -117,6 +120,7 @@ public class ExecutionTool {
   private final MetadataProvider fileCache;
   private final ActionInputPrefetcher prefetcher;
   private final ImmutableList<ActionContextProvider> actionContextProviders;
+  @Nullable private final SharedRunfilesTrees sharedRunfilesTrees;
   private SpawnActionContextMaps spawnActionContextMaps;
 
   ExecutionTool(CommandEnvironment env, BuildRequest request) throws ExecutorInitException {
@@ -136,8 +140,13 @@ public class ExecutionTool {
         module.executorInit(env, request, builder);
       }
     }
+    sharedRunfilesTrees =
+        request.getOptions(ExecutionOptions.class).shareRunfilesTrees
+            ? new SharedRunfilesTrees()
+            : null;
     builder.addActionContext(
-        new SymlinkTreeStrategy(env.getOutputService(), env.getBlazeWorkspace().getBinTools()));
+        new SymlinkTreeStrategy(
+            env.getOutputService(), env.getBlazeWorkspace().getBinTools(), sharedRunfilesTrees));
     // TODO(philwo) - the ExecutionTool should not add arbitrary dependencies on its own, instead
     // these dependencies should be added to the ActionContextConsumer of the module that actually
     // depends on them.
@@ -319,7 +328,8 @@ public class ExecutionTool {
     boolean buildCompleted = false;
     try {
       if (request.getViewOptions().discardAnalysisCache
-          || !skyframeExecutor.tracksStateForIncrementality()) {
+          || !skyframeExecutor.tracksStateForIncrementality()
+          || exceedsAnalysisMemoryBudget(request.getViewOptions().analysisMemoryBudget)) {
         // Free memory by removing cache entries that aren't going to be needed.
         try (SilentCloseable c = Profiler.instance().profile("clearAnalysisCache")) {
           env.getSkyframeBuildView()
@@ -344,6 +354,15 @@ public class ExecutionTool {
       try (SilentCloseable c = Profiler.instance().profile("configureResourceManager")) {
         configureResourceManager(env.getLocalResourceManager(), request);
       }
+      NestedSet.setFlattenCacheSize(request.getExecutionOptions().nestedSetFlattenCacheSize);
+      NestedSet.setParallelFlatteningThreshold(
+          request.getExecutionOptions().parallelNestedSetFlatteningThreshold);
+      try (SilentCloseable c = Profiler.instance().profile("spillNestedSets")) {
+        int spilled = skyframeExecutor.spillNestedSets();
+        if (spilled > 0) {
+          logger.info("Spilled the children of " + spilled + " nested sets");
+        }
+      }
 
       Profiler.instance().markPhase(ProfilePhase.EXECUTE);
       builder.buildArtifacts(
@@ -400,6 +419,12 @@ public class ExecutionTool {
         saveActionCache(actionCache);
       }
 
+      if (sharedRunfilesTrees != null) {
+        try (SilentCloseable c = Profiler.instance().profile("Collect runfiles trees")) {
+          sharedRunfilesTrees.collectGarbage();
+        }
+      }
+
       try (SilentCloseable c = Profiler.instance().profile("Show results")) {
         buildResult.setSuccessfulTargets(
             determineSuccessfulTargets(configuredTargets, builtTargets));
@@ -458,6 +483,27 @@ public class ExecutionTool {
     }
   }
 
+  /**
+   * Returns whether the analysis cache takes up more of the heap than {@code
+   * --experimental_analysis_memory_budget} allows, in which case it is discarded like with {@code
+   * --discard_analysis_cache}.
+   */
+  private boolean exceedsAnalysisMemoryBudget(int analysisMemoryBudget)
+      throws InterruptedException {
+    AnalysisMemoryBudget budget = new AnalysisMemoryBudget();
+    if (!budget.isExceeded(analysisMemoryBudget)) {
+      return false;
+    }
+    String message =
+        String.format(
+            "%d of %d bytes of the heap retained after analysis, more than the budget of %d%%: "
+                + "discarding the analysis cache",
+            budget.getRetainedHeapSize(), budget.getMaxHeapSize(), analysisMemoryBudget);
+    logger.info(message);
+    getReporter().handle(Event.info(message));
+    return true;
+  }
+
   private void createActionLogDirectory() throws ExecutorInitException {
     Path directory = env.getActionConsoleOutputDirectory();
     try {
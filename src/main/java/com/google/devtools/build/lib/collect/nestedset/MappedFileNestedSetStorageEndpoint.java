@@ -0,0 +1,146 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetStore.NestedSetStorageEndpoint;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link NestedSetStorageEndpoint} that appends the serialized contents to a local file, which it
+ * reads back through memory mappings. The contents are off the Java heap, and the operating system
+ * pages them in and out as they are used.
+ *
+ * <p>The file is written in segments that are mapped once, and entries never span two segments. An
+ * index from fingerprint to entry stays on the heap. Entries are never removed, so the file only
+ * grows until {@link #close} deletes it.
+ */
+public final class MappedFileNestedSetStorageEndpoint implements NestedSetStorageEndpoint {
+
+  /** The default size of a segment. Larger entries get a segment of their own. */
+  private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+  /** The location of an entry in the file. */
+  private static final class Entry {
+    private final MappedByteBuffer segment;
+    private final int offset;
+    private final int length;
+
+    private Entry(MappedByteBuffer segment, int offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final Path file;
+  private final int segmentSize;
+  private final FileChannel channel;
+  private final ConcurrentHashMap<ByteString, Entry> index = new ConcurrentHashMap<>();
+
+  /** The segment being filled, or null before the first write. */
+  @GuardedBy("this")
+  @Nullable
+  private MappedByteBuffer currentSegment;
+
+  /** The size of the file, which is the end of the last mapped segment. */
+  @GuardedBy("this")
+  private long fileSize;
+
+  private MappedFileNestedSetStorageEndpoint(Path file, int segmentSize) throws IOException {
+    Preconditions.checkArgument(segmentSize > 0, segmentSize);
+    this.file = file;
+    this.segmentSize = segmentSize;
+    this.channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+  }
+
+  /** Creates an endpoint storing its contents in {@code file}, which is truncated. */
+  public static MappedFileNestedSetStorageEndpoint create(Path file) throws IOException {
+    return new MappedFileNestedSetStorageEndpoint(file, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /** Creates an endpoint with segments of the given size, so that tests can span segments. */
+  static MappedFileNestedSetStorageEndpoint createForTesting(Path file, int segmentSize)
+      throws IOException {
+    return new MappedFileNestedSetStorageEndpoint(file, segmentSize);
+  }
+
+  @Override
+  public ListenableFuture<Void> put(ByteString fingerprint, byte[] serializedBytes)
+      throws IOException {
+    if (!index.containsKey(fingerprint)) {
+      index.putIfAbsent(fingerprint, append(serializedBytes));
+    }
+    return Futures.immediateFuture(null);
+  }
+
+  @Override
+  public ListenableFuture<byte[]> get(ByteString fingerprint) {
+    Entry entry = index.get(fingerprint);
+    if (entry == null) {
+      return Futures.immediateFuture(null);
+    }
+    byte[] bytes = new byte[entry.length];
+    // A duplicate has its own position, so concurrent reads of one segment do not interfere.
+    ByteBuffer buffer = entry.segment.duplicate();
+    buffer.position(entry.offset);
+    buffer.get(bytes);
+    return Futures.immediateFuture(bytes);
+  }
+
+  /** Returns the number of bytes of the file that are mapped. */
+  public synchronized long getMappedBytes() {
+    return fileSize;
+  }
+
+  private synchronized Entry append(byte[] bytes) throws IOException {
+    if (currentSegment == null || currentSegment.remaining() < bytes.length) {
+      int size = Math.max(segmentSize, bytes.length);
+      currentSegment = channel.map(FileChannel.MapMode.READ_WRITE, fileSize, size);
+      fileSize += size;
+    }
+    int offset = currentSegment.position();
+    currentSegment.put(bytes);
+    return new Entry(currentSegment, offset, bytes.length);
+  }
+
+  /**
+   * Closes and deletes the file. The mappings stay valid until they are garbage collected, but
+   * nothing can be stored or retrieved anymore.
+   */
+  public synchronized void close() throws IOException {
+    index.clear();
+    currentSegment = null;
+    channel.close();
+    Files.deleteIfExists(file);
+  }
+}
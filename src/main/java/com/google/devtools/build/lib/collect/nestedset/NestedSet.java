@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.collect.nestedset;
 import static java.util.stream.Collectors.joining;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.flogger.GoogleLogger;
@@ -24,6 +26,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.devtools.build.lib.bugreport.BugReport;
 import com.google.devtools.build.lib.collect.compacthashset.CompactHashSet;
 import com.google.devtools.build.lib.concurrent.MoreFutures;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.protobuf.ByteString;
@@ -34,6 +37,7 @@ import java.util.Iterator;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 
@@ -56,12 +60,36 @@ public final class NestedSet<E> implements Iterable<E> {
    */
   private int orderAndSize;
 
-  private final Object children;
+  /** The children, which only change when they are spilled by a {@link NestedSetSpiller}. */
+  private volatile Object children;
+
   private byte[] memo;
 
   private static final byte[] LEAF_MEMO = {};
   @AutoCodec static final Object[] EMPTY_CHILDREN = {};
 
+  /** Sets with fewer elements are cheap enough to replay that they are never put in the cache. */
+  private static final int FLATTEN_CACHE_MIN_SIZE = 1024;
+
+  /**
+   * Expansions of large sets, keyed by the identity of their children array, or null if disabled.
+   *
+   * <p>Several sets may share their children array, and they then share their expansion. The
+   * expansion is the one before {@link Order#LINK_ORDER} is reversed, since it is the same for all
+   * orders.
+   */
+  @Nullable private static volatile Cache<Object[], ImmutableList<Object>> flattenCache;
+
+  private static long flattenCacheSize;
+
+  /** The size from which the first expansion of a set is parallel, or 0 if it is never parallel. */
+  private static volatile int parallelFlatteningThreshold;
+
+  @Nullable private static volatile ForkJoinPool flatteningPool;
+
+  /** The spiller with which new large sets are registered, or null if spilling is disabled. */
+  @Nullable private static volatile NestedSetSpiller activeSpiller;
+
   /** Construct an empty NestedSet. Should only be called by Order's class initializer. */
   NestedSet(Order order) {
     this.orderAndSize = order.ordinal();
@@ -119,6 +147,7 @@ public final class NestedSet<E> implements Iterable<E> {
         alreadyInserted = direct;
       } else if ((pass == 1) == preorder && !transitive.isEmpty()) {
         CompactHashSet<E> hoisted = null;
+        NestedSetSpiller spiller = activeSpiller;
         for (NestedSet<E> subset : transitiveOrder) {
           // If this is a deserialization future, this call blocks.
           Object c = subset.getChildren();
@@ -129,6 +158,11 @@ public final class NestedSet<E> implements Iterable<E> {
             }
             children[n++] = a;
             leaf = false;
+            if (spiller != null
+                && subset.memo == LEAF_MEMO
+                && a.length >= spiller.getMinChildren()) {
+              spiller.registerSharedChildren(a);
+            }
           } else {
             if (!alreadyInserted.contains(c)) {
               if (hoisted == null) {
@@ -157,6 +191,10 @@ public final class NestedSet<E> implements Iterable<E> {
     if (leaf) {
       this.memo = LEAF_MEMO;
     }
+    NestedSetSpiller spiller = activeSpiller;
+    if (spiller != null && n > 1 && n >= spiller.getMinChildren()) {
+      spiller.register(this);
+    }
   }
 
   private NestedSet(Order order, Object children, byte[] memo) {
@@ -185,6 +223,84 @@ public final class NestedSet<E> implements Iterable<E> {
     return new NestedSet<>(order, children, memo);
   }
 
+  /**
+   * Enables a global cache of the expansions of large sets, which holds up to {@code maxElements}
+   * elements in total, or disables it if {@code maxElements} is 0. The cache is kept if its size
+   * does not change.
+   *
+   * <p>The cache holds its sets weakly. It helps when the same large sets are expanded over and
+   * over again, by different actions, since replaying the memo of a set costs a traversal of all
+   * its subsets.
+   */
+  public static synchronized void setFlattenCacheSize(long maxElements) {
+    Preconditions.checkArgument(maxElements >= 0, maxElements);
+    if (maxElements == flattenCacheSize) {
+      return;
+    }
+    flattenCacheSize = maxElements;
+    flattenCache =
+        maxElements == 0
+            ? null
+            : CacheBuilder.newBuilder()
+                .weakKeys()
+                .maximumWeight(maxElements)
+                .<Object[], ImmutableList<Object>>weigher((children, expansion) -> expansion.size())
+                .build();
+  }
+
+  /**
+   * Makes the first expansion of sets with at least {@code threshold} elements flatten their
+   * subsets in parallel, or disables parallel flattening if {@code threshold} is 0.
+   */
+  public static synchronized void setParallelFlatteningThreshold(int threshold) {
+    Preconditions.checkArgument(threshold >= 0, threshold);
+    if (threshold > 0 && flatteningPool == null) {
+      flatteningPool =
+          NamedForkJoinPool.newNamedPool(
+              "nested-set-flattening", Runtime.getRuntime().availableProcessors());
+    }
+    parallelFlatteningThreshold = threshold;
+  }
+
+  /**
+   * Registers the new sets that have at least {@link NestedSetSpiller#getMinChildren} children with
+   * {@code spiller}, or stops registering new sets if {@code spiller} is null. Sets that were
+   * already spilled keep using the spiller they were spilled by, until it restores them.
+   */
+  public static void setSpiller(@Nullable NestedSetSpiller spiller) {
+    activeSpiller = spiller;
+  }
+
+  /**
+   * Moves the children of this set to the store of {@code spiller}, if the set is a leaf, that is,
+   * its children are all elements, and {@code spiller} accepts them. A leaf set has a trivial memo
+   * and is never a key of the flatten cache, so neither depends on the identity of its children.
+   * The spiller does not accept the children of sets that are embedded in other sets, since those
+   * keep them on the heap anyway.
+   *
+   * @return whether the children were spilled
+   */
+  synchronized boolean spill(NestedSetSpiller spiller) {
+    Object children = this.children;
+    if (memo != LEAF_MEMO || !(children instanceof Object[]) || children == EMPTY_CHILDREN) {
+      return false;
+    }
+    NestedSetSpiller.SpilledChildren spilled = spiller.spill((Object[]) children);
+    if (spilled == null) {
+      return false;
+    }
+    this.children = spilled;
+    return true;
+  }
+
+  /** Brings back the children of a spilled set, so that its spiller can be closed. */
+  synchronized void restore() throws InterruptedException {
+    Object children = this.children;
+    if (children instanceof NestedSetSpiller.SpilledChildren) {
+      this.children = ((NestedSetSpiller.SpilledChildren) children).rehydrate();
+    }
+  }
+
   /** Returns the ordering of this nested set. */
   public Order getOrder() {
     return Order.getOrder(orderAndSize & 3);
@@ -201,9 +317,11 @@ public final class NestedSet<E> implements Iterable<E> {
 
   /** Implementation of {@link #getChildren} that will catch an InterruptedException and crash. */
   private Object getChildrenUninterruptibly() {
-    if (children instanceof ListenableFuture) {
+    Object children = this.children;
+    if (children instanceof ListenableFuture
+        || children instanceof NestedSetSpiller.SpilledChildren) {
       try {
-        return MoreFutures.waitForFutureAndGet((ListenableFuture<Object[]>) children);
+        return waitForChildren(children);
       } catch (InterruptedException e) {
         System.err.println(
             "An interrupted exception occurred during nested set deserialization, "
@@ -224,14 +342,24 @@ public final class NestedSet<E> implements Iterable<E> {
     if (handleInterruptedException) {
       return getChildrenUninterruptibly();
     } else {
-      if (children instanceof ListenableFuture) {
-        return MoreFutures.waitForFutureAndGet((ListenableFuture<Object[]>) children);
+      Object children = this.children;
+      if (children instanceof ListenableFuture
+          || children instanceof NestedSetSpiller.SpilledChildren) {
+        return waitForChildren(children);
       } else {
         return children;
       }
     }
   }
 
+  /** Returns the children behind a deserialization future or spilled children. */
+  private static Object[] waitForChildren(Object children) throws InterruptedException {
+    if (children instanceof NestedSetSpiller.SpilledChildren) {
+      return ((NestedSetSpiller.SpilledChildren) children).rehydrate();
+    }
+    return MoreFutures.waitForFutureAndGet((ListenableFuture<Object[]>) children);
+  }
+
   /**
    * Public version of {@link #getChildren}.
    *
@@ -242,7 +370,7 @@ public final class NestedSet<E> implements Iterable<E> {
     return getChildren();
   }
 
-  /** Returns the internal item, array, or future. */
+  /** Returns the internal item, array, future, or spilled children. */
   Object rawChildren() {
     return children;
   }
@@ -257,8 +385,12 @@ public final class NestedSet<E> implements Iterable<E> {
   /** Returns true if the set has exactly one element. */
   public boolean isSingleton() {
     // Singleton sets are special cased in serialization, and make no calls to storage.  Therefore,
-    // we know that any NestedSet with a ListenableFuture member is not a singleton.
-    return !(children instanceof Object[] || children instanceof ListenableFuture);
+    // we know that any NestedSet with a ListenableFuture member is not a singleton. Only arrays are
+    // spilled.
+    Object children = this.children;
+    return !(children instanceof Object[]
+        || children instanceof ListenableFuture
+        || children instanceof NestedSetSpiller.SpilledChildren);
   }
 
   /**
@@ -326,14 +458,28 @@ public final class NestedSet<E> implements Iterable<E> {
       return true;
     }
 
-    return other != null
-        && getOrder() == other.getOrder()
-        && (rawChildren().equals(other.rawChildren())
-            || (!isSingleton()
-                && !other.isSingleton()
-                && rawChildren() instanceof Object[]
-                && other.rawChildren() instanceof Object[]
-                && Arrays.equals((Object[]) children, (Object[]) other.children)));
+    if (other == null || getOrder() != other.getOrder()) {
+      return false;
+    }
+    Object children = rawChildren();
+    Object otherChildren = other.rawChildren();
+    if (children.equals(otherChildren)) {
+      return true;
+    }
+    if (children instanceof NestedSetSpiller.SpilledChildren
+        || otherChildren instanceof NestedSetSpiller.SpilledChildren) {
+      // Only bring back the children of sets that may well be equal.
+      if (shallowHashCode() != other.shallowHashCode()) {
+        return false;
+      }
+      children = getChildrenUninterruptibly();
+      otherChildren = other.getChildrenUninterruptibly();
+    }
+    return (!isSingleton()
+            && !other.isSingleton()
+            && children instanceof Object[]
+            && otherChildren instanceof Object[]
+            && Arrays.equals((Object[]) children, (Object[]) otherChildren));
   }
 
   /**
@@ -346,6 +492,11 @@ public final class NestedSet<E> implements Iterable<E> {
    * objects and collection-like objects.
    */
   public int shallowHashCode() {
+    Object children = this.children;
+    if (children instanceof NestedSetSpiller.SpilledChildren) {
+      return Objects.hash(
+          getOrder(), ((NestedSetSpiller.SpilledChildren) children).childrenHashCode());
+    }
     return isSingleton() || children instanceof ListenableFuture
         ? Objects.hash(getOrder(), children)
         : Objects.hash(getOrder(), Arrays.hashCode((Object[]) children));
@@ -394,7 +545,40 @@ public final class NestedSet<E> implements Iterable<E> {
   private ImmutableList<E> expand(boolean handleInterruptedException) throws InterruptedException {
     // This value is only set in the constructor, so safe to test here with no lock.
     if (memo == LEAF_MEMO) {
-      return ImmutableList.copyOf(new ArraySharingCollection<>((Object[]) children));
+      return ImmutableList.copyOf(
+          new ArraySharingCollection<>((Object[]) getChildren(handleInterruptedException)));
+    }
+    Cache<Object[], ImmutableList<Object>> cache = flattenCache;
+    if (cache == null) {
+      return expandUncached(handleInterruptedException);
+    }
+    Object[] children = (Object[]) this.getChildren(handleInterruptedException);
+    ImmutableList<E> expansion = (ImmutableList<E>) cache.getIfPresent(children);
+    if (expansion == null) {
+      expansion = expandUncached(handleInterruptedException);
+      if (expansion.size() >= FLATTEN_CACHE_MIN_SIZE) {
+        cache.put(children, (ImmutableList<Object>) expansion);
+      }
+    }
+    return expansion;
+  }
+
+  /**
+   * Expands a set that is not a leaf: the first time in parallel if the set is large enough, and
+   * then by walking the set to fill the memo, or by replaying the memo.
+   */
+  private ImmutableList<E> expandUncached(boolean handleInterruptedException)
+      throws InterruptedException {
+    int threshold = parallelFlatteningThreshold;
+    if (threshold > 0 && memo == null && (orderAndSize >> 2) == 0) {
+      Object[] children = (Object[]) this.getChildren(handleInterruptedException);
+      if (ParallelNestedSetExpander.hasAtLeast(children, threshold)) {
+        // The memo is only filled if the set is expanded again without being found in the cache.
+        ImmutableList<E> members =
+            (ImmutableList<E>) ParallelNestedSetExpander.expand(children, flatteningPool);
+        setSize(members.size());
+        return members;
+      }
     }
     CompactHashSet<E> members = lockedExpand(handleInterruptedException);
     if (members != null) {
@@ -406,6 +590,11 @@ public final class NestedSet<E> implements Iterable<E> {
     return output.build();
   }
 
+  private synchronized void setSize(int size) {
+    Preconditions.checkState(size < (Integer.MAX_VALUE >> 2));
+    orderAndSize = (orderAndSize & 3) | (size << 2);
+  }
+
   // Hack to share our internal array with ImmutableList/ImmutableSet, or avoid
   // a copy in cases where we can preallocate an array of the correct size.
   private static final class ArraySharingCollection<E> extends AbstractCollection<E> {
@@ -15,6 +15,8 @@
 package com.google.devtools.build.lib.collect.nestedset;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Multiset;
 import com.google.devtools.build.lib.actions.CommandLineItem;
@@ -25,8 +27,20 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
 
-/** Computes fingerprints for nested sets, reusing sub-computations from children. */
+/**
+ * Computes fingerprints for nested sets, reusing sub-computations from children.
+ *
+ * <p>The digests of the children arrays are normally only kept until {@link #clear}, which is
+ * called after every command. With {@link #setPersistent}, the digests computed with map functions
+ * that are singletons, such as {@link MapFn#DEFAULT}, are instead kept for as long as the arrays
+ * are alive, so that the actions that are created again by an incremental build reuse the digests
+ * of the nested sets that survived in the Skyframe graph. Digests computed with a {@link
+ * CommandLineItem.ParametrizedMapFn} are still dropped by {@link #clear}, since new instances of
+ * those are created by every analysis.
+ */
 public class NestedSetFingerprintCache {
   private static final int EMPTY_SET_DIGEST = 104_395_303;
 
@@ -36,6 +50,34 @@ public class NestedSetFingerprintCache {
   private final Set<Class<?>> seenMapFns = new HashSet<>();
   private final Multiset<Class<?>> seenParametrizedMapFns = HashMultiset.create();
 
+  /** The maximum number of digests kept across commands per map function. */
+  private static final long MAX_PERSISTENT_DIGESTS_PER_MAP_FN = 1 << 20;
+
+  /**
+   * Digests kept across commands, keyed weakly by the map function and then by the children
+   * arrays, or null if digests are only kept for one command.
+   */
+  @Nullable
+  private volatile Cache<CommandLineItem.MapFn<?>, Cache<Object, byte[]>> persistentDigests;
+
+  private final AtomicLong reusedDigests = new AtomicLong();
+  private final AtomicLong computedDigests = new AtomicLong();
+
+  /**
+   * Keeps the digests of the children arrays computed with singleton map functions for as long as
+   * the arrays are alive, up to a bound per map function, instead of until {@link #clear}.
+   * Disabling drops the digests kept so far.
+   */
+  public synchronized void setPersistent(boolean persistent) {
+    if (persistent && persistentDigests == null) {
+      // Map functions are weak keys too, so that one that turns out not to be a singleton after
+      // all is not kept alive, along with its digests, by this cache.
+      persistentDigests = CacheBuilder.newBuilder().weakKeys().build();
+    } else if (!persistent) {
+      persistentDigests = null;
+    }
+  }
+
   public <T> void addNestedSetToFingerprint(Fingerprint fingerprint, NestedSet<T> nestedSet) {
     addNestedSetToFingerprint(CommandLineItem.MapFn.DEFAULT, fingerprint, nestedSet);
   }
@@ -52,9 +94,25 @@ public class NestedSetFingerprintCache {
       return;
     }
     DigestMap digestMap = mapFnToDigestMap.computeIfAbsent(mapFn, this::newDigestMap);
+    Cache<CommandLineItem.MapFn<?>, Cache<Object, byte[]>> persistentDigests =
+        this.persistentDigests;
     fingerprint.addInt(nestedSet.getOrder().ordinal());
     Object children = nestedSet.getChildren();
-    addToFingerprint(mapFn, fingerprint, digestMap, children);
+    if (persistentDigests != null && !(mapFn instanceof CommandLineItem.ParametrizedMapFn)) {
+      Cache<Object, byte[]> digests =
+          persistentDigests
+              .asMap()
+              .computeIfAbsent(
+                  mapFn,
+                  unused ->
+                      CacheBuilder.newBuilder()
+                          .weakKeys()
+                          .maximumSize(MAX_PERSISTENT_DIGESTS_PER_MAP_FN)
+                          .build());
+      addToFingerprintPersistently(mapFn, fingerprint, digests, children);
+    } else {
+      addToFingerprint(mapFn, fingerprint, digestMap, children);
+    }
   }
 
   private <T> void addNestedSetToFingerprintSlow(
@@ -68,6 +126,18 @@ public class NestedSetFingerprintCache {
     mapFnToDigestMap = createMap();
     seenMapFns.clear();
     seenParametrizedMapFns.clear();
+    reusedDigests.set(0);
+    computedDigests.set(0);
+  }
+
+  /** Returns the number of digests of children arrays that were reused since {@link #clear}. */
+  public long getReusedDigests() {
+    return reusedDigests.get();
+  }
+
+  /** Returns the number of digests of children arrays that were computed since {@link #clear}. */
+  public long getComputedDigests() {
+    return computedDigests.get();
   }
 
   @SuppressWarnings("unchecked")
@@ -78,12 +148,41 @@ public class NestedSetFingerprintCache {
       Object children) {
     if (children instanceof Object[]) {
       if (!digestMap.readDigest(children, fingerprint)) {
+        computedDigests.incrementAndGet();
         Fingerprint childrenFingerprint = new Fingerprint();
         for (Object child : (Object[]) children) {
           addToFingerprint(mapFn, childrenFingerprint, digestMap, child);
         }
         digestMap.insertAndReadDigest(children, childrenFingerprint, fingerprint);
+      } else {
+        reusedDigests.incrementAndGet();
+      }
+    } else {
+      addToFingerprint(mapFn, fingerprint, (T) children);
+    }
+  }
+
+  /** Like {@link #addToFingerprint}, but keeps the digests in {@code digests}. */
+  @SuppressWarnings("unchecked")
+  private <T> void addToFingerprintPersistently(
+      CommandLineItem.MapFn<? super T> mapFn,
+      Fingerprint fingerprint,
+      Cache<Object, byte[]> digests,
+      Object children) {
+    if (children instanceof Object[]) {
+      byte[] digest = digests.getIfPresent(children);
+      if (digest == null) {
+        computedDigests.incrementAndGet();
+        Fingerprint childrenFingerprint = new Fingerprint();
+        for (Object child : (Object[]) children) {
+          addToFingerprintPersistently(mapFn, childrenFingerprint, digests, child);
+        }
+        digest = childrenFingerprint.digestAndReset();
+        digests.put(children, digest);
+      } else {
+        reusedDigests.incrementAndGet();
       }
+      fingerprint.addBytes(digest);
     } else {
       addToFingerprint(mapFn, fingerprint, (T) children);
     }
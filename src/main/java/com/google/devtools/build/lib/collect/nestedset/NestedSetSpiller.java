@@ -0,0 +1,291 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetStore.FingerprintComputationResult;
+import com.google.devtools.build.lib.concurrent.MoreFutures;
+import com.google.devtools.build.lib.skyframe.serialization.DeserializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Moves the children of large {@link NestedSet}s out of the heap, into a {@link NestedSetStore},
+ * and brings them back when the sets are used again.
+ *
+ * <p>While a spiller is installed with {@link NestedSet#setSpiller}, every new set with at least
+ * {@link #getMinChildren} direct children is registered with it. {@link #spillRegisteredSets} then
+ * stores the children of the registered sets that are still alive, and replaces them in the set by
+ * their fingerprint. This is meant to be called once analysis is done: most of the sets are only
+ * used again, if at all, to expand the inputs of a few actions.
+ *
+ * <p>Only leaf sets whose elements all have value semantics, as decided by the predicate the
+ * spiller is created with, are spilled: a deserialized element is an equal copy rather than the
+ * original object. A set embeds the children array of each of its subsets in its own, so the
+ * children of a leaf that is a subset of another set registered with this spiller are not spilled
+ * either: they would stay on the heap. The children of a spilled set are kept weakly, so as long as
+ * anything else, like a fingerprint cache, holds on to them, the set returns the very same array.
+ * Otherwise they are deserialized from the store, and the new array is again kept weakly.
+ *
+ * <p>Spilled sets stay spilled across builds. A spiller is meant to live as long as the analysis
+ * cache whose sets it spilled: {@link #restoreSpilledSets} brings back the children of all spilled
+ * sets that are still alive, after which the store can be discarded.
+ */
+public final class NestedSetSpiller {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /**
+   * Takes the place of the children of a spilled {@link NestedSet}.
+   *
+   * <p>Two spilled children are equal if they have the same fingerprint, that is, the same
+   * contents, and the same hash code, which keeps {@link NestedSet#shallowHashCode} consistent with
+   * {@link NestedSet#shallowEquals}.
+   */
+  static final class SpilledChildren {
+    private final NestedSetSpiller spiller;
+    private final ByteString fingerprint;
+
+    /** The {@link Arrays#hashCode} of the children, so that the set keeps its hash code. */
+    private final int childrenHashCode;
+
+    /** The children that were spilled or last deserialized, while they are still reachable. */
+    @GuardedBy("this")
+    private WeakReference<Object[]> children;
+
+    private SpilledChildren(
+        NestedSetSpiller spiller, ByteString fingerprint, Object[] children) {
+      this.spiller = spiller;
+      this.fingerprint = fingerprint;
+      this.childrenHashCode = Arrays.hashCode(children);
+      this.children = new WeakReference<>(children);
+    }
+
+    /** Returns the children, deserializing them unless they are still in memory. */
+    synchronized Object[] rehydrate() throws InterruptedException {
+      Object[] result = children.get();
+      if (result == null) {
+        result = spiller.rehydrate(fingerprint);
+        children = new WeakReference<>(result);
+      }
+      return result;
+    }
+
+    int childrenHashCode() {
+      return childrenHashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof SpilledChildren)) {
+        return false;
+      }
+      SpilledChildren that = (SpilledChildren) other;
+      return childrenHashCode == that.childrenHashCode && fingerprint.equals(that.fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return fingerprint.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "spilled:" + fingerprint;
+    }
+  }
+
+  private final NestedSetStore store;
+  private final SerializationContext serializationContext;
+  private final DeserializationContext deserializationContext;
+  private final Predicate<Object> hasValueSemantics;
+  private volatile int minChildren;
+
+  private final Queue<WeakReference<NestedSet<?>>> registeredSets = new ConcurrentLinkedQueue<>();
+
+  /** The children arrays of registered sets that other sets embed, compared by identity. */
+  private final Set<Object[]> sharedChildren =
+      Collections.newSetFromMap(new MapMaker().weakKeys().<Object[], Boolean>makeMap());
+
+  private final Queue<WeakReference<NestedSet<?>>> spilledSetRefs = new ConcurrentLinkedQueue<>();
+  private final AtomicLong spilledSets = new AtomicLong();
+  private final AtomicLong rehydratedSets = new AtomicLong();
+
+  /**
+   * Creates a spiller that stores the children in {@code store}, serializing and deserializing
+   * their elements with the given contexts.
+   *
+   * @param hasValueSemantics whether an element may be replaced by a deserialized copy of itself
+   */
+  public NestedSetSpiller(
+      NestedSetStore store,
+      SerializationContext serializationContext,
+      DeserializationContext deserializationContext,
+      Predicate<Object> hasValueSemantics,
+      int minChildren) {
+    this.store = store;
+    this.serializationContext = serializationContext;
+    this.deserializationContext = deserializationContext;
+    this.hasValueSemantics = hasValueSemantics;
+    setMinChildren(minChildren);
+  }
+
+  /** Returns the number of direct children from which new sets are registered. */
+  public int getMinChildren() {
+    return minChildren;
+  }
+
+  /** Sets the number of direct children from which new sets are registered. */
+  public void setMinChildren(int minChildren) {
+    Preconditions.checkArgument(minChildren > 0, minChildren);
+    this.minChildren = minChildren;
+  }
+
+  /** Registers a new set, which has at least {@link #getMinChildren} children. */
+  void register(NestedSet<?> set) {
+    registeredSets.add(new WeakReference<>(set));
+  }
+
+  /**
+   * Records that a new set embeds {@code children}, the children of a leaf set that has at least
+   * {@link #getMinChildren} children, so that they are not spilled.
+   */
+  void registerSharedChildren(Object[] children) {
+    sharedChildren.add(children);
+  }
+
+  /**
+   * Spills the children of the registered sets that are still alive, and forgets about all
+   * registered sets. Sets that are not leaves, that are embedded in other sets, or whose elements
+   * do not have value semantics or cannot be serialized, stay as they are.
+   *
+   * @return the number of sets that were spilled
+   */
+  public int spillRegisteredSets() {
+    int spilled = 0;
+    WeakReference<NestedSet<?>> reference;
+    while ((reference = registeredSets.poll()) != null) {
+      NestedSet<?> set = reference.get();
+      if (set != null && set.spill(this)) {
+        spilledSetRefs.add(reference);
+        spilled++;
+      }
+    }
+    spilledSets.addAndGet(spilled);
+    return spilled;
+  }
+
+  /**
+   * Brings back the children of all spilled sets that are still alive, and forgets about all
+   * registered sets, so that nothing refers to the store anymore.
+   *
+   * @return the number of sets whose children were brought back
+   */
+  public int restoreSpilledSets() {
+    registeredSets.clear();
+    sharedChildren.clear();
+    int restored = 0;
+    boolean interrupted = false;
+    WeakReference<NestedSet<?>> reference;
+    while ((reference = spilledSetRefs.poll()) != null) {
+      NestedSet<?> set = reference.get();
+      if (set == null) {
+        continue;
+      }
+      while (true) {
+        try {
+          set.restore();
+          break;
+        } catch (InterruptedException e) {
+          // The store is about to be discarded, so the set must not keep referring to it.
+          interrupted = true;
+        }
+      }
+      restored++;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return restored;
+  }
+
+  /**
+   * Stores {@code children} and returns what takes their place in the set, or null if they cannot
+   * be stored.
+   */
+  SpilledChildren spill(Object[] children) {
+    if (sharedChildren.contains(children)) {
+      return null;
+    }
+    for (Object child : children) {
+      if (!hasValueSemantics.test(child)) {
+        return null;
+      }
+    }
+    FingerprintComputationResult result;
+    try {
+      result = store.computeFingerprintAndStore(children, serializationContext);
+      // The endpoint may write asynchronously, and the children may only be dropped once written.
+      MoreFutures.waitForFutureAndGet(result.writeStatus());
+    } catch (SerializationException | IOException | RuntimeException e) {
+      logger.atFine().withCause(e).log("Could not spill nested set children");
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    return new SpilledChildren(this, result.fingerprint(), children);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Object[] rehydrate(ByteString fingerprint) throws InterruptedException {
+    Object contents;
+    try {
+      contents = store.getContentsAndDeserialize(fingerprint, deserializationContext);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read spilled nested set " + fingerprint, e);
+    }
+    rehydratedSets.incrementAndGet();
+    if (contents instanceof Object[]) {
+      return (Object[]) contents;
+    }
+    return MoreFutures.waitForFutureAndGet((ListenableFuture<Object[]>) contents);
+  }
+
+  /** Returns the number of sets spilled so far. */
+  public long getSpilledSets() {
+    return spilledSets.get();
+  }
+
+  /**
+   * Returns the number of times spilled children were no longer in memory and had to be read back
+   * from the store, whether or not they had to be deserialized again.
+   */
+  public long getRehydratedSets() {
+    return rehydratedSets.get();
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.collect.compacthashset.CompactHashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Expands the children of a large {@link NestedSet} with the help of a {@link ForkJoinPool}.
+ *
+ * <p>The walk of {@link NestedSet} hashes every element it visits, which is most of its cost. Here,
+ * a first walk only deduplicates the subsets, and collects the elements it visits in order,
+ * duplicates included. The elements are then deduplicated by tasks that each own the elements of
+ * one range of hash codes, and mark the first occurrence of each of their elements. The result has
+ * the same elements in the same order as the walk of NestedSet.
+ */
+final class ParallelNestedSetExpander {
+
+  private ParallelNestedSetExpander() {}
+
+  /**
+   * Returns whether the depth-first traversal of {@code children}, without deduplication, visits
+   * at least {@code threshold} nodes. Takes at most {@code threshold} steps.
+   *
+   * <p>This is a cheap upper bound of the number of elements, and a fair estimate of the cost of
+   * the walk, which only skips the subsets that it visited before.
+   */
+  static boolean hasAtLeast(Object[] children, int threshold) {
+    Deque<Object[]> stack = new ArrayDeque<>();
+    stack.push(children);
+    int visited = 0;
+    while (!stack.isEmpty()) {
+      for (Object child : stack.pop()) {
+        if (++visited >= threshold) {
+          return true;
+        }
+        if (child instanceof Object[]) {
+          stack.push((Object[]) child);
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Returns the unique elements of {@code children}, in the order of the walk of NestedSet. */
+  static ImmutableList<Object> expand(Object[] children, ForkJoinPool pool) {
+    CompactHashSet<Object> sets = CompactHashSet.createWithExpectedSize(128);
+    sets.add(children);
+    List<Object> visited = new ArrayList<>();
+    collect(sets, visited, children);
+    Object[] elements = visited.toArray();
+
+    int partitions = pool.getParallelism();
+    int[] partitionStarts = new int[partitions + 1];
+    int[] indices = bucketByPartition(elements, partitions, partitionStarts);
+    boolean[] firstOccurrences = new boolean[elements.length];
+    List<ForkJoinTask<?>> tasks = new ArrayList<>(partitions);
+    for (int i = 0; i < partitions; i++) {
+      int start = partitionStarts[i];
+      int end = partitionStarts[i + 1];
+      tasks.add(
+          pool.submit(() -> markFirstOccurrences(elements, indices, start, end, firstOccurrences)));
+    }
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    }
+
+    ImmutableList.Builder<Object> members = ImmutableList.builder();
+    for (int i = 0; i < elements.length; i++) {
+      if (firstOccurrences[i]) {
+        members.add(elements[i]);
+      }
+    }
+    return members.build();
+  }
+
+  /**
+   * Appends the elements visited by the walk of {@code children} to {@code elements}, skipping the
+   * subsets in {@code sets} but not the elements that were visited before.
+   */
+  private static void collect(
+      CompactHashSet<Object> sets, List<Object> elements, Object[] children) {
+    for (Object child : children) {
+      if (child instanceof Object[]) {
+        if (sets.add(child)) {
+          collect(sets, elements, (Object[]) child);
+        }
+      } else {
+        elements.add(child);
+      }
+    }
+  }
+
+  private static int partitionOf(Object element, int partitions) {
+    // Spreads the hash codes that only differ in their high bits, or are multiples of a constant.
+    int hash = element.hashCode();
+    hash = (hash ^ (hash >>> 16)) * 0x9E3779B9;
+    return Math.floorMod(hash ^ (hash >>> 16), partitions);
+  }
+
+  /**
+   * Returns the indices of {@code elements} grouped by the partition of their hash code, each group
+   * in increasing order. Fills in {@code partitionStarts} so that the group of partition {@code p}
+   * runs from {@code partitionStarts[p]} to {@code partitionStarts[p + 1]}.
+   */
+  private static int[] bucketByPartition(
+      Object[] elements, int partitions, int[] partitionStarts) {
+    int[] partitionOfElement = new int[elements.length];
+    for (int i = 0; i < elements.length; i++) {
+      int partition = partitionOf(elements[i], partitions);
+      partitionOfElement[i] = partition;
+      partitionStarts[partition + 1]++;
+    }
+    for (int p = 0; p < partitions; p++) {
+      partitionStarts[p + 1] += partitionStarts[p];
+    }
+    int[] next = Arrays.copyOf(partitionStarts, partitions);
+    int[] indices = new int[elements.length];
+    for (int i = 0; i < elements.length; i++) {
+      indices[next[partitionOfElement[i]]++] = i;
+    }
+    return indices;
+  }
+
+  /**
+   * Marks the first occurrence of each element whose index is in {@code indices} between {@code
+   * start} and {@code end}.
+   */
+  private static void markFirstOccurrences(
+      Object[] elements, int[] indices, int start, int end, boolean[] firstOccurrences) {
+    CompactHashSet<Object> seen = CompactHashSet.create();
+    for (int i = start; i < end; i++) {
+      if (seen.add(elements[indices[i]])) {
+        firstOccurrences[indices[i]] = true;
+      }
+    }
+  }
+}
@@ -485,6 +485,79 @@ public class ExecutionOptions extends OptionsBase {
               + "test log. Otherwise, Bazel generates a test.xml as part of the test action.")
   public boolean splitXmlGeneration;
 
+  @Option(
+      name = "experimental_nested_set_flatten_cache_size",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION, OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If positive, caches the flattened contents of large nested sets, such as classpaths "
+              + "and header sets, so that actions which expand the same sets share them. The "
+              + "value is the maximum number of elements held by the cache in total.")
+  public long nestedSetFlattenCacheSize;
+
+  @Option(
+      name = "experimental_parallel_nested_set_flattening_threshold",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION, OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If positive, nested sets with at least this many elements are flattened in parallel "
+              + "the first time they are expanded.")
+  public int parallelNestedSetFlatteningThreshold;
+
+  @Option(
+      name = "experimental_nested_set_spill_threshold",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION, OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If positive, nested sets of strings, labels and artifacts created during analysis "
+              + "with at least this many direct elements, and no nested sets, have them moved to "
+              + "a memory-mapped file in the output base before execution, and read back when "
+              + "they are needed. Sets that are nested in other sets keep their elements on the "
+              + "heap. This lowers the heap used by the analysis cache at the cost of "
+              + "deserializing the sets that are used again. The sets stay spilled across builds "
+              + "until the analysis cache is dropped, after which the file is deleted.")
+  public int nestedSetSpillThreshold;
+
+  @Option(
+      name = "experimental_persistent_nested_set_fingerprints",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION, OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If true, the fingerprints of nested sets computed for action keys are kept across "
+              + "builds for as long as the sets are alive, so that incremental builds do not "
+              + "fingerprint the unchanged sets of re-created actions again.")
+  public boolean persistentNestedSetFingerprints;
+
+  @Option(
+      name = "experimental_top_down_action_cache_size",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION, OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "The number of action results kept in memory by the top-down action cache, which looks "
+              + "them up by a transitive hash of the action keys and source files that the actions "
+              + "depend on, and skips whole subgraphs of actions whose outputs are still on disk. "
+              + "If 0, there is no top-down action cache.")
+  public long topDownActionCacheSize;
+
+  @Option(
+      name = "experimental_share_runfiles_trees",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION, OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If enabled, the entries of runfiles trees that are identical across binaries and "
+              + "tests are created only once, in a content-addressed store in the output tree, "
+              + "and the runfiles tree of each target hard links to them. The directories of each "
+              + "runfiles tree are still created for it. Entries that no runfiles tree used during "
+              + "the build are deleted from the store at its end. The runfiles trees must not be "
+              + "written to by the programs that use them.")
+  public boolean shareRunfilesTrees;
+
   /** Converter for the --flaky_test_attempts option. */
   public static class TestAttemptsConverter extends PerLabelOptions.PerLabelOptionsConverter {
     private static final int MIN_VALUE = 1;
@@ -24,6 +24,7 @@ import com.google.devtools.build.lib.actions.RunningActionEvent;
 import com.google.devtools.build.lib.actions.SpawnContinuation;
 import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction;
 import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction.DeterministicWriter;
+import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction.UserErrorWhileWritingException;
 import com.google.devtools.build.lib.analysis.actions.FileWriteActionContext;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.vfs.Path;
@@ -67,10 +68,23 @@ public final class FileWriteStrategy implements FileWriteActionContext {
         if (makeExecutable) {
           outputPath.setExecutable(true);
         }
+      } catch (UserErrorWhileWritingException e) {
+        deletePartialOutput(outputPath);
+        throw e.getCause();
       } catch (IOException e) {
+        deletePartialOutput(outputPath);
         throw new EnvironmentalExecException(e);
       }
     }
     return SpawnContinuation.immediate();
   }
+
+  /** Deletes what was written before a failure, so that no truncated output is left behind. */
+  private static void deletePartialOutput(Path outputPath) {
+    try {
+      outputPath.delete();
+    } catch (IOException e) {
+      logger.warning("Failed to delete partially written " + outputPath + ": " + e);
+    }
+  }
 }
@@ -0,0 +1,209 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Creates runfiles trees whose entries are shared with the runfiles trees of other targets.
+ *
+ * <p>The binaries and tests of a package usually have nearly the same runfiles. Each distinct
+ * entry, a symlink to a runfile or an empty file, is created once, in a store where it is named
+ * after the digest of its target, and the runfiles trees hard link to it instead of creating an
+ * inode of their own. The directories of every tree are real directories of that tree, so a
+ * program that resolves {@code ..} from any of them, or runs in one of them, stays in the tree.
+ *
+ * <p>An entry is created in the tree itself when it cannot be hard linked, for example because the
+ * stored entry reached the link limit of the file system.
+ *
+ * <p>Deleting a stored entry does not change the trees that link to it, so {@link #collectGarbage}
+ * simply deletes the stored entries that no tree used since the previous collection.
+ */
+public final class SharedRunfilesTrees {
+
+  private static final Logger logger = Logger.getLogger(SharedRunfilesTrees.class.getName());
+
+  private static final String MANIFEST = "MANIFEST";
+
+  private static final String TEMPORARY_INFIX = ".tmp-";
+
+  /** A directory of a runfiles tree, as described by its manifest. */
+  private static final class Directory {
+    /** Maps names to {@link Directory}s, or to symlink targets, which are empty for empty files. */
+    private final Map<String, Object> children = new TreeMap<>();
+
+    private Directory getOrCreateDirectory(String name) {
+      Object child = children.get(name);
+      if (child instanceof Directory) {
+        return (Directory) child;
+      }
+      Directory directory = new Directory();
+      children.put(name, directory);
+      return directory;
+    }
+  }
+
+  private final AtomicLong storedEntries = new AtomicLong();
+  private final AtomicLong linkedEntries = new AtomicLong();
+  private final AtomicLong temporaryEntries = new AtomicLong();
+
+  /** The stores that runfiles trees were created with, collected by {@link #collectGarbage}. */
+  private final Set<Path> storeRoots = Sets.newConcurrentHashSet();
+
+  /** The stored entries that runfiles trees linked to since the last {@link #collectGarbage}. */
+  private final Set<Path> usedEntries = Sets.newConcurrentHashSet();
+
+  /**
+   * Creates the runfiles tree described by {@code inputManifest} in {@code symlinkTreeRoot},
+   * sharing its entries through {@code storeRoot}, and copies the manifest to its {@code MANIFEST}
+   * file. Whatever was at {@code symlinkTreeRoot} before is deleted.
+   */
+  public void createSymlinkTree(Path inputManifest, Path symlinkTreeRoot, Path storeRoot)
+      throws IOException {
+    Directory root = parseManifest(inputManifest);
+
+    if (symlinkTreeRoot.exists(Symlinks.NOFOLLOW)) {
+      symlinkTreeRoot.deleteTree();
+    }
+    storeRoot.createDirectoryAndParents();
+    storeRoots.add(storeRoot);
+    createDirectory(root, symlinkTreeRoot, storeRoot);
+    FileSystemUtils.copyFile(inputManifest, symlinkTreeRoot.getChild(MANIFEST));
+  }
+
+  /**
+   * Deletes the entries of the stores used so far that no runfiles tree linked to since the
+   * previous call, and what failed or interrupted actions left behind. Must not run concurrently
+   * with {@link #createSymlinkTree}.
+   */
+  public void collectGarbage() {
+    for (Path storeRoot : storeRoots) {
+      try {
+        for (Path entry : storeRoot.getDirectoryEntries()) {
+          if (!usedEntries.contains(entry)) {
+            entry.deleteTree();
+          }
+        }
+      } catch (IOException e) {
+        logger.warning("Failed to collect garbage in " + storeRoot + ": " + e);
+      }
+    }
+    usedEntries.clear();
+  }
+
+  /** Returns the number of entries created in the store. */
+  public long getStoredEntries() {
+    return storedEntries.get();
+  }
+
+  /** Returns the number of entries of runfiles trees that were hard linked to the store. */
+  public long getLinkedEntries() {
+    return linkedEntries.get();
+  }
+
+  private static Directory parseManifest(Path inputManifest) throws IOException {
+    Directory root = new Directory();
+    for (String line : FileSystemUtils.readLines(inputManifest, ISO_8859_1)) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      int space = line.indexOf(' ');
+      if (space < 0) {
+        throw new IOException("missing field delimiter in runfiles manifest line: " + line);
+      }
+      String[] segments = line.substring(0, space).split("/");
+      Directory parent = root;
+      for (int i = 0; i < segments.length - 1; i++) {
+        parent = parent.getOrCreateDirectory(segments[i]);
+      }
+      parent.children.put(segments[segments.length - 1], line.substring(space + 1));
+    }
+    return root;
+  }
+
+  /** Creates {@code directory} at {@code path}, with its entries linked to the store. */
+  private void createDirectory(Directory directory, Path path, Path storeRoot)
+      throws IOException {
+    path.createDirectory();
+    for (Map.Entry<String, Object> child : directory.children.entrySet()) {
+      Path childPath = path.getChild(child.getKey());
+      if (child.getValue() instanceof Directory) {
+        createDirectory((Directory) child.getValue(), childPath, storeRoot);
+      } else {
+        String target = (String) child.getValue();
+        Path stored = storeRoot.getChild(new Fingerprint().addString(target).hexDigestAndReset());
+        try {
+          storeEntry(target, stored, storeRoot);
+          stored.createHardLink(childPath);
+          usedEntries.add(stored);
+          linkedEntries.incrementAndGet();
+        } catch (IOException e) {
+          if (childPath.exists(Symlinks.NOFOLLOW)) {
+            throw e;
+          }
+          createEntry(target, childPath);
+        }
+      }
+    }
+  }
+
+  private static void createEntry(String target, Path path) throws IOException {
+    if (target.isEmpty()) {
+      FileSystemUtils.createEmptyFile(path);
+    } else {
+      path.createSymbolicLink(PathFragment.create(target));
+    }
+  }
+
+  /**
+   * Creates the entry for {@code target} in the store unless it is already there. Concurrent
+   * actions may store the same entry, so it is created under a temporary name and then moved into
+   * place.
+   */
+  private void storeEntry(String target, Path stored, Path storeRoot) throws IOException {
+    if (stored.exists(Symlinks.NOFOLLOW)) {
+      return;
+    }
+    Path temporary =
+        storeRoot.getChild(
+            stored.getBaseName() + TEMPORARY_INFIX + temporaryEntries.incrementAndGet());
+    if (temporary.exists(Symlinks.NOFOLLOW)) {
+      temporary.delete();
+    }
+    createEntry(target, temporary);
+    try {
+      temporary.renameTo(stored);
+    } catch (IOException e) {
+      if (!stored.exists(Symlinks.NOFOLLOW)) {
+        throw e;
+      }
+      temporary.delete();
+      return;
+    }
+    storedEntries.incrementAndGet();
+  }
+}
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.exec;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionExecutionException;
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.RunningActionEvent;
@@ -23,7 +24,10 @@ import com.google.devtools.build.lib.analysis.actions.SymlinkTreeAction;
 import com.google.devtools.build.lib.analysis.actions.SymlinkTreeActionContext;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.vfs.OutputService;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Implements SymlinkTreeAction by using the output service or by running an embedded script to
@@ -35,10 +39,23 @@ public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
 
   private final OutputService outputService;
   private final BinTools binTools;
+  @Nullable private final SharedRunfilesTrees sharedRunfilesTrees;
 
   public SymlinkTreeStrategy(OutputService outputService, BinTools binTools) {
+    this(outputService, binTools, null);
+  }
+
+  /**
+   * Creates a strategy that creates the runfiles trees with {@code sharedRunfilesTrees}, if not
+   * null, when there is no output service to do it.
+   */
+  public SymlinkTreeStrategy(
+      OutputService outputService,
+      BinTools binTools,
+      @Nullable SharedRunfilesTrees sharedRunfilesTrees) {
     this.outputService = outputService;
     this.binTools = binTools;
+    this.sharedRunfilesTrees = sharedRunfilesTrees;
   }
 
   @Override
@@ -59,6 +76,8 @@ public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
               actionExecutionContext.getInputPath(action.getOutputManifest()),
               action.isFilesetTree(),
               action.getOutputManifest().getExecPath().getParentDirectory());
+        } else if (sharedRunfilesTrees != null && enableRunfiles && !action.isFilesetTree()) {
+          createSharedSymlinks(action, actionExecutionContext);
         } else {
           SymlinkTreeHelper helper =
               new SymlinkTreeHelper(
@@ -75,4 +94,23 @@ public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
       }
     }
   }
+
+  private void createSharedSymlinks(
+      SymlinkTreeAction action, ActionExecutionContext actionExecutionContext)
+      throws EnvironmentalExecException {
+    // The store is next to the bin directory of the configuration, so that it is cleaned with it.
+    Path storeRoot =
+        actionExecutionContext
+            .getExecRoot()
+            .getRelative(action.getOutputManifest().getRoot().getExecPath().getParentDirectory())
+            .getChild("_runfiles_trees");
+    try {
+      sharedRunfilesTrees.createSymlinkTree(
+          actionExecutionContext.getInputPath(action.getInputManifest()),
+          actionExecutionContext.getInputPath(action.getOutputManifest()).getParentDirectory(),
+          storeRoot);
+    } catch (IOException e) {
+      throw new EnvironmentalExecException("Failed to create shared runfiles tree", e);
+    }
+  }
 }
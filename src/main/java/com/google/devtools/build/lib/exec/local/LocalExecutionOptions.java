@@ -13,6 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.exec.local;
 
+import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converters;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
@@ -20,6 +22,7 @@ import com.google.devtools.common.options.OptionEffectTag;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.RegexPatternOption;
 import java.time.Duration;
+import javax.annotation.Nullable;
 
 /**
  * Local execution options.
@@ -60,6 +63,37 @@ public class LocalExecutionOptions extends OptionsBase {
   )
   public boolean collectLocalExecutionStatistics;
 
+  @Option(
+      name = "experimental_local_cgroup_parent",
+      defaultValue = "",
+      converter = OptionsUtils.EmptyToNullAbsolutePathFragmentConverter.class,
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set to the absolute path of a delegated cgroup v2 group that contains no "
+              + "processes, every locally executed or sandboxed action runs in its own group "
+              + "below it. Its peak memory usage and block I/O are then reported, and the memory "
+              + "usage measured recently is used instead of the estimate when scheduling later "
+              + "actions with the same mnemonic. Linux only.")
+  @Nullable
+  public PathFragment localCgroupParent;
+
+  @Option(
+      name = "experimental_local_cgroup_memory_limit_multiplier",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If positive and --experimental_local_cgroup_parent is set, limits the memory of each "
+              + "action to this many times the memory it was scheduled with. Actions that exceed "
+              + "the limit are killed and fail with an out of memory error.")
+  public double localCgroupMemoryLimitMultiplier;
+
+  /** Returns whether actions should be run in their own cgroup. */
+  public boolean useCgroups() {
+    return localCgroupParent != null;
+  }
+
   public Duration getLocalSigkillGraceSeconds() {
     // TODO(ulfjack): Change localSigkillGraceSeconds type to Duration.
     return Duration.ofSeconds(localSigkillGraceSeconds);
@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.CommandLines.ParamFileActionInput;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceManager.ResourceHandle;
+import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
@@ -146,11 +147,16 @@ public class LocalSpawnRunner implements SpawnRunner {
             ProfilerTask.LOCAL_EXECUTION, spawn.getResourceOwner().getMnemonic())) {
       ActionExecutionMetadata owner = spawn.getResourceOwner();
       context.report(ProgressStatus.SCHEDULING, getName());
-      try (ResourceHandle handle =
-          resourceManager.acquireResources(owner, spawn.getLocalResources())) {
+      ResourceSet resources = spawn.getLocalResources();
+      if (useCgroups()) {
+        // Only spawns run in a cgroup have their memory usage measured, so only they have
+        // measurements to replace the estimate with.
+        resources = resourceManager.adjustForObservedUsage(owner.getMnemonic(), resources);
+      }
+      try (ResourceHandle handle = resourceManager.acquireResources(owner, resources)) {
         context.report(ProgressStatus.EXECUTING, getName());
         context.lockOutputFiles();
-        return new SubprocessHandler(spawn, context).run();
+        return new SubprocessHandler(spawn, context, resources).run();
       }
     }
   }
@@ -160,6 +166,10 @@ public class LocalSpawnRunner implements SpawnRunner {
     return true;
   }
 
+  private boolean useCgroups() {
+    return localExecutionOptions.useCgroups() && OS.getCurrent() == OS.LINUX;
+  }
+
   protected Path createActionTemp(Path execRoot) throws IOException {
     return execRoot.getRelative(
         java.nio.file.Files.createTempDirectory(
@@ -171,6 +181,7 @@ public class LocalSpawnRunner implements SpawnRunner {
   private final class SubprocessHandler {
     private final Spawn spawn;
     private final SpawnExecutionContext context;
+    private final ResourceSet resources;
 
     private final long creationTime = System.currentTimeMillis();
     private long stateStartTime = creationTime;
@@ -179,10 +190,11 @@ public class LocalSpawnRunner implements SpawnRunner {
 
     private final int id;
 
-    public SubprocessHandler(Spawn spawn, SpawnExecutionContext context) {
+    public SubprocessHandler(Spawn spawn, SpawnExecutionContext context, ResourceSet resources) {
       Preconditions.checkArgument(!spawn.getArguments().isEmpty());
       this.spawn = spawn;
       this.context = context;
+      this.resources = resources;
       this.id = context.getId();
       setState(State.PARSING);
     }
@@ -302,6 +314,7 @@ public class LocalSpawnRunner implements SpawnRunner {
 
       Path tmpDir = createActionTemp(execRoot);
       Path statisticsPath = null;
+      SpawnCgroup cgroup = null;
       try {
         Path commandTmpDir = tmpDir.getRelative("work");
         commandTmpDir.createDirectory();
@@ -340,6 +353,14 @@ public class LocalSpawnRunner implements SpawnRunner {
           args = new ArrayList<>(args);
           args.set(0, new File(execRoot.getPathFile(), args.get(0)).getAbsolutePath());
         }
+        if (useCgroups()) {
+          cgroup =
+              SpawnCgroup.create(
+                  execRoot.getFileSystem().getPath(localExecutionOptions.localCgroupParent),
+                  resources,
+                  localExecutionOptions.localCgroupMemoryLimitMultiplier);
+          args = cgroup.wrapCommandLine(args);
+        }
         subprocessBuilder.setArgv(args);
 
         long startTime = System.currentTimeMillis();
@@ -383,6 +404,16 @@ public class LocalSpawnRunner implements SpawnRunner {
             wasTimeout
                 ? Status.TIMEOUT
                 : (exitCode == 0 ? Status.SUCCESS : Status.NON_ZERO_EXIT);
+        SpawnCgroup.Statistics cgroupStatistics = null;
+        if (cgroup != null) {
+          cgroupStatistics = cgroup.getStatistics();
+          if (status == Status.NON_ZERO_EXIT && cgroupStatistics.wasOomKilled()) {
+            status = Status.OUT_OF_MEMORY;
+          }
+          cgroupStatistics
+              .getMemoryInKb()
+              .ifPresent(kb -> resourceManager.recordObservedMemoryUsage(actionType, kb / 1024.0));
+        }
         SpawnResult.Builder spawnResultBuilder =
             new SpawnResult.Builder()
                 .setRunnerName(getName())
@@ -404,8 +435,14 @@ public class LocalSpawnRunner implements SpawnRunner {
                         resourceUsage.getInvoluntaryContextSwitches());
                   });
         }
+        if (cgroupStatistics != null) {
+          cgroupStatistics.addTo(spawnResultBuilder);
+        }
         return spawnResultBuilder.build();
       } finally {
+        if (cgroup != null) {
+          cgroup.close();
+        }
         // Delete the temp directory tree, so the next action that this thread executes will get a
         // fresh, empty temp directory.
         // File deletion tends to be slow on Windows, so deleting this tree may take several
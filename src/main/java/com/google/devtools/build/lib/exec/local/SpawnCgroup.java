@@ -0,0 +1,271 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec.local;
+
+import static java.time.temporal.ChronoUnit.MICROS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.util.ProcessUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cgroup v2 control group that a single local spawn is run in.
+ *
+ * <p>The group is created below a parent group that must have been delegated to the user running
+ * Bazel and must not contain any processes itself. Placing every spawn in its own group gives
+ * accurate peak memory and block I/O numbers for the spawn including all its subprocesses, lets us
+ * limit its memory and weigh its CPU share by the resources it declared, and makes sure that no
+ * subprocess survives the spawn.
+ *
+ * <p>The spawn is moved into the group by a small shell wrapper (see {@link #wrapCommandLine}), so
+ * that this works with any {@link com.google.devtools.build.lib.shell.SubprocessFactory}.
+ */
+public final class SpawnCgroup implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(SpawnCgroup.class.getName());
+
+  private static final Splitter WHITESPACE_SPLITTER =
+      Splitter.onPattern("\\s+").omitEmptyStrings();
+  private static final String CONTROLLERS = "+memory +cpu +io";
+
+  private static final AtomicInteger nextId = new AtomicInteger();
+
+  private final Path path;
+
+  private SpawnCgroup(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * Creates a new group below the given parent group.
+   *
+   * @param parent the delegated parent group, e.g. {@code /sys/fs/cgroup/user.slice/bazel}
+   * @param resources the local resources of the spawn, used to derive its CPU weight and memory
+   *     limit
+   * @param memoryLimitMultiplier the memory limit of the group is this many times the memory the
+   *     spawn declared; no limit is set if this is not positive
+   */
+  public static SpawnCgroup create(
+      Path parent, ResourceSet resources, double memoryLimitMultiplier) throws IOException {
+    enableControllers(parent);
+    Path path =
+        parent.getRelative(
+            String.format("spawn-%d-%d", ProcessUtils.getpid(), nextId.getAndIncrement()));
+    path.createDirectory();
+    SpawnCgroup cgroup = new SpawnCgroup(path);
+    try {
+      if (resources.getCpuUsage() > 0) {
+        // A weight of 100 is the default for a group, which we equate to a single core.
+        long weight = Math.round(resources.getCpuUsage() * 100);
+        cgroup.write("cpu.weight", Long.toString(Math.max(1, Math.min(10000, weight))));
+      }
+      if (memoryLimitMultiplier > 0 && resources.getMemoryMb() > 0) {
+        long limitBytes = (long) Math.ceil(resources.getMemoryMb() * memoryLimitMultiplier) << 20;
+        cgroup.write("memory.max", Long.toString(limitBytes));
+      }
+    } catch (IOException e) {
+      cgroup.close();
+      throw e;
+    }
+    return cgroup;
+  }
+
+  private static void enableControllers(Path parent) {
+    try {
+      FileSystemUtils.writeContentAsLatin1(
+          parent.getRelative("cgroup.subtree_control"), CONTROLLERS);
+    } catch (IOException e) {
+      // The controllers may have been enabled by whoever set up the parent group, or may not be
+      // available at all; either way the statistics that are available are still collected.
+      logger.log(Level.FINE, "Could not enable cgroup controllers in " + parent, e);
+    }
+  }
+
+  /** Returns the path of this group in the cgroup file system. */
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Returns a command line that moves itself into this group and then executes the given command
+   * line. All processes started by the command stay in the group.
+   */
+  public ImmutableList<String> wrapCommandLine(List<String> args) {
+    return ImmutableList.<String>builder()
+        .add("/bin/sh", "-c", "echo $$ > \"$0/cgroup.procs\" && exec \"$@\"")
+        .add(path.getPathString())
+        .addAll(args)
+        .build();
+  }
+
+  /**
+   * Reads the resource usage of the processes that ran in this group. Statistics that the kernel
+   * does not provide, e.g. {@code memory.peak} before Linux 5.19, are left empty.
+   */
+  public Statistics getStatistics() {
+    Map<String, Long> memoryEvents = readFlatKeyed("memory.events");
+    Map<String, Long> cpuStat = readFlatKeyed("cpu.stat");
+    Map<String, Long> ioStat = ImmutableMap.of();
+    Long memoryPeak = null;
+    try {
+      ioStat = parseIoStat(read("io.stat"));
+    } catch (IOException e) {
+      // The io controller is not enabled.
+    }
+    try {
+      memoryPeak = Long.parseLong(read("memory.peak").trim());
+    } catch (IOException | NumberFormatException e) {
+      // Not supported by this kernel.
+    }
+    return new Statistics(
+        Optional.ofNullable(memoryPeak).map(bytes -> bytes / 1024),
+        Optional.ofNullable(cpuStat.get("user_usec")).map(usec -> Duration.of(usec, MICROS)),
+        Optional.ofNullable(cpuStat.get("system_usec")).map(usec -> Duration.of(usec, MICROS)),
+        Optional.ofNullable(ioStat.get("rbytes")),
+        Optional.ofNullable(ioStat.get("wbytes")),
+        memoryEvents.getOrDefault("oom_kill", 0L) > 0);
+  }
+
+  /** Kills all processes left in this group and removes it. */
+  @Override
+  public void close() {
+    Path kill = path.getRelative("cgroup.kill");
+    try {
+      if (kill.exists()) {
+        FileSystemUtils.writeContentAsLatin1(kill, "1");
+      }
+      path.delete();
+    } catch (IOException e) {
+      // The group stays around until its processes are gone, which does not harm the build.
+      logger.log(Level.WARNING, "Could not remove cgroup " + path, e);
+    }
+  }
+
+  private Map<String, Long> readFlatKeyed(String file) {
+    try {
+      return parseFlatKeyed(read(file));
+    } catch (IOException e) {
+      return ImmutableMap.of();
+    }
+  }
+
+  private String read(String file) throws IOException {
+    return new String(FileSystemUtils.readContentAsLatin1(path.getRelative(file)));
+  }
+
+  private void write(String file, String content) throws IOException {
+    FileSystemUtils.writeContentAsLatin1(path.getRelative(file), content);
+  }
+
+  /** Parses a file with lines of the form {@code key value}, such as {@code cpu.stat}. */
+  @VisibleForTesting
+  static ImmutableMap<String, Long> parseFlatKeyed(String content) {
+    ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+    for (String line : content.split("\n")) {
+      List<String> fields = WHITESPACE_SPLITTER.splitToList(line);
+      if (fields.size() == 2) {
+        try {
+          result.put(fields.get(0), Long.parseLong(fields.get(1)));
+        } catch (NumberFormatException e) {
+          // E.g. "max"; not a value we are interested in.
+        }
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Parses {@code io.stat}, which has a line of {@code key=value} pairs for each device, and
+   * returns the values summed over all devices.
+   */
+  @VisibleForTesting
+  static ImmutableMap<String, Long> parseIoStat(String content) {
+    Map<String, Long> result = new TreeMap<>();
+    for (String line : content.split("\n")) {
+      List<String> fields = WHITESPACE_SPLITTER.splitToList(line);
+      // The first field is the device number.
+      for (String field : fields.subList(Math.min(1, fields.size()), fields.size())) {
+        int eq = field.indexOf('=');
+        if (eq > 0) {
+          try {
+            long value = Long.parseLong(field.substring(eq + 1));
+            result.merge(field.substring(0, eq), value, Long::sum);
+          } catch (NumberFormatException e) {
+            // Ignore values we do not understand.
+          }
+        }
+      }
+    }
+    return ImmutableMap.copyOf(result);
+  }
+
+  /** The resource usage of the processes that ran in a {@link SpawnCgroup}. */
+  public static final class Statistics {
+    private final Optional<Long> memoryInKb;
+    private final Optional<Duration> userTime;
+    private final Optional<Duration> systemTime;
+    private final Optional<Long> bytesRead;
+    private final Optional<Long> bytesWritten;
+    private final boolean oomKilled;
+
+    @VisibleForTesting
+    Statistics(
+        Optional<Long> memoryInKb,
+        Optional<Duration> userTime,
+        Optional<Duration> systemTime,
+        Optional<Long> bytesRead,
+        Optional<Long> bytesWritten,
+        boolean oomKilled) {
+      this.memoryInKb = memoryInKb;
+      this.userTime = userTime;
+      this.systemTime = systemTime;
+      this.bytesRead = bytesRead;
+      this.bytesWritten = bytesWritten;
+      this.oomKilled = oomKilled;
+    }
+
+    /** Returns the peak memory usage of the group, in kilobytes. */
+    public Optional<Long> getMemoryInKb() {
+      return memoryInKb;
+    }
+
+    /** Returns whether a process in the group was killed because the group ran out of memory. */
+    public boolean wasOomKilled() {
+      return oomKilled;
+    }
+
+    /** Adds the available statistics to the given spawn result. */
+    public void addTo(SpawnResult.Builder builder) {
+      memoryInKb.ifPresent(builder::setMemoryInKb);
+      userTime.ifPresent(builder::setUserTime);
+      systemTime.ifPresent(builder::setSystemTime);
+      bytesRead.ifPresent(builder::setNumBytesRead);
+      bytesWritten.ifPresent(builder::setNumBytesWritten);
+    }
+  }
+}
@@ -1492,8 +1492,7 @@ public final class PackageFactory {
     Globber globber =
         createLegacyGlobber(buildFile.asPath().getParentDirectory(), packageId, locator);
     ParserInputSource input =
-        ParserInputSource.create(
-            FileSystemUtils.convertFromLatin1(buildFileBytes), buildFile.asPath().asFragment());
+        ParserInputSource.createFromLatin1(buildFileBytes, buildFile.asPath().asFragment());
 
     Package result =
         createPackage(
@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.packages;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableCollection;
@@ -21,8 +22,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Interner;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Sets.SetView;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
@@ -42,8 +45,9 @@ import javax.annotation.Nullable;
  * A standard implementation for provider instances.
  *
  * <p>Instances may be either schemaless or schemaful (corresponding to the two different concrete
- * implementing classes). Schemaless instances are map-based, while schemaful instances have a fixed
- * layout and array and are therefore more efficient.
+ * implementing classes). Schemaful instances have the fixed layout of their provider, while
+ * schemaless instances infer their layout from their field names. Both store their values in an
+ * array.
  */
 public abstract class SkylarkInfo extends StructImpl implements Concatable, SkylarkClassObject {
 
@@ -93,7 +97,7 @@ public abstract class SkylarkInfo extends StructImpl implements Concatable, Skyl
   @Nullable
   public abstract Layout getLayout();
 
-  /** Returns true if this provider is schemaful (array-based), false otherwise. */
+  /** Returns true if this provider is schemaful, false otherwise. */
   public boolean isCompact() {
     return getLayout() != null;
   }
@@ -106,8 +110,7 @@ public abstract class SkylarkInfo extends StructImpl implements Concatable, Skyl
   }
 
   /**
-   * Creates a schemaless (map-based) provider instance with the given provider type and field
-   * values.
+   * Creates a schemaless provider instance with the given provider type and field values.
    *
    * <p>{@code loc} is the creation location for this instance. Built-in provider instances may use
    * {@link Location#BUILTIN}, which is the default if null.
@@ -119,8 +122,8 @@ public abstract class SkylarkInfo extends StructImpl implements Concatable, Skyl
   }
 
   /**
-   * Creates a schemaless (map-based) provider instance with the given provider type, field values,
-   * and unknown-field error message.
+   * Creates a schemaless provider instance with the given provider type, field values, and
+   * unknown-field error message.
    *
    * <p>This is used to create structs for special purposes, such as {@code ctx.attr} and the
    * {@code native} module. The creation location will be {@link Location#BUILTIN}.
@@ -144,8 +147,7 @@ public abstract class SkylarkInfo extends StructImpl implements Concatable, Skyl
   }
 
   /**
-   * Creates a schemaful (array-based) provider instance with the given provider type, layout, and
-   * values.
+   * Creates a schemaful provider instance with the given provider type, layout, and values.
    *
    * <p>The order of the values must correspond to the given layout.
    *
@@ -256,10 +258,23 @@ public abstract class SkylarkInfo extends StructImpl implements Concatable, Skyl
     }
   }
 
-  /** A {@link SkylarkInfo} implementation that stores its values in a map. */
+  /**
+   * A {@link SkylarkInfo} implementation for schemaless instances.
+   *
+   * <p>Although its fields are given as a map, it stores its values in an array, in the order of
+   * the field names. The field names and their indices make up the shape of the instance, a {@link
+   * Layout} that is interned, so that all instances with the same field names share it. Schemaless
+   * providers and {@code struct()} calls tend to create many instances with the same fields, so
+   * this costs a single array per instance.
+   */
   // TODO(b/72448383): Make private.
   public static final class MapBackedSkylarkInfo extends SkylarkInfo {
-    private final ImmutableSortedMap<String, Object> values;
+    private static final Interner<Layout> shapeInterner = BlazeInterners.newWeakInterner();
+
+    /** The field names in sorted order, with the indices of their values. */
+    private final Layout shape;
+    /** Treated as immutable. */
+    private final Object[] values;
 
     /**
      * Formattable string with one {@code '%s'} placeholder for the missing field name.
@@ -276,28 +291,40 @@ public abstract class SkylarkInfo extends StructImpl implements Concatable, Skyl
         @Nullable String errorMessageFormatForUnknownField) {
       super(provider, loc);
       // TODO(b/74396075): Phase out the unnecessary conversions done by this call to copyValues.
-      this.values = copyValues(values);
+      ImmutableSortedMap<String, Object> sortedValues = copyValues(values);
+      this.shape = shapeInterner.intern(new Layout(sortedValues.keySet()));
+      this.values = sortedValues.values().toArray();
       this.errorMessageFormatForUnknownField = errorMessageFormatForUnknownField;
     }
 
     @Override
     public boolean hasField(String name) {
-      return values.containsKey(name);
+      return shape.hasField(name);
     }
 
     @Override
     public Object getValue(String name) {
-      return values.get(name);
+      Integer index = shape.getFieldIndex(name);
+      return index == null ? null : values[index];
     }
 
     @Override
     public ImmutableCollection<String> getFieldNames() {
-      return values.keySet();
+      return shape.getFields();
     }
 
     @Override
     protected Iterable<Object> getValues() {
-      return values.values();
+      return Arrays.asList(values);
+    }
+
+    /**
+     * Returns the shape inferred from the field names of this instance, which is shared by all
+     * schemaless instances with the same field names.
+     */
+    @VisibleForTesting
+    Layout getShape() {
+      return shape;
     }
 
     @Override
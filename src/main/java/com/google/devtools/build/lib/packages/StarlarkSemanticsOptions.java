@@ -137,6 +137,18 @@ public class StarlarkSemanticsOptions extends OptionsBase implements Serializabl
               + "`transition()` function) in Starlark.")
   public boolean experimentalStarlarkConfigTransitions;
 
+  @Option(
+      name = "experimental_starlark_local_slots",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.STARLARK_SEMANTICS,
+      effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If set to true, the local variables of Starlark functions are stored in frames "
+              + "indexed by the slots assigned during validation, instead of being looked up by "
+              + "name.")
+  public boolean experimentalStarlarkLocalSlots;
+
   @Option(
       name = "experimental_starlark_unused_inputs_list",
       defaultValue = "true",
@@ -688,6 +700,7 @@ public class StarlarkSemanticsOptions extends OptionsBase implements Serializabl
             .experimentalGoogleLegacyApi(experimentalGoogleLegacyApi)
             .experimentalPlatformsApi(experimentalPlatformsApi)
             .experimentalStarlarkConfigTransitions(experimentalStarlarkConfigTransitions)
+            .experimentalStarlarkLocalSlots(experimentalStarlarkLocalSlots)
             .experimentalStarlarkUnusedInputsList(experimentalStarlarkUnusedInputsList)
             .incompatibleBzlDisallowLoadAfterStatement(incompatibleBzlDisallowLoadAfterStatement)
             .incompatibleDepsetIsNotIterable(incompatibleDepsetIsNotIterable)
@@ -151,6 +151,29 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public boolean checkOutputFiles;
 
+  @Option(
+    name = "experimental_persistent_ast_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "If enabled, the parsed and validated syntax trees of .bzl and BUILD files are stored in "
+            + "the output base, keyed by their contents, and reused by later servers instead of "
+            + "parsing unchanged files again."
+  )
+  public boolean persistentAstCache;
+
+  @Option(
+    name = "experimental_persistent_ast_cache_max_size_mb",
+    defaultValue = "512",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "The size in megabytes that the syntax trees stored by --experimental_persistent_ast_cache "
+            + "are kept under; the least recently used ones are deleted first."
+  )
+  public int persistentAstCacheMaxSizeMb;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
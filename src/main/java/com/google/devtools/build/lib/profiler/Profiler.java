@@ -148,6 +148,9 @@ public final class Profiler {
 
   private static final long ACTION_COUNT_BUCKET_MS = 200;
 
+  /** Separates the series from the value in the description of a counter with several series. */
+  private static final char COUNTER_SERIES_SEPARATOR = '=';
+
   /** File format enum. */
   public enum Format {
     BINARY_BAZEL_FORMAT,
@@ -783,6 +786,15 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Logs the value of one series of a counter that has several series, like {@link
+   * ProfilerTask#ALLOCATED_BYTES} or {@link ProfilerTask#NESTED_SET_FINGERPRINTS}. In the JSON
+   * trace, each series becomes a counter of its own.
+   */
+  public void logCounterAtTime(long atTimeNanos, ProfilerTask type, String series, long value) {
+    logEventAtTime(atTimeNanos, type, series + COUNTER_SERIES_SEPARATOR + value);
+  }
+
   /** Used to log "events" - tasks with zero duration. */
   @VisibleForTesting
   void logEvent(ProfilerTask type, String description) {
@@ -1239,9 +1251,10 @@ public final class Profiler {
             }
 
             if (data.type == ProfilerTask.LOCAL_CPU_USAGE
-                || data.type == ProfilerTask.ACTION_COUNTS) {
+                || data.type == ProfilerTask.ACTION_COUNTS
+                || data.type == ProfilerTask.TREE_DELETION_BACKLOG) {
               // Skip counts equal to zero. They will show up as a thin line in the profile.
-              if ("0.0".equals(data.description)) {
+              if (Double.parseDouble(data.description) == 0) {
                 continue;
               }
               writer.setIndent("  ");
@@ -1258,7 +1271,36 @@ public final class Profiler {
               writer.name("args");
 
               writer.beginObject();
-              writer.name("cpu").value(data.description);
+              writer
+                  .name(data.type == ProfilerTask.TREE_DELETION_BACKLOG ? "trees" : "cpu")
+                  .value(data.description);
+              writer.endObject();
+
+              writer.endObject();
+              continue;
+            }
+            if (data.type == ProfilerTask.ALLOCATED_BYTES
+                || data.type == ProfilerTask.NESTED_SET_FINGERPRINTS) {
+              int separator = data.description.lastIndexOf(COUNTER_SERIES_SEPARATOR);
+              writer.setIndent("  ");
+              writer.beginObject();
+              writer.setIndent("");
+              writer
+                  .name("name")
+                  .value(data.type.description + ": " + data.description.substring(0, separator));
+              writer.name("ph").value("C");
+              writer
+                  .name("ts")
+                  .value(
+                      TimeUnit.NANOSECONDS.toMicros(data.startTimeNanos - profileStartTimeNanos));
+              writer.name("pid").value(1);
+              writer.name("tid").value(data.threadId);
+              writer.name("args");
+
+              writer.beginObject();
+              writer
+                  .name(data.type == ProfilerTask.ALLOCATED_BYTES ? "bytes" : "count")
+                  .value(Long.parseLong(data.description.substring(separator + 1)));
               writer.endObject();
 
               writer.endObject();
@@ -91,6 +91,10 @@ public enum ProfilerTask {
   ACTION_FS_STAGING("Staging per-action file system", 0x000000),
   REMOTE_CACHE_CHECK("remote action cache check", 0x9999CC),
   REMOTE_DOWNLOAD("remote output download", 0x9999CC),
+  TREE_DELETION("asynchronous tree deletion", 0xCC9999),
+  TREE_DELETION_BACKLOG("pending tree deletions", 0x000000),
+  ALLOCATED_BYTES("allocated bytes", 0x000000),
+  NESTED_SET_FINGERPRINTS("nested set fingerprints", 0x000000),
   UNKNOWN("Unknown event",  0x339966);
 
   // Size of the ProfilerTask value space.
@@ -15,10 +15,13 @@
 package com.google.devtools.build.lib.profiler.memory;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadCompatible;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.Location;
@@ -37,17 +40,53 @@ import com.google.perftools.profiles.ProfileProto.ValueType;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.GZIPOutputStream;
 import javax.annotation.Nullable;
 
-/** Tracks allocations for memory reporting. */
+/**
+ * Tracks allocations for memory reporting.
+ *
+ * <p>Every sampled allocation is added to running totals of the bytes allocated by each rule class,
+ * aspect class, Starlark function and Skyframe function; see {@link #getAllocationTotals}. In
+ * addition, the samples themselves are kept for {@link #getRuleMemoryConsumption} and {@link
+ * #dumpSkylarkAllocations}: by default, as long as the sampled object is alive, which measures
+ * retained memory but costs memory proportional to the heap. In continuous mode, only a fixed-size
+ * reservoir of samples of all allocations is kept instead, which is cheap enough to leave enabled
+ * on every build.
+ */
 @ConditionallyThreadCompatible
 public class AllocationTracker implements Sampler {
 
+  /** The kinds of code to which the running totals attribute allocations. */
+  public enum Category {
+    RULE_CLASS("rule class"),
+    ASPECT_CLASS("aspect class"),
+    STARLARK_FUNCTION("Starlark function"),
+    SKY_FUNCTION("Skyframe function");
+
+    private final String description;
+
+    Category(String description) {
+      this.description = description;
+    }
+
+    /** A human-readable name of the category. */
+    public String getDescription() {
+      return description;
+    }
+  }
+
   private static class AllocationSample {
     @Nullable final RuleClass ruleClass; // Current rule being analysed, if any
     @Nullable final AspectClass aspectClass; // Current aspect being analysed, if any
@@ -66,7 +105,41 @@ public class AllocationTracker implements Sampler {
     }
   }
 
+  /** A uniform random sample of a bounded number of allocation samples (algorithm R). */
+  private static final class Reservoir {
+    private final AllocationSample[] samples;
+    private long seen;
+
+    Reservoir(int size) {
+      this.samples = new AllocationSample[size];
+    }
+
+    synchronized void add(AllocationSample sample) {
+      if (seen < samples.length) {
+        samples[(int) seen] = sample;
+      } else {
+        long index = ThreadLocalRandom.current().nextLong(seen + 1);
+        if (index < samples.length) {
+          samples[(int) index] = sample;
+        }
+      }
+      seen++;
+    }
+
+    synchronized List<AllocationSample> getSamples() {
+      return Arrays.asList(Arrays.copyOf(samples, (int) Math.min(seen, samples.length)));
+    }
+
+    /** The number of allocation samples that each sample in the reservoir stands for. */
+    synchronized double getScale() {
+      return seen <= samples.length ? 1.0 : (double) seen / samples.length;
+    }
+  }
+
   private final Map<Object, AllocationSample> allocations = new MapMaker().weakKeys().makeMap();
+  @Nullable private final Reservoir reservoir;
+  private final EnumMap<Category, ConcurrentHashMap<String, LongAdder>> totals =
+      new EnumMap<>(Category.class);
   private final int samplePeriod;
   private final int sampleVariance;
   private boolean enabled = true;
@@ -83,8 +156,21 @@ public class AllocationTracker implements Sampler {
   private final Random random = new Random();
 
   AllocationTracker(int samplePeriod, int variance) {
+    this(samplePeriod, variance, 0);
+  }
+
+  /**
+   * Creates a tracker in continuous mode if {@code reservoirSize} is positive, keeping that many
+   * samples of all allocations rather than samples of live objects.
+   */
+  AllocationTracker(int samplePeriod, int variance, int reservoirSize) {
+    Preconditions.checkArgument(reservoirSize >= 0, reservoirSize);
     this.samplePeriod = samplePeriod;
     this.sampleVariance = variance;
+    this.reservoir = reservoirSize > 0 ? new Reservoir(reservoirSize) : null;
+    for (Category category : Category.values()) {
+      totals.put(category, new ConcurrentHashMap<>());
+    }
   }
 
   @Override
@@ -96,8 +182,9 @@ public class AllocationTracker implements Sampler {
     List<Object> callstack = Callstack.get();
     RuleClass ruleClass = CurrentRuleTracker.getRule();
     AspectClass aspectClass = CurrentRuleTracker.getAspect();
+    String skyFunction = CurrentSkyFunctionTracker.getSkyFunction();
     // Should we bother sampling?
-    if (callstack.isEmpty() && ruleClass == null && aspectClass == null) {
+    if (callstack.isEmpty() && ruleClass == null && aspectClass == null && skyFunction == null) {
       return;
     }
     // If we start getting stack overflows here, it's because the memory sampling
@@ -113,9 +200,62 @@ public class AllocationTracker implements Sampler {
     }
     bytesValue.value = 0;
     nextSampleBytes.set(getNextSample());
-    allocations.put(
-        newObj,
-        new AllocationSample(ruleClass, aspectClass, ImmutableList.copyOf(callstack), bytes));
+    AllocationSample sample =
+        new AllocationSample(ruleClass, aspectClass, ImmutableList.copyOf(callstack), bytes);
+    addToTotals(sample, skyFunction);
+    if (reservoir != null) {
+      reservoir.add(sample);
+    } else if (!callstack.isEmpty() || ruleClass != null || aspectClass != null) {
+      allocations.put(newObj, sample);
+    }
+  }
+
+  private void addToTotals(AllocationSample sample, @Nullable String skyFunction) {
+    RuleClass ruleClass = sample.ruleClass;
+    if (ruleClass == null) {
+      RuleFunction ruleCreationCall = getRuleCreationCall(sample);
+      if (ruleCreationCall != null) {
+        ruleClass = ruleCreationCall.getRuleClass();
+      }
+    }
+    if (ruleClass != null) {
+      addToTotal(Category.RULE_CLASS, ruleClass.getKey(), sample.bytes);
+    }
+    if (sample.aspectClass != null) {
+      addToTotal(Category.ASPECT_CLASS, sample.aspectClass.getKey(), sample.bytes);
+    }
+    String function = getInnermostStarlarkFunction(sample.callstack);
+    if (function != null) {
+      addToTotal(Category.STARLARK_FUNCTION, function, sample.bytes);
+    }
+    if (skyFunction != null) {
+      addToTotal(Category.SKY_FUNCTION, skyFunction, sample.bytes);
+    }
+  }
+
+  private void addToTotal(Category category, String key, long bytes) {
+    totals.get(category).computeIfAbsent(key, k -> new LongAdder()).add(bytes);
+  }
+
+  /**
+   * Returns the innermost function on the callstack that is defined in a Starlark file, as "name
+   * (file)", or null if there is none. Rule functions are skipped, since their allocations are
+   * already attributed to the rule class.
+   */
+  @Nullable
+  private static String getInnermostStarlarkFunction(List<Object> callstack) {
+    for (int i = callstack.size() - 1; i >= 0; i--) {
+      Object object = callstack.get(i);
+      if (!(object instanceof BaseFunction) || object instanceof RuleFunction) {
+        continue;
+      }
+      BaseFunction function = (BaseFunction) object;
+      Location location = function.getLocation();
+      if (location != null && location.getPath() != null) {
+        return function.getName() + " (" + location.getPath().getPathString() + ")";
+      }
+    }
+    return null;
   }
 
   private long getNextSample() {
@@ -170,6 +310,76 @@ public class AllocationTracker implements Sampler {
     }
   }
 
+  /**
+   * A snapshot of the estimated number of bytes allocated by each rule class, aspect class,
+   * Starlark function and Skyframe function.
+   */
+  public static final class AllocationTotals {
+    private final ImmutableMap<Category, ImmutableMap<String, Long>> bytes;
+
+    private AllocationTotals(ImmutableMap<Category, ImmutableMap<String, Long>> bytes) {
+      this.bytes = bytes;
+    }
+
+    /** Returns the bytes allocated by each rule class, function etc. of the given category. */
+    public ImmutableMap<String, Long> getBytes(Category category) {
+      return bytes.get(category);
+    }
+
+    /** Returns the total number of bytes attributed to the given category. */
+    public long getTotalBytes(Category category) {
+      long total = 0;
+      for (long value : bytes.get(category).values()) {
+        total += value;
+      }
+      return total;
+    }
+
+    /**
+     * Returns the at most {@code limit} entries of the given category that allocated the most,
+     * largest first.
+     */
+    public ImmutableList<Map.Entry<String, Long>> getLargest(Category category, int limit) {
+      List<Map.Entry<String, Long>> entries = new ArrayList<>(bytes.get(category).entrySet());
+      entries.sort(
+          Comparator.comparing(Map.Entry<String, Long>::getValue)
+              .reversed()
+              .thenComparing(Map.Entry::getKey));
+      return ImmutableList.copyOf(entries.subList(0, Math.min(limit, entries.size())));
+    }
+
+    /** Returns the bytes allocated since the given earlier snapshot of the same tracker. */
+    public AllocationTotals since(AllocationTotals earlier) {
+      ImmutableMap.Builder<Category, ImmutableMap<String, Long>> result = ImmutableMap.builder();
+      for (Category category : Category.values()) {
+        Map<String, Long> before = earlier.getBytes(category);
+        ImmutableMap.Builder<String, Long> delta = ImmutableMap.builder();
+        for (Map.Entry<String, Long> entry : getBytes(category).entrySet()) {
+          long bytes = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+          if (bytes > 0) {
+            delta.put(entry.getKey(), bytes);
+          }
+        }
+        result.put(category, delta.build());
+      }
+      return new AllocationTotals(result.build());
+    }
+  }
+
+  /**
+   * Returns the estimated number of bytes allocated so far by each rule class, aspect class,
+   * Starlark function and Skyframe function. Unlike {@link #getRuleMemoryConsumption}, this counts
+   * all allocations, whether or not the objects are still alive, and does not stop the world.
+   */
+  public AllocationTotals getAllocationTotals() {
+    ImmutableMap.Builder<Category, ImmutableMap<String, Long>> result = ImmutableMap.builder();
+    for (Category category : Category.values()) {
+      Map<String, Long> bytes = Maps.transformValues(totals.get(category), LongAdder::sum);
+      result.put(category, ImmutableMap.copyOf(bytes));
+    }
+    return new AllocationTotals(result.build());
+  }
+
   @Nullable
   private static RuleFunction getRuleCreationCall(AllocationSample allocationSample) {
     Object topOfCallstack = Iterables.getLast(allocationSample.callstack, null);
@@ -181,7 +391,8 @@ public class AllocationTracker implements Sampler {
 
   /**
    * Returns the total memory consumption for rules and aspects, keyed by {@link RuleClass#getKey}
-   * or {@link AspectClass#getKey}.
+   * or {@link AspectClass#getKey}. Always empty in continuous mode, which does not track which
+   * objects are still alive.
    */
   public void getRuleMemoryConsumption(
       Map<String, RuleBytes> rules, Map<String, RuleBytes> aspects) {
@@ -242,12 +453,19 @@ public class AllocationTracker implements Sampler {
             .setType(stringTable.get("memory"))
             .setUnit(stringTable.get("bytes"))
             .build());
-    for (AllocationSample allocationSample : allocations.values()) {
+    Iterable<AllocationSample> samples = allocations.values();
+    double scale = 1.0;
+    if (reservoir != null) {
+      samples = reservoir.getSamples();
+      scale = reservoir.getScale();
+    }
+    for (AllocationSample allocationSample : samples) {
       // Skip empty callstacks
       if (allocationSample.callstack.isEmpty()) {
         continue;
       }
-      Sample.Builder sample = Sample.newBuilder().addValue(allocationSample.bytes);
+      Sample.Builder sample =
+          Sample.newBuilder().addValue(Math.round(allocationSample.bytes * scale));
       int line = -1;
       String file = null;
       for (int i = allocationSample.callstack.size() - 1; i >= 0; --i) {
@@ -14,16 +14,28 @@
 
 package com.google.devtools.build.lib.profiler.memory;
 
+import com.google.common.base.Supplier;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
 import com.google.devtools.build.lib.analysis.ServerDirectories;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.memory.AllocationTracker.AllocationTotals;
+import com.google.devtools.build.lib.profiler.memory.AllocationTracker.Category;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
+import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.runtime.ServerBuilder;
 import com.google.devtools.build.lib.runtime.WorkspaceBuilder;
+import com.google.devtools.build.lib.runtime.commands.InfoItem;
 import com.google.devtools.build.lib.syntax.Callstack;
+import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.common.options.OptionsParsingResult;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -38,11 +50,18 @@ import java.util.UUID;
  *         <li>For Bazel use <a
  *             href="https://github.com/bazelbuild/bazel/tree/master/third_party/allocation_instrumenter">java-allocation-instrumenter-3.0.1.jar</a>
  *       </ul>
- *   <li>--host_jvm_args=-DRULE_MEMORY_TRACKER=1
+ *   <li>--host_jvm_args=-DRULE_MEMORY_TRACKER=1, or -DRULE_MEMORY_TRACKER=continuous for a mode
+ *       that is cheap enough to leave enabled
  * </ol>
  *
  * <p>The memory tracking information is accessible via blaze dump --rules and blaze dump
- * --skylark_memory=(path)
+ * --skylark_memory=(path). In continuous mode, the tracker does not keep track of which objects
+ * are alive, so blaze dump --rules reports nothing, and blaze dump --skylark_memory reports a
+ * sample of all allocations rather than the retained memory.
+ *
+ * <p>In both modes, the bytes allocated by each rule class, aspect class, Starlark function and
+ * Skyframe function since the server started are reported by blaze info allocated-bytes, and the
+ * largest amounts allocated during each command are added to its JSON profile as counters.
  */
 public class AllocationTrackerModule extends BlazeModule {
 
@@ -53,9 +72,14 @@ public class AllocationTrackerModule extends BlazeModule {
    * to overly regular allocation patterns.
    */
   private static final int VARIANCE = 100;
+  /** Number of allocation samples kept in continuous mode. */
+  private static final int RESERVOIR_SIZE = 10000;
+  /** Number of rule classes, functions etc. of each category that are reported. */
+  private static final int REPORTED_ENTRIES = 20;
 
   private boolean enabled;
   private AllocationTracker tracker = null;
+  private AllocationTotals totalsBeforeCommand = null;
 
   @Override
   public void blazeStartup(
@@ -66,15 +90,24 @@ public class AllocationTrackerModule extends BlazeModule {
       ServerDirectories directories,
       Clock clock) {
     String memoryTrackerPropery = System.getProperty("RULE_MEMORY_TRACKER");
-    enabled = memoryTrackerPropery != null && memoryTrackerPropery.equals("1");
+    boolean continuous = "continuous".equals(memoryTrackerPropery);
+    enabled = continuous || "1".equals(memoryTrackerPropery);
     if (enabled) {
-      tracker = new AllocationTracker(SAMPLE_SIZE, VARIANCE);
+      tracker = new AllocationTracker(SAMPLE_SIZE, VARIANCE, continuous ? RESERVOIR_SIZE : 0);
       Callstack.setEnabled(true);
       CurrentRuleTracker.setEnabled(true);
+      CurrentSkyFunctionTracker.setEnabled(true);
       AllocationTrackerInstaller.installAllocationTracker(tracker);
     }
   }
 
+  @Override
+  public void serverInit(OptionsParsingResult startupOptions, ServerBuilder builder) {
+    if (enabled) {
+      builder.addInfoItems(new AllocatedBytesInfoItem(tracker));
+    }
+  }
+
   @Override
   public void workspaceInit(
       BlazeRuntime runtime, BlazeDirectories directories, WorkspaceBuilder builder) {
@@ -82,4 +115,72 @@ public class AllocationTrackerModule extends BlazeModule {
       builder.setAllocationTracker(tracker);
     }
   }
+
+  @Override
+  public void beforeCommand(CommandEnvironment env) {
+    if (enabled) {
+      totalsBeforeCommand = tracker.getAllocationTotals();
+    }
+  }
+
+  @Override
+  public void afterCommand() {
+    if (totalsBeforeCommand == null) {
+      return;
+    }
+    Profiler profiler = Profiler.instance();
+    if (profiler.isActive()) {
+      AllocationTotals command = tracker.getAllocationTotals().since(totalsBeforeCommand);
+      long now = BlazeClock.nanoTime();
+      for (Category category : Category.values()) {
+        for (Map.Entry<String, Long> entry : command.getLargest(category, REPORTED_ENTRIES)) {
+          profiler.logCounterAtTime(
+              now,
+              ProfilerTask.ALLOCATED_BYTES,
+              category.getDescription() + " " + entry.getKey(),
+              entry.getValue());
+        }
+      }
+    }
+    totalsBeforeCommand = null;
+  }
+
+  /**
+   * Info item for the bytes allocated by the rule classes, aspect classes, Starlark functions and
+   * Skyframe functions that allocated the most since the server started.
+   */
+  public static final class AllocatedBytesInfoItem extends InfoItem {
+    private final AllocationTracker tracker;
+
+    AllocatedBytesInfoItem(AllocationTracker tracker) {
+      super(
+          "allocated-bytes",
+          "The estimated number of bytes allocated since the server started by the rule classes, "
+              + "aspect classes, Starlark functions and Skyframe functions that allocated the "
+              + "most.",
+          true);
+      this.tracker = tracker;
+    }
+
+    @Override
+    public byte[] get(Supplier<BuildConfiguration> configurationSupplier, CommandEnvironment env)
+        throws AbruptExitException {
+      AllocationTotals totals = tracker.getAllocationTotals();
+      StringBuilder result = new StringBuilder();
+      for (Category category : Category.values()) {
+        for (Map.Entry<String, Long> entry : totals.getLargest(category, REPORTED_ENTRIES)) {
+          if (result.length() > 0) {
+            result.append('\n');
+          }
+          result
+              .append(category.getDescription())
+              .append(' ')
+              .append(entry.getKey())
+              .append(": ")
+              .append(entry.getValue());
+        }
+      }
+      return print(result);
+    }
+  }
 }
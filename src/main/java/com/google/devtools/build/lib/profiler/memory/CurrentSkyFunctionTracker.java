@@ -0,0 +1,59 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.profiler.memory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Thread-local variable that keeps track of the Skyframe function being computed. Used for memory
+ * tracking.
+ *
+ * <p>Functions are identified by name rather than by {@code SkyFunctionName}, so that the Skyframe
+ * evaluator can depend on this class.
+ */
+public final class CurrentSkyFunctionTracker {
+  private static final ThreadLocal<String> currentFunction = new ThreadLocal<>();
+  private static volatile boolean enabled;
+
+  private CurrentSkyFunctionTracker() {}
+
+  public static void setEnabled(boolean enabled) {
+    CurrentSkyFunctionTracker.enabled = enabled;
+  }
+
+  /**
+   * Sets the name of the Skyframe function being computed by the current thread.
+   *
+   * <p>You must call {@link CurrentSkyFunctionTracker#endSkyFunction()} after calling this.
+   */
+  public static void beginSkyFunction(String functionName) {
+    if (!enabled) {
+      return;
+    }
+    currentFunction.set(functionName);
+  }
+
+  public static void endSkyFunction() {
+    if (!enabled) {
+      return;
+    }
+    currentFunction.set(null);
+  }
+
+  public static String getSkyFunction() {
+    Preconditions.checkState(enabled);
+    return currentFunction.get();
+  }
+}
@@ -0,0 +1,349 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.profiler.starlark;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.ASTNode;
+import com.google.devtools.build.lib.syntax.BaseFunction;
+import com.google.devtools.build.lib.syntax.Callstack;
+import com.google.perftools.profiles.ProfileProto.Function;
+import com.google.perftools.profiles.ProfileProto.Line;
+import com.google.perftools.profiles.ProfileProto.Profile;
+import com.google.perftools.profiles.ProfileProto.Sample;
+import com.google.perftools.profiles.ProfileProto.ValueType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A sampling profiler of the CPU time spent evaluating Starlark code.
+ *
+ * <p>While running, a background thread periodically copies the {@link Callstack} of every thread
+ * that is evaluating Starlark code and is not blocked, and counts how often each distinct stack of
+ * Starlark functions was seen. Unlike the {@code STARLARK_USER_FN} events of the {@link
+ * com.google.devtools.build.lib.profiler.Profiler}, this costs nothing per call beyond the
+ * maintenance of the callstack, so it can be used on large loads.
+ *
+ * <p>The samples can be written as a gzipped pprof profile, or as collapsed stacks, the input
+ * format of flame graph tools.
+ */
+public final class StarlarkCpuProfiler {
+
+  /** Name of the pseudo-function that stands for the top-level statements of a file. */
+  static final String TOP_LEVEL = "<toplevel>";
+
+  /** One frame of a sampled stack: a function and the line at which it was executing. */
+  @AutoValue
+  abstract static class Frame {
+    abstract String getFile();
+
+    abstract String getFunction();
+
+    abstract int getLine();
+
+    static Frame create(String function, @Nullable Location location) {
+      String file = "<native>";
+      int line = 0;
+      if (location != null && location.getPath() != null) {
+        file = location.getPath().getPathString();
+        Integer startLine = location.getStartLine();
+        line = startLine != null ? startLine : 0;
+      }
+      return new AutoValue_StarlarkCpuProfiler_Frame(file, function, line);
+    }
+  }
+
+  private final Duration interval;
+  private final Thread samplerThread;
+  private volatile boolean stopped;
+
+  /** Number of times each stack was seen, keyed by the frames of the stack, outermost first. */
+  @GuardedBy("this")
+  private final Map<ImmutableList<Frame>, Long> counts = new HashMap<>();
+
+  /** Wall-clock time at which profiling started, in nanoseconds since the epoch. */
+  @GuardedBy("this")
+  private long startTimeNanos;
+
+  @GuardedBy("this")
+  private long startNanos;
+
+  @GuardedBy("this")
+  private long durationNanos;
+
+  @VisibleForTesting
+  StarlarkCpuProfiler(Duration interval) {
+    Preconditions.checkArgument(!interval.isNegative() && !interval.isZero(), interval);
+    this.interval = interval;
+    this.samplerThread = new Thread(this::run, "starlark-cpu-profiler");
+    samplerThread.setDaemon(true);
+  }
+
+  /**
+   * Starts sampling every {@code interval}. Stacks are only recorded while {@link Callstack} is
+   * enabled.
+   */
+  public static StarlarkCpuProfiler start(Duration interval) {
+    StarlarkCpuProfiler profiler = new StarlarkCpuProfiler(interval);
+    synchronized (profiler) {
+      Instant now = Instant.now();
+      profiler.startTimeNanos = TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+      profiler.startNanos = System.nanoTime();
+    }
+    profiler.samplerThread.start();
+    return profiler;
+  }
+
+  /** Stops sampling, and waits for the sampling thread to finish. */
+  public void stop() throws InterruptedException {
+    stopped = true;
+    LockSupport.unpark(samplerThread);
+    samplerThread.join();
+    synchronized (this) {
+      durationNanos = System.nanoTime() - startNanos;
+    }
+  }
+
+  private void run() {
+    long intervalNanos = interval.toNanos();
+    long next = System.nanoTime() + intervalNanos;
+    while (!stopped) {
+      long now = System.nanoTime();
+      if (now < next) {
+        LockSupport.parkNanos(next - now);
+        continue;
+      }
+      sample();
+      // Skip the samples that were missed rather than taking them in a burst.
+      next = Math.max(next + intervalNanos, System.nanoTime());
+    }
+  }
+
+  /** Records the current callstack of every thread that is evaluating Starlark code. */
+  @VisibleForTesting
+  void sample() {
+    List<Object[]> callstacks = Callstack.sampleRunningThreads();
+    if (callstacks.isEmpty()) {
+      return;
+    }
+    List<ImmutableList<Frame>> stacks = new ArrayList<>(callstacks.size());
+    for (Object[] callstack : callstacks) {
+      ImmutableList<Frame> stack = toFrames(callstack);
+      if (!stack.isEmpty()) {
+        stacks.add(stack);
+      }
+    }
+    synchronized (this) {
+      for (ImmutableList<Frame> stack : stacks) {
+        counts.merge(stack, 1L, Long::sum);
+      }
+    }
+  }
+
+  /**
+   * Converts a callstack, outermost entry first, into the frames of the functions on it, outermost
+   * first. Each frame is attributed the location of the innermost node evaluated by its function;
+   * nodes outside of any function make up a {@link #TOP_LEVEL} frame.
+   */
+  @VisibleForTesting
+  static ImmutableList<Frame> toFrames(Object[] callstack) {
+    List<Frame> frames = new ArrayList<>();
+    Location location = null;
+    boolean sawNode = false;
+    for (int i = callstack.length - 1; i >= 0; i--) {
+      Object entry = callstack[i];
+      if (entry instanceof BaseFunction) {
+        BaseFunction function = (BaseFunction) entry;
+        frames.add(Frame.create(function.getName(), sawNode ? location : function.getLocation()));
+        location = null;
+        sawNode = false;
+      } else if (!sawNode && entry instanceof ASTNode) {
+        location = ((ASTNode) entry).getLocation();
+        sawNode = true;
+      }
+    }
+    if (sawNode) {
+      frames.add(Frame.create(TOP_LEVEL, location));
+    }
+    return ImmutableList.copyOf(Lists.reverse(frames));
+  }
+
+  /** Returns the number of samples taken of each stack, outermost frame first. */
+  @VisibleForTesting
+  synchronized Map<ImmutableList<Frame>, Long> getCounts() {
+    return new HashMap<>(counts);
+  }
+
+  /**
+   * Writes the samples as collapsed stacks: one line per distinct stack, made of the frames
+   * separated by semicolons, outermost first, followed by the number of samples.
+   */
+  public void writeCollapsedStacks(Writer out) throws IOException {
+    Map<String, Long> lines = new TreeMap<>();
+    for (Map.Entry<ImmutableList<Frame>, Long> entry : getCounts().entrySet()) {
+      StringBuilder line = new StringBuilder();
+      for (Frame frame : entry.getKey()) {
+        if (line.length() > 0) {
+          line.append(';');
+        }
+        // Leave out the line, so that all samples of a function make up a single frame.
+        line.append(frame.getFunction()).append(" (").append(frame.getFile()).append(')');
+      }
+      lines.merge(line.toString(), entry.getValue(), Long::sum);
+    }
+    for (Map.Entry<String, Long> line : lines.entrySet()) {
+      out.append(line.getKey()).append(' ').append(Long.toString(line.getValue())).append('\n');
+    }
+    out.flush();
+  }
+
+  /** Writes the samples as a gzipped pprof profile. */
+  public void writePprof(OutputStream out) throws IOException {
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    buildPprof().writeTo(gzip);
+    gzip.finish();
+  }
+
+  @VisibleForTesting
+  Profile buildPprof() {
+    Profile.Builder profile = Profile.newBuilder();
+    StringTable stringTable = new StringTable(profile);
+    FunctionTable functionTable = new FunctionTable(profile, stringTable);
+    LocationTable locationTable = new LocationTable(profile, functionTable);
+    long intervalNanos = interval.toNanos();
+    profile.addSampleType(
+        ValueType.newBuilder()
+            .setType(stringTable.get("samples"))
+            .setUnit(stringTable.get("count"))
+            .build());
+    profile.addSampleType(
+        ValueType.newBuilder()
+            .setType(stringTable.get("cpu"))
+            .setUnit(stringTable.get("nanoseconds"))
+            .build());
+    profile.setPeriodType(
+        ValueType.newBuilder()
+            .setType(stringTable.get("cpu"))
+            .setUnit(stringTable.get("nanoseconds"))
+            .build());
+    profile.setPeriod(intervalNanos);
+    for (Map.Entry<ImmutableList<Frame>, Long> entry : getCounts().entrySet()) {
+      Sample.Builder sample =
+          Sample.newBuilder().addValue(entry.getValue()).addValue(entry.getValue() * intervalNanos);
+      // pprof expects the innermost frame first.
+      for (Frame frame : entry.getKey().reverse()) {
+        sample.addLocationId(locationTable.get(frame));
+      }
+      profile.addSample(sample.build());
+    }
+    synchronized (this) {
+      profile.setTimeNanos(startTimeNanos);
+      profile.setDurationNanos(durationNanos);
+    }
+    return profile.build();
+  }
+
+  private static class StringTable {
+    final Profile.Builder profile;
+    final Map<String, Long> table = new HashMap<>();
+    long index = 0;
+
+    StringTable(Profile.Builder profile) {
+      this.profile = profile;
+      get(""); // 0 is reserved for the empty string
+    }
+
+    long get(String str) {
+      return table.computeIfAbsent(
+          str,
+          key -> {
+            profile.addStringTable(key);
+            return index++;
+          });
+    }
+  }
+
+  private static class FunctionTable {
+    final Profile.Builder profile;
+    final StringTable stringTable;
+    final Map<String, Long> table = new HashMap<>();
+    long index = 1; // 0 is reserved
+
+    FunctionTable(Profile.Builder profile, StringTable stringTable) {
+      this.profile = profile;
+      this.stringTable = stringTable;
+    }
+
+    long get(String file, String function) {
+      return table.computeIfAbsent(
+          file + "#" + function,
+          key -> {
+            profile.addFunction(
+                Function.newBuilder()
+                    .setId(index)
+                    .setFilename(stringTable.get(file))
+                    .setName(stringTable.get(function))
+                    .build());
+            return index++;
+          });
+    }
+  }
+
+  private static class LocationTable {
+    final Profile.Builder profile;
+    final FunctionTable functionTable;
+    final Map<Frame, Long> table = new HashMap<>();
+    long index = 1; // 0 is reserved
+
+    LocationTable(Profile.Builder profile, FunctionTable functionTable) {
+      this.profile = profile;
+      this.functionTable = functionTable;
+    }
+
+    long get(Frame frame) {
+      return table.computeIfAbsent(
+          frame,
+          key -> {
+            profile.addLocation(
+                com.google.perftools.profiles.ProfileProto.Location.newBuilder()
+                    .setId(index)
+                    .addLine(
+                        Line.newBuilder()
+                            .setFunctionId(functionTable.get(frame.getFile(), frame.getFunction()))
+                            .setLine(frame.getLine())
+                            .build())
+                    .build());
+            return index++;
+          });
+    }
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.profiler.starlark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.syntax.Callstack;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.EnumConverter;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionsBase;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Samples the Starlark code evaluated by a command with a {@link StarlarkCpuProfiler}, and writes
+ * the profile to the path given by --starlark_cpu_profile at the end of the command.
+ */
+public class StarlarkCpuProfilerModule extends BlazeModule {
+
+  /** The formats in which the profile can be written. */
+  public enum Format {
+    /** A gzipped pprof profile. */
+    PPROF,
+    /** Collapsed stacks, as read by flame graph tools. */
+    COLLAPSED
+  }
+
+  /** Converter for {@link Format}. */
+  public static class FormatConverter extends EnumConverter<Format> {
+    public FormatConverter() {
+      super(Format.class, "Starlark CPU profile format");
+    }
+  }
+
+  /** Options for {@link StarlarkCpuProfilerModule}. */
+  public static class StarlarkCpuProfilerOptions extends OptionsBase {
+    @Option(
+        name = "starlark_cpu_profile",
+        defaultValue = "",
+        documentationCategory = OptionDocumentationCategory.LOGGING,
+        effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+        help =
+            "If set, samples the Starlark functions that are running during the command, and "
+                + "writes the profile to this file at the end of the command. Relative paths are "
+                + "relative to the working directory.")
+    public String outputPath;
+
+    @Option(
+        name = "starlark_cpu_profile_format",
+        defaultValue = "pprof",
+        converter = FormatConverter.class,
+        documentationCategory = OptionDocumentationCategory.LOGGING,
+        effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+        help =
+            "The format of the --starlark_cpu_profile file: 'pprof' for a gzipped pprof profile, "
+                + "or 'collapsed' for one line per stack, as read by flame graph tools.")
+    public Format format;
+
+    @Option(
+        name = "starlark_cpu_profile_sampling_interval",
+        defaultValue = "10ms",
+        documentationCategory = OptionDocumentationCategory.LOGGING,
+        effectTags = {OptionEffectTag.UNKNOWN},
+        help = "How often --starlark_cpu_profile samples the running Starlark functions.")
+    public Duration samplingInterval;
+  }
+
+  private Reporter reporter;
+  private Path outputPath;
+  private Format format;
+  private StarlarkCpuProfiler profiler;
+  private boolean callstackWasEnabled;
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommonCommandOptions() {
+    return ImmutableList.of(StarlarkCpuProfilerOptions.class);
+  }
+
+  @Override
+  public void beforeCommand(CommandEnvironment env) {
+    StarlarkCpuProfilerOptions options =
+        env.getOptions().getOptions(StarlarkCpuProfilerOptions.class);
+    if (options == null || options.outputPath.isEmpty()) {
+      return;
+    }
+    if (options.samplingInterval.isNegative() || options.samplingInterval.isZero()) {
+      env.getReporter()
+          .handle(Event.error("--starlark_cpu_profile_sampling_interval must be positive"));
+      return;
+    }
+    reporter = env.getReporter();
+    outputPath = env.getWorkingDirectory().getRelative(options.outputPath);
+    format = options.format;
+    callstackWasEnabled = Callstack.isEnabled();
+    Callstack.setEnabled(true);
+    profiler = StarlarkCpuProfiler.start(options.samplingInterval);
+  }
+
+  @Override
+  public void afterCommand() {
+    if (profiler == null) {
+      return;
+    }
+    try {
+      profiler.stop();
+      writeProfile();
+    } catch (IOException e) {
+      reporter.handle(
+          Event.error("Error writing Starlark CPU profile to " + outputPath + ": " + e));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      Callstack.setEnabled(callstackWasEnabled);
+      profiler = null;
+      reporter = null;
+      outputPath = null;
+    }
+  }
+
+  private void writeProfile() throws IOException {
+    outputPath.getParentDirectory().createDirectoryAndParents();
+    try (OutputStream out = outputPath.getOutputStream()) {
+      switch (format) {
+        case PPROF:
+          profiler.writePprof(out);
+          break;
+        case COLLAPSED:
+          Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+          profiler.writeCollapsedStacks(writer);
+          break;
+      }
+    }
+  }
+}
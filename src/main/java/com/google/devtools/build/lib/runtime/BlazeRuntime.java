@@ -67,6 +67,7 @@ import com.google.devtools.build.lib.shell.JavaSubprocessFactory;
 import com.google.devtools.build.lib.shell.SubprocessBuilder;
 import com.google.devtools.build.lib.shell.SubprocessFactory;
 import com.google.devtools.build.lib.unix.UnixFileSystem;
+import com.google.devtools.build.lib.unix.UnixSubprocessFactory;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.CustomExitCodePublisher;
 import com.google.devtools.build.lib.util.ExitCode;
@@ -639,8 +640,18 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
     }
     env.getBlazeWorkspace().clearEventBus();
 
+    Profiler profiler = Profiler.instance();
+    long reusedFingerprints = actionKeyContext.getReusedNestedSetFingerprints();
+    long computedFingerprints = actionKeyContext.getComputedNestedSetFingerprints();
+    if (profiler.isActive() && reusedFingerprints + computedFingerprints > 0) {
+      long now = BlazeClock.nanoTime();
+      profiler.logCounterAtTime(
+          now, ProfilerTask.NESTED_SET_FINGERPRINTS, "reused", reusedFingerprints);
+      profiler.logCounterAtTime(
+          now, ProfilerTask.NESTED_SET_FINGERPRINTS, "computed", computedFingerprints);
+    }
     try {
-      Profiler.instance().stop();
+      profiler.stop();
       MemoryProfiler.instance().stop();
     } catch (IOException e) {
       env.getReporter().handle(Event.error("Error while writing profile file: " + e.getMessage()));
@@ -1142,6 +1153,11 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
   private static SubprocessFactory subprocessFactoryImplementation() {
     if (!"0".equals(System.getProperty("io.bazel.EnableJni")) && OS.getCurrent() == OS.WINDOWS) {
       return WindowsSubprocessFactory.INSTANCE;
+    } else if (!"0".equals(System.getProperty("io.bazel.EnableJni"))
+        && "1".equals(System.getProperty("io.bazel.EnableUnixSubprocessFactory"))) {
+      // Opt-in through --host_jvm_args=-Dio.bazel.EnableUnixSubprocessFactory=1 while the
+      // JNI-based factory is experimental. It avoids forking the JVM, which gets slow on big heaps.
+      return UnixSubprocessFactory.INSTANCE;
     } else {
       return JavaSubprocessFactory.INSTANCE;
     }
@@ -45,7 +45,7 @@ import javax.management.openmbean.CompositeData;
  * collection; if it's still more than {@link #occupiedHeapPercentageThreshold}% full, exit with an
  * {@link OutOfMemoryError}.
  */
-class RetainedHeapLimiter implements NotificationListener {
+public class RetainedHeapLimiter implements NotificationListener {
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
   private static final long MIN_TIME_BETWEEN_TRIGGERED_GC_MILLISECONDS = 60000;
 
@@ -93,8 +93,8 @@ class RetainedHeapLimiter implements NotificationListener {
     }
   }
 
-  @VisibleForTesting
-  static ImmutableList<NotificationEmitter> findTenuredCollectorBeans(
+  /** Returns the collectors of the given ones which collect the tenured space. */
+  public static ImmutableList<NotificationEmitter> findTenuredCollectorBeans(
       List<GarbageCollectorMXBean> gcBeans) {
     ImmutableList.Builder<NotificationEmitter> builder = ImmutableList.builder();
     // Examine all collectors and register for notifications from those which collect the tenured
@@ -165,7 +165,8 @@ class RetainedHeapLimiter implements NotificationListener {
     }
   }
 
-  private static boolean isTenuredSpace(String name) {
+  /** Returns whether the memory pool with the given name is the tenured space. */
+  public static boolean isTenuredSpace(String name) {
     return "CMS Old Gen".equals(name)
         || "G1 Old Gen".equals(name)
         || "PS Old Gen".equals(name)
@@ -0,0 +1,84 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.cache.CacheStats;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
+import com.google.devtools.build.lib.skyframe.LocalTopDownActionCache;
+import com.google.devtools.build.lib.skyframe.TopDownActionCache;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Provides a {@link LocalTopDownActionCache} to the builds run with {@code
+ * --experimental_top_down_action_cache_size}. The cache is kept across commands, and dropped by
+ * builds that don't ask for it and by {@code clean}, which deletes the outputs it describes.
+ */
+public class TopDownActionCacheModule extends BlazeModule {
+
+  private static final Logger logger = Logger.getLogger(TopDownActionCacheModule.class.getName());
+
+  @Nullable private LocalTopDownActionCache cache;
+
+  /** Stats gathered at the beginning of a build, to compute deltas on completion. */
+  @Nullable private CacheStats stats;
+
+  @Override
+  public void beforeCommand(CommandEnvironment env) {
+    stats = null;
+    if (env.getCommandName().equals("clean")) {
+      cache = null;
+      return;
+    }
+    if (!env.getCommand().builds()) {
+      return;
+    }
+    ExecutionOptions options = env.getOptions().getOptions(ExecutionOptions.class);
+    long size = options != null ? options.topDownActionCacheSize : 0;
+    if (size <= 0) {
+      cache = null;
+      return;
+    }
+    if (cache == null || cache.getMaxEntries() != size) {
+      logger.info("Creating top-down action cache with size=" + size);
+      cache = new LocalTopDownActionCache(size);
+    }
+    stats = cache.getStats();
+  }
+
+  @Override
+  @Nullable
+  public TopDownActionCache getTopDownActionCache() {
+    return stats != null ? cache : null;
+  }
+
+  @Override
+  public void commandComplete() {
+    if (stats != null) {
+      CacheStats delta = cache.getStats().minus(stats);
+      logger.info(
+          "Top-down action cache stats for finished command: hit count="
+              + delta.hitCount()
+              + ", miss count="
+              + delta.missCount()
+              + ", eviction count="
+              + delta.evictionCount()
+              + ", total stale count="
+              + cache.getStaleEntries()
+              + ", size="
+              + cache.size());
+      stats = null;
+    }
+  }
+}
@@ -42,6 +42,7 @@ import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.FetchProgress;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.exec.TreeDeletionBacklogEvent;
 import com.google.devtools.build.lib.pkgcache.LoadingPhaseCompleteEvent;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.skyframe.ConfigurationPhaseStartedEvent;
@@ -763,6 +764,13 @@ public class UiEventHandler implements EventHandler {
     refresh();
   }
 
+  @Subscribe
+  @AllowConcurrentEvents
+  public void treeDeletionBacklog(TreeDeletionBacklogEvent event) {
+    stateTracker.treeDeletionBacklog(event);
+    refresh();
+  }
+
   @Subscribe
   @AllowConcurrentEvents
   public void actionStarted(ActionStartedEvent event) {
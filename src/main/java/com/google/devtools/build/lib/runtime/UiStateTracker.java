@@ -45,6 +45,7 @@ import com.google.devtools.build.lib.buildtool.buildevent.TestFilteringCompleteE
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.FetchProgress;
+import com.google.devtools.build.lib.exec.TreeDeletionBacklogEvent;
 import com.google.devtools.build.lib.pkgcache.LoadingPhaseCompleteEvent;
 import com.google.devtools.build.lib.skyframe.ConfigurationPhaseStartedEvent;
 import com.google.devtools.build.lib.skyframe.ConfiguredTargetProgressReceiver;
@@ -306,6 +307,9 @@ class UiStateTracker {
   private final Map<String, Long> downloadNanoStartTimes;
   private final Map<String, FetchProgress> downloads;
 
+  // Number of trees that are being deleted in the background.
+  private int pendingTreeDeletions;
+
   /**
    * For each test, the list of actions (as identified by the primary output artifact) currently
    * running for that test (identified by its label), in the order they got started. A key is
@@ -467,6 +471,10 @@ class UiStateTracker {
     }
   }
 
+  synchronized void treeDeletionBacklog(TreeDeletionBacklogEvent event) {
+    pendingTreeDeletions = event.getPendingTrees();
+  }
+
   private ActionState getActionState(
       ActionExecutionMetadata action, Artifact actionId, long nanoTimeNow) {
     return activeActions.computeIfAbsent(actionId, (key) -> new ActionState(action, nanoTimeNow));
@@ -1025,6 +1033,14 @@ class UiStateTracker {
     }
   }
 
+  private void reportOnTreeDeletions(AnsiTerminalWriter terminalWriter) throws IOException {
+    if (pendingTreeDeletions > 0) {
+      terminalWriter
+          .newline()
+          .append("    Deleting " + pendingTreeDeletions + " trees in the background");
+    }
+  }
+
   /**
    * Display any BEP transports that are still open after the build. Most likely, because uploading
    * build events takes longer than the build itself.
@@ -1094,6 +1110,7 @@ class UiStateTracker {
       }
       if (!shortVersion) {
         reportOnDownloads(terminalWriter);
+        reportOnTreeDeletions(terminalWriter);
         maybeReportBepTransports(terminalWriter);
       }
       return;
@@ -1166,6 +1183,7 @@ class UiStateTracker {
     }
     if (!shortVersion) {
       reportOnDownloads(terminalWriter);
+      reportOnTreeDeletions(terminalWriter);
       maybeReportBepTransports(terminalWriter);
     }
   }
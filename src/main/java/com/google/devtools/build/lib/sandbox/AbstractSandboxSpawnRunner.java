@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceManager.ResourceHandle;
+import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
@@ -31,6 +32,8 @@ import com.google.devtools.build.lib.exec.BinTools;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.SpawnRunner;
 import com.google.devtools.build.lib.exec.TreeDeleter;
+import com.google.devtools.build.lib.exec.local.LocalExecutionOptions;
+import com.google.devtools.build.lib.exec.local.SpawnCgroup;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.shell.ExecutionStatistics;
 import com.google.devtools.build.lib.shell.Subprocess;
@@ -44,6 +47,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /** Abstract common ancestor for sandbox spawn runners implementing the common parts. */
 abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
@@ -54,18 +58,22 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       "\n\nUse --sandbox_debug to see verbose messages from the sandbox";
 
   private final SandboxOptions sandboxOptions;
+  private final LocalExecutionOptions localExecutionOptions;
   private final boolean verboseFailures;
   private final ImmutableSet<Path> inaccessiblePaths;
   protected final BinTools binTools;
   private final ResourceManager resourceManager;
+  private final FileSystem fileSystem;
 
   public AbstractSandboxSpawnRunner(CommandEnvironment cmdEnv) {
     this.sandboxOptions = cmdEnv.getOptions().getOptions(SandboxOptions.class);
+    this.localExecutionOptions = cmdEnv.getOptions().getOptions(LocalExecutionOptions.class);
     this.verboseFailures = cmdEnv.getOptions().getOptions(ExecutionOptions.class).verboseFailures;
     this.inaccessiblePaths =
         sandboxOptions.getInaccessiblePaths(cmdEnv.getRuntime().getFileSystem());
     this.binTools = cmdEnv.getBlazeWorkspace().getBinTools();
     this.resourceManager = cmdEnv.getLocalResourceManager();
+    this.fileSystem = cmdEnv.getRuntime().getFileSystem();
   }
 
   @Override
@@ -73,10 +81,10 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       throws ExecException, IOException, InterruptedException {
     ActionExecutionMetadata owner = spawn.getResourceOwner();
     context.report(ProgressStatus.SCHEDULING, getName());
-    try (ResourceHandle ignored =
-        resourceManager.acquireResources(owner, spawn.getLocalResources())) {
+    ResourceSet resources = getLocalResources(spawn);
+    try (ResourceHandle ignored = resourceManager.acquireResources(owner, resources)) {
       context.report(ProgressStatus.EXECUTING, getName());
-      return actuallyExec(spawn, context);
+      return actuallyExec(spawn, context, resources);
     } catch (IOException e) {
       throw new UserExecException("I/O exception during sandboxed execution", e);
     }
@@ -87,16 +95,35 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
     return Spawns.mayBeSandboxed(spawn);
   }
 
+  private boolean useCgroups() {
+    return localExecutionOptions != null
+        && localExecutionOptions.useCgroups()
+        && OS.getCurrent() == OS.LINUX;
+  }
+
+  private ResourceSet getLocalResources(Spawn spawn) {
+    ResourceSet resources = spawn.getLocalResources();
+    return useCgroups()
+        ? resourceManager.adjustForObservedUsage(spawn.getResourceOwner().getMnemonic(), resources)
+        : resources;
+  }
+
   // TODO(laszlocsomor): refactor this class to make `actuallyExec`'s contract clearer: the caller
   // of `actuallyExec` should not depend on `actuallyExec` calling `runSpawn` because it's easy to
   // forget to do so in `actuallyExec`'s implementations.
-  protected abstract SpawnResult actuallyExec(Spawn spawn, SpawnExecutionContext context)
+  /**
+   * @param resources the local resources acquired for the spawn, which {@link #runSpawn} limits
+   *     its cgroup to
+   */
+  protected abstract SpawnResult actuallyExec(
+      Spawn spawn, SpawnExecutionContext context, ResourceSet resources)
       throws ExecException, InterruptedException, IOException;
 
   protected SpawnResult runSpawn(
       Spawn originalSpawn,
       SandboxedSpawn sandbox,
       SpawnExecutionContext context,
+      ResourceSet resources,
       Path execRoot,
       Duration timeout,
       Path statisticsPath)
@@ -106,7 +133,8 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       FileOutErr outErr = context.getFileOutErr();
       context.prefetchInputs();
 
-      SpawnResult result = run(originalSpawn, sandbox, outErr, timeout, statisticsPath);
+      SpawnResult result =
+          run(originalSpawn, sandbox, outErr, resources, timeout, statisticsPath);
 
       context.lockOutputFiles();
       try {
@@ -127,6 +155,7 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       Spawn originalSpawn,
       SandboxedSpawn sandbox,
       FileOutErr outErr,
+      ResourceSet resources,
       Duration timeout,
       Path statisticsPath)
       throws IOException, InterruptedException {
@@ -155,7 +184,35 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
     subprocessBuilder.setStdout(outErr.getOutputPath().getPathFile());
     subprocessBuilder.setStderr(outErr.getErrorPath().getPathFile());
     subprocessBuilder.setEnv(sandbox.getEnvironment());
-    subprocessBuilder.setArgv(sandbox.getArguments());
+    try (SpawnCgroup cgroup =
+        useCgroups()
+            ? SpawnCgroup.create(
+                fileSystem.getPath(localExecutionOptions.localCgroupParent),
+                resources,
+                localExecutionOptions.localCgroupMemoryLimitMultiplier)
+            : null) {
+      subprocessBuilder.setArgv(
+          cgroup != null ? cgroup.wrapCommandLine(sandbox.getArguments()) : sandbox.getArguments());
+      return runSubprocess(
+          originalSpawn,
+          subprocessBuilder,
+          cgroup,
+          outErr,
+          timeout,
+          statisticsPath,
+          failureMessage);
+    }
+  }
+
+  private SpawnResult runSubprocess(
+      Spawn originalSpawn,
+      SubprocessBuilder subprocessBuilder,
+      @Nullable SpawnCgroup cgroup,
+      FileOutErr outErr,
+      Duration timeout,
+      Path statisticsPath,
+      String failureMessage)
+      throws IOException, InterruptedException {
     long startTime = System.currentTimeMillis();
     TerminationStatus terminationStatus;
     try {
@@ -190,6 +247,17 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
         wasTimeout
             ? Status.TIMEOUT
             : (exitCode == 0) ? Status.SUCCESS : Status.NON_ZERO_EXIT;
+    SpawnCgroup.Statistics cgroupStatistics = null;
+    if (cgroup != null) {
+      cgroupStatistics = cgroup.getStatistics();
+      if (status == Status.NON_ZERO_EXIT && cgroupStatistics.wasOomKilled()) {
+        status = Status.OUT_OF_MEMORY;
+      }
+      String mnemonic = originalSpawn.getResourceOwner().getMnemonic();
+      cgroupStatistics
+          .getMemoryInKb()
+          .ifPresent(kb -> resourceManager.recordObservedMemoryUsage(mnemonic, kb / 1024.0));
+    }
 
     SpawnResult.Builder spawnResultBuilder =
         new SpawnResult.Builder()
@@ -213,6 +281,9 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
                     resourceUsage.getInvoluntaryContextSwitches());
               });
     }
+    if (cgroupStatistics != null) {
+      cgroupStatistics.addTo(spawnResultBuilder);
+    }
 
     return spawnResultBuilder.build();
   }
@@ -14,98 +14,371 @@
 
 package com.google.devtools.build.lib.sandbox;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.exec.TreeDeleter;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.SilentCloseable;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Executes file system tree deletions asynchronously.
  *
+ * <p>Trees scheduled for deletion are first renamed into a batch directory below a trash directory,
+ * which is cheap and frees their original location right away. Batches of trees are then deleted by
+ * background threads with a single call to {@link Path#deleteTree}.
+ *
  * <p>The number of threads used to process the backlog of tree deletions can be configured at any
  * time via {@link #setThreads(int)}. While a build is running, this number should be low to not use
  * precious resources that could otherwise be used for the build itself. But when the build is
  * finished, this number should be raised to quickly go through any pending deletions.
+ *
+ * <p>While throttled (see {@link #setThrottled}), deletions proceed at roughly the rate at which
+ * trees are scheduled for deletion, which follows the action throughput, plus extra headroom that
+ * grows with the backlog. Once half of the maximum backlog is reached, throttling is suspended
+ * until the backlog shrinks again. If the backlog is full, trees are deleted synchronously by the
+ * caller, so that the disk cannot fill up with trees that are pending deletion.
  */
 class AsynchronousTreeDeleter implements TreeDeleter {
 
   private static final Logger logger = Logger.getLogger(TreeDeleter.class.getName());
 
-  /** Thread pool used to execute asynchronous tree deletions; null in synchronous mode. */
-  @Nullable private ThreadPoolExecutor service;
+  /** Name of the directory below the sandbox base that holds the trees pending deletion. */
+  static final String MOVED_TRASH_DIR = "_moved_trash_dir";
+
+  /** Maximum number of trees deleted with a single call. */
+  @VisibleForTesting static final int BATCH_SIZE = 64;
+
+  /** Lowest deletion rate while throttled, in trees per second. */
+  private static final double MIN_TREES_PER_SECOND = 1.0;
+
+  /** Weight of the most recent measurement in the moving average of the deletion request rate. */
+  private static final double RATE_SMOOTHING = 0.3;
+
+  /** How long a worker waits for a full batch before deleting a partial one. */
+  private static final long IDLE_FLUSH_MILLIS = 100;
+
+  /** A directory that a set of trees pending deletion have been moved into. */
+  private static final class Batch {
+    private final Path dir;
+    private int size;
+
+    Batch(Path dir, int size) {
+      this.dir = dir;
+      this.size = size;
+    }
+  }
+
+  private final Path trashBase;
+  private final ThreadFactory threadFactory =
+      new ThreadFactoryBuilder()
+          .setNameFormat("tree-deleter-%d")
+          .setDaemon(true)
+          .setPriority(Thread.MIN_PRIORITY)
+          .build();
+  private final BlockingQueue<Batch> sealedBatches = new LinkedBlockingQueue<>();
+  private final RateLimiter rateLimiter = RateLimiter.create(MIN_TREES_PER_SECOND);
+
+  private volatile boolean throttled = false;
+  @Nullable private volatile IntConsumer backlogListener;
+
+  @GuardedBy("this")
+  @Nullable
+  private Batch currentBatch;
+
+  @GuardedBy("this")
+  private long nextBatchId = 0;
+
+  @GuardedBy("this")
+  private int maxPending;
+
+  /** Number of trees that have been scheduled for deletion but not yet deleted. */
+  @GuardedBy("this")
+  private int pending = 0;
+
+  @GuardedBy("this")
+  private int targetThreads = 0;
+
+  @GuardedBy("this")
+  private int runningThreads = 0;
+
+  @GuardedBy("this")
+  private boolean shutdown = false;
 
-  /** Constructs a new asynchronous tree deleter backed by just one thread. */
-  AsynchronousTreeDeleter() {
+  /** Smoothed rate at which trees are scheduled for deletion, in trees per second. */
+  @GuardedBy("this")
+  private double requestRate = MIN_TREES_PER_SECOND;
+
+  @GuardedBy("this")
+  private long lastSealNanos = System.nanoTime();
+
+  /**
+   * Constructs a new asynchronous tree deleter backed by just one thread.
+   *
+   * @param trashBase directory to move trees pending deletion to; must be on the same file system
+   *     as the trees to be deleted and must not be used for anything else
+   * @param maxPending maximum number of trees pending deletion; trees beyond this are deleted
+   *     synchronously
+   */
+  AsynchronousTreeDeleter(Path trashBase, int maxPending) {
+    this.trashBase = trashBase;
+    setMaxPending(maxPending);
     logger.info("Starting async tree deletion pool with 1 thread");
+    setThreads(1);
+  }
+
+  /** Returns the directory that trees pending deletion are moved to. */
+  Path getTrashBase() {
+    return trashBase;
+  }
 
-    ThreadFactory threadFactory =
-        new ThreadFactoryBuilder()
-            .setNameFormat("tree-deleter")
-            .setDaemon(true)
-            .setPriority(Thread.MIN_PRIORITY)
-            .build();
+  /** Returns the maximum number of trees pending deletion. */
+  synchronized int getMaxPending() {
+    return maxPending;
+  }
 
-    service =
-        new ThreadPoolExecutor(
-            1, 1, 0L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+  /**
+   * Changes the maximum number of trees pending deletion. Lowering it below the current backlog
+   * only makes further trees be deleted synchronously until the backlog has drained.
+   */
+  synchronized void setMaxPending(int maxPending) {
+    checkArgument(maxPending > 0, "maxPending must be positive");
+    this.maxPending = maxPending;
   }
 
   /**
    * Resizes the thread pool to the given number of threads.
    *
    * <p>If the pool of active threads is larger than the requested number of threads, the resize
-   * will progressively happen as those active threads become inactive. If the requested size is
-   * zero, this will wait for all pending deletions to complete.
+   * will progressively happen as those active threads finish their current batch.
    *
-   * @param threads desired number of threads, or 0 to go back to synchronous deletion
+   * @param threads desired number of threads
    */
-  void setThreads(int threads) {
+  synchronized void setThreads(int threads) {
     checkState(threads > 0, "Use SynchronousTreeDeleter if no async behavior is desired");
+    checkState(!shutdown, "Cannot call setThreads after shutdown");
     logger.info("Resizing async tree deletion pool to " + threads + " threads");
-    checkNotNull(service, "Cannot call setThreads after shutdown").setMaximumPoolSize(threads);
+    targetThreads = threads;
+    while (runningThreads < targetThreads) {
+      runningThreads++;
+      threadFactory.newThread(this::processBatches).start();
+    }
+  }
+
+  /**
+   * Enables or disables throttling. Throttling should be enabled while a build is running, so that
+   * deletions do not compete with actions for disk bandwidth more than necessary.
+   */
+  void setThrottled(boolean throttled) {
+    this.throttled = throttled;
+  }
+
+  /**
+   * Sets a listener that is notified of the number of trees pending deletion whenever a batch is
+   * queued or deleted, or null to remove it. The listener is called from arbitrary threads.
+   */
+  void setBacklogListener(@Nullable IntConsumer backlogListener) {
+    this.backlogListener = backlogListener;
+  }
+
+  @VisibleForTesting
+  synchronized int getRunningThreads() {
+    return runningThreads;
+  }
+
+  /** Returns the number of trees that have been scheduled for deletion but not yet deleted. */
+  synchronized int getPendingCount() {
+    return pending;
   }
 
   @Override
-  public void deleteTree(Path path) {
-    checkNotNull(service, "Cannot call deleteTree after shutdown")
-        .execute(
-            () -> {
-              try {
-                path.deleteTree();
-              } catch (IOException e) {
-                logger.warning("Failed to delete tree " + path + " asynchronously: " + e);
-              }
-            });
+  public void deleteTree(Path path) throws IOException {
+    boolean queued;
+    boolean sealed = false;
+    synchronized (this) {
+      checkState(!shutdown, "Cannot call deleteTree after shutdown");
+      queued = pending < maxPending;
+      if (queued) {
+        sealed = moveToTrash(path);
+        pending++;
+      }
+    }
+    if (!queued) {
+      // The backlog is full; delete synchronously until it drains.
+      path.deleteTree();
+    } else if (sealed) {
+      notifyBacklog();
+    }
+  }
+
+  /**
+   * Moves the given tree into the current batch, or queues it for deletion in place if it cannot
+   * be moved.
+   *
+   * @return whether a batch was queued for deletion
+   */
+  @GuardedBy("this")
+  private boolean moveToTrash(Path path) throws IOException {
+    if (currentBatch == null) {
+      currentBatch = new Batch(trashBase.getChild(Long.toString(nextBatchId++)), 0);
+      currentBatch.dir.createDirectoryAndParents();
+    }
+    try {
+      path.renameTo(currentBatch.dir.getChild(Integer.toString(currentBatch.size)));
+    } catch (IOException e) {
+      // The tree is most likely on a different file system than the trash directory.
+      sealedBatches.add(new Batch(path, 1));
+      return true;
+    }
+    currentBatch.size++;
+    if (currentBatch.size >= BATCH_SIZE) {
+      sealedBatches.add(takeCurrentBatch());
+      return true;
+    }
+    return false;
   }
 
   @Override
-  public void deleteTreesBelow(Path path) {
-    checkNotNull(service, "Cannot call deleteTree after shutdown")
-        .execute(
-            () -> {
-              try {
-                path.deleteTreesBelow();
-              } catch (IOException e) {
-                logger.warning("Failed to delete contents of " + path + " asynchronously: " + e);
-              }
-            });
+  public void deleteTreesBelow(Path path) throws IOException {
+    for (Path child : path.getDirectoryEntries()) {
+      if (child.equals(trashBase)) {
+        continue;
+      }
+      if (trashBase.startsWith(child)) {
+        deleteTreesBelow(child);
+      } else {
+        deleteTree(child);
+      }
+    }
   }
 
   @Override
   public void shutdown() {
-    if (service != null) {
-      logger.info("Finishing " + service.getTaskCount() + " pending async tree deletions");
-      service.shutdown();
-      service = null;
+    synchronized (this) {
+      if (shutdown) {
+        return;
+      }
+      logger.info("Finishing " + pending + " pending async tree deletions");
+      shutdown = true;
+      throttled = false;
+      Batch batch = takeCurrentBatch();
+      if (batch != null) {
+        sealedBatches.add(batch);
+      }
+    }
+    backlogListener = null;
+  }
+
+  /**
+   * Closes the current batch to further trees and updates the request rate estimate.
+   *
+   * @return the closed batch, or null if there was no current batch
+   */
+  @GuardedBy("this")
+  @Nullable
+  private Batch takeCurrentBatch() {
+    Batch batch = currentBatch;
+    if (batch == null) {
+      return null;
+    }
+    currentBatch = null;
+
+    long now = System.nanoTime();
+    double seconds = Math.max(now - lastSealNanos, 1) / 1e9;
+    lastSealNanos = now;
+    requestRate = (1 - RATE_SMOOTHING) * requestRate + RATE_SMOOTHING * (batch.size / seconds);
+    return batch;
+  }
+
+  /**
+   * Returns the number of trees per second to delete at while throttled: the rate at which trees
+   * are being scheduled for deletion, raised in proportion to the backlog so that the backlog
+   * drains; or 0 if deletions should not be throttled at all.
+   */
+  @VisibleForTesting
+  synchronized double getThrottledRate() {
+    double fill = (double) pending / maxPending;
+    if (!throttled || fill >= 0.5) {
+      return 0;
+    }
+    return Math.max(MIN_TREES_PER_SECOND, requestRate * (1 + 4 * fill));
+  }
+
+  /** Main loop of the deletion threads. */
+  private void processBatches() {
+    while (true) {
+      synchronized (this) {
+        // Checked before taking every batch, so that the pool shrinks as soon as it is resized
+        // even while there is a backlog.
+        if (runningThreads > targetThreads) {
+          runningThreads--;
+          return;
+        }
+      }
+      Batch batch;
+      try {
+        batch = sealedBatches.poll(IDLE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        // Only our own daemon threads run this, and nobody interrupts them.
+        Thread.currentThread().interrupt();
+        return;
+      }
+      synchronized (this) {
+        if (batch == null) {
+          // Nothing sealed in a while: deletion requests are trickling in slowly, or the build
+          // is over, so do not wait for the current batch to fill up.
+          batch = takeCurrentBatch();
+        }
+        if (batch == null) {
+          if (shutdown && pending == 0) {
+            runningThreads--;
+            return;
+          }
+          continue;
+        }
+      }
+
+      double rate = getThrottledRate();
+      if (rate > 0) {
+        rateLimiter.setRate(rate);
+        rateLimiter.acquire(batch.size);
+      }
+      try (SilentCloseable c =
+          Profiler.instance().profile(ProfilerTask.TREE_DELETION, batch.dir.getPathString())) {
+        batch.dir.deleteTree();
+      } catch (IOException e) {
+        logger.warning("Failed to delete tree " + batch.dir + " asynchronously: " + e);
+      }
+      synchronized (this) {
+        pending -= batch.size;
+      }
+      notifyBacklog();
+    }
+  }
+
+  private void notifyBacklog() {
+    int backlog = getPendingCount();
+    Profiler.instance()
+        .logEventAtTime(
+            BlazeClock.nanoTime(), ProfilerTask.TREE_DELETION_BACKLOG, String.valueOf(backlog));
+    IntConsumer listener = backlogListener;
+    if (listener != null) {
+      listener.accept(backlog);
     }
   }
 }
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
+import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.SpawnResult;
@@ -213,7 +214,8 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   }
 
   @Override
-  protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionContext context)
+  protected SpawnResult actuallyExec(
+      Spawn spawn, SpawnExecutionContext context, ResourceSet resources)
       throws IOException, InterruptedException {
     // Each invocation of "exec" gets its own sandbox base.
     // Note that the value returned by context.getId() is only unique inside one given SpawnRunner,
@@ -286,6 +288,7 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
               outputs,
               ImmutableSet.of(),
               sandboxfsMapSymlinkTargets,
+              ImmutableSet.copyOf(getSandboxOptions().sandboxfsSharedSubtrees),
               treeDeleter) {
             @Override
             public void createFileSystem() throws IOException {
@@ -321,7 +324,7 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
             }
           };
     }
-    return runSpawn(spawn, sandbox, context, execRoot, timeout, statisticsPath);
+    return runSpawn(spawn, sandbox, context, resources, execRoot, timeout, statisticsPath);
   }
 
   private void writeConfig(
@@ -22,6 +22,7 @@ import com.google.common.collect.MoreCollectors;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.Spawns;
@@ -198,7 +199,8 @@ final class DockerSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   }
 
   @Override
-  protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionContext context)
+  protected SpawnResult actuallyExec(
+      Spawn spawn, SpawnExecutionContext context, ResourceSet resources)
       throws IOException, ExecException, InterruptedException {
     // Each invocation of "exec" gets its own sandbox base, execroot and temporary directory.
     Path sandboxPath =
@@ -278,7 +280,7 @@ final class DockerSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
             treeDeleter);
 
     try {
-      return runSpawn(spawn, sandbox, context, execRoot, timeout, null);
+      return runSpawn(spawn, sandbox, context, resources, execRoot, timeout, null);
     } catch (InterruptedException e) {
       // If we were interrupted, it is possible that "docker run" gets killed in exactly the moment
       // between the create and the start call, leaving behind a container that is created but never
@@ -21,6 +21,7 @@ import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutionRequirements;
+import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.Spawns;
@@ -138,7 +139,8 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   }
 
   @Override
-  protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionContext context)
+  protected SpawnResult actuallyExec(
+      Spawn spawn, SpawnExecutionContext context, ResourceSet resources)
       throws IOException, ExecException, InterruptedException {
     // Each invocation of "exec" gets its own sandbox base.
     // Note that the value returned by context.getId() is only unique inside one given SpawnRunner,
@@ -206,6 +208,7 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
               outputs,
               ImmutableSet.of(),
               sandboxfsMapSymlinkTargets,
+              ImmutableSet.copyOf(getSandboxOptions().sandboxfsSharedSubtrees),
               treeDeleter);
     } else {
       sandbox =
@@ -224,7 +227,7 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
               treeDeleter);
     }
 
-    return runSpawn(spawn, sandbox, context, execRoot, timeout, statisticsPath);
+    return runSpawn(spawn, sandbox, context, resources, execRoot, timeout, statisticsPath);
   }
 
   @Override
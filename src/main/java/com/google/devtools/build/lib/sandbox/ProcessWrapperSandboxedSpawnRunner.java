@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.sandbox;
 
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.exec.TreeDeleter;
@@ -65,7 +66,8 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
   }
 
   @Override
-  protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionContext context)
+  protected SpawnResult actuallyExec(
+      Spawn spawn, SpawnExecutionContext context, ResourceSet resources)
       throws ExecException, IOException, InterruptedException {
     // Each invocation of "exec" gets its own sandbox base.
     // Note that the value returned by context.getId() is only unique inside one given SpawnRunner,
@@ -112,7 +114,7 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
             getWritableDirs(sandboxExecRoot, environment),
             treeDeleter);
 
-    return runSpawn(spawn, sandbox, context, execRoot, timeout, statisticsPath);
+    return runSpawn(spawn, sandbox, context, resources, execRoot, timeout, statisticsPath);
   }
 
   @Override
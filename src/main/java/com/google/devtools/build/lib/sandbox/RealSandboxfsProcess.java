@@ -15,11 +15,17 @@
 package com.google.devtools.build.lib.sandbox;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.shell.Subprocess;
 import com.google.devtools.build.lib.shell.SubprocessBuilder;
 import com.google.devtools.build.lib.shell.SubprocessBuilder.StreamAction;
@@ -32,13 +38,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.util.HashMap;
 import java.util.List;
-import java.util.function.Function;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import javax.annotation.Nullable;
-
-/** A sandboxfs implementation that uses an external sandboxfs binary to manage the mount point. */
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A sandboxfs implementation that uses an external sandboxfs binary to manage the mount point.
+ *
+ * <p>Reconfiguration requests are pipelined: sandboxfs processes requests in the order in which it
+ * receives them and acknowledges each one in turn, so a request can be written while earlier ones
+ * are still being processed. This lets the sandbox of one action be mapped while the sandbox of
+ * another action is being mapped or unmapped, instead of every request waiting for the round trip
+ * of the previous one.
+ */
 final class RealSandboxfsProcess implements SandboxfsProcess {
   private static final Logger log = Logger.getLogger(RealSandboxfsProcess.class.getName());
 
@@ -57,10 +75,27 @@ final class RealSandboxfsProcess implements SandboxfsProcess {
   private @Nullable BufferedWriter processStdIn;
 
   /**
-   * Reader with which to receive data from the sandboxfs instance.  Null only after
-   * {@link #destroy()} has been invoked.
+   * Reader with which to receive data from the sandboxfs instance.  Only used by
+   * {@link #responseReader}, which closes it once sandboxfs exits.
    */
-  private @Nullable BufferedReader processStdOut;
+  private final BufferedReader processStdOut;
+
+  /** Thread that matches the acknowledgements from sandboxfs to {@link #pendingResponses}. */
+  private final Thread responseReader;
+
+  /**
+   * Requests that have been sent to sandboxfs but not yet acknowledged, in the order in which they
+   * were sent.  Requests are added while holding the lock on this object, so the order of this
+   * queue matches the order of the requests in the stdin pipe.
+   */
+  private final Queue<SettableFuture<Void>> pendingResponses = new ConcurrentLinkedQueue<>();
+
+  /** Reason why no more acknowledgements can be received from sandboxfs; null while they can. */
+  private volatile @Nullable IOException responseFailure;
+
+  /** Number of references to each shared directory that is currently mapped, by name. */
+  @GuardedBy("sharedDirs")
+  private final Map<String, Integer> sharedDirs = new HashMap<>();
 
   /**
    * Shutdown hook to stop the sandboxfs instance on abrupt termination.  Null only after
@@ -81,6 +116,9 @@ final class RealSandboxfsProcess implements SandboxfsProcess {
         new OutputStreamWriter(process.getOutputStream(), UTF_8));
     this.processStdOut = new BufferedReader(
         new InputStreamReader(process.getInputStream(), UTF_8));
+    this.responseReader = new Thread(this::readResponses, "sandboxfs-responses");
+    responseReader.setDaemon(true);
+    responseReader.start();
 
     this.shutdownHook =
         new Thread(
@@ -252,57 +290,151 @@ final class RealSandboxfsProcess implements SandboxfsProcess {
       processStdIn = null;
     }
 
-    if (processStdOut != null) {
+    if (process != null) {
+      destroyProcess(process);
+      process = null;
+      // Now that sandboxfs is gone, the reader sees the end of its output, fails any requests that
+      // are still pending and closes the stdout pipe.
+      Uninterruptibles.joinUninterruptibly(responseReader);
+    }
+  }
+
+  /**
+   * Reads acknowledgements from sandboxfs and completes the pending requests they correspond to
+   * until sandboxfs exits.
+   */
+  private void readResponses() {
+    IOException failure;
+    try {
+      String line;
+      while ((line = processStdOut.readLine()) != null) {
+        SettableFuture<Void> response = pendingResponses.poll();
+        if (response == null) {
+          log.warning("Ignoring unsolicited output from sandboxfs: " + line);
+        } else if (line.equals("Done")) {
+          response.set(null);
+        } else {
+          response.setException(
+              new IOException(
+                  "received unknown string from sandboxfs: " + line + "; expected Done"));
+        }
+      }
+      failure = new IOException("premature end of output from sandboxfs");
+    } catch (IOException e) {
+      failure = e;
+    }
+    responseFailure = failure;
+    failPendingResponses();
+
+    try {
+      processStdOut.close();
+    } catch (IOException e) {
+      log.warning("Failed to close sandboxfs's stdout pipe: " + e);
+    }
+  }
+
+  /** Fails all pending requests once no more acknowledgements can be received. */
+  private void failPendingResponses() {
+    IOException failure = checkNotNull(responseFailure);
+    SettableFuture<Void> response;
+    while ((response = pendingResponses.poll()) != null) {
+      response.setException(new IOException(failure.getMessage(), failure));
+    }
+  }
+
+  /**
+   * Pushes a new configuration to sandboxfs without waiting for acceptance.
+   *
+   * @param config the configuration chunk to push to sandboxfs
+   * @return a future that completes once sandboxfs has accepted the configuration, or fails if it
+   *     rejected it or if we failed to communicate with the subprocess
+   */
+  private ListenableFuture<Void> send(String config) {
+    SettableFuture<Void> response = SettableFuture.create();
+    synchronized (this) {
+      checkNotNull(processStdIn, "sandboxfs already has been destroyed");
+      pendingResponses.add(response);
       try {
-        processStdOut.close();
+        processStdIn.write(config);
+        processStdIn.flush();
       } catch (IOException e) {
-        log.warning("Failed to close sandboxfs's stdout pipe: " + e);
+        pendingResponses.remove(response);
+        response.setException(e);
       }
-      processStdOut = null;
     }
-
-    if (process != null) {
-      destroyProcess(process);
-      process = null;
+    if (responseFailure != null) {
+      // The reader may have given up before our request was queued, in which case nobody else
+      // would ever complete it.
+      failPendingResponses();
     }
+    return response;
   }
 
   /**
    * Pushes a new configuration to sandboxfs and waits for acceptance.
    *
+   * <p>Other threads can push their own configurations while this one waits.
+   *
    * @param config the configuration chunk to push to sandboxfs
    * @throws IOException if sandboxfs cannot be reconfigured either because of an error in the
    *     configuration or because we failed to communicate with the subprocess
    */
-  private synchronized void reconfigure(String config) throws IOException {
-    checkNotNull(processStdIn, "sandboxfs already has been destroyed");
-    processStdIn.write(config);
-    processStdIn.flush();
-
-    checkNotNull(processStdOut, "sandboxfs has already been destroyed");
-    String done = processStdOut.readLine();
-    if (done == null) {
-      throw new IOException("premature end of output from sandboxfs");
-    }
-    if (!done.equals("Done")) {
-      throw new IOException("received unknown string from sandboxfs: " + done + "; expected Done");
+  private void reconfigure(String config) throws IOException {
+    try {
+      Uninterruptibles.getUninterruptibly(send(config));
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
     }
   }
 
   @Override
   public void map(List<Mapping> mappings) throws IOException {
-    Function<Mapping, String> formatMapping =
-        (mapping) -> String.format(
-            "{\"Map\": {\"Mapping\": \"%s\", \"Target\": \"%s\", \"Writable\": %s}}",
-            mapping.path(), mapping.target(), mapping.writable() ? "true" : "false");
-
-    StringBuilder sb = new StringBuilder();
+    StringBuilder sb = new StringBuilder(mappings.size() * 128);
     sb.append("[\n");
-    sb.append(mappings.stream().map(formatMapping).collect(Collectors.joining(",\n")));
+    for (int i = 0; i < mappings.size(); i++) {
+      Mapping mapping = mappings.get(i);
+      if (i > 0) {
+        sb.append(",\n");
+      }
+      sb.append("{\"Map\": {\"Mapping\": \"")
+          .append(mapping.path().getPathString())
+          .append("\", \"Target\": \"")
+          .append(mapping.target().getPathString())
+          .append("\", \"Writable\": ")
+          .append(mapping.writable() ? "true" : "false")
+          .append("}}");
+    }
     sb.append("]\n\n");
     reconfigure(sb.toString());
   }
 
+  @Override
+  public PathFragment mapShared(String name, List<Mapping> mappings) throws IOException {
+    PathFragment dir = SHARED_DIR.getRelative(name);
+    synchronized (sharedDirs) {
+      if (!sharedDirs.containsKey(name)) {
+        map(mappings.stream().map(mapping -> mapping.relocate(dir)).collect(toImmutableList()));
+      }
+      sharedDirs.merge(name, 1, Integer::sum);
+    }
+    return dir;
+  }
+
+  @Override
+  public void unmapShared(String name) throws IOException {
+    synchronized (sharedDirs) {
+      int references = sharedDirs.getOrDefault(name, 0);
+      checkState(references > 0, "Shared directory %s is not mapped", name);
+      if (references > 1) {
+        sharedDirs.put(name, references - 1);
+        return;
+      }
+      sharedDirs.remove(name);
+      unmap(SHARED_DIR.getRelative(name));
+    }
+  }
+
   @Override
   public void unmap(PathFragment mapping) throws IOException {
     reconfigure(String.format("[{\"Unmap\": \"%s\"}]\n\n", mapping));
@@ -19,6 +19,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutorInitException;
@@ -32,6 +33,7 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
 import com.google.devtools.build.lib.exec.SpawnRunner;
 import com.google.devtools.build.lib.exec.TreeDeleter;
+import com.google.devtools.build.lib.exec.TreeDeletionBacklogEvent;
 import com.google.devtools.build.lib.exec.local.LocalEnvProvider;
 import com.google.devtools.build.lib.exec.local.LocalExecutionOptions;
 import com.google.devtools.build.lib.exec.local.LocalSpawnRunner;
@@ -223,9 +225,25 @@ public final class SandboxModule extends BlazeModule {
         treeDeleter = new SynchronousTreeDeleter();
       }
     } else {
-      if (!(treeDeleter instanceof AsynchronousTreeDeleter)) {
-        treeDeleter = new AsynchronousTreeDeleter();
+      Path trashBase = sandboxBase.getRelative(AsynchronousTreeDeleter.MOVED_TRASH_DIR);
+      if (!(treeDeleter instanceof AsynchronousTreeDeleter)
+          || !((AsynchronousTreeDeleter) treeDeleter).getTrashBase().equals(trashBase)) {
+        if (treeDeleter instanceof AsynchronousTreeDeleter) {
+          // Lets the old deleter work through its backlog in its own trash directory and then
+          // stop its threads.
+          treeDeleter.shutdown();
+        }
+        treeDeleter = new AsynchronousTreeDeleter(trashBase, options.asyncTreeDeleteMaxPending);
       }
+      AsynchronousTreeDeleter asyncTreeDeleter = (AsynchronousTreeDeleter) treeDeleter;
+      // Reconfigures rather than replaces the deleter, whose batch directories in the trash
+      // directory a new instance would reuse while this one is still deleting them.
+      asyncTreeDeleter.setMaxPending(options.asyncTreeDeleteMaxPending);
+      asyncTreeDeleter.setThreads(1);
+      asyncTreeDeleter.setThrottled(true);
+      EventBus eventBus = env.getEventBus();
+      asyncTreeDeleter.setBacklogListener(
+          pending -> eventBus.post(new TreeDeletionBacklogEvent(pending)));
     }
 
     Path mountPoint = sandboxBase.getRelative("sandboxfs");
@@ -513,6 +531,8 @@ public final class SandboxModule extends BlazeModule {
       AsynchronousTreeDeleter treeDeleter =
           (AsynchronousTreeDeleter) checkNotNull(this.treeDeleter);
       treeDeleter.setThreads(asyncTreeDeleteThreads);
+      treeDeleter.setThrottled(false);
+      treeDeleter.setBacklogListener(null);
     }
 
     if (shouldCleanupSandboxBase) {
@@ -19,10 +19,13 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.actions.LocalHostCapacity;
+import com.google.devtools.build.lib.util.OptionsUtils;
 import com.google.devtools.build.lib.util.ResourceConverter;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
+import com.google.devtools.common.options.Converters.RangeConverter;
 import com.google.devtools.common.options.Converters.TriStateConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
@@ -212,6 +215,22 @@ public class SandboxOptions extends OptionsBase {
               + "this on their own and should be removed once all such rules are fixed.")
   public boolean sandboxfsMapSymlinkTargets;
 
+  @Option(
+      name = "experimental_sandboxfs_shared_subtree",
+      allowMultiple = true,
+      converter = OptionsUtils.PathFragmentConverter.class,
+      defaultValue = "",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "A subtree of the execroot, such as external/local_jdk, whose inputs are mapped into a "
+              + "directory that is shared by all sandboxes with the very same inputs there, when "
+              + "using sandboxfs. Each sandbox then only needs a single symlink to the shared "
+              + "directory instead of one mapping per input, which speeds up the setup of "
+              + "actions with many inputs in such subtrees. Relative symlinks that point out of "
+              + "a shared subtree do not resolve. May be passed multiple times.")
+  public List<PathFragment> sandboxfsSharedSubtrees;
+
   @Option(
       name = "experimental_use_windows_sandbox",
       converter = TriStateConverter.class,
@@ -355,6 +374,20 @@ public class SandboxOptions extends OptionsBase {
               + " grows to the size specified by this flag when the server is idle.")
   public int asyncTreeDeleteIdleThreads;
 
+  @Option(
+      name = "experimental_sandbox_async_tree_delete_max_pending",
+      defaultValue = "10000",
+      converter = AsyncTreeDeleteMaxPendingConverter.class,
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "Maximum number of sandbox trees pending asynchronous deletion. While the backlog is "
+              + "below half this size, deletions during the build are rate limited to keep pace "
+              + "with the action throughput; beyond that they run at full speed, and once the "
+              + "backlog is full, sandbox trees are deleted synchronously when actions complete. "
+              + "Only has an effect with --experimental_sandbox_async_tree_delete_idle_threads.")
+  public int asyncTreeDeleteMaxPending;
+
   /** Converter for the number of threads used for asynchronous tree deletion. */
   public static final class AsyncTreeDeletesConverter extends ResourceConverter {
     public AsyncTreeDeletesConverter() {
@@ -364,4 +397,11 @@ public class SandboxOptions extends OptionsBase {
           Integer.MAX_VALUE);
     }
   }
+
+  /** Converter for the maximum number of trees pending asynchronous deletion. */
+  public static final class AsyncTreeDeleteMaxPendingConverter extends RangeConverter {
+    public AsyncTreeDeleteMaxPendingConverter() {
+      super(1, Integer.MAX_VALUE);
+    }
+  }
 }
@@ -40,6 +40,15 @@ interface SandboxfsProcess {
     /** Whether the mapped path is writable or not. */
     abstract boolean writable();
 
+    /** Returns a copy of this mapping that appears below the given directory of the sandbox. */
+    Mapping relocate(PathFragment dir) {
+      return builder()
+          .setPath(dir.getRelative(path().toRelative()))
+          .setTarget(target())
+          .setWritable(writable())
+          .build();
+    }
+
     /** Constructs a new mapping builder. */
     static Builder builder() {
       return new AutoValue_SandboxfsProcess_Mapping.Builder();
@@ -92,6 +101,9 @@ interface SandboxfsProcess {
     }
   }
 
+  /** Directory within the mount point below which shared directories are mapped. */
+  PathFragment SHARED_DIR = PathFragment.create("/_shared");
+
   /** Returns the path to the sandboxfs's mount point. */
   Path getMountPoint();
 
@@ -116,6 +128,36 @@ interface SandboxfsProcess {
    */
   void map(List<Mapping> mappings) throws IOException;
 
+  /**
+   * Adds read-only mappings below a directory of the sandboxfs instance that is shared by all
+   * sandboxes, unless a shared directory with the given name has already been created.
+   *
+   * <p>Every call holds a reference to the shared directory, which must be released with {@link
+   * #unmapShared} once the sandbox that uses it is torn down. The directory stays mapped while it
+   * is referenced. Sandboxes refer to shared directories via a symlink to their location within the
+   * mount point, which avoids sending the same, possibly large, set of mappings to sandboxfs for
+   * every sandbox.
+   *
+   * @param name name of the shared directory, which must identify the given mappings: requesting
+   *     an existing name returns the existing directory without looking at {@code mappings}
+   * @param mappings the collection of mappings to add, relative to the shared directory
+   * @return the shared directory. This looks like an absolute path but is treated as relative to
+   *     the sandbox's root.
+   * @throws IOException if sandboxfs cannot be reconfigured either because of an error in the
+   *     configuration or because we failed to communicate with the subprocess
+   */
+  PathFragment mapShared(String name, List<Mapping> mappings) throws IOException;
+
+  /**
+   * Releases a reference to a shared directory obtained from {@link #mapShared}, and unmaps the
+   * directory if that was the last reference to it.
+   *
+   * @param name name of the shared directory
+   * @throws IOException if sandboxfs cannot be reconfigured either because of an error in the
+   *     configuration or because we failed to communicate with the subprocess
+   */
+  void unmapShared(String name) throws IOException;
+
   /**
    * Removes a mapping from the sandboxfs instance.
    *
@@ -17,10 +17,12 @@ package com.google.devtools.build.lib.sandbox;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.exec.TreeDeleter;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxInputs;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxOutputs;
 import com.google.devtools.build.lib.sandbox.SandboxfsProcess.Mapping;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -31,8 +33,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Creates an execRoot for a Spawn that contains all required input files by mounting a sandboxfs
@@ -65,6 +70,12 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
   /** Map the targets of symlinks within the sandbox if true. */
   private final boolean mapSymlinkTargets;
 
+  /**
+   * Subtrees of the execroot whose inputs are mapped into directories shared with other sandboxes
+   * that need the very same files there, such as toolchains or external repositories.
+   */
+  private final Set<PathFragment> sharedSubtrees;
+
   /** Scheduler for tree deletions. */
   private final TreeDeleter treeDeleter;
 
@@ -89,6 +100,9 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
    */
   private final PathFragment innerExecRoot;
 
+  /** Names of the shared directories this sandbox holds a reference to. */
+  private final List<String> sharedDirNames = new ArrayList<>();
+
   /**
    * Constructs a new sandboxfs-based spawn runner.
    *
@@ -101,6 +115,8 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
    * @param writableDirs directories where the spawn can write files to, relative to the sandbox's
    *     dynamically-allocated execroot
    * @param mapSymlinkTargets map the targets of symlinks within the sandbox if true
+   * @param sharedSubtrees subtrees of the execroot, relative to it, whose inputs are mapped into
+   *     directories shared across sandboxes when possible
    * @param treeDeleter scheduler for tree deletions
    */
   SandboxfsSandboxedSpawn(
@@ -112,6 +128,7 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
       SandboxOutputs outputs,
       Set<PathFragment> writableDirs,
       boolean mapSymlinkTargets,
+      Set<PathFragment> sharedSubtrees,
       TreeDeleter treeDeleter) {
     this.process = process;
     this.arguments = arguments;
@@ -129,6 +146,10 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
     }
     this.writableDirs = writableDirs;
     this.mapSymlinkTargets = mapSymlinkTargets;
+    for (PathFragment path : sharedSubtrees) {
+      checkArgument(!path.isAbsolute(), "shared subtree %s must be relative", path);
+    }
+    this.sharedSubtrees = sharedSubtrees;
     this.treeDeleter = treeDeleter;
 
     this.sandboxPath = sandboxPath;
@@ -158,8 +179,15 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
   public void createFileSystem() throws IOException {
     sandboxScratchDir.createDirectory();
 
+    Map<PathFragment, Mapping> sharedMappings = mapSharedSubtrees();
     List<Mapping> mappings =
-        createMappings(innerExecRoot, sandboxScratchDir, inputs, mapSymlinkTargets);
+        createMappings(
+            innerExecRoot,
+            sandboxScratchDir,
+            inputs,
+            sharedMappings.keySet(),
+            mapSymlinkTargets);
+    mappings.addAll(sharedMappings.values());
 
     Set<PathFragment> dirsToCreate = new HashSet<>(writableDirs);
     for (PathFragment output : outputs.files()) {
@@ -191,6 +219,14 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
       // the build, which will cause these to go away anyway.
       log.warning("Cannot unmap " + innerExecRoot + ": " + e);
     }
+    for (String sharedDirName : sharedDirNames) {
+      try {
+        process.unmapShared(sharedDirName);
+      } catch (IOException e) {
+        log.warning("Cannot unmap shared directory " + sharedDirName + ": " + e);
+      }
+    }
+    sharedDirNames.clear();
 
     try {
       treeDeleter.deleteTree(sandboxPath);
@@ -206,6 +242,113 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
     }
   }
 
+  /**
+   * Maps the inputs below each of {@link #sharedSubtrees} into a directory shared with all other
+   * sandboxes that have the very same inputs there, creating that directory if it doesn't exist
+   * yet, and returns the mappings that expose the shared directories in this sandbox.
+   *
+   * <p>A shared directory is exposed as a symlink to its location within the sandboxfs mount point,
+   * so this sandbox needs a single mapping for the whole subtree instead of one for each input.
+   * A subtree is not shared, and its inputs are mapped one by one as usual, if the spawn may write
+   * into it or if any of its inputs has no target. When mapping the targets of symlinks, a subtree
+   * with symlinked inputs isn't shared either, because relative targets would be resolved within
+   * the shared directory instead of the sandbox.
+   *
+   * @return the mappings for the shared subtrees, keyed by subtree
+   * @throws IOException if we fail to create the shared directories or the symlinks to them
+   */
+  private Map<PathFragment, Mapping> mapSharedSubtrees() throws IOException {
+    if (sharedSubtrees.isEmpty()) {
+      return ImmutableMap.of();
+    }
+
+    Set<PathFragment> unshareable = new HashSet<>();
+    for (PathFragment subtree : sharedSubtrees) {
+      if (isBelow(writableDirs, subtree)
+          || isBelow(outputs.files(), subtree)
+          || isBelow(outputs.dirs(), subtree)) {
+        unshareable.add(subtree);
+      }
+    }
+
+    Map<PathFragment, SortedMap<PathFragment, Path>> subtreeInputs = new HashMap<>();
+    for (Map.Entry<PathFragment, Path> entry : inputs.getFiles().entrySet()) {
+      PathFragment subtree = findSubtree(sharedSubtrees, entry.getKey());
+      if (subtree == null || unshareable.contains(subtree)) {
+        continue;
+      }
+      Path target = entry.getValue();
+      if (target == null
+          || entry.getKey().equals(subtree)
+          || (mapSymlinkTargets && target.isSymbolicLink())) {
+        unshareable.add(subtree);
+        continue;
+      }
+      subtreeInputs
+          .computeIfAbsent(subtree, k -> new TreeMap<>())
+          .put(entry.getKey().relativeTo(subtree), target);
+    }
+
+    Map<PathFragment, Mapping> sharedMappings = new HashMap<>();
+    Path linksDir = sandboxPath.getRelative("shared");
+    for (Map.Entry<PathFragment, SortedMap<PathFragment, Path>> entry : subtreeInputs.entrySet()) {
+      if (unshareable.contains(entry.getKey())) {
+        continue;
+      }
+
+      // The name of the shared directory identifies its contents, so that it is only reused by
+      // sandboxes that need exactly the same files.
+      Fingerprint fingerprint = new Fingerprint();
+      List<Mapping> mappings = new ArrayList<>(entry.getValue().size());
+      for (Map.Entry<PathFragment, Path> input : entry.getValue().entrySet()) {
+        fingerprint.addPath(input.getKey());
+        fingerprint.addPath(input.getValue().asFragment());
+        mappings.add(
+            Mapping.builder()
+                .setPath(PathFragment.create("/").getRelative(input.getKey()))
+                .setTarget(input.getValue().asFragment())
+                .setWritable(false)
+                .build());
+      }
+      String sharedDirName = fingerprint.hexDigestAndReset();
+      PathFragment sharedDir = process.mapShared(sharedDirName, mappings);
+      sharedDirNames.add(sharedDirName);
+
+      linksDir.createDirectoryAndParents();
+      Path link = linksDir.getChild(Integer.toString(sharedMappings.size()));
+      link.createSymbolicLink(process.getMountPoint().getRelative(sharedDir.toRelative()));
+      sharedMappings.put(
+          entry.getKey(),
+          Mapping.builder()
+              .setPath(innerExecRoot.getRelative(entry.getKey()))
+              .setTarget(link.asFragment())
+              .setWritable(false)
+              .build());
+    }
+    return sharedMappings;
+  }
+
+  /** Returns the first of the given subtrees that contains the given path, or null if none. */
+  @Nullable
+  private static PathFragment findSubtree(Set<PathFragment> subtrees, PathFragment path) {
+    for (PathFragment subtree : subtrees) {
+      if (path.startsWith(subtree)) {
+        return subtree;
+      }
+    }
+    return null;
+  }
+
+  /** Returns true if any of the given paths is within the given subtree. */
+  private static boolean isBelow(Set<PathFragment> paths, PathFragment subtree) {
+    for (PathFragment path : paths) {
+      if (path.startsWith(subtree)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Maps the targets of relative symlinks into the sandbox.
    *
@@ -267,12 +410,18 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
    * @param inputs collection of paths to expose within the sandbox as read-only mappings, given as
    *     a map of mapped path to target path. The target path may be null, in which case an empty
    *     read-only file is mapped.
+   * @param sharedSubtrees subtrees that are mapped as a whole into shared directories, so none of
+   *     the inputs below them must be mapped individually
    * @param sandboxfsMapSymlinkTargets map the targets of symlinks within the sandbox if true
    * @return the collection of mappings to use for reconfiguration
    * @throws IOException if we fail to resolve symbolic links
    */
   private static List<Mapping> createMappings(
-      PathFragment root, Path scratchDir, SandboxInputs inputs, boolean sandboxfsMapSymlinkTargets)
+      PathFragment root,
+      Path scratchDir,
+      SandboxInputs inputs,
+      Set<PathFragment> sharedSubtrees,
+      boolean sandboxfsMapSymlinkTargets)
       throws IOException {
     List<Mapping> mappings = new ArrayList<>();
 
@@ -296,6 +445,9 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
     Map<PathFragment, Path> symlinks = null;
 
     for (Map.Entry<PathFragment, Path> entry : inputs.getFiles().entrySet()) {
+      if (findSubtree(sharedSubtrees, entry.getKey()) != null) {
+        continue;
+      }
       PathFragment target;
       if (entry.getValue() == null) {
         if (emptyFile == null) {
@@ -322,7 +474,9 @@ class SandboxfsSandboxedSpawn implements SandboxedSpawn {
 
     if (symlinks != null) {
       for (Map.Entry<PathFragment, Path> entry : symlinks.entrySet()) {
-        if (!inputs.getFiles().containsKey(entry.getKey())) {
+        // Targets within a shared subtree resolve through it if they are available at all.
+        if (!inputs.getFiles().containsKey(entry.getKey())
+            && findSubtree(sharedSubtrees, entry.getKey()) == null) {
           mappings.add(
               Mapping.builder()
                   .setPath(root.getRelative(entry.getKey()))
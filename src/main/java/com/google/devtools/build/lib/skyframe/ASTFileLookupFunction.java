@@ -18,6 +18,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.actions.FileValue;
 import com.google.devtools.build.lib.actions.InconsistentFilesystemException;
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
@@ -35,6 +36,7 @@ import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
 /**
@@ -48,9 +50,21 @@ import javax.annotation.Nullable;
 public class ASTFileLookupFunction implements SkyFunction {
 
   private final RuleClassProvider ruleClassProvider;
+  @Nullable private final AtomicReference<PersistentAstCache> persistentAstCache;
 
   public ASTFileLookupFunction(RuleClassProvider ruleClassProvider) {
+    this(ruleClassProvider, /*persistentAstCache=*/ null);
+  }
+
+  /**
+   * Creates a function that looks up validated ASTs in the cache held by {@code
+   * persistentAstCache} before parsing, if it holds one.
+   */
+  public ASTFileLookupFunction(
+      RuleClassProvider ruleClassProvider,
+      @Nullable AtomicReference<PersistentAstCache> persistentAstCache) {
     this.ruleClassProvider = ruleClassProvider;
+    this.persistentAstCache = persistentAstCache;
   }
 
   @Override
@@ -111,8 +125,21 @@ public class ASTFileLookupFunction implements SkyFunction {
     // Both the package and the file exist; load the file and parse it as an AST.
     BuildFileAST ast = null;
     Path path = rootedPath.asPath();
+    PersistentAstCache cache = persistentAstCache == null ? null : persistentAstCache.get();
     try {
       long astFileSize = fileValue.getSize();
+      byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, astFileSize);
+      String cacheKey = null;
+      if (cache != null) {
+        cacheKey = cache.bzlKey(path.asFragment(), bytes, starlarkSemantics);
+        ast = cache.get(cacheKey);
+        if (ast != null) {
+          return ASTFileLookupValue.withFile(ast);
+        }
+      }
+      // Only ASTs whose parsing and validation were silent may be cached, so collect the events
+      // rather than reporting them right away.
+      StoredEventHandler eventHandler = new StoredEventHandler();
       try (Mutability mutability = Mutability.create("validate")) {
         com.google.devtools.build.lib.syntax.Environment validationEnv =
             ruleClassProvider
@@ -120,18 +147,21 @@ public class ASTFileLookupFunction implements SkyFunction {
                     fileLabel,
                     mutability,
                     starlarkSemantics,
-                    env.getListener(),
+                    eventHandler,
                     // the three below don't matter for extracting the ValidationEnvironment:
                     /*astFileContentHashCode=*/ null,
                     /*importMap=*/ null,
                     /*repoMapping=*/ ImmutableMap.of())
                 .setupDynamic(Runtime.PKG_NAME, Runtime.NONE)
                 .setupDynamic(Runtime.REPOSITORY_NAME, Runtime.NONE);
-        byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, astFileSize);
         ast =
             BuildFileAST.parseSkylarkFile(
-                bytes, path.getDigest(), path.asFragment(), env.getListener());
-        ast = ast.validate(validationEnv, env.getListener());
+                bytes, path.getDigest(), path.asFragment(), eventHandler);
+        ast = ast.validate(validationEnv, eventHandler);
+      }
+      eventHandler.replayOn(env.getListener());
+      if (cache != null && eventHandler.isEmpty()) {
+        cache.put(cacheKey, ast);
       }
     } catch (IOException e) {
       throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(e),
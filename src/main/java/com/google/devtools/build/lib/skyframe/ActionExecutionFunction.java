@@ -158,14 +158,20 @@ public class ActionExecutionFunction implements SkyFunction {
 
     ActionSketch sketch = null;
     TopDownActionCache topDownActionCache = skyframeActionExecutor.getTopDownActionCache();
-    if (topDownActionCache != null) {
+    // Actions that must run in every build, like tests with --nocache_test_results, are neither
+    // looked up nor stored. Whether they must run can change without the sketch changing.
+    if (topDownActionCache != null && !action.executeUnconditionally()) {
       sketch = (ActionSketch) env.getValue(ActionSketchFunction.key(actionLookupData));
       if (sketch == null) {
         return null;
       }
-      ActionExecutionValue actionExecutionValue = topDownActionCache.get(sketch);
-      if (actionExecutionValue != null) {
-        return actionExecutionValue.transformForSharedAction(action.getOutputs());
+      if (!sketch.coversAllInputs()) {
+        sketch = null;
+      } else {
+        ActionExecutionValue actionExecutionValue = topDownActionCache.get(sketch);
+        if (actionExecutionValue != null) {
+          return actionExecutionValue.transformForSharedAction(action.getOutputs());
+        }
       }
     }
 
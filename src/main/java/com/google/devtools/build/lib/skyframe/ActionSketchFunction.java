@@ -113,10 +113,16 @@ public final class ActionSketchFunction implements SkyFunction {
     }
 
     BigInteger transitiveActionKeyHash = Sketches.computeActionKey(action, actionKeyContext);
-    BigInteger transitiveSourceHash = BigInteger.ZERO;
+    // The outputs of a volatile action, like the workspace status, change without any change to
+    // its inputs, so neither its sketch nor those of its consumers cover everything they depend on.
+    BigInteger transitiveSourceHash =
+        action.isVolatile() || action.executeUnconditionally() ? null : BigInteger.ZERO;
 
     // Incorporate the direct source values.
     for (SkyValue val : srcArtifactValues.values()) {
+      if (transitiveSourceHash == null) {
+        break;
+      }
       FileArtifactValue fileArtifactValue = (FileArtifactValue) val;
       transitiveSourceHash =
           BigIntegerFingerprintUtils.compose(
@@ -130,8 +136,10 @@ public final class ActionSketchFunction implements SkyFunction {
           BigIntegerFingerprintUtils.compose(
               transitiveActionKeyHash, depSketch.transitiveActionLookupHash());
       transitiveSourceHash =
-          BigIntegerFingerprintUtils.compose(
-              transitiveSourceHash, depSketch.transitiveSourceHash());
+          transitiveSourceHash == null || !depSketch.coversAllInputs()
+              ? null
+              : BigIntegerFingerprintUtils.compose(
+                  transitiveSourceHash, depSketch.transitiveSourceHash());
     }
 
     return ActionSketch.builder()
@@ -0,0 +1,491 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
+import com.google.devtools.build.lib.actions.ActionKeyContext;
+import com.google.devtools.build.lib.actions.ActionLookupValue;
+import com.google.devtools.build.lib.actions.Actions;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
+import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
+import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.concurrent.Sharder;
+import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
+import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.SilentCloseable;
+import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ConflictException;
+import com.google.devtools.build.lib.vfs.OsPathPolicy;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Finds the conflicts between the outputs of the actions of a build, incrementally.
+ *
+ * <p>The outputs of the checked {@link ActionLookupValue}s are kept across builds in a trie of
+ * their exec paths. Each check removes the outputs of the values which are no longer in the build,
+ * adds those of the values which are new to it, and then only examines again the paths around the
+ * outputs it removed or added. A value which wasn't reanalyzed is the very same object in the next
+ * build, so the cost of a check grows with the change since the previous one rather than with the
+ * size of the build.
+ *
+ * <p>Each node of the trie synchronizes on itself, so that shards of values are removed, added and
+ * checked in parallel. A node creates its map of children with its first child, and keeps a single
+ * output without a list, since nodes exist for every segment of every output.
+ *
+ * <p>The checked values are kept weakly: once Skyframe drops a value from the graph, the next check
+ * removes its outputs, without the value itself being kept alive until then. The trie still
+ * refers to the actions and outputs of the values of the last check.
+ *
+ * <p>Conflicts are reported like {@link
+ * com.google.devtools.build.lib.actions.MapBasedActionGraph} and {@link
+ * Actions#findArtifactPrefixConflicts} do: an action generating the same path as another is
+ * reported against the first one which was added for that path, and an artifact which is a prefix
+ * of others is reported with each of them, unless it is itself below another artifact.
+ */
+final class ArtifactConflictFinder {
+  private static final Logger logger = Logger.getLogger(ArtifactConflictFinder.class.getName());
+
+  /** An output in the trie, with the action generating it. */
+  private static final class Output {
+    private final Artifact artifact;
+    private final ActionAnalysisMetadata action;
+
+    private Output(Artifact artifact, ActionAnalysisMetadata action) {
+      this.artifact = artifact;
+      this.action = action;
+    }
+
+    private boolean is(Artifact artifact, ActionAnalysisMetadata action) {
+      return this.artifact == artifact && this.action == action;
+    }
+  }
+
+  /** A node of the trie, for an exec path which is an output or the parent of one. */
+  private static final class Node {
+    @Nullable private final Node parent;
+    private final String key;
+
+    /** The children by key, or null before the first one is added. */
+    @GuardedBy("this")
+    @Nullable
+    private Map<String, Node> children;
+
+    /**
+     * The outputs with the exec path of this node, in the order they were added: null, a single
+     * {@link Output}, or a list of them.
+     */
+    @GuardedBy("this")
+    @Nullable
+    private Object outputs;
+
+    private Node(@Nullable Node parent, String key) {
+      this.parent = parent;
+      this.key = key;
+    }
+
+    private synchronized Node getOrCreateChild(String key) {
+      if (children == null) {
+        children = new HashMap<>(4);
+      }
+      return children.computeIfAbsent(key, k -> new Node(this, k));
+    }
+
+    @Nullable
+    private synchronized Node getChild(String key) {
+      return children == null ? null : children.get(key);
+    }
+
+    private synchronized ImmutableList<Node> getChildren() {
+      return children == null ? ImmutableList.of() : ImmutableList.copyOf(children.values());
+    }
+
+    private synchronized boolean hasChildren() {
+      return children != null && !children.isEmpty();
+    }
+
+    private synchronized void removeChild(Node child) {
+      children.remove(child.key, child);
+      if (children.isEmpty()) {
+        children = null;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void addOutput(Output output) {
+      if (outputs == null) {
+        outputs = output;
+      } else if (outputs instanceof Output) {
+        List<Output> list = new ArrayList<>(2);
+        list.add((Output) outputs);
+        list.add(output);
+        outputs = list;
+      } else {
+        ((List<Output>) outputs).add(output);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void removeOutput(Artifact artifact, ActionAnalysisMetadata action) {
+      if (outputs instanceof Output) {
+        if (((Output) outputs).is(artifact, action)) {
+          outputs = null;
+          return;
+        }
+      } else if (outputs != null) {
+        List<Output> list = (List<Output>) outputs;
+        for (int i = 0; i < list.size(); i++) {
+          if (list.get(i).is(artifact, action)) {
+            list.remove(i);
+            if (list.size() == 1) {
+              outputs = list.get(0);
+            }
+            return;
+          }
+        }
+      }
+      throw new IllegalStateException("Output not in the trie: " + artifact + " " + action);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized ImmutableList<Output> getOutputs() {
+      if (outputs == null) {
+        return ImmutableList.of();
+      }
+      return outputs instanceof Output
+          ? ImmutableList.of((Output) outputs)
+          : ImmutableList.copyOf((List<Output>) outputs);
+    }
+
+    private synchronized boolean hasOutputs() {
+      return outputs != null;
+    }
+  }
+
+  /**
+   * A checked value, kept weakly along with its actions, which a value may no longer return once it
+   * is cleared. It is enqueued once the value is garbage collected, unless it was cleared first.
+   */
+  private static final class CheckedValue extends WeakReference<ActionLookupValue> {
+    private final ImmutableList<ActionAnalysisMetadata> actions;
+
+    private CheckedValue(
+        ActionLookupValue value,
+        ImmutableList<ActionAnalysisMetadata> actions,
+        ReferenceQueue<ActionLookupValue> queue) {
+      super(value, queue);
+      this.actions = actions;
+    }
+  }
+
+  private final ActionKeyContext actionKeyContext;
+  private final boolean caseSensitive = OsPathPolicy.getFilePathOs().isCaseSensitive();
+  private final Node root = new Node(null, "");
+  /** The values of the last check, compared by identity. */
+  private Map<ActionLookupValue, CheckedValue> checkedValues = newCheckedValues();
+  /** The checked values that were garbage collected since the last check. */
+  private ReferenceQueue<ActionLookupValue> collectedValues = new ReferenceQueue<>();
+  private final Map<Node, ImmutableMap<ActionAnalysisMetadata, ConflictException>>
+      actionConflicts = new ConcurrentHashMap<>();
+  private final Map<Node, ImmutableMap<ActionAnalysisMetadata, ConflictException>>
+      prefixConflicts = new ConcurrentHashMap<>();
+  private int lastCheckedNodes;
+
+  ArtifactConflictFinder(ActionKeyContext actionKeyContext) {
+    this.actionKeyContext = actionKeyContext;
+  }
+
+  /**
+   * Updates the trie to contain the outputs of exactly {@code actionLookupValues} and returns the
+   * conflicts between them.
+   */
+  ImmutableMap<ActionAnalysisMetadata, ConflictException> findConflicts(
+      Iterable<ActionLookupValue> actionLookupValues) throws InterruptedException {
+    Map<ActionLookupValue, CheckedValue> values = newCheckedValues();
+    List<ImmutableList<ActionAnalysisMetadata>> addedValues = new ArrayList<>();
+    for (ActionLookupValue value : actionLookupValues) {
+      if (values.containsKey(value)) {
+        continue;
+      }
+      CheckedValue checked = checkedValues.remove(value);
+      if (checked == null) {
+        checked = new CheckedValue(value, value.getActions(), collectedValues);
+        addedValues.add(checked.actions);
+      }
+      values.put(value, checked);
+    }
+    List<ImmutableList<ActionAnalysisMetadata>> removedValues = new ArrayList<>();
+    for (CheckedValue checked : checkedValues.values()) {
+      // Cleared, it is not enqueued when the value is collected.
+      checked.clear();
+      removedValues.add(checked.actions);
+    }
+    Reference<? extends ActionLookupValue> collected;
+    while ((collected = collectedValues.poll()) != null) {
+      removedValues.add(((CheckedValue) collected).actions);
+    }
+
+    try (AutoProfiler p = AutoProfiler.logged("finding artifact conflicts", logger)) {
+      Set<Node> changedNodes = ConcurrentHashMap.newKeySet();
+      runInParallel("remove", removedValues, actions -> removeOutputs(actions, changedNodes));
+      runInParallel("add", addedValues, actions -> addOutputs(actions, changedNodes));
+      Set<Node> nodesToCheck = ConcurrentHashMap.newKeySet();
+      runInParallel("collect", changedNodes, node -> collectNodesToCheck(node, nodesToCheck));
+      runInParallel("check", nodesToCheck, this::checkNode);
+      try (SilentCloseable c = Profiler.instance().profile("ArtifactConflictFinder.prune")) {
+        changedNodes.forEach(ArtifactConflictFinder::prune);
+      }
+      lastCheckedNodes = nodesToCheck.size();
+    } catch (InterruptedException | RuntimeException | Error e) {
+      // The trie may be half updated, so start over with the next check.
+      clear();
+      throw e;
+    }
+    checkedValues = values;
+    logger.info(
+        String.format(
+            "Artifact conflicts: %d action lookup values removed, %d added, %d paths checked",
+            removedValues.size(), addedValues.size(), lastCheckedNodes));
+
+    Map<ActionAnalysisMetadata, ConflictException> conflicts = new HashMap<>();
+    actionConflicts.values().forEach(conflicts::putAll);
+    // An action with both kinds of conflicts is reported with its prefix conflict.
+    prefixConflicts.values().forEach(conflicts::putAll);
+    return ImmutableMap.copyOf(conflicts);
+  }
+
+  /** Forgets all the checked values, so that the next check examines every value again. */
+  void clear() {
+    synchronized (root) {
+      root.children = null;
+    }
+    checkedValues = newCheckedValues();
+    // Values collected from now on are not in the trie anymore.
+    collectedValues = new ReferenceQueue<>();
+    actionConflicts.clear();
+    prefixConflicts.clear();
+  }
+
+  private static Map<ActionLookupValue, CheckedValue> newCheckedValues() {
+    // Weak keys are compared by identity.
+    return new MapMaker().weakKeys().makeMap();
+  }
+
+  /** Returns the number of paths examined again by the last check. */
+  @VisibleForTesting
+  int getLastCheckedNodes() {
+    return lastCheckedNodes;
+  }
+
+  private void addOutputs(ImmutableList<ActionAnalysisMetadata> actions, Set<Node> changedNodes) {
+    for (ActionAnalysisMetadata action : actions) {
+      for (Artifact output : action.getOutputs()) {
+        Node node = root;
+        for (String segment : output.getExecPath().getSegments()) {
+          node = node.getOrCreateChild(toKey(segment));
+        }
+        node.addOutput(new Output(output, action));
+        changedNodes.add(node);
+      }
+    }
+  }
+
+  private void removeOutputs(
+      ImmutableList<ActionAnalysisMetadata> actions, Set<Node> changedNodes) {
+    for (ActionAnalysisMetadata action : actions) {
+      for (Artifact output : action.getOutputs()) {
+        Node node = root;
+        for (String segment : output.getExecPath().getSegments()) {
+          node = Preconditions.checkNotNull(node.getChild(toKey(segment)), output);
+        }
+        node.removeOutput(output, action);
+        changedNodes.add(node);
+      }
+    }
+  }
+
+  private String toKey(String segment) {
+    // Exec paths which only differ in case are the same path on case-insensitive file systems.
+    return caseSensitive ? segment : Ascii.toLowerCase(segment);
+  }
+
+  /**
+   * Collects the nodes whose conflicts may have changed along with the outputs of {@code
+   * changedNode}: the node itself, its outermost ancestor with outputs, which reports the prefix
+   * conflicts with it, and the outermost descendants with outputs, which report them if the node
+   * doesn't.
+   */
+  private static void collectNodesToCheck(Node changedNode, Set<Node> nodesToCheck) {
+    nodesToCheck.add(changedNode);
+    Node outermost = null;
+    for (Node ancestor = changedNode.parent; ancestor != null; ancestor = ancestor.parent) {
+      if (ancestor.hasOutputs()) {
+        outermost = ancestor;
+      }
+    }
+    if (outermost != null) {
+      nodesToCheck.add(outermost);
+    }
+    collectOutermostDescendants(changedNode, nodesToCheck);
+  }
+
+  private static void collectOutermostDescendants(Node node, Set<Node> nodesToCheck) {
+    for (Node child : node.getChildren()) {
+      if (child.hasOutputs()) {
+        nodesToCheck.add(child);
+      } else {
+        collectOutermostDescendants(child, nodesToCheck);
+      }
+    }
+  }
+
+  /** Recomputes the conflicts reported on {@code node}. */
+  private void checkNode(Node node) {
+    ImmutableList<Output> outputs = node.getOutputs();
+    if (outputs.isEmpty()) {
+      actionConflicts.remove(node);
+      prefixConflicts.remove(node);
+      return;
+    }
+    Output first = outputs.get(0);
+
+    ImmutableMap.Builder<ActionAnalysisMetadata, ConflictException> actionConflictsOfNode =
+        ImmutableMap.builder();
+    for (Output output : outputs.subList(1, outputs.size())) {
+      if (output.action != first.action
+          && !Actions.canBeShared(actionKeyContext, output.action, first.action)) {
+        actionConflictsOfNode.put(
+            output.action,
+            new ConflictException(
+                new ActionConflictException(
+                    actionKeyContext, output.artifact, first.action, output.action)));
+      }
+    }
+    putOrRemove(actionConflicts, node, actionConflictsOfNode.build());
+
+    boolean outermost = true;
+    for (Node ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+      if (ancestor.hasOutputs()) {
+        outermost = false;
+        break;
+      }
+    }
+    Map<ActionAnalysisMetadata, ConflictException> prefixConflictsOfNode = new LinkedHashMap<>();
+    if (outermost) {
+      addPrefixConflicts(first, node, prefixConflictsOfNode);
+    }
+    putOrRemove(prefixConflicts, node, ImmutableMap.copyOf(prefixConflictsOfNode));
+  }
+
+  private static void addPrefixConflicts(
+      Output prefix, Node node, Map<ActionAnalysisMetadata, ConflictException> conflicts) {
+    for (Node child : node.getChildren()) {
+      ImmutableList<Output> outputs = child.getOutputs();
+      if (!outputs.isEmpty()) {
+        Output output = outputs.get(0);
+        // A TreeFileArtifact doesn't conflict with its parent TreeArtifact, see
+        // Actions#findArtifactPrefixConflicts.
+        boolean inTreeArtifact =
+            output.artifact.hasParent() && output.artifact.getParent().equals(prefix.artifact);
+        if (!inTreeArtifact && prefix.action.shouldReportPathPrefixConflict(output.action)) {
+          ConflictException exception =
+              new ConflictException(
+                  new ArtifactPrefixConflictException(
+                      prefix.artifact.getExecPath(),
+                      output.artifact.getExecPath(),
+                      prefix.action.getOwner().getLabel(),
+                      output.action.getOwner().getLabel()));
+          conflicts.put(prefix.action, exception);
+          conflicts.put(output.action, exception);
+        }
+      }
+      addPrefixConflicts(prefix, child, conflicts);
+    }
+  }
+
+  private static void putOrRemove(
+      Map<Node, ImmutableMap<ActionAnalysisMetadata, ConflictException>> conflicts,
+      Node node,
+      ImmutableMap<ActionAnalysisMetadata, ConflictException> conflictsOfNode) {
+    if (conflictsOfNode.isEmpty()) {
+      conflicts.remove(node);
+    } else {
+      conflicts.put(node, conflictsOfNode);
+    }
+  }
+
+  /** Removes {@code node} and its ancestors from the trie as long as they lead to no output. */
+  private static void prune(Node node) {
+    while (node.parent != null && !node.hasOutputs() && !node.hasChildren()) {
+      node.parent.removeChild(node);
+      node = node.parent;
+    }
+  }
+
+  /** Runs {@code consumer} on shards of {@code items} in a thread pool named after the phase. */
+  private static <T> void runInParallel(String phase, Collection<T> items, Consumer<T> consumer)
+      throws InterruptedException {
+    try (SilentCloseable c = Profiler.instance().profile("ArtifactConflictFinder." + phase)) {
+      if (items.isEmpty()) {
+        return;
+      }
+      // The work is CPU-bound.
+      int numJobs = Runtime.getRuntime().availableProcessors();
+      Sharder<T> shards = new Sharder<>(numJobs, items.size());
+      for (T item : items) {
+        shards.add(item);
+      }
+      ThrowableRecordingRunnableWrapper wrapper =
+          new ThrowableRecordingRunnableWrapper("ArtifactConflictFinder#" + phase);
+      ExecutorService executor =
+          Executors.newFixedThreadPool(
+              numJobs,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("ArtifactConflictFinder " + phase + " %d")
+                  .build());
+      for (List<T> shard : shards) {
+        executor.execute(wrapper.wrap(() -> shard.forEach(consumer)));
+      }
+      boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
+      Throwables.propagateIfPossible(wrapper.getFirstThrownError());
+      if (interrupted) {
+        throw new InterruptedException();
+      }
+    }
+  }
+}
@@ -35,12 +35,14 @@ import com.google.devtools.build.lib.analysis.DependencyResolver;
 import com.google.devtools.build.lib.analysis.DependencyResolver.DependencyKind;
 import com.google.devtools.build.lib.analysis.DependencyResolver.InconsistentAspectOrderException;
 import com.google.devtools.build.lib.analysis.EmptyConfiguredTarget;
+import com.google.devtools.build.lib.analysis.PlatformConfiguration;
 import com.google.devtools.build.lib.analysis.ResolvedToolchainContext;
 import com.google.devtools.build.lib.analysis.TargetAndConfiguration;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.analysis.config.ConfigMatchingProvider;
 import com.google.devtools.build.lib.analysis.config.ConfigurationResolver;
+import com.google.devtools.build.lib.analysis.config.FragmentOptions;
 import com.google.devtools.build.lib.analysis.config.InvalidConfigurationException;
 import com.google.devtools.build.lib.analysis.configuredtargets.MergedConfiguredTarget.DuplicateException;
 import com.google.devtools.build.lib.analysis.configuredtargets.RuleConfiguredTarget;
@@ -72,6 +74,7 @@ import com.google.devtools.build.lib.packages.TargetUtils;
 import com.google.devtools.build.lib.skyframe.AspectFunction.AspectCreationException;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor.BuildViewProvider;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
+import com.google.devtools.build.lib.skyframe.trimming.TrimmedConfigurationCache;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.util.OrderedSetMultimap;
 import com.google.devtools.build.skyframe.SkyFunction;
@@ -87,6 +90,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -141,6 +145,15 @@ public final class ConfiguredTargetFunction implements SkyFunction {
   @Nullable private final ConfiguredTargetProgressReceiver configuredTargetProgress;
   private final Supplier<BigInteger> nonceVersion;
 
+  /**
+   * Matches configured targets whose configurations trim to the same one, so that a target is only
+   * analyzed once for all the configurations that differ in fragments it doesn't need. Only used
+   * with retroactive trimming; null if it isn't supported.
+   */
+  @Nullable
+  private final TrimmedConfigurationCache<SkyKey, Label, BuildOptions.OptionsDiffForReconstruction>
+      trimmingCache;
+
   /**
    * Indicates whether the set of packages transitively loaded for a given {@link
    * ConfiguredTargetValue} will be needed for package root resolution later in the build. If not,
@@ -158,7 +171,10 @@ public final class ConfiguredTargetFunction implements SkyFunction {
       boolean shouldUnblockCpuWorkWhenFetchingDeps,
       BuildOptions defaultBuildOptions,
       @Nullable ConfiguredTargetProgressReceiver configuredTargetProgress,
-      Supplier<BigInteger> nonceVersion) {
+      Supplier<BigInteger> nonceVersion,
+      @Nullable
+          TrimmedConfigurationCache<SkyKey, Label, BuildOptions.OptionsDiffForReconstruction>
+              trimmingCache) {
     this.buildViewProvider = buildViewProvider;
     this.ruleClassProvider = ruleClassProvider;
     this.cpuBoundSemaphore = cpuBoundSemaphore;
@@ -168,6 +184,7 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     this.defaultBuildOptions = defaultBuildOptions;
     this.configuredTargetProgress = configuredTargetProgress;
     this.nonceVersion = nonceVersion;
+    this.trimmingCache = trimmingCache;
   }
 
   private void acquireWithLogging(SkyKey key) throws InterruptedException {
@@ -261,6 +278,29 @@ public final class ConfiguredTargetFunction implements SkyFunction {
       return null;
     }
 
+    // With retroactive trimming, a target which was already analyzed in a configuration that
+    // differs from this one only in fragments the target's transitive closure doesn't require is
+    // not analyzed again: the result of that analysis is reused instead.
+    TransitiveTargetValue transitiveTargetValue = null;
+    if (trimmingCache != null
+        && configuration != null
+        && configuration.trimConfigurationsRetroactively()) {
+      transitiveTargetValue = (TransitiveTargetValue) env.getValue(TransitiveTargetKey.of(label));
+      if (transitiveTargetValue == null) {
+        return null;
+      }
+      Optional<SkyKey> canonicalKey = trimmingCache.get(configuredTargetKey);
+      if (canonicalKey.isPresent() && !canonicalKey.get().equals(configuredTargetKey)) {
+        ConfiguredTargetValue canonicalValue =
+            (ConfiguredTargetValue) env.getValue(canonicalKey.get());
+        if (canonicalValue == null) {
+          return null;
+        }
+        return copyForTrimmedConfiguration(
+            canonicalValue, transitivePackagesForPackageRootResolution != null);
+      }
+    }
+
     TargetAndConfiguration ctgValue = new TargetAndConfiguration(target, configuration);
 
     SkyframeDependencyResolver resolver = view.createDependencyResolver(env);
@@ -304,6 +344,20 @@ public final class ConfiguredTargetFunction implements SkyFunction {
         return null;
       }
 
+      // The toolchains of this target are analyzed in a configuration derived from its own, so the
+      // fragments they require are part of its trimmed configuration.
+      Map<SkyKey, SkyValue> toolchainTransitiveTargetValues = ImmutableMap.of();
+      if (transitiveTargetValue != null && unloadedToolchainContext != null) {
+        toolchainTransitiveTargetValues =
+            env.getValues(
+                unloadedToolchainContext.resolvedToolchainLabels().stream()
+                    .map(TransitiveTargetKey::of)
+                    .collect(Collectors.toList()));
+        if (env.valuesMissing()) {
+          return null;
+        }
+      }
+
       // Calculate the dependencies of this target.
       OrderedSetMultimap<DependencyKind, ConfiguredTargetAndData> depValueMap =
           computeDependencies(
@@ -350,6 +404,12 @@ public final class ConfiguredTargetFunction implements SkyFunction {
               configConditions,
               toolchainContext,
               transitivePackagesForPackageRootResolution);
+      if (ans != null && transitiveTargetValue != null) {
+        trimmingCache.putIfAbsent(
+            configuredTargetKey,
+            computeTrimmedOptionsDiff(
+                configuration, transitiveTargetValue, toolchainTransitiveTargetValues.values()));
+      }
       if (configuredTargetProgress != null) {
         configuredTargetProgress.doneConfigureTarget();
       }
@@ -425,6 +485,48 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     }
   }
 
+  /**
+   * Returns the options diff of {@code configuration} trimmed to the fragments required by the
+   * transitive closure of a target and of its toolchains, along with the core options and Starlark
+   * options that every target may read.
+   */
+  private BuildOptions.OptionsDiffForReconstruction computeTrimmedOptionsDiff(
+      BuildConfiguration configuration,
+      TransitiveTargetValue transitiveTargetValue,
+      Collection<SkyValue> toolchainTransitiveTargetValues) {
+    Set<Class<? extends BuildConfiguration.Fragment>> fragments =
+        new HashSet<>(transitiveTargetValue.getTransitiveConfigFragments().toSet());
+    for (SkyValue value : toolchainTransitiveTargetValues) {
+      fragments.addAll(((TransitiveTargetValue) value).getTransitiveConfigFragments().toSet());
+    }
+    Set<Class<? extends FragmentOptions>> optionsClasses =
+        BuildConfiguration.getOptionsClasses(fragments, ruleClassProvider);
+    return BuildOptions.diffForReconstruction(
+        defaultBuildOptions, configuration.getOptions().trim(optionsClasses));
+  }
+
+  /**
+   * Returns a copy of the value of a configured target analyzed in another configuration which
+   * trims to the same one. The copy shares the configured target and the actions of the original,
+   * but it is cleared independently of it.
+   */
+  private ConfiguredTargetValue copyForTrimmedConfiguration(
+      ConfiguredTargetValue value, boolean storeTransitivePackages) {
+    NestedSet<Package> transitivePackages =
+        storeTransitivePackages ? value.getTransitivePackagesForPackageRootResolution() : null;
+    if (value instanceof RuleConfiguredTargetValue) {
+      return new RuleConfiguredTargetValue(
+          (RuleConfiguredTarget) value.getConfiguredTarget(),
+          transitivePackages,
+          nonceVersion.get());
+    }
+    return new NonRuleConfiguredTargetValue(
+        value.getConfiguredTarget(),
+        value.getActions(),
+        transitivePackages,
+        nonceVersion.get());
+  }
+
   /**
    * Returns the {@link UnloadedToolchainContext} for this target, or {@code null} if the target
    * doesn't use toolchains.
@@ -473,9 +575,15 @@ public final class ConfiguredTargetFunction implements SkyFunction {
             .getToolchainTaggedTrimmingTransition()
             .patch(configuration.getOptions());
 
+    // With retroactive trimming, toolchains are resolved in a configuration with only the platform
+    // fragment: resolution may only depend on the platform options, which every trimmed
+    // configuration keeps, so the toolchain types, toolchains and platforms must not see any other
+    // fragment of the target.
     BuildConfigurationValue.Key toolchainConfig =
         BuildConfigurationValue.keyWithoutPlatformMapping(
-            configuration.getFragmentsMap().keySet(),
+            configuration.trimConfigurationsRetroactively()
+                ? ImmutableSet.of(PlatformConfiguration.class)
+                : configuration.getFragmentsMap().keySet(),
             BuildOptions.diffForReconstruction(defaultBuildOptions, toolchainOptions));
 
     // Collect local (target, rule) constraints for filtering out execution platforms.
@@ -0,0 +1,144 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.FileStateType;
+import com.google.devtools.build.lib.actionsketch.ActionSketch;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link TopDownActionCache} that keeps the results of actions in memory, for as long as the
+ * server lives.
+ *
+ * <p>The sketch of an action covers its whole transitive closure, so a hit skips the execution of
+ * the action and of everything it depends on, even if the Skyframe graph was dropped in between.
+ * The results only describe the outputs, which stay on the local disk, so a result is only used if
+ * its outputs are still there as they were written. Otherwise it is dropped, and the action runs.
+ */
+public final class LocalTopDownActionCache implements TopDownActionCache {
+
+  private final long maxEntries;
+  private final Cache<ActionSketch, ActionExecutionValue> cache;
+  private final AtomicLong staleEntries = new AtomicLong();
+
+  /** Creates a cache that keeps the results of at most {@code maxEntries} actions. */
+  public LocalTopDownActionCache(long maxEntries) {
+    Preconditions.checkArgument(maxEntries > 0, maxEntries);
+    this.maxEntries = maxEntries;
+    this.cache =
+        CacheBuilder.newBuilder()
+            .concurrencyLevel(BlazeInterners.concurrencyLevel())
+            .maximumSize(maxEntries)
+            .recordStats()
+            .build();
+  }
+
+  @Nullable
+  @Override
+  public ActionExecutionValue get(ActionSketch sketch) {
+    ActionExecutionValue value = cache.getIfPresent(sketch);
+    if (value != null && outputsChanged(value)) {
+      staleEntries.incrementAndGet();
+      cache.invalidate(sketch);
+      return null;
+    }
+    return value;
+  }
+
+  @Override
+  public void put(ActionSketch sketch, ActionExecutionValue value) {
+    cache.put(sketch, value);
+  }
+
+  /** Returns the maximum number of action results kept. */
+  public long getMaxEntries() {
+    return maxEntries;
+  }
+
+  /** Returns the number of action results kept. */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Returns the statistics of the lookups, where stale results count as hits. */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /** Returns the number of results that were dropped because their outputs had changed. */
+  public long getStaleEntries() {
+    return staleEntries.get();
+  }
+
+  /** Drops all action results, for example because the output tree was cleaned. */
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Returns whether the outputs of an action changed on disk since {@code value} was computed. This
+   * mirrors the checks of {@link FilesystemValueChecker}, which does the same for the values that
+   * stay in the Skyframe graph.
+   */
+  private static boolean outputsChanged(ActionExecutionValue value) {
+    for (Map.Entry<Artifact, FileArtifactValue> entry : value.getAllFileValues().entrySet()) {
+      Artifact output = entry.getKey();
+      FileArtifactValue lastKnown = entry.getValue();
+      if (output.isMiddlemanArtifact()) {
+        continue;
+      }
+      try {
+        FileArtifactValue current =
+            ActionMetadataHandler.fileArtifactValueFromArtifact(output, null, null);
+        boolean trustRemoteValue =
+            current.getType() == FileStateType.NONEXISTENT && lastKnown.isRemote();
+        if (!trustRemoteValue && current.couldBeModifiedSince(lastKnown)) {
+          return true;
+        }
+      } catch (IOException e) {
+        return true;
+      }
+    }
+    for (Map.Entry<Artifact, TreeArtifactValue> entry :
+        value.getAllTreeArtifactValues().entrySet()) {
+      Artifact output = entry.getKey();
+      TreeArtifactValue lastKnown = entry.getValue();
+      try {
+        if (output.getPath().isSymbolicLink()) {
+          return true;
+        }
+        Set<PathFragment> current = TreeArtifactValue.explodeDirectory(output.getPath());
+        if (!(current.isEmpty() && lastKnown.isRemote())
+            && !current.equals(lastKnown.getChildPaths())) {
+          return true;
+        }
+      } catch (IOException e) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
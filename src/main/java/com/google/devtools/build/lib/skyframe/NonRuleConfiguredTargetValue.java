@@ -68,6 +68,16 @@ public final class NonRuleConfiguredTargetValue extends BasicActionLookupValue
     this.transitivePackagesForPackageRootResolution = transitivePackagesForPackageRootResolution;
   }
 
+  NonRuleConfiguredTargetValue(
+      ConfiguredTarget configuredTarget,
+      ImmutableList<ActionAnalysisMetadata> actions,
+      @Nullable NestedSet<Package> transitivePackagesForPackageRootResolution,
+      @Nullable BigInteger nonceVersion) {
+    super(actions, nonceVersion);
+    this.configuredTarget = Preconditions.checkNotNull(configuredTarget, actions);
+    this.transitivePackagesForPackageRootResolution = transitivePackagesForPackageRootResolution;
+  }
+
   @VisibleForTesting
   @Override
   public ConfiguredTarget getConfiguredTarget() {
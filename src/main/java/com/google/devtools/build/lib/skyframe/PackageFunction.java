@@ -89,6 +89,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
 /**
@@ -112,6 +113,8 @@ public class PackageFunction implements SkyFunction {
 
   private final IncrementalityIntent incrementalityIntent;
 
+  @Nullable private final AtomicReference<PersistentAstCache> persistentAstCache;
+
   public PackageFunction(
       PackageFactory packageFactory,
       CachingPackageLocator pkgLocator,
@@ -122,7 +125,8 @@ public class PackageFunction implements SkyFunction {
       @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
       @Nullable PackageProgressReceiver packageProgress,
       ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile,
-      IncrementalityIntent incrementalityIntent) {
+      IncrementalityIntent incrementalityIntent,
+      @Nullable AtomicReference<PersistentAstCache> persistentAstCache) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
     // Can be null in tests.
     this.preludeLabel = packageFactory == null
@@ -137,6 +141,7 @@ public class PackageFunction implements SkyFunction {
     this.packageProgress = packageProgress;
     this.actionOnIOExceptionReadingBuildFile = actionOnIOExceptionReadingBuildFile;
     this.incrementalityIntent = incrementalityIntent;
+    this.persistentAstCache = persistentAstCache;
   }
 
   @VisibleForTesting
@@ -158,7 +163,8 @@ public class PackageFunction implements SkyFunction {
         skylarkImportLookupFunctionForInlining,
         /*packageProgress=*/ null,
         ActionOnIOExceptionReadingBuildFile.UseOriginalIOException.INSTANCE,
-        IncrementalityIntent.INCREMENTAL);
+        IncrementalityIntent.INCREMENTAL,
+        /*persistentAstCache=*/ null);
   }
 
   public void setSkylarkImportLookupFunctionForInliningForTesting(
@@ -613,28 +619,21 @@ public class PackageFunction implements SkyFunction {
       } else {
         Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps>
             visitedDepsInToplevelLoad = new HashMap<>();
-        // Inlining calls to SkylarkImportLookupFunction
+        // Inlining calls to SkylarkImportLookupFunction. The imports are computed together, so that
+        // the .bzl files they load can be evaluated in parallel.
+        Map<SkyKey, SkylarkImportLookupValue> inlinedValues =
+            skylarkImportLookupFunctionForInlining.computeWithInlineCalls(
+                importLookupKeys, env, visitedDepsInToplevelLoad);
         for (SkylarkImportLookupKey importLookupKey : importLookupKeys) {
-          SkyValue skyValue;
-          if (visitedDepsInToplevelLoad.containsKey(importLookupKey)) {
-            skyValue = visitedDepsInToplevelLoad.get(importLookupKey).getValue();
-          } else {
-            skyValue =
-                skylarkImportLookupFunctionForInlining.computeWithInlineCalls(
-                    importLookupKey, env, visitedDepsInToplevelLoad);
-          }
+          SkyValue skyValue = inlinedValues.get(importLookupKey);
           if (skyValue == null) {
             Preconditions.checkState(
                 env.valuesMissing(), "no starlark import value for %s", importLookupKey);
-            // We continue making inline calls even if some requested values are missing, to
-            // maximize the number of dependent (non-inlined) SkyFunctions that are requested, thus
-            // avoiding a quadratic number of restarts.
             valuesMissing = true;
           } else {
             skylarkImportMap.put(importLookupKey, skyValue);
           }
         }
-
       }
     } catch (SkylarkImportFailedException e) {
       throw propagateSkylarkImportFailedException(packageId, e);
@@ -1119,7 +1118,6 @@ public class PackageFunction implements SkyFunction {
         if (showLoadingProgress.get()) {
           env.getListener().handle(Event.progress("Loading package: " + packageId));
         }
-        ParserInputSource input;
         Preconditions.checkNotNull(buildFileValue, packageId);
         byte[] buildFileBytes = null;
         try {
@@ -1141,13 +1139,29 @@ public class PackageFunction implements SkyFunction {
           // If control flow reaches here, we're in territory that is deliberately unsound.
           // See the javadoc for ActionOnIOExceptionReadingBuildFile.
         }
-        input =
-            ParserInputSource.create(
-                FileSystemUtils.convertFromLatin1(buildFileBytes), inputFile.asFragment());
+        // The prelude is spliced into the AST of every BUILD file, so only BUILD files without
+        // one can be cached by their own contents.
+        PersistentAstCache cache =
+            persistentAstCache == null || !preludeStatements.isEmpty()
+                ? null
+                : persistentAstCache.get();
+        String cacheKey =
+            cache == null
+                ? null
+                : cache.buildFileKey(
+                    inputFile.asFragment(), buildFileBytes, repositoryMapping, starlarkSemantics);
         StoredEventHandler astParsingEventHandler = new StoredEventHandler();
-        BuildFileAST ast =
-            PackageFactory.parseBuildFile(
-                packageId, input, preludeStatements, repositoryMapping, astParsingEventHandler);
+        BuildFileAST ast = cache == null ? null : cache.get(cacheKey);
+        if (ast == null) {
+          ParserInputSource input =
+              ParserInputSource.createFromLatin1(buildFileBytes, inputFile.asFragment());
+          ast =
+              PackageFactory.parseBuildFile(
+                  packageId, input, preludeStatements, repositoryMapping, astParsingEventHandler);
+          if (cache != null && astParsingEventHandler.isEmpty()) {
+            cache.put(cacheKey, ast);
+          }
+        }
         astParseResult = new AstParseResult(ast, astParsingEventHandler);
         astCache.put(packageId, astParseResult);
       }
@@ -0,0 +1,219 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.cmdline.RepositoryName;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.StarlarkSemantics;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A content-addressed on-disk cache of {@link BuildFileAST}s, which lets a new server skip lexing,
+ * parsing and validating the .bzl and BUILD files that have not changed since an earlier server
+ * read them.
+ *
+ * <p>Entries are keyed by a fingerprint of the file contents and of everything else that the
+ * resulting AST depends on: the path of the file (which ends up in every {@code Location}), the
+ * {@link StarlarkSemantics}, and the identity of the Bazel binary, since a different binary may
+ * parse or serialize differently. Only ASTs that parsed and validated without any events are
+ * stored, so that a cache hit never has to replay errors or warnings.
+ *
+ * <p>The total size of the entries is bounded: whenever enough has been written since the last
+ * trim, the least recently used entries are deleted until the cache fits into its size limit
+ * again. Entries are touched when they are read, so their modification time is their last use.
+ *
+ * <p>The cache is strictly an optimization: any failure to read, write or deserialize an entry is
+ * treated as a cache miss.
+ */
+public class PersistentAstCache {
+
+  private static final Logger logger = Logger.getLogger(PersistentAstCache.class.getName());
+
+  private final Path directory;
+  private final String binaryIdentity;
+  private final long maxBytes;
+  private final ObjectCodecs codecs;
+  private final AtomicLong tempFileCounter = new AtomicLong();
+  private final AtomicLong bytesWrittenSinceTrim = new AtomicLong();
+
+  /**
+   * Creates a cache storing its entries in the given directory.
+   *
+   * @param binaryIdentity a string identifying the running binary, e.g. its install MD5; entries
+   *     written by a binary with a different identity are never read
+   * @param maxBytes the size the entries are trimmed to; between two trims, the cache may exceed
+   *     it by an eighth
+   */
+  public PersistentAstCache(Path directory, String binaryIdentity, long maxBytes) {
+    this.directory = directory;
+    this.binaryIdentity = binaryIdentity;
+    this.maxBytes = maxBytes;
+    this.codecs = new ObjectCodecs(AutoRegistry.get());
+  }
+
+  /** Returns the size the entries of this cache are trimmed to. */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** Returns the cache key for the AST of a validated .bzl file. */
+  public String bzlKey(PathFragment path, byte[] content, StarlarkSemantics semantics) {
+    return new Fingerprint()
+        .addString(binaryIdentity)
+        .addString("bzl")
+        .addPath(path)
+        .addBytes(content)
+        .addString(semantics.toString())
+        .hexDigestAndReset();
+  }
+
+  /**
+   * Returns the cache key for the AST of a BUILD file, whose {@code load} labels have been mapped
+   * with the given repository mapping.
+   */
+  public String buildFileKey(
+      PathFragment path,
+      byte[] content,
+      Map<RepositoryName, RepositoryName> repositoryMapping,
+      StarlarkSemantics semantics) {
+    Fingerprint fp =
+        new Fingerprint()
+            .addString(binaryIdentity)
+            .addString("BUILD")
+            .addPath(path)
+            .addBytes(content)
+            .addString(semantics.toString())
+            .addInt(repositoryMapping.size());
+    for (Map.Entry<RepositoryName, RepositoryName> entry : repositoryMapping.entrySet()) {
+      fp.addString(entry.getKey().getName()).addString(entry.getValue().getName());
+    }
+    return fp.hexDigestAndReset();
+  }
+
+  /** Returns the AST stored under the given key, or null if there is none. */
+  @Nullable
+  public BuildFileAST get(String key) {
+    Path entry = directory.getChild(key);
+    try {
+      if (!entry.exists()) {
+        return null;
+      }
+      Object ast =
+          codecs.deserializeMemoized(ByteString.copyFrom(FileSystemUtils.readContent(entry)));
+      if (!(ast instanceof BuildFileAST)) {
+        return null;
+      }
+      // Mark the entry as recently used, so that trim() evicts it last.
+      entry.setLastModifiedTime(-1L);
+      return (BuildFileAST) ast;
+    } catch (IOException | SerializationException | RuntimeException e) {
+      logger.warning("Discarding unreadable AST cache entry " + entry + ": " + e);
+      deleteQuietly(entry);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the given AST under the given key, unless it contains errors. Concurrent writers of the
+   * same key are harmless, since they write the same content.
+   */
+  public void put(String key, BuildFileAST ast) {
+    if (ast.containsErrors()) {
+      return;
+    }
+    Path entry = directory.getChild(key);
+    Path temp = directory.getChild(key + ".tmp" + tempFileCounter.incrementAndGet());
+    try {
+      ByteString bytes = codecs.serializeMemoized(ast);
+      directory.createDirectoryAndParents();
+      try (OutputStream out = temp.getOutputStream()) {
+        bytes.writeTo(out);
+      }
+      temp.renameTo(entry);
+      if (bytesWrittenSinceTrim.addAndGet(bytes.size()) > maxBytes / 8) {
+        trim();
+      }
+    } catch (IOException | SerializationException | RuntimeException e) {
+      logger.warning("Failed to write AST cache entry " + entry + ": " + e);
+      deleteQuietly(temp);
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the remaining ones fit into the size limit of
+   * the cache. Also run when a server first opens the cache, so that entries of earlier servers,
+   * including those written by other binaries, do not accumulate.
+   */
+  public synchronized void trim() {
+    bytesWrittenSinceTrim.set(0);
+    if (!directory.exists()) {
+      return;
+    }
+    List<Path> entries = new ArrayList<>();
+    Map<Path, Long> lastUse = new HashMap<>();
+    long totalBytes = 0;
+    try {
+      for (Path entry : directory.getDirectoryEntries()) {
+        try {
+          lastUse.put(entry, entry.getLastModifiedTime());
+          totalBytes += entry.getFileSize();
+          entries.add(entry);
+        } catch (IOException e) {
+          // The entry was deleted concurrently, e.g. because it was unreadable.
+        }
+      }
+    } catch (IOException e) {
+      logger.warning("Failed to trim AST cache " + directory + ": " + e);
+      return;
+    }
+    entries.sort(Comparator.comparing(lastUse::get));
+    for (Path entry : entries) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      try {
+        totalBytes -= entry.getFileSize();
+        entry.delete();
+      } catch (IOException e) {
+        // Already gone.
+      }
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      path.delete();
+    } catch (IOException e) {
+      // Best effort; the entry is rewritten or ignored later.
+    }
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.google.devtools.build.lib.skyframe;
 
+import static com.google.common.base.Predicates.equalTo;
+import static com.google.common.base.Predicates.not;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static java.util.stream.Collectors.joining;
 
@@ -150,14 +152,14 @@ public class RegisteredToolchainsFunction implements SkyFunction {
         ConfiguredTarget target =
             ((ConfiguredTargetValue) valueOrException.get()).getConfiguredTarget();
         if (configuration.trimConfigurationsRetroactively()
-            && !target.getConfigurationKey().getFragments().isEmpty()) {
-          // No fragment may be present on a toolchain rule in retroactive trimming mode.
-          // This is because trimming expects that platform and toolchain resolution uses only
-          // the platform configuration. In theory, this means toolchains could use platforms, but
-          // the current expectation is that toolchains should not use anything at all, so better
-          // to go with the stricter expectation for now.
+            && target.getConfigurationKey().getFragments().stream()
+                .anyMatch(not(equalTo(PlatformConfiguration.class)))) {
+          // Only the PlatformConfiguration fragment may be present on a toolchain rule in
+          // retroactive trimming mode. This is because trimming expects that platform and toolchain
+          // resolution uses only the platform configuration, which toolchains are resolved with.
           String extraFragmentDescription =
               target.getConfigurationKey().getFragments().stream()
+                  .filter(not(equalTo(PlatformConfiguration.class)))
                   .map(cl -> cl.getSimpleName())
                   .collect(joining(","));
 
@@ -14,14 +14,12 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Striped;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
 import com.google.devtools.build.lib.actions.ActionCacheChecker;
@@ -34,7 +32,6 @@ import com.google.devtools.build.lib.actions.ActionExecutedEvent.ErrorTiming;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionExecutionException;
 import com.google.devtools.build.lib.actions.ActionExecutionStatusReporter;
-import com.google.devtools.build.lib.actions.ActionGraph;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputMap;
 import com.google.devtools.build.lib.actions.ActionInputPrefetcher;
@@ -47,7 +44,6 @@ import com.google.devtools.build.lib.actions.ActionResult;
 import com.google.devtools.build.lib.actions.ActionResultReceivedEvent;
 import com.google.devtools.build.lib.actions.ActionScanningCompletedEvent;
 import com.google.devtools.build.lib.actions.ActionStartedEvent;
-import com.google.devtools.build.lib.actions.Actions;
 import com.google.devtools.build.lib.actions.AlreadyReportedActionExecutionException;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.Artifact.ArtifactExpanderImpl;
@@ -61,10 +57,8 @@ import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.actions.FilesetOutputSymlink;
 import com.google.devtools.build.lib.actions.LostInputsExecException.LostInputsActionExecutionException;
-import com.google.devtools.build.lib.actions.MapBasedActionGraph;
 import com.google.devtools.build.lib.actions.MetadataConsumer;
 import com.google.devtools.build.lib.actions.MetadataProvider;
-import com.google.devtools.build.lib.actions.MutableActionGraph;
 import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
 import com.google.devtools.build.lib.actions.NotifyOnActionCacheHit;
 import com.google.devtools.build.lib.actions.NotifyOnActionCacheHit.ActionCachedContext;
@@ -75,9 +69,6 @@ import com.google.devtools.build.lib.actions.TargetOutOfDateException;
 import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.buildtool.BuildRequestOptions;
 import com.google.devtools.build.lib.cmdline.Label;
-import com.google.devtools.build.lib.concurrent.ExecutorUtil;
-import com.google.devtools.build.lib.concurrent.Sharder;
-import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.Reporter;
@@ -90,7 +81,6 @@ import com.google.devtools.build.lib.runtime.KeepGoingOption;
 import com.google.devtools.build.lib.skyframe.ActionExecutionState.ActionStep;
 import com.google.devtools.build.lib.skyframe.ActionExecutionState.ActionStepOrResult;
 import com.google.devtools.build.lib.skyframe.ActionExecutionState.SharedActionCallback;
-import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.OutputService;
@@ -107,16 +97,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.function.Function;
@@ -190,6 +173,9 @@ public final class SkyframeActionExecutor {
   // thrown when execution of the action is requested. This field is set during each call to
   // findAndStoreArtifactConflicts, and is preserved across builds otherwise.
   private ImmutableMap<ActionAnalysisMetadata, ConflictException> badActionMap = ImmutableMap.of();
+  // The outputs of the actions checked by the last call to findAndStoreArtifactConflicts, so that
+  // the next one only needs to check the actions which changed.
+  private final ArtifactConflictFinder artifactConflictFinder;
   private OptionsProvider options;
   private boolean useAsyncExecution;
   private boolean hadExecutionError;
@@ -213,6 +199,7 @@ public final class SkyframeActionExecutor {
       Supplier<ImmutableList<Root>> sourceRootSupplier,
       Function<PathFragment, SourceArtifact> sourceArtifactFactory) {
     this.actionKeyContext = actionKeyContext;
+    this.artifactConflictFinder = new ArtifactConflictFinder(actionKeyContext);
     this.statusReporterRef = statusReporterRef;
     this.sourceRootSupplier = sourceRootSupplier;
     this.sourceArtifactFactory = sourceArtifactFactory;
@@ -291,8 +278,9 @@ public final class SkyframeActionExecutor {
    * first time it is executed, the correct exception will be thrown.
    *
    * <p>This method must be called if a new action was added to the graph this build, so
-   * whenever a new configured target was analyzed this build. It is somewhat expensive (~1s
-   * range for a medium build as of 2014), so it should only be called when necessary.
+   * whenever a new configured target was analyzed this build. Only the actions of the values which
+   * weren't checked by the previous call are examined, see {@link ArtifactConflictFinder}, unless
+   * {@code keepForIncrementalChecks} is false, in which case nothing is kept for the next call.
    *
    * <p>Conflicts found may not be requested this build, and so we may overzealously throw an error.
    * For instance, if actions A and B generate the same artifact foo, and the user first requests
@@ -308,94 +296,26 @@ public final class SkyframeActionExecutor {
    * any conflicts it has, since this method will compare it against all other actions. So there is
    * no sequence of builds that can evade the error.
    */
-  void findAndStoreArtifactConflicts(Iterable<ActionLookupValue> actionLookupValues)
+  void findAndStoreArtifactConflicts(
+      Iterable<ActionLookupValue> actionLookupValues, boolean keepForIncrementalChecks)
       throws InterruptedException {
-    ConcurrentMap<ActionAnalysisMetadata, ConflictException> temporaryBadActionMap =
-        new ConcurrentHashMap<>();
-    Pair<ActionGraph, SortedMap<PathFragment, Artifact>> result;
-    result =
-        constructActionGraphAndPathMap(actionKeyContext, actionLookupValues, temporaryBadActionMap);
-    ActionGraph actionGraph = result.first;
-    SortedMap<PathFragment, Artifact> artifactPathMap = result.second;
-
-    Map<ActionAnalysisMetadata, ArtifactPrefixConflictException> actionsWithArtifactPrefixConflict =
-        Actions.findArtifactPrefixConflicts(actionGraph, artifactPathMap);
-    for (Map.Entry<ActionAnalysisMetadata, ArtifactPrefixConflictException> actionExceptionPair :
-        actionsWithArtifactPrefixConflict.entrySet()) {
-      temporaryBadActionMap.put(
-          actionExceptionPair.getKey(), new ConflictException(actionExceptionPair.getValue()));
+    if (!keepForIncrementalChecks) {
+      // The graph won't outlive this build, or incremental checks are disabled, so the outputs of
+      // its actions shouldn't be kept either.
+      artifactConflictFinder.clear();
+      this.badActionMap =
+          new ArtifactConflictFinder(actionKeyContext).findConflicts(actionLookupValues);
+      return;
     }
-
-    this.badActionMap = ImmutableMap.copyOf(temporaryBadActionMap);
+    this.badActionMap = artifactConflictFinder.findConflicts(actionLookupValues);
   }
 
   /**
-   * Simultaneously construct an action graph for all the actions in Skyframe and a map from {@link
-   * PathFragment}s to their respective {@link Artifact}s. We do this in a threadpool to save around
-   * 1.5 seconds on a mid-sized build versus a single-threaded operation.
+   * Drops the outputs kept for incremental conflict checks, for instance because the analysis cache
+   * was discarded. The next check examines every action again.
    */
-  private static Pair<ActionGraph, SortedMap<PathFragment, Artifact>>
-      constructActionGraphAndPathMap(
-          ActionKeyContext actionKeyContext,
-          Iterable<ActionLookupValue> values,
-          ConcurrentMap<ActionAnalysisMetadata, ConflictException> badActionMap)
-          throws InterruptedException {
-    MutableActionGraph actionGraph = new MapBasedActionGraph(actionKeyContext);
-    ConcurrentNavigableMap<PathFragment, Artifact> artifactPathMap =
-        new ConcurrentSkipListMap<>(Actions.comparatorForPrefixConflicts());
-    // Action graph construction is CPU-bound.
-    int numJobs = Runtime.getRuntime().availableProcessors();
-    // No great reason for expecting 5000 action lookup values, but not worth counting size of
-    // values.
-    Sharder<ActionLookupValue> actionShards = new Sharder<>(numJobs, 5000);
-    for (ActionLookupValue value : values) {
-      actionShards.add(value);
-    }
-
-    ThrowableRecordingRunnableWrapper wrapper = new ThrowableRecordingRunnableWrapper(
-        "SkyframeActionExecutor#constructActionGraphAndPathMap");
-
-    ExecutorService executor = Executors.newFixedThreadPool(
-        numJobs,
-        new ThreadFactoryBuilder().setNameFormat("ActionLookupValue Processor %d").build());
-    for (List<ActionLookupValue> shard : actionShards) {
-      executor.execute(
-          wrapper.wrap(actionRegistration(shard, actionGraph, artifactPathMap, badActionMap)));
-    }
-    boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
-    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
-    if (interrupted) {
-      throw new InterruptedException();
-    }
-    return Pair.<ActionGraph, SortedMap<PathFragment, Artifact>>of(actionGraph, artifactPathMap);
-  }
-
-  private static Runnable actionRegistration(
-      final List<ActionLookupValue> values,
-      final MutableActionGraph actionGraph,
-      final ConcurrentMap<PathFragment, Artifact> artifactPathMap,
-      final ConcurrentMap<ActionAnalysisMetadata, ConflictException> badActionMap) {
-    return () -> {
-      for (ActionLookupValue value : values) {
-        for (ActionAnalysisMetadata action : value.getActions()) {
-          try {
-            actionGraph.registerAction(action);
-          } catch (ActionConflictException e) {
-            // It may be possible that we detect a conflict for the same action more than once, if
-            // that action belongs to multiple aspect values. In this case we will harmlessly
-            // overwrite the badActionMap entry.
-            badActionMap.put(action, new ConflictException(e));
-            // We skip the rest of the loop, and do not add the path->artifact mapping for this
-            // artifact below -- we don't need to check it since this action is already in
-            // error.
-            continue;
-          }
-          for (Artifact output : action.getOutputs()) {
-            artifactPathMap.put(output.getExecPath(), output);
-          }
-        }
-      }
-    };
+  void clearArtifactConflictState() {
+    artifactConflictFinder.clear();
   }
 
   void prepareForExecution(
@@ -292,10 +292,13 @@ public final class SkyframeBuildView {
     if (skyframeAnalysisWasDiscarded) {
       eventHandler.handle(
           Event.info(
-              "--discard_analysis_cache was used in the previous build, "
-              + "discarding analysis cache."));
+              "The analysis cache was discarded after the analysis phase of the previous build "
+                  + "because of --discard_analysis_cache or --experimental_analysis_memory_budget, "
+                  + "discarding analysis cache."));
       skyframeExecutor.handleAnalysisInvalidatingChange();
-    } else {
+    } else if (!(trimsRetroactively(this.configurations) && trimsRetroactively(configurations))) {
+      // When both configurations trim retroactively, nothing is discarded: the cached
+      // ConfiguredTargets which don't need the fragments that changed are reused instead.
       String diff = describeConfigurationDifference(configurations, maxDifferencesToShow);
       if (diff != null) {
         // Clearing cached ConfiguredTargets when the configuration changes is not required for
@@ -304,8 +307,7 @@ public final class SkyframeBuildView {
         skyframeExecutor.handleAnalysisInvalidatingChange();
       }
     }
-    if (configurations.getTargetConfigurations().stream()
-        .anyMatch(BuildConfiguration::trimConfigurationsRetroactively)) {
+    if (trimsRetroactively(configurations)) {
       skyframeExecutor.activateRetroactiveTrimming();
     } else {
       skyframeExecutor.deactivateRetroactiveTrimming();
@@ -315,6 +317,12 @@ public final class SkyframeBuildView {
     setTopLevelHostConfiguration(configurations.getHostConfiguration());
   }
 
+  private static boolean trimsRetroactively(@Nullable BuildConfigurationCollection configurations) {
+    return configurations != null
+        && configurations.getTargetConfigurations().stream()
+            .anyMatch(BuildConfiguration::trimConfigurationsRetroactively);
+  }
+
   @VisibleForTesting
   public BuildConfigurationCollection getBuildConfigurationCollection() {
     return configurations;
@@ -352,6 +360,8 @@ public final class SkyframeBuildView {
   /**
    * Analyzes the specified targets using Skyframe as the driving framework.
    *
+   * @param incrementalArtifactConflictChecks whether to keep the outputs of the actions of the
+   *     build for the conflict checks of the next one, see {@link ArtifactConflictFinder}
    * @return the configured targets that should be built along with a WalkableGraph of the analysis.
    */
   public SkyframeAnalysisResult configureTargets(
@@ -361,7 +371,8 @@ public final class SkyframeBuildView {
       Supplier<Map<BuildConfigurationValue.Key, BuildConfiguration>> configurationLookupSupplier,
       EventBus eventBus,
       boolean keepGoing,
-      int numThreads)
+      int numThreads,
+      boolean incrementalArtifactConflictChecks)
       throws InterruptedException, ViewCreationFailedException {
     enableAnalysis(true);
     EvaluationResult<ActionLookupValue> result;
@@ -389,7 +400,8 @@ public final class SkyframeBuildView {
         // some way -- either we analyzed a new target or we invalidated an old one or are building
         // targets together that haven't been built before.
         skyframeActionExecutor.findAndStoreArtifactConflicts(
-            skyframeExecutor.getActionLookupValuesInBuild(values, aspectKeys));
+            skyframeExecutor.getActionLookupValuesInBuild(values, aspectKeys),
+            incrementalArtifactConflictChecks && skyframeExecutor.tracksStateForIncrementality());
         someConfiguredTargetEvaluated = false;
       }
     }
@@ -36,6 +36,7 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
+import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
 import com.google.devtools.build.lib.actions.ActionCacheChecker;
 import com.google.devtools.build.lib.actions.ActionExecutionStatusReporter;
@@ -99,6 +100,10 @@ import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
 import com.google.devtools.build.lib.collect.compacthashset.CompactHashSet;
+import com.google.devtools.build.lib.collect.nestedset.MappedFileNestedSetStorageEndpoint;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetSpiller;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetStore;
 import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
@@ -147,6 +152,8 @@ import com.google.devtools.build.lib.skyframe.PackageFunction.LoadedPackageCache
 import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossRepositoryLabelViolationStrategy;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ActionCompletedReceiver;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ProgressSupplier;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
 import com.google.devtools.build.lib.skyframe.trimming.TrimmedConfigurationCache;
 import com.google.devtools.build.lib.syntax.StarlarkSemantics;
 import com.google.devtools.build.lib.util.AbruptExitException;
@@ -252,6 +259,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       // performance.
       System.getenv("TEST_TMPDIR") == null ? 200 : 5;
 
+  /** Directory below the output base that holds the ASTs cached across server restarts. */
+  private static final String PERSISTENT_AST_CACHE_DIRECTORY = "ast_cache";
+  private static final String NESTED_SET_SPILL_FILE = "nested_set_spill";
+
   // Cache of partially constructed Package instances, stored between reruns of the PackageFunction
   // (because of missing dependencies, within the same evaluate() run) to avoid loading the same
   // package twice (first time loading to find imported bzl files and declare Skyframe
@@ -275,6 +286,27 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
   // AtomicReferences are used here as mutable boxes shared with value builders.
   private final AtomicBoolean showLoadingProgress = new AtomicBoolean();
+  private final AtomicReference<PersistentAstCache> persistentAstCache = new AtomicReference<>();
+
+  /**
+   * Spills the children of large nested sets after analysis, and its store. Both live as long as
+   * the analysis cache: when it is dropped, they are retired, and {@link #finishNestedSetSpilling}
+   * restores the spilled sets that survived and deletes the store.
+   */
+  @Nullable private NestedSetSpiller nestedSetSpiller;
+
+  @Nullable private MappedFileNestedSetStorageEndpoint nestedSetSpillEndpoint;
+
+  private int nestedSetSpillThreshold;
+
+  /** Whether the current build registers the new nested sets with {@link #nestedSetSpiller}. */
+  private boolean registeringSpillableNestedSets;
+
+  /** The spillers of dropped analysis caches, with their stores. */
+  private final Map<NestedSetSpiller, MappedFileNestedSetStorageEndpoint> retiredNestedSetSpillers =
+      new LinkedHashMap<>();
+
+  private int nestedSetSpillFiles;
   protected final AtomicReference<UnixGlob.FilesystemCalls> syscalls =
       new AtomicReference<>(UnixGlob.DEFAULT_SYSCALLS);
   protected final AtomicReference<PathPackageLocator> pkgLocator = new AtomicReference<>();
@@ -491,7 +523,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         new PackageLookupFunction(
             deletedPackages, crossRepositoryLabelViolationStrategy, buildFilesByPriority));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
-    map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(ruleClassProvider));
+    map.put(
+        SkyFunctions.AST_FILE_LOOKUP,
+        new ASTFileLookupFunction(ruleClassProvider, persistentAstCache));
     map.put(
         SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
         newSkylarkImportLookupFunction(ruleClassProvider, pkgFactory));
@@ -537,7 +571,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
             actionOnIOExceptionReadingBuildFile,
             tracksStateForIncrementality()
                 ? IncrementalityIntent.INCREMENTAL
-                : IncrementalityIntent.NON_INCREMENTAL));
+                : IncrementalityIntent.NON_INCREMENTAL,
+            persistentAstCache));
     map.put(SkyFunctions.PACKAGE_ERROR, new PackageErrorFunction());
     map.put(SkyFunctions.PACKAGE_ERROR_MESSAGE, new PackageErrorMessageFunction());
     map.put(SkyFunctions.TARGET_PATTERN_ERROR, new TargetPatternErrorFunction());
@@ -553,7 +588,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
             shouldUnblockCpuWorkWhenFetchingDeps,
             defaultBuildOptions,
             configuredTargetProgress,
-            nonceVersion));
+            nonceVersion,
+            trimmingCache));
     map.put(
         SkyFunctions.ASPECT,
         new AspectFunction(
@@ -817,6 +853,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     init();
     emittedEventState.clear();
     clearTrimmingCache();
+    retireNestedSetSpiller();
     skyframeBuildView.reset();
   }
 
@@ -847,6 +884,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     logger.info("Dropping configured target data");
     analysisCacheDiscarded = true;
     clearTrimmingCache();
+    retireNestedSetSpiller();
+    // All the analysis values are deleted from the graph, so are their outputs from the trie.
+    skyframeActionExecutor.clearArtifactConflictState();
     skyframeBuildView.clearInvalidatedConfiguredTargets();
     skyframeBuildView.clearLegacyData();
   }
@@ -1014,6 +1054,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
               topLevelAspects, aspect -> aspect.getLabel().getPackageIdentifier()));
     }
     ImmutableSet<PackageIdentifier> topLevelPackages = packageSetBuilder.build();
+    if (discardType.discardsAnalysis()) {
+      // The next build analyzes everything again, so the outputs kept for incremental conflict
+      // checks would only take up memory.
+      skyframeActionExecutor.clearArtifactConflictState();
+    }
     try (AutoProfiler p = AutoProfiler.logged("discarding analysis cache", logger)) {
       lastAnalysisDiscarded = true;
       Iterator<? extends Map.Entry<SkyKey, ? extends NodeEntry>> it =
@@ -1152,6 +1197,144 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     showLoadingProgress.set(showLoadingProgressValue);
   }
 
+  private void setPersistentAstCache(boolean enabled, int maxSizeMb) {
+    HashCode installMD5 = directories.getInstallMD5();
+    if (!enabled || installMD5 == null) {
+      // Without a binary identity, entries written by other binaries could not be told apart.
+      persistentAstCache.set(null);
+      return;
+    }
+    long maxBytes = maxSizeMb * 1024L * 1024L;
+    PersistentAstCache cache = persistentAstCache.get();
+    if (cache == null || cache.getMaxBytes() != maxBytes) {
+      cache =
+          new PersistentAstCache(
+              directories.getOutputBase().getRelative(PERSISTENT_AST_CACHE_DIRECTORY),
+              installMD5.toString(),
+              maxBytes);
+      cache.trim();
+      persistentAstCache.set(cache);
+    }
+  }
+
+  /**
+   * Makes the nested sets with at least {@code minChildren} direct children created from now on
+   * spillable by {@link #spillNestedSets}, or stops making new sets spillable if {@code
+   * minChildren} is 0. Must be followed by {@link #finishNestedSetSpilling} at the end of the
+   * build.
+   */
+  public void setNestedSetSpillThreshold(int minChildren) {
+    nestedSetSpillThreshold = minChildren;
+    if (minChildren <= 0) {
+      retireNestedSetSpiller();
+      return;
+    }
+    if (nestedSetSpiller == null) {
+      createNestedSetSpiller();
+    } else {
+      nestedSetSpiller.setMinChildren(minChildren);
+    }
+    NestedSet.setSpiller(nestedSetSpiller);
+    registeringSpillableNestedSets = true;
+  }
+
+  private void createNestedSetSpiller() {
+    Path file =
+        directories
+            .getOutputBase()
+            .getRelative(NESTED_SET_SPILL_FILE + "-" + nestedSetSpillFiles++);
+    try {
+      nestedSetSpillEndpoint =
+          MappedFileNestedSetStorageEndpoint.create(file.getPathFile().toPath());
+    } catch (IOException | UnsupportedOperationException e) {
+      logger.warning("Not spilling nested sets, cannot create " + file + ": " + e);
+      return;
+    }
+    ObjectCodecs codecs =
+        new ObjectCodecs(
+            AutoRegistry.get(),
+            ImmutableMap.of(
+                ArtifactResolverSupplier.class,
+                artifactFactory,
+                BuildOptions.OptionsDiffCache.class,
+                new BuildOptions.DiffToByteCache()));
+    nestedSetSpiller =
+        new NestedSetSpiller(
+            new NestedSetStore(nestedSetSpillEndpoint),
+            codecs.getSerializationContext(),
+            codecs.getDeserializationContext(),
+            SkyframeExecutor::hasValueSemantics,
+            nestedSetSpillThreshold);
+  }
+
+  /**
+   * Retires the spiller of the analysis cache that is being dropped. The sets it spilled are only
+   * deleted from the graph by the next evaluation, so its store is kept until {@link
+   * #finishNestedSetSpilling}. A build that is under way gets a new spiller for the sets of its
+   * analysis.
+   */
+  private void retireNestedSetSpiller() {
+    NestedSet.setSpiller(null);
+    if (nestedSetSpiller == null) {
+      return;
+    }
+    retiredNestedSetSpillers.put(nestedSetSpiller, nestedSetSpillEndpoint);
+    nestedSetSpiller = null;
+    nestedSetSpillEndpoint = null;
+    if (registeringSpillableNestedSets && nestedSetSpillThreshold > 0) {
+      createNestedSetSpiller();
+      NestedSet.setSpiller(nestedSetSpiller);
+    }
+  }
+
+  /**
+   * Whether a deserialized copy of a nested set element can stand in for it. Source artifacts are
+   * resolved to the same instance again, and derived artifacts compare by path and owner once
+   * their generating action is known.
+   */
+  private static boolean hasValueSemantics(Object element) {
+    if (element instanceof String || element instanceof PathFragment || element instanceof Label) {
+      return true;
+    }
+    if (element instanceof Artifact.SourceArtifact) {
+      return true;
+    }
+    // Tree artifacts and their files have additional state that is not part of their identity.
+    return element.getClass() == Artifact.DerivedArtifact.class
+        && ((Artifact.DerivedArtifact) element).hasGeneratingActionKey();
+  }
+
+  /**
+   * Stops registering new nested sets at the end of a build, and restores the sets spilled by the
+   * spillers of dropped analysis caches and deletes their stores. The sets spilled for the current
+   * analysis cache stay spilled.
+   */
+  public void finishNestedSetSpilling() {
+    NestedSet.setSpiller(null);
+    registeringSpillableNestedSets = false;
+    for (Map.Entry<NestedSetSpiller, MappedFileNestedSetStorageEndpoint> retired :
+        retiredNestedSetSpillers.entrySet()) {
+      int restored = retired.getKey().restoreSpilledSets();
+      if (restored > 0) {
+        logger.info("Restored the children of " + restored + " spilled nested sets");
+      }
+      try {
+        retired.getValue().close();
+      } catch (IOException e) {
+        logger.warning("Failed to delete a nested set spill file: " + e);
+      }
+    }
+    retiredNestedSetSpillers.clear();
+  }
+
+  /**
+   * Spills the children of the spillable nested sets created since the last call, and returns the
+   * number of sets that were spilled.
+   */
+  public int spillNestedSets() {
+    return nestedSetSpiller == null ? 0 : nestedSetSpiller.spillRegisteredSets();
+  }
+
   protected void setCommandId(UUID commandId) {
     PrecomputedValue.BUILD_ID.set(injectable(), commandId);
   }
@@ -1391,6 +1574,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.clientEnv.set(clientEnv);
 
     setShowLoadingProgress(packageCacheOptions.showLoadingProgress);
+    setPersistentAstCache(
+        packageCacheOptions.persistentAstCache, packageCacheOptions.persistentAstCacheMaxSizeMb);
     setDefaultVisibility(packageCacheOptions.defaultVisibility);
     setSkylarkSemantics(getEffectiveStarlarkSemantics(starlarkSemanticsOptions));
     setPackageLocator(pkgLocator);
@@ -17,21 +17,25 @@ import static com.google.common.collect.ImmutableMap.toImmutableMap;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.actions.InconsistentFilesystemException;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.Postable;
 import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
@@ -61,10 +65,17 @@ import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.ValueOrException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -82,6 +93,7 @@ public class SkylarkImportLookupFunction implements SkyFunction {
   private final RuleClassProvider ruleClassProvider;
   private final PackageFactory packageFactory;
   private final int starlarkImportLookupValueCacheSize;
+  @Nullable private final Executor inliningExecutor;
   private Cache<SkyKey, CachedSkylarkImportLookupValueAndDeps> skylarkImportLookupValueCache;
   private CachedSkylarkImportLookupValueAndDepsBuilderFactory
       cachedSkylarkImportLookupValueAndDepsBuilderFactory =
@@ -90,18 +102,49 @@ public class SkylarkImportLookupFunction implements SkyFunction {
   private static final Logger logger =
       Logger.getLogger(SkylarkImportLookupFunction.class.getName());
 
+  /**
+   * The pool on which inlined .bzl files are evaluated by default. It is shared by all instances,
+   * since it is only busy while packages are loaded.
+   */
+  private static final Supplier<ForkJoinPool> DEFAULT_INLINING_POOL =
+      Suppliers.memoize(
+          () ->
+              NamedForkJoinPool.newNamedPool(
+                  "skylark-import-inlining", Runtime.getRuntime().availableProcessors()));
+
   public SkylarkImportLookupFunction(
       RuleClassProvider ruleClassProvider, PackageFactory packageFactory) {
-    this(ruleClassProvider, packageFactory, /*starlarkImportLookupValueCacheSize=*/ -1);
+    this(
+        ruleClassProvider,
+        packageFactory,
+        /*starlarkImportLookupValueCacheSize=*/ -1,
+        /*inliningExecutor=*/ null);
   }
 
   public SkylarkImportLookupFunction(
       RuleClassProvider ruleClassProvider,
       PackageFactory packageFactory,
       int starlarkImportLookupValueCacheSize) {
+    this(
+        ruleClassProvider,
+        packageFactory,
+        starlarkImportLookupValueCacheSize,
+        DEFAULT_INLINING_POOL.get());
+  }
+
+  /**
+   * Creates a function whose inlined calls evaluate independent .bzl files on the given executor,
+   * or one after the other on the calling thread if it is null.
+   */
+  public SkylarkImportLookupFunction(
+      RuleClassProvider ruleClassProvider,
+      PackageFactory packageFactory,
+      int starlarkImportLookupValueCacheSize,
+      @Nullable Executor inliningExecutor) {
     this.ruleClassProvider = ruleClassProvider;
     this.packageFactory = packageFactory;
     this.starlarkImportLookupValueCacheSize = starlarkImportLookupValueCacheSize;
+    this.inliningExecutor = inliningExecutor;
   }
 
   @Override
@@ -111,14 +154,7 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     SkylarkImportLookupKey key = (SkylarkImportLookupKey) skyKey.argument();
     try {
       return computeInternal(
-          key.importLabel,
-          key.inWorkspace,
-          key.workspaceChunk,
-          key.workspacePath,
-          env,
-          /*visitedNested=*/ null,
-          /*inlineCachedValueBuilder=*/ null,
-          /*visitedDepsInToplevelLoad=*/ null);
+          key.importLabel, key.inWorkspace, key.workspaceChunk, key.workspacePath, env);
     } catch (InconsistentFilesystemException e) {
       throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
     } catch (SkylarkImportFailedException e) {
@@ -132,28 +168,122 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       Environment env,
       Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad)
       throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
-    // We use the visitedNested set to track if there are any cyclic dependencies when loading the
-    // skylark file and the visitedDepsInToplevelLoad set to avoid re-registering previously seen
-    // dependencies. Note that the visitedNested set must use insertion order to display the correct
-    // error.
-    CachedSkylarkImportLookupValueAndDeps cachedSkylarkImportLookupValueAndDeps =
-        computeWithInlineCallsInternal(
-            skyKey,
-            env,
-            /*visitedNested=*/ new LinkedHashSet<>(),
-            /*visitedDepsInToplevelLoad=*/ visitedDepsInToplevelLoad);
-    if (cachedSkylarkImportLookupValueAndDeps == null) {
-      return null;
+    return computeWithInlineCalls(ImmutableList.of(skyKey), env, visitedDepsInToplevelLoad)
+        .get(skyKey);
+  }
+
+  /**
+   * Computes the values of the given keys by inlining the computation of the .bzl files they load,
+   * and returns their values, or an empty map if {@code env.valuesMissing()}.
+   *
+   * <p>All Skyframe lookups are made on the calling thread, in the order of the load statements,
+   * since the environment is not thread-safe. The files that are not cached are then evaluated on
+   * the inlining executor, each as soon as the files that it loads are evaluated, so that
+   * independent files are evaluated in parallel. Events and errors are reported as if the files had
+   * been evaluated one after the other, in the order of the load statements.
+   */
+  Map<SkyKey, SkylarkImportLookupValue> computeWithInlineCalls(
+      Iterable<? extends SkyKey> skyKeys,
+      Environment env,
+      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad)
+      throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
+    Map<SkyKey, InlineLoad> loads = new LinkedHashMap<>();
+    Map<SkylarkImportLookupKey, InlineLoad> preparedLoads = new HashMap<>();
+    List<InlineLoad> loadsToEvaluate = new ArrayList<>();
+    for (SkyKey skyKey : skyKeys) {
+      // We use the visitedNested set to track if there are any cyclic dependencies when loading
+      // the skylark file and the visitedDepsInToplevelLoad set to avoid re-registering previously
+      // seen dependencies. Note that the visitedNested set must use insertion order to display the
+      // correct error.
+      InlineLoad load =
+          prepareInlineLoad(
+              skyKey,
+              env,
+              /*visitedNested=*/ new LinkedHashSet<>(),
+              visitedDepsInToplevelLoad,
+              preparedLoads,
+              loadsToEvaluate);
+      if (load != null) {
+        loads.put(skyKey, load);
+      }
+    }
+    if (env.valuesMissing()) {
+      // The function will be restarted, and the events of the evaluations would be lost, so the
+      // files are only evaluated once all of them can be.
+      return ImmutableMap.of();
+    }
+    evaluateInlineLoads(loadsToEvaluate, env, visitedDepsInToplevelLoad);
+    Map<SkyKey, SkylarkImportLookupValue> values = Maps.newHashMapWithExpectedSize(loads.size());
+    for (Map.Entry<SkyKey, InlineLoad> entry : loads.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().cachedValue.getValue());
     }
-    return cachedSkylarkImportLookupValueAndDeps.getValue();
+    return values;
   }
 
+  /**
+   * A .bzl file whose computation is inlined: either a value that was computed earlier, or a file
+   * that is ready to be evaluated once the files it loads are.
+   */
+  private static final class InlineLoad {
+    final SkyKey skyKey;
+    final SkylarkImportLookupKey key;
+    @Nullable final PreparedLoad preparedLoad;
+    @Nullable final CachedSkylarkImportLookupValueAndDeps.Builder inlineCachedValueBuilder;
+    /** The files loaded by this file, in the order of its load statements. */
+    final ImmutableMap<SkyKey, InlineLoad> imports;
+    /** The events of the evaluation of this file, to be replayed in the order of evaluation. */
+    final StoredEventHandler events = new StoredEventHandler();
+
+    // Set by the evaluation of the file, possibly on another thread.
+    @Nullable SkylarkImportLookupValue evaluatedValue;
+    @Nullable Exception failure;
+
+    // Set on creation if the value was computed earlier, or once the file was evaluated.
+    @Nullable CachedSkylarkImportLookupValueAndDeps cachedValue;
+
+    private InlineLoad(
+        SkyKey skyKey,
+        @Nullable PreparedLoad preparedLoad,
+        @Nullable CachedSkylarkImportLookupValueAndDeps.Builder inlineCachedValueBuilder,
+        ImmutableMap<SkyKey, InlineLoad> imports,
+        @Nullable CachedSkylarkImportLookupValueAndDeps cachedValue) {
+      this.skyKey = skyKey;
+      this.key = (SkylarkImportLookupKey) skyKey.argument();
+      this.preparedLoad = preparedLoad;
+      this.inlineCachedValueBuilder = inlineCachedValueBuilder;
+      this.imports = imports;
+      this.cachedValue = cachedValue;
+    }
+
+    static InlineLoad cached(SkyKey skyKey, CachedSkylarkImportLookupValueAndDeps cachedValue) {
+      return new InlineLoad(
+          skyKey,
+          /*preparedLoad=*/ null,
+          /*inlineCachedValueBuilder=*/ null,
+          ImmutableMap.of(),
+          cachedValue);
+    }
+
+    /** Returns the value of this file, or null if it was not successfully evaluated. */
+    @Nullable
+    SkylarkImportLookupValue getValue() {
+      return cachedValue != null ? cachedValue.getValue() : evaluatedValue;
+    }
+  }
+
+  /**
+   * Makes all the Skyframe lookups needed to compute the given key by inlining, and returns null
+   * if some values are missing. Files that have to be evaluated are added to {@code
+   * loadsToEvaluate} after the files that they load.
+   */
   @Nullable
-  private CachedSkylarkImportLookupValueAndDeps computeWithInlineCallsInternal(
+  private InlineLoad prepareInlineLoad(
       SkyKey skyKey,
       Environment env,
       Set<Label> visitedNested,
-      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad)
+      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad,
+      Map<SkylarkImportLookupKey, InlineLoad> preparedLoads,
+      List<InlineLoad> loadsToEvaluate)
       throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
     SkylarkImportLookupKey key = (SkylarkImportLookupKey) skyKey.argument();
     Label importLabel = key.importLabel;
@@ -175,7 +305,12 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       }
     }
     if (cachedSkylarkImportLookupValueAndDeps != null) {
-      return cachedSkylarkImportLookupValueAndDeps;
+      return InlineLoad.cached(skyKey, cachedSkylarkImportLookupValueAndDeps);
+    }
+    // For the same reason, a file that is loaded along several paths is only evaluated once.
+    InlineLoad preparedLoad = preparedLoads.get(key);
+    if (preparedLoad != null) {
+      return preparedLoad;
     }
 
     if (!visitedNested.add(importLabel)) {
@@ -197,27 +332,143 @@ public class SkylarkImportLookupFunction implements SkyFunction {
             inlineCachedValueBuilder::addDep,
             inlineCachedValueBuilder::addDeps,
             inlineCachedValueBuilder::noteException);
-    SkylarkImportLookupValue value =
-        computeInternal(
-            importLabel,
-            key.inWorkspace,
-            key.workspaceChunk,
-            key.workspacePath,
-            recordingEnv,
-            Preconditions.checkNotNull(visitedNested, importLabel),
-            inlineCachedValueBuilder,
-            visitedDepsInToplevelLoad);
+    PreparedLoad prepared =
+        prepareLoad(
+            importLabel, key.inWorkspace, key.workspaceChunk, key.workspacePath, recordingEnv);
+    InlineLoad load = null;
+    if (prepared != null) {
+      // Inlining calls to SkylarkImportLookupFunction.
+      Map<SkyKey, InlineLoad> imports =
+          Maps.newLinkedHashMapWithExpectedSize(prepared.importLookupKeys.size());
+      boolean valuesMissing = false;
+      for (SkyKey importLookupKey : prepared.importLookupKeys.values()) {
+        InlineLoad importLoad =
+            prepareInlineLoad(
+                importLookupKey,
+                env,
+                visitedNested,
+                visitedDepsInToplevelLoad,
+                preparedLoads,
+                loadsToEvaluate);
+        if (importLoad == null) {
+          Preconditions.checkState(
+              env.valuesMissing(), "no starlark import value for %s", importLookupKey);
+          // We continue making inline calls even if some requested values are missing, to maximize
+          // the number of dependent (non-inlined) SkyFunctions that are requested, thus avoiding a
+          // quadratic number of restarts.
+          valuesMissing = true;
+        } else {
+          imports.put(importLookupKey, importLoad);
+        }
+      }
+      if (!valuesMissing) {
+        load =
+            new InlineLoad(
+                skyKey,
+                prepared,
+                inlineCachedValueBuilder,
+                ImmutableMap.copyOf(imports),
+                /*cachedValue=*/ null);
+        preparedLoads.put(key, load);
+        loadsToEvaluate.add(load);
+      }
+    }
     // All imports traversed, this key can no longer be part of a cycle.
     Preconditions.checkState(visitedNested.remove(importLabel), importLabel);
+    return load;
+  }
 
-    if (value != null) {
-      inlineCachedValueBuilder.setValue(value);
-      inlineCachedValueBuilder.setKey(key);
-      cachedSkylarkImportLookupValueAndDeps = inlineCachedValueBuilder.build();
-      visitedDepsInToplevelLoad.put(key, cachedSkylarkImportLookupValueAndDeps);
-      skylarkImportLookupValueCache.put(skyKey, cachedSkylarkImportLookupValueAndDeps);
+  /**
+   * Evaluates the given files, each of which follows the files it loads, and caches their values.
+   * Replays the events of the evaluations on {@code env} in the order of the list, and throws the
+   * first failure in that order.
+   */
+  private void evaluateInlineLoads(
+      List<InlineLoad> loadsToEvaluate,
+      Environment env,
+      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad)
+      throws SkylarkImportFailedException, InterruptedException {
+    if (inliningExecutor == null || loadsToEvaluate.size() < 2) {
+      for (InlineLoad load : loadsToEvaluate) {
+        evaluate(load);
+        if (load.failure != null) {
+          break;
+        }
+      }
+    } else {
+      List<CompletableFuture<Void>> evaluations = new ArrayList<>(loadsToEvaluate.size());
+      Map<InlineLoad, CompletableFuture<Void>> evaluationsByLoad =
+          Maps.newHashMapWithExpectedSize(loadsToEvaluate.size());
+      for (InlineLoad load : loadsToEvaluate) {
+        List<CompletableFuture<Void>> importEvaluations = new ArrayList<>();
+        for (InlineLoad importLoad : load.imports.values()) {
+          CompletableFuture<Void> importEvaluation = evaluationsByLoad.get(importLoad);
+          if (importEvaluation != null) {
+            importEvaluations.add(importEvaluation);
+          }
+        }
+        CompletableFuture<Void> evaluation =
+            CompletableFuture.allOf(importEvaluations.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> evaluate(load), inliningExecutor);
+        evaluations.add(evaluation);
+        evaluationsByLoad.put(load, evaluation);
+      }
+      try {
+        for (CompletableFuture<Void> evaluation : evaluations) {
+          evaluation.get();
+        }
+      } catch (InterruptedException e) {
+        // Files that are being evaluated run to completion, but no other file is evaluated.
+        for (CompletableFuture<Void> evaluation : evaluations) {
+          evaluation.cancel(/*mayInterruptIfRunning=*/ false);
+        }
+        throw e;
+      } catch (ExecutionException e) {
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    for (InlineLoad load : loadsToEvaluate) {
+      load.events.replayOn(env.getListener());
+      if (load.failure != null) {
+        Throwables.throwIfInstanceOf(load.failure, SkylarkImportFailedException.class);
+        Throwables.throwIfInstanceOf(load.failure, InterruptedException.class);
+        Throwables.throwIfUnchecked(load.failure);
+        throw new IllegalStateException(load.failure);
+      }
+      // An import of this file that failed to evaluate would have been reported above.
+      Preconditions.checkNotNull(load.evaluatedValue, load.key);
+      for (InlineLoad importLoad : load.imports.values()) {
+        load.inlineCachedValueBuilder.addTransitiveDeps(importLoad.cachedValue);
+      }
+      load.inlineCachedValueBuilder.setValue(load.evaluatedValue);
+      load.inlineCachedValueBuilder.setKey(load.key);
+      load.cachedValue = load.inlineCachedValueBuilder.build();
+      visitedDepsInToplevelLoad.put(load.key, load.cachedValue);
+      skylarkImportLookupValueCache.put(load.skyKey, load.cachedValue);
+    }
+  }
+
+  /**
+   * Evaluates a file whose imports were evaluated, unless one of them failed. Does not throw, but
+   * records the failure in the given load, since it may run on the inlining executor.
+   */
+  private void evaluate(InlineLoad load) {
+    Map<SkyKey, SkyValue> importValues = Maps.newHashMapWithExpectedSize(load.imports.size());
+    for (Map.Entry<SkyKey, InlineLoad> importEntry : load.imports.entrySet()) {
+      SkylarkImportLookupValue importValue = importEntry.getValue().getValue();
+      if (importValue == null) {
+        // The failure of the import is reported instead.
+        return;
+      }
+      importValues.put(importEntry.getKey(), importValue);
+    }
+    try {
+      load.evaluatedValue = evaluateLoad(load.preparedLoad, importValues, load.events);
+    } catch (SkylarkImportFailedException | InterruptedException | RuntimeException e) {
+      load.failure = e;
     }
-    return cachedSkylarkImportLookupValueAndDeps;
   }
 
   public void resetCache() {
@@ -275,6 +526,35 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     return containingPackageLookupValue;
   }
 
+  /**
+   * The results of the Skyframe lookups needed to evaluate a .bzl file, except for the values of
+   * the files it loads.
+   */
+  private static final class PreparedLoad {
+    final Label fileLabel;
+    final boolean inWorkspace;
+    final StarlarkSemantics starlarkSemantics;
+    final BuildFileAST ast;
+    final ImmutableMap<RepositoryName, RepositoryName> repositoryMapping;
+    /** The key of each loaded file, by the string it is loaded with, in the order of the loads. */
+    final ImmutableMap<String, SkyKey> importLookupKeys;
+
+    PreparedLoad(
+        Label fileLabel,
+        boolean inWorkspace,
+        StarlarkSemantics starlarkSemantics,
+        BuildFileAST ast,
+        ImmutableMap<RepositoryName, RepositoryName> repositoryMapping,
+        ImmutableMap<String, SkyKey> importLookupKeys) {
+      this.fileLabel = fileLabel;
+      this.inWorkspace = inWorkspace;
+      this.starlarkSemantics = starlarkSemantics;
+      this.ast = ast;
+      this.repositoryMapping = repositoryMapping;
+      this.importLookupKeys = importLookupKeys;
+    }
+  }
+
   // It is vital that we don't return any value if any call to env#getValue(s)OrThrow throws an
   // exception. We are allowed to wrap the thrown exception and rethrow it for any calling functions
   // to handle though.
@@ -284,12 +564,47 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       boolean inWorkspace,
       int workspaceChunk,
       RootedPath workspacePath,
-      Environment env,
-      @Nullable Set<Label> visitedNested,
-      @Nullable CachedSkylarkImportLookupValueAndDeps.Builder inlineCachedValueBuilder,
-      @Nullable
-          Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps>
-              visitedDepsInToplevelLoad)
+      Environment env)
+      throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
+    PreparedLoad prepared =
+        prepareLoad(fileLabel, inWorkspace, workspaceChunk, workspacePath, env);
+    if (prepared == null) {
+      return null;
+    }
+
+    // Look up and load the imports.
+    Map<SkyKey, ValueOrException<SkylarkImportFailedException>> values =
+        env.getValuesOrThrow(
+            prepared.importLookupKeys.values(), SkylarkImportFailedException.class);
+    Map<SkyKey, SkyValue> skylarkImportMap = Maps.newHashMapWithExpectedSize(values.size());
+    for (Map.Entry<SkyKey, ValueOrException<SkylarkImportFailedException>> entry :
+        values.entrySet()) {
+      try {
+        skylarkImportMap.put(entry.getKey(), entry.getValue().get());
+      } catch (SkylarkImportFailedException exn) {
+        throw new SkylarkImportFailedException(
+            "in " + prepared.ast.getLocation().getPath() + ": " + exn.getMessage());
+      }
+    }
+    if (env.valuesMissing()) {
+      // This means some imports are unavailable.
+      return null;
+    }
+
+    return evaluateLoad(prepared, skylarkImportMap, env.getListener());
+  }
+
+  /**
+   * Looks up everything needed to evaluate the given file, except for the values of the files it
+   * loads. Returns null if some values are missing.
+   */
+  @Nullable
+  private static PreparedLoad prepareLoad(
+      Label fileLabel,
+      boolean inWorkspace,
+      int workspaceChunk,
+      RootedPath workspacePath,
+      Environment env)
       throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
     PathFragment filePath = fileLabel.toPathFragment();
 
@@ -336,107 +651,59 @@ public class SkylarkImportLookupFunction implements SkyFunction {
         remapImports(unRemappedImports, workspaceChunk, repositoryMapping);
 
     ImmutableMap<String, Label> labelsForImports = getLabelsForLoadStatements(imports, fileLabel);
-    ImmutableCollection<Label> importLabels = labelsForImports.values();
-
-    // Look up and load the imports.
-    List<SkyKey> importLookupKeys =
-        Lists.newArrayListWithExpectedSize(labelsForImports.size());
-    for (Label importLabel : importLabels) {
+    ImmutableMap.Builder<String, SkyKey> importLookupKeys =
+        ImmutableMap.builderWithExpectedSize(labelsForImports.size());
+    for (Map.Entry<String, Label> importEntry : labelsForImports.entrySet()) {
+      Label importLabel = importEntry.getValue();
       if (inWorkspace) {
-        importLookupKeys.add(
+        importLookupKeys.put(
+            importEntry.getKey(),
             SkylarkImportLookupValue.keyInWorkspace(importLabel, workspaceChunk, workspacePath));
       } else {
-        importLookupKeys.add(SkylarkImportLookupValue.key(importLabel));
+        importLookupKeys.put(importEntry.getKey(), SkylarkImportLookupValue.key(importLabel));
       }
     }
-    Map<SkyKey, SkyValue> skylarkImportMap;
-    boolean valuesMissing = false;
-    if (visitedNested == null) {
-      // Not inlining.
-
-      Map<SkyKey, ValueOrException<SkylarkImportFailedException>> values =
-          env.getValuesOrThrow(importLookupKeys, SkylarkImportFailedException.class);
-      skylarkImportMap = Maps.newHashMapWithExpectedSize(values.size());
-      for (Map.Entry<SkyKey, ValueOrException<SkylarkImportFailedException>> entry :
-          env.getValuesOrThrow(importLookupKeys, SkylarkImportFailedException.class).entrySet()) {
-        try {
-          skylarkImportMap.put(entry.getKey(), entry.getValue().get());
-        } catch (SkylarkImportFailedException exn) {
-          throw new SkylarkImportFailedException(
-              "in " + ast.getLocation().getPath() + ": " + exn.getMessage());
-        }
-      }
-      valuesMissing = env.valuesMissing();
-    } else {
-      Preconditions.checkNotNull(
-          inlineCachedValueBuilder,
-          "Expected inline cached value builder to be not-null when inlining.");
-      // Inlining calls to SkylarkImportLookupFunction.
-      skylarkImportMap = Maps.newHashMapWithExpectedSize(imports.size());
-
-      Preconditions.checkState(
-          env instanceof RecordingSkyFunctionEnvironment,
-          "Expected to be recording dep requests when inlining SkylarkImportLookupFunction: %s",
-          fileLabel);
-      Environment strippedEnv = ((RecordingSkyFunctionEnvironment) env).getDelegate();
-      for (SkyKey importLookupKey : importLookupKeys) {
-        CachedSkylarkImportLookupValueAndDeps cachedValue =
-            this.computeWithInlineCallsInternal(
-                importLookupKey, strippedEnv, visitedNested, visitedDepsInToplevelLoad);
-        if (cachedValue == null) {
-          Preconditions.checkState(
-              env.valuesMissing(), "no starlark import value for %s", importLookupKey);
-          // We continue making inline calls even if some requested values are missing, to maximize
-          // the number of dependent (non-inlined) SkyFunctions that are requested, thus avoiding a
-          // quadratic number of restarts.
-          valuesMissing = true;
-        } else {
-          SkyValue skyValue = cachedValue.getValue();
-          skylarkImportMap.put(importLookupKey, skyValue);
-          inlineCachedValueBuilder.addTransitiveDeps(cachedValue);
-        }
-      }
-    }
-    if (valuesMissing) {
-      // This means some imports are unavailable.
-      return null;
-    }
+    return new PreparedLoad(
+        fileLabel,
+        inWorkspace,
+        starlarkSemantics,
+        ast,
+        repositoryMapping,
+        importLookupKeys.build());
+  }
 
+  /**
+   * Evaluates a prepared file, given the values of the files it loads, and reports its events to
+   * the given listener. Does not request any values from Skyframe, so it may run on any thread.
+   */
+  private SkylarkImportLookupValue evaluateLoad(
+      PreparedLoad prepared, Map<SkyKey, SkyValue> importValues, ExtendedEventHandler listener)
+      throws SkylarkImportFailedException, InterruptedException {
     // Process the loaded imports.
-    Map<String, Extension> extensionsForImports = Maps.newHashMapWithExpectedSize(imports.size());
+    Map<String, Extension> extensionsForImports =
+        Maps.newHashMapWithExpectedSize(prepared.importLookupKeys.size());
     ImmutableList.Builder<SkylarkFileDependency> fileDependencies =
-        ImmutableList.builderWithExpectedSize(importLabels.size());
-    for (Map.Entry<String, Label> importEntry : labelsForImports.entrySet()) {
-      String importString = importEntry.getKey();
-      Label importLabel = importEntry.getValue();
-      SkyKey keyForLabel;
-      if (inWorkspace) {
-        keyForLabel =
-            SkylarkImportLookupValue.keyInWorkspace(importLabel, workspaceChunk, workspacePath);
-      } else {
-        keyForLabel = SkylarkImportLookupValue.key(importLabel);
-      }
+        ImmutableList.builderWithExpectedSize(prepared.importLookupKeys.size());
+    for (Map.Entry<String, SkyKey> importEntry : prepared.importLookupKeys.entrySet()) {
       SkylarkImportLookupValue importLookupValue =
-          (SkylarkImportLookupValue) skylarkImportMap.get(keyForLabel);
-      extensionsForImports.put(importString, importLookupValue.getEnvironmentExtension());
+          (SkylarkImportLookupValue) importValues.get(importEntry.getValue());
+      extensionsForImports.put(importEntry.getKey(), importLookupValue.getEnvironmentExtension());
       fileDependencies.add(importLookupValue.getDependency());
     }
 
     // #createExtension does not request values from the Environment. It may post events to the
-    // Environment, but events do not matter when caching SkylarkImportLookupValues.
+    // listener, but events do not matter when caching SkylarkImportLookupValues.
     Extension extension =
         createExtension(
-            ast,
-            fileLabel,
+            prepared.ast,
+            prepared.fileLabel,
             extensionsForImports,
-            starlarkSemantics,
-            env,
-            inWorkspace,
-            repositoryMapping);
-    SkylarkImportLookupValue result =
-        new SkylarkImportLookupValue(
-            extension, new SkylarkFileDependency(fileLabel, fileDependencies.build()));
-    return result;
+            prepared.starlarkSemantics,
+            listener,
+            prepared.inWorkspace,
+            prepared.repositoryMapping);
+    return new SkylarkImportLookupValue(
+        extension, new SkylarkFileDependency(prepared.fileLabel, fileDependencies.build()));
   }
 
   private static ImmutableMap<RepositoryName, RepositoryName> getRepositoryMapping(
@@ -548,7 +815,7 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       Label extensionLabel,
       Map<String, Extension> importMap,
       StarlarkSemantics starlarkSemantics,
-      Environment env,
+      ExtendedEventHandler listener,
       boolean inWorkspace,
       ImmutableMap<RepositoryName, RepositoryName> repositoryMapping)
       throws SkylarkImportFailedException, InterruptedException {
@@ -571,9 +838,9 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       extensionEnv.setupOverride("native", packageFactory.getNativeModule(inWorkspace));
       execAndExport(ast, extensionLabel, eventHandler, extensionEnv);
 
-      Event.replayEventsOn(env.getListener(), eventHandler.getEvents());
+      Event.replayEventsOn(listener, eventHandler.getEvents());
       for (Postable post : eventHandler.getPosts()) {
-        env.getListener().post(post);
+        listener.post(post);
       }
       if (eventHandler.hasErrors()) {
         throw SkylarkImportFailedException.errors(extensionFile);
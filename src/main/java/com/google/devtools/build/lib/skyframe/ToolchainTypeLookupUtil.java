@@ -14,11 +14,14 @@
 
 package com.google.devtools.build.lib.skyframe;
 
+import static com.google.common.base.Predicates.equalTo;
+import static com.google.common.base.Predicates.not;
 import static java.util.stream.Collectors.joining;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
+import com.google.devtools.build.lib.analysis.PlatformConfiguration;
 import com.google.devtools.build.lib.analysis.platform.PlatformProviderUtils;
 import com.google.devtools.build.lib.analysis.platform.ToolchainTypeInfo;
 import com.google.devtools.build.lib.cmdline.Label;
@@ -90,16 +93,19 @@ public class ToolchainTypeLookupUtil {
       // uses the platform fragment and _only_ the platform fragment. Without this check, it's
       // possible another fragment could slip in without us realizing, and thus break this
       // assumption.
-      if (sanityCheckConfiguration && !configurationKey.getFragments().isEmpty()) {
-        // No fragments may be present on a toolchain_type rule in retroactive
-        // trimming mode.
+      if (sanityCheckConfiguration
+          && configurationKey.getFragments().stream()
+              .anyMatch(not(equalTo(PlatformConfiguration.class)))) {
+        // Only the PlatformConfiguration fragment, which toolchains are resolved with, may be
+        // present on a toolchain_type rule in retroactive trimming mode.
         String extraFragmentDescription =
             configurationKey.getFragments().stream()
+                .filter(not(equalTo(PlatformConfiguration.class)))
                 .map(cl -> cl.getSimpleName())
                 .collect(joining(","));
         throw new InvalidToolchainTypeException(
             configuredTarget.getLabel(),
-            "has configuration fragments, "
+            "has fragments other than PlatformConfiguration, "
                 + "which is forbidden in retroactive trimming mode: "
                 + "extra fragments are ["
                 + extraFragmentDescription
@@ -14,7 +14,6 @@
 
 package com.google.devtools.build.lib.skyframe.serialization;
 
-import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
@@ -43,12 +42,10 @@ public class ObjectCodecs {
     this(codecRegistry, ImmutableMap.of());
   }
 
-  @VisibleForTesting
   public SerializationContext getSerializationContext() {
     return serializationContext;
   }
 
-  @VisibleForTesting
   public DeserializationContext getDeserializationContext() {
     return deserializationContext;
   }
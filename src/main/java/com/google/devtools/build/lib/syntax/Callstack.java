@@ -16,43 +16,74 @@ package com.google.devtools.build.lib.syntax;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Holds the Skylark callstack in thread-local storage. Contains all Expressions and BaseFunctions
  * currently being evaluated.
  *
- * <p>This is needed for memory tracking, since the evaluator is not available in the context of
- * instrumentation. It should not be used by normal Skylark interpreter logic.
+ * <p>This is needed for memory tracking and CPU sampling, since the evaluator is not available in
+ * the context of instrumentation or on the sampling thread. It should not be used by normal
+ * Skylark interpreter logic.
  */
 public class Callstack {
   // This field should be read, but not written, directly in order to avoid the overhead of a
   // method call.
   static boolean enabled;
-  private static final ThreadLocal<List<Object>> callstack =
-      ThreadLocal.withInitial(ArrayList::new);
+  private static final ThreadLocal<ThreadStack> callstack =
+      ThreadLocal.withInitial(ThreadStack::register);
+
+  /** The stacks of all threads that have evaluated Skylark code while this class was enabled. */
+  private static final Set<ThreadStack> threadStacks = ConcurrentHashMap.newKeySet();
 
   public static void setEnabled(boolean enabled) {
     Callstack.enabled = enabled;
   }
 
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
   public static void push(ASTNode node) {
-    callstack.get().add(node);
+    callstack.get().push(node);
   }
 
   public static void push(BaseFunction function) {
-    callstack.get().add(function);
+    callstack.get().push(function);
   }
 
   public static void pop() {
-    List<Object> threadStack = callstack.get();
-    threadStack.remove(threadStack.size() - 1);
+    callstack.get().pop();
   }
 
   public static List<Object> get() {
     Preconditions.checkState(enabled, "Must call Callstack#setEnabled before getting");
-    return callstack.get();
+    return callstack.get().view;
+  }
+
+  /**
+   * Returns a copy of the callstack of each thread that is currently running and evaluating
+   * Skylark code, outermost entry first. Meant for sampling profilers, which call this from their
+   * own thread: a stack that changes while it is copied may be slightly inconsistent.
+   */
+  public static List<Object[]> sampleRunningThreads() {
+    List<Object[]> samples = new ArrayList<>();
+    for (ThreadStack stack : threadStacks) {
+      Thread thread = stack.thread.get();
+      if (thread != null && thread.getState() == Thread.State.RUNNABLE) {
+        Object[] sample = stack.snapshot();
+        if (sample.length > 0) {
+          samples.add(sample);
+        }
+      }
+    }
+    return samples;
   }
 
   @VisibleForTesting
@@ -60,4 +91,86 @@ public class Callstack {
     enabled = false;
     callstack.get().clear();
   }
+
+  /**
+   * The callstack of one thread. Only that thread modifies it, but other threads may copy it with
+   * {@link #snapshot}, which sees every entry pushed before the last write of {@link #size}.
+   *
+   * <p>Stacks are registered in a set, so this class must keep identity equality; {@link #view}
+   * provides the {@link List} interface.
+   */
+  private static final class ThreadStack {
+    private final WeakReference<Thread> thread;
+    private Object[] entries = new Object[32];
+    private volatile int size;
+
+    private final List<Object> view =
+        new AbstractList<Object>() {
+          @Override
+          public Object get(int index) {
+            Preconditions.checkElementIndex(index, size);
+            return entries[index];
+          }
+
+          @Override
+          public int size() {
+            return size;
+          }
+        };
+
+    private ThreadStack(Thread thread) {
+      this.thread = new WeakReference<>(thread);
+    }
+
+    static ThreadStack register() {
+      // Evaluation threads come and go with their pools, so forget the stacks of dead ones here
+      // too, in case nobody samples.
+      threadStacks.removeIf(ThreadStack::isDead);
+      ThreadStack stack = new ThreadStack(Thread.currentThread());
+      threadStacks.add(stack);
+      return stack;
+    }
+
+    boolean isDead() {
+      Thread t = thread.get();
+      return t == null || !t.isAlive();
+    }
+
+    void push(Object entry) {
+      int n = size;
+      if (n == entries.length) {
+        entries = Arrays.copyOf(entries, n * 2);
+      }
+      entries[n] = entry;
+      size = n + 1;
+    }
+
+    void pop() {
+      int n = size - 1;
+      size = n;
+      entries[n] = null;
+    }
+
+    Object[] snapshot() {
+      // Read the size first: the entries written before it was last written are then visible.
+      int size = this.size;
+      Object[] current = entries;
+      int n = Math.min(size, current.length);
+      Object[] copy = new Object[n];
+      int copied = 0;
+      for (int i = 0; i < n; i++) {
+        // The owning thread may have popped the entry since we read the size.
+        Object entry = current[i];
+        if (entry != null) {
+          copy[copied++] = entry;
+        }
+      }
+      return copied == n ? copy : Arrays.copyOf(copy, copied);
+    }
+
+    void clear() {
+      Arrays.fill(entries, 0, size, null);
+      size = 0;
+    }
+  }
 }
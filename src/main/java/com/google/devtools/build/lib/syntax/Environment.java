@@ -153,6 +153,39 @@ public final class Environment implements Freezable, Debuggable {
       Preconditions.checkState(!mutability.isFrozen());
       return new MutableLexicalFrame(mutability, /*initialCapacity=*/ numArgs);
     }
+
+    /**
+     * Creates a frame for a call to a function with the given layout, whose first slots hold the
+     * given arguments.
+     */
+    static LexicalFrame createSlotted(
+        Mutability mutability, SlotLayout layout, Object[] arguments, int numArgs) {
+      Preconditions.checkState(!mutability.isFrozen());
+      return new SlottedLexicalFrame(mutability, layout, arguments, numArgs);
+    }
+  }
+
+  /**
+   * The local variables of a function, indexed by the slots that {@link ValidationEnvironment}
+   * assigned to them. The parameters of the function come first, in the order of its signature.
+   */
+  static final class SlotLayout {
+    private final ImmutableList<String> names;
+    private final ImmutableMap<String, Integer> slots;
+
+    SlotLayout(ImmutableList<String> names) {
+      this.names = names;
+      ImmutableMap.Builder<String, Integer> slots = ImmutableMap.builder();
+      for (int i = 0; i < names.size(); i++) {
+        slots.put(names.get(i), i);
+      }
+      this.slots = slots.build();
+    }
+
+    /** Returns the names of the local variables, indexed by slot. */
+    ImmutableList<String> getNames() {
+      return names;
+    }
   }
 
   private static final class ImmutableEmptyLexicalFrame implements LexicalFrame {
@@ -241,6 +274,97 @@ public final class Environment implements Freezable, Debuggable {
     }
   }
 
+  /**
+   * A {@link LexicalFrame} that stores the variables of a function in an array indexed by the slots
+   * of its {@link SlotLayout}, so that resolved identifiers need no hash lookups. Variables are
+   * still accessible by name, and variables that have no slot (e.g. ones created by the debugger)
+   * are kept on the side.
+   */
+  private static final class SlottedLexicalFrame implements LexicalFrame {
+    private final Mutability mutability;
+    private final SlotLayout layout;
+    private final Object[] values;
+    /** Bindings of variables without a slot, in order of creation. Created lazily. */
+    @Nullable private LinkedHashMap<String, Object> extraBindings;
+
+    private SlottedLexicalFrame(
+        Mutability mutability, SlotLayout layout, Object[] arguments, int numArgs) {
+      this.mutability = mutability;
+      this.layout = layout;
+      this.values = new Object[layout.names.size()];
+      System.arraycopy(arguments, 0, values, 0, numArgs);
+    }
+
+    @Override
+    public Mutability mutability() {
+      return mutability;
+    }
+
+    @Nullable
+    Object getSlot(int slot) {
+      return values[slot];
+    }
+
+    void putSlot(Environment env, int slot, Object value) throws MutabilityException {
+      Mutability.checkMutable(this, env.mutability());
+      values[slot] = value;
+    }
+
+    @Nullable
+    @Override
+    public Object get(String varname) {
+      Integer slot = layout.slots.get(varname);
+      if (slot != null) {
+        return values[slot];
+      }
+      return extraBindings == null ? null : extraBindings.get(varname);
+    }
+
+    @Override
+    public void put(Environment env, String varname, Object value) throws MutabilityException {
+      Mutability.checkMutable(this, env.mutability());
+      Integer slot = layout.slots.get(varname);
+      if (slot != null) {
+        values[slot] = value;
+      } else {
+        if (extraBindings == null) {
+          extraBindings = new LinkedHashMap<>();
+        }
+        extraBindings.put(varname, value);
+      }
+    }
+
+    @Override
+    public void remove(Environment env, String varname) throws MutabilityException {
+      Mutability.checkMutable(this, env.mutability());
+      Integer slot = layout.slots.get(varname);
+      if (slot != null) {
+        values[slot] = null;
+      } else if (extraBindings != null) {
+        extraBindings.remove(varname);
+      }
+    }
+
+    @Override
+    public Map<String, Object> getTransitiveBindings() {
+      LinkedHashMap<String, Object> bindings = new LinkedHashMap<>();
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] != null) {
+          bindings.put(layout.names.get(i), values[i]);
+        }
+      }
+      if (extraBindings != null) {
+        bindings.putAll(extraBindings);
+      }
+      return bindings;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("<SlottedLexicalFrame%s>", mutability());
+    }
+  }
+
   /**
    * A {@link Frame} that represents the top-level definitions of a file. It contains the
    * module-scope variables and has a reference to the universe.
@@ -1135,6 +1259,35 @@ public final class Environment implements Freezable, Debuggable {
     return lexicalFrame.get(varname);
   }
 
+  /**
+   * Returns the value of a variable defined in Local scope that was assigned the given slot of the
+   * current function's {@link SlotLayout}.
+   */
+  Object localLookup(String varname, int slot) {
+    if (lexicalFrame instanceof SlottedLexicalFrame) {
+      return ((SlottedLexicalFrame) lexicalFrame).getSlot(slot);
+    }
+    return lexicalFrame.get(varname);
+  }
+
+  /**
+   * Modifies a binding in the current Frame, like {@link #updateAndExport}, for a variable that
+   * was assigned the given slot of the current function's {@link SlotLayout}.
+   */
+  void updateLocal(String varname, int slot, Object value) throws EvalException {
+    if (!(lexicalFrame instanceof SlottedLexicalFrame)) {
+      updateAndExport(varname, value);
+      return;
+    }
+    Preconditions.checkNotNull(value, "trying to assign null to '%s'", varname);
+    try {
+      ((SlottedLexicalFrame) lexicalFrame).putSlot(this, slot, value);
+    } catch (MutabilityException e) {
+      throw new AssertionError(
+          Printer.format("Can't update %s to %r in frozen environment", varname, value), e);
+    }
+  }
+
   /**
    * Returns the value of a variable defined in the Module scope (e.g. global variables, functions).
    */
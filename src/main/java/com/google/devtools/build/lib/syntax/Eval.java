@@ -126,7 +126,8 @@ public class Eval {
             node.getIdentifier().getLocation(),
             FunctionSignature.WithValues.create(sig, defaultValues, /*types=*/ null),
             node.getStatements(),
-            env.getGlobals()));
+            env.getGlobals(),
+            node.getSlotLayout()));
   }
 
   TokenKind execIf(IfStatement node) throws EvalException, InterruptedException {
@@ -251,7 +252,12 @@ public class Eval {
   /** Binds a variable to the given value in the environment. */
   private static void assignIdentifier(Identifier ident, Object value, Environment env)
       throws EvalException {
-    env.updateAndExport(ident.getName(), value);
+    int slot = ident.getSlot();
+    if (slot >= 0) {
+      env.updateLocal(ident.getName(), slot, value);
+    } else {
+      env.updateAndExport(ident.getName(), value);
+    }
   }
 
   /**
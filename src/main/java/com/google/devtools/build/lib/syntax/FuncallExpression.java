@@ -194,6 +194,196 @@ public final class FuncallExpression extends Expression {
   // *args, **kwargs, location, ast, environment, skylark semantics
   private static final int EXTRA_ARGS_COUNT = 6;
 
+  /**
+   * Maximum number of receiver classes remembered by the inline cache of a call site. Most call
+   * sites only ever see one class; sites called on more classes than this mostly miss and fall back
+   * to the global method caches.
+   */
+  private static final int MAX_INLINE_CACHE_ENTRIES = 4;
+
+  /**
+   * The Java method called by a call site for a given class of the called object and semantics,
+   * and how to turn the arguments of the call site into arguments of the method.
+   */
+  private static final class InlineCacheEntry {
+    private final Class<?> objClass;
+    private final StarlarkSemantics semantics;
+    // Null if there is no such method, e.g. because the object is a struct.
+    @Nullable private final MethodDescriptor method;
+    // Null if the arguments have to be matched to parameters on every call.
+    @Nullable private final ArgumentPlan plan;
+
+    private InlineCacheEntry(
+        Class<?> objClass,
+        StarlarkSemantics semantics,
+        @Nullable MethodDescriptor method,
+        @Nullable ArgumentPlan plan) {
+      this.objClass = objClass;
+      this.semantics = semantics;
+      this.method = method;
+      this.plan = plan;
+    }
+  }
+
+  /**
+   * The result of matching the arguments of a call site to the parameters of a Java method, which
+   * only depends on the method and on the number and names of the arguments. This allows {@link
+   * #toJavaArguments} to skip the matching on every call and leave only the type checks.
+   *
+   * <p>Only call sites without {@code *args} and {@code **kwargs} have a plan, and only if the
+   * matching succeeds; all other calls go through {@link
+   * #convertStarlarkArgumentsToJavaMethodArguments}, which also reports any errors.
+   */
+  private static final class ArgumentPlan {
+    private final MethodDescriptor method;
+    // For each parameter, the index of the argument passed for it, or -1 for its default value.
+    private final int[] sources;
+    // For each parameter without an argument, its default value.
+    private final Object[] defaults;
+    // The positional arguments from this index on are passed as *args.
+    private final int firstExtraPositional;
+    private final int numPositional;
+    // The indexes and names of the keyword arguments passed as **kwargs.
+    private final int[] extraKeywordIndexes;
+    private final String[] extraKeywordNames;
+
+    private ArgumentPlan(
+        MethodDescriptor method,
+        int[] sources,
+        Object[] defaults,
+        int firstExtraPositional,
+        int numPositional,
+        int[] extraKeywordIndexes,
+        String[] extraKeywordNames) {
+      this.method = method;
+      this.sources = sources;
+      this.defaults = defaults;
+      this.firstExtraPositional = firstExtraPositional;
+      this.numPositional = numPositional;
+      this.extraKeywordIndexes = extraKeywordIndexes;
+      this.extraKeywordNames = extraKeywordNames;
+    }
+
+    /**
+     * Matches the arguments of the given call site, preceded by {@code numSelfArgs} implicit
+     * positional arguments, to the parameters of the given method, like {@link
+     * #convertStarlarkArgumentsToJavaMethodArguments} does.
+     *
+     * @return the plan, or null if the call site has {@code *args} or {@code **kwargs}, or if the
+     *     arguments do not match the parameters
+     */
+    @Nullable
+    static ArgumentPlan create(FuncallExpression call, MethodDescriptor method, int numSelfArgs) {
+      if (method.isStructField()) {
+        return null;
+      }
+      List<String> keywords = new ArrayList<>();
+      for (Argument.Passed arg : call.arguments) {
+        if (arg.isStar() || arg.isStarStar()) {
+          return null;
+        } else if (arg.isKeyword()) {
+          keywords.add(arg.getName());
+        }
+      }
+      int numPositional = call.numPositionalArgs + numSelfArgs;
+      Map<String, Integer> keys = new LinkedHashMap<>();
+      for (int i = 0; i < keywords.size(); i++) {
+        if (keys.put(keywords.get(i), numPositional + i) != null) {
+          return null; // duplicate keyword
+        }
+      }
+
+      ImmutableList<ParamDescriptor> parameters = method.getParameters();
+      int[] sources = new int[parameters.size()];
+      Object[] defaults = new Object[parameters.size()];
+      int argIndex = 0;
+      for (int i = 0; i < parameters.size(); i++) {
+        ParamDescriptor param = parameters.get(i);
+        sources[i] = -1;
+        if (param.isDisabledInCurrentSemantics()) {
+          defaults[i] =
+              SkylarkSignatureProcessor.getDefaultValue(
+                  param.getName(), param.getValueOverride(), null);
+        } else if (argIndex < numPositional && param.isPositional()) {
+          if (param.isNamed() && keys.containsKey(param.getName())) {
+            return null;
+          }
+          sources[i] = argIndex++;
+        } else if (param.isNamed() && keys.containsKey(param.getName())) {
+          sources[i] = keys.remove(param.getName());
+        } else {
+          if (param.getDefaultValue().isEmpty()) {
+            return null;
+          }
+          defaults[i] =
+              SkylarkSignatureProcessor.getDefaultValue(
+                  param.getName(), param.getDefaultValue(), null);
+          if (!param.isNoneable() && defaults[i] instanceof NoneType) {
+            return null;
+          }
+        }
+      }
+      if ((argIndex < numPositional && !method.isAcceptsExtraArgs())
+          || (!keys.isEmpty() && !method.isAcceptsExtraKwargs())) {
+        return null;
+      }
+      return new ArgumentPlan(
+          method,
+          sources,
+          defaults,
+          argIndex,
+          numPositional,
+          keys.values().stream().mapToInt(Integer::intValue).toArray(),
+          keys.keySet().toArray(new String[0]));
+    }
+
+    /**
+     * Returns the arguments for the Java method, given the values of the arguments of the call
+     * site as returned by {@link #evalArgumentValues}.
+     */
+    Object[] toJavaArguments(
+        FuncallExpression call, Class<?> objClass, Object[] values, Environment env)
+        throws EvalException {
+      ImmutableList<ParamDescriptor> parameters = method.getParameters();
+      List<Object> builder = new ArrayList<>(parameters.size() + EXTRA_ARGS_COUNT);
+      for (int i = 0; i < sources.length; i++) {
+        if (sources[i] < 0) {
+          builder.add(defaults[i]);
+          continue;
+        }
+        ParamDescriptor param = parameters.get(i);
+        Object value = values[sources[i]];
+        if (!param.getSkylarkType().contains(value)) {
+          throw call.argumentMismatchException(
+              String.format(
+                  "expected value of type '%s' for parameter '%s'",
+                  param.getSkylarkType(), param.getName()),
+              method,
+              objClass);
+        }
+        if (!param.isNoneable() && value instanceof NoneType) {
+          throw call.argumentMismatchException(
+              String.format("parameter '%s' cannot be None", param.getName()), method, objClass);
+        }
+        builder.add(value);
+      }
+      if (method.isAcceptsExtraArgs()) {
+        builder.add(
+            Tuple.copyOf(Arrays.asList(values).subList(firstExtraPositional, numPositional)));
+      }
+      if (method.isAcceptsExtraKwargs()) {
+        ImmutableMap.Builder<String, Object> extraKwargs =
+            ImmutableMap.builderWithExpectedSize(extraKeywordNames.length);
+        for (int i = 0; i < extraKeywordNames.length; i++) {
+          extraKwargs.put(extraKeywordNames[i], values[extraKeywordIndexes[i]]);
+        }
+        builder.add(SkylarkDict.copyOf(env, extraKwargs.build()));
+      }
+      appendExtraInterpreterArgs(builder, method, call, call.getLocation(), env);
+      return builder.toArray();
+    }
+  }
+
   /**
    * Returns a map of methods and corresponding SkylarkCallable annotations of the methods of the
    * classObj class reachable from Skylark.
@@ -236,6 +426,14 @@ public final class FuncallExpression extends Expression {
 
   private final int numPositionalArgs;
 
+  /**
+   * The inline cache of this call site: the Java methods most recently called by it, for the
+   * classes of the objects they were called on. Entries are immutable, and the array is replaced
+   * rather than modified, so threads evaluating the same expression need no further
+   * synchronization. Null until the first call of a Java method.
+   */
+  @Nullable private transient volatile InlineCacheEntry[] inlineCache;
+
   FuncallExpression(Expression function, ImmutableList<Argument.Passed> arguments) {
     this.function = Preconditions.checkNotNull(function);
     this.arguments = Preconditions.checkNotNull(arguments);
@@ -421,11 +619,16 @@ public final class FuncallExpression extends Expression {
    */
   public static MethodDescriptor getSelfCallMethodDescriptor(
       StarlarkSemantics semantics, Object obj) {
+    return getSelfCallMethodDescriptor(semantics, obj.getClass());
+  }
+
+  private static MethodDescriptor getSelfCallMethodDescriptor(
+      StarlarkSemantics semantics, Class<?> objClass) {
     try {
       Optional<MethodDescriptor> selfCallDescriptor =
-          selfCallCache.get(new MethodDescriptorKey(obj.getClass(), semantics));
+          selfCallCache.get(new MethodDescriptorKey(objClass, semantics));
       if (!selfCallDescriptor.isPresent()) {
-        throw new IllegalStateException("Class " + obj.getClass() + " has no selfCall method");
+        throw new IllegalStateException("Class " + objClass + " has no selfCall method");
       }
       return selfCallDescriptor.get();
     } catch (ExecutionException e) {
@@ -433,6 +636,58 @@ public final class FuncallExpression extends Expression {
     }
   }
 
+  /**
+   * Looks up the Java method called by this expression in its inline cache, or in the global
+   * caches on a miss.
+   *
+   * @param objClass the class of the object the method is called on
+   * @param methodName the name of the method called, or null to look up the selfCall method of
+   *     the called object
+   */
+  private InlineCacheEntry lookupMethod(
+      Class<?> objClass, @Nullable String methodName, StarlarkSemantics semantics) {
+    InlineCacheEntry[] cache = inlineCache;
+    if (cache != null) {
+      for (InlineCacheEntry entry : cache) {
+        // Semantics are compared by identity: there is usually just one instance per build, and
+        // a spurious miss only costs a lookup in the global caches.
+        if (entry.objClass == objClass && entry.semantics == semantics) {
+          return entry;
+        }
+      }
+    }
+
+    MethodDescriptor method;
+    int numSelfArgs = 0;
+    if (methodName == null) {
+      method =
+          hasSelfCallMethod(semantics, objClass)
+              ? getSelfCallMethodDescriptor(semantics, objClass)
+              : null;
+    } else {
+      method = getMethod(semantics, objClass, methodName);
+      if (String.class.isAssignableFrom(objClass)) {
+        numSelfArgs = 1; // the string, see callStringMethod
+      }
+    }
+    InlineCacheEntry entry =
+        new InlineCacheEntry(
+            objClass,
+            semantics,
+            method,
+            method == null ? null : ArgumentPlan.create(this, method, numSelfArgs));
+
+    // The newest entry goes first; if the cache is full, the oldest one is dropped.
+    int size = cache == null ? 0 : Math.min(cache.length, MAX_INLINE_CACHE_ENTRIES - 1);
+    InlineCacheEntry[] newCache = new InlineCacheEntry[size + 1];
+    newCache[0] = entry;
+    if (size > 0) {
+      System.arraycopy(cache, 0, newCache, 1, size);
+    }
+    inlineCache = newCache;
+    return entry;
+  }
+
   /**
    * Returns a {@link BuiltinCallable} representing a {@link SkylarkCallable}-annotated instance
    * method of a given object with the given method name.
@@ -880,6 +1135,23 @@ public final class FuncallExpression extends Expression {
     }
   }
 
+  /**
+   * Evaluates this FuncallExpression's arguments, which must not include {@code *args} or {@code
+   * **kwargs}, and returns their values in order, preceded by {@code self} if not null.
+   */
+  private Object[] evalArgumentValues(@Nullable Object self, Environment env)
+      throws EvalException, InterruptedException {
+    int offset = self == null ? 0 : 1;
+    Object[] values = new Object[arguments.size() + offset];
+    if (self != null) {
+      values[0] = self;
+    }
+    for (int i = 0; i < arguments.size(); i++) {
+      values[i + offset] = arguments.get(i).getValue().eval(env);
+    }
+    return values;
+  }
+
   @VisibleForTesting
   public static boolean isNamespace(Class<?> classObject) {
     return classObject.isAnnotationPresent(SkylarkModule.class)
@@ -899,6 +1171,20 @@ public final class FuncallExpression extends Expression {
       return invokeObjectMethod(env, (DotExpression) function);
     }
     Object funcValue = function.eval(env);
+    if (!(funcValue instanceof StarlarkFunction)) {
+      // Only the selfCall methods of the called objects end up in the inline cache of this call
+      // site; see invokeObjectMethod for the methods called on objects.
+      InlineCacheEntry cached =
+          lookupMethod(funcValue.getClass(), /*methodName=*/ null, env.getSemantics());
+      if (cached.plan != null) {
+        Object[] values = evalArgumentValues(/*self=*/ null, env);
+        return cached.method.call(
+            funcValue,
+            cached.plan.toJavaArguments(this, funcValue.getClass(), values, env),
+            getLocation(),
+            env);
+      }
+    }
     ArrayList<Object> posargs = new ArrayList<>();
     Map<String, Object> kwargs = new LinkedHashMap<>();
     evalArguments(posargs, kwargs, env);
@@ -910,21 +1196,33 @@ public final class FuncallExpression extends Expression {
       throws EvalException, InterruptedException {
     Object objValue = dot.getObject().eval(env);
     String methodName = dot.getField().getName();
+    InlineCacheEntry cached = lookupMethod(objValue.getClass(), methodName, env.getSemantics());
+    MethodDescriptor methodDescriptor = cached.method;
+    if (cached.plan != null) {
+      // Case 1 or 2 below, with arguments already matched to the parameters of the method.
+      boolean isString = objValue instanceof String;
+      Object[] values = evalArgumentValues(isString ? objValue : null, env);
+      Class<?> objClass = isString ? StringModule.class : objValue.getClass();
+      return methodDescriptor.call(
+          isString ? StringModule.INSTANCE : objValue,
+          cached.plan.toJavaArguments(this, objClass, values, env),
+          getLocation(),
+          env);
+    }
     ArrayList<Object> posargs = new ArrayList<>();
     Map<String, Object> kwargs = new LinkedHashMap<>();
     evalArguments(posargs, kwargs, env);
 
     // Case 1: Object is a String. String is an unusual special case.
     if (objValue instanceof String) {
-      return callStringMethod((String) objValue, methodName, posargs, kwargs, env);
+      return callStringMethod(
+          (String) objValue, methodName, methodDescriptor, posargs, kwargs, env);
     }
 
     // Case 2: Object is a Java object with a matching @SkylarkCallable method.
     // This is an optimization. For 'foo.bar()' where 'foo' is a java object with a callable
     // java method 'bar()', this avoids evaluating 'foo.bar' in isolation (which would require
     // creating a throwaway function-like object).
-    MethodDescriptor methodDescriptor =
-        FuncallExpression.getMethod(env.getSemantics(), objValue.getClass(), methodName);
     if (methodDescriptor != null && !methodDescriptor.isStructField()) {
       Object[] javaArguments = convertStarlarkArgumentsToJavaMethodArguments(
           methodDescriptor, objValue.getClass(), posargs, kwargs, env);
@@ -960,14 +1258,18 @@ public final class FuncallExpression extends Expression {
     return legacyRuntimeFunction.call(posargs, kwargs, this, env);
   }
 
-  private Object callStringMethod(String objValue, String methodName,
-      ArrayList<Object> posargs, Map<String, Object> kwargs, Environment env)
+  private Object callStringMethod(
+      String objValue,
+      String methodName,
+      @Nullable MethodDescriptor method,
+      ArrayList<Object> posargs,
+      Map<String, Object> kwargs,
+      Environment env)
       throws InterruptedException, EvalException {
     // String is a special case, since it can't be subclassed. Methods on strings defer
     // to StringModule, and thus need to include the actual string as a 'self' parameter.
     posargs.add(0, objValue);
 
-    MethodDescriptor method = getMethod(env.getSemantics(), StringModule.class, methodName);
     if (method == null) {
       throw missingMethodException(StringModule.class, methodName);
     }
@@ -14,7 +14,9 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.syntax.Environment.SlotLayout;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /** Syntax node for a function definition. */
 // TODO(adonovan): rename DefStatement.
@@ -24,6 +26,9 @@ public final class FunctionDefStatement extends Statement {
   private final FunctionSignature.WithValues<Expression, Expression> signature;
   private final ImmutableList<Statement> statements;
   private final ImmutableList<Parameter<Expression, Expression>> parameters;
+  // The slots of the local variables. The value is set when the AST has been analysed by
+  // ValidationEnvironment.
+  @Nullable private SlotLayout slotLayout;
 
   FunctionDefStatement(
       Identifier identifier,
@@ -73,6 +78,16 @@ public final class FunctionDefStatement extends Statement {
     return signature;
   }
 
+  void setSlotLayout(SlotLayout slotLayout) {
+    this.slotLayout = slotLayout;
+  }
+
+  /** Returns the slots of the local variables, or null if the AST has not been validated. */
+  @Nullable
+  SlotLayout getSlotLayout() {
+    return slotLayout;
+  }
+
   @Override
   public void accept(SyntaxTreeVisitor visitor) {
     visitor.visit(this);
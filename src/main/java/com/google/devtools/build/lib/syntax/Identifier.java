@@ -20,9 +20,6 @@ import java.io.IOException;
 import java.util.Set;
 import javax.annotation.Nullable;
 
-// TODO(bazel-team): For performance, avoid doing HashMap lookups at runtime, and compile local
-// variable access into array reference with a constant index. Variable lookups are currently a
-// speed bottleneck, as previously measured in an experiment.
 /**
  * Syntax node for an identifier.
  *
@@ -36,6 +33,9 @@ public final class Identifier extends Expression {
   // The scope of the variable. The value is set when the AST has been analysed by
   // ValidationEnvironment.
   @Nullable private ValidationEnvironment.Scope scope;
+  // The slot of the variable in the frame of the enclosing function, or -1 if it has none. The
+  // value is set by ValidationEnvironment for variables local to a function.
+  private int slot = -1;
 
   // TODO(adonovan): lock down, after removing last use in skyframe serialization.
   public Identifier(String name) {
@@ -63,6 +63,15 @@ public final class Identifier extends Expression {
     this.scope = scope;
   }
 
+  void setSlot(int slot) {
+    this.slot = slot;
+  }
+
+  /** Returns the slot of the variable in the frame of the enclosing function, or -1. */
+  int getSlot() {
+    return slot;
+  }
+
   @Override
   Object doEval(Environment env) throws EvalException {
     Object result;
@@ -77,7 +86,7 @@ public final class Identifier extends Expression {
 
     switch (scope) {
       case Local:
-        result = env.localLookup(name);
+        result = slot >= 0 ? env.localLookup(name, slot) : env.localLookup(name);
         break;
       case Module:
         result = env.moduleLookup(name);
@@ -23,12 +23,14 @@ import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Stack;
+import javax.annotation.Nullable;
 
 /**
  * A tokenizer for the BUILD language.
@@ -59,10 +61,24 @@ final class Lexer {
 
   private final EventHandler eventHandler;
 
-  // Input buffer and position
-  private final char[] buffer;
+  // Input buffer and position. The input is held either as characters or, to spare large files
+  // a copy, as the Latin-1 encoded bytes it was read as; exactly one of the two is non-null.
+  @Nullable private final char[] buffer;
+  @Nullable private final byte[] latin1Buffer;
+  private final int bufferLength;
   private int pos;
 
+  /**
+   * Open-addressing hash table of the identifiers and simple string literals scanned so far, so
+   * that each distinct one is allocated as a String only once per file. Its size is a power of two
+   * and it is kept at most half full.
+   */
+  private String[] interned = new String[INITIAL_INTERNED_SIZE];
+
+  private int internedCount;
+
+  private static final int INITIAL_INTERNED_SIZE = 256;
+
   /**
    * The part of the location information that is common to all LexerLocation
    * instances created by this Lexer.  Factored into a separate object so that
@@ -120,7 +136,9 @@ final class Lexer {
    */
   public Lexer(
       ParserInputSource input, EventHandler eventHandler, LineNumberTable lineNumberTable) {
-    this.buffer = input.getContent();
+    this.latin1Buffer = input.getLatin1Content();
+    this.buffer = latin1Buffer == null ? input.getContent() : null;
+    this.bufferLength = latin1Buffer == null ? buffer.length : latin1Buffer.length;
     this.pos = 0;
     this.eventHandler = eventHandler;
     this.locationInfo = new LocationInfo(input.getPath(), lineNumberTable);
@@ -133,7 +151,7 @@ final class Lexer {
   }
 
   public Lexer(ParserInputSource input, EventHandler eventHandler) {
-    this(input, eventHandler, LineNumberTable.create(input.getContent(), input.getPath()));
+    this(input, eventHandler, LineNumberTable.create(input));
   }
 
   List<Comment> getComments() {
@@ -278,8 +296,8 @@ final class Lexer {
   }
 
   private void newlineInsideExpression() {
-    while (pos < buffer.length) {
-      switch (buffer[pos]) {
+    while (pos < bufferLength) {
+      switch (charAt(pos)) {
         case ' ': case '\t': case '\r':
           pos++;
           break;
@@ -293,8 +311,8 @@ final class Lexer {
   private void computeIndentation() {
     // we're in a stmt: suck up space at beginning of next line
     int indentLen = 0;
-    while (pos < buffer.length) {
-      char c = buffer[pos];
+    while (pos < bufferLength) {
+      char c = charAt(pos);
       if (c == ' ') {
         indentLen++;
         pos++;
@@ -309,8 +327,8 @@ final class Lexer {
         pos++;
       } else if (c == '#') { // line containing only indented comment
         int oldPos = pos;
-        while (pos < buffer.length && c != '\n') {
-          c = buffer[pos++];
+        while (pos < bufferLength && c != '\n') {
+          c = charAt(pos++);
         }
         makeComment(oldPos, pos - 1, bufferSlice(oldPos, pos - 1));
         indentLen = 0;
@@ -319,7 +337,7 @@ final class Lexer {
       }
     }
 
-    if (pos == buffer.length) {
+    if (pos == bufferLength) {
       indentLen = 0;
     } // trailing space on last line
 
@@ -367,8 +385,8 @@ final class Lexer {
     boolean inTriplequote = skipTripleQuote(quot);
     // more expensive second choice that expands escaped into a buffer
     StringBuilder literal = new StringBuilder();
-    while (pos < buffer.length) {
-      char c = buffer[pos];
+    while (pos < bufferLength) {
+      char c = charAt(pos);
       pos++;
       switch (c) {
         case '\n':
@@ -381,7 +399,7 @@ final class Lexer {
             return;
           }
         case '\\':
-          if (pos == buffer.length) {
+          if (pos == bufferLength) {
             error("unterminated string literal at eof", literalStartPos, pos);
             setToken(TokenKind.STRING, literalStartPos, pos, literal.toString());
             return;
@@ -393,16 +411,16 @@ final class Lexer {
             if (lookaheadIs(0, '\r') && lookaheadIs(1, '\n')) {
               literal.append("\n");
               pos += 2;
-            } else if (buffer[pos] == '\r' || buffer[pos] == '\n') {
+            } else if (charAt(pos) == '\r' || charAt(pos) == '\n') {
               literal.append("\n");
               pos += 1;
             } else {
-              literal.append(buffer[pos]);
+              literal.append(charAt(pos));
               pos += 1;
             }
             break;
           }
-          c = buffer[pos];
+          c = charAt(pos);
           pos++;
           switch (c) {
             case '\r':
@@ -443,13 +461,13 @@ final class Lexer {
             case '7':
               { // octal escape
                 int octal = c - '0';
-                if (pos < buffer.length) {
-                  c = buffer[pos];
+                if (pos < bufferLength) {
+                  c = charAt(pos);
                   if (c >= '0' && c <= '7') {
                     pos++;
                     octal = (octal << 3) | (c - '0');
-                    if (pos < buffer.length) {
-                      c = buffer[pos];
+                    if (pos < bufferLength) {
+                      c = charAt(pos);
                       if (c >= '0' && c <= '7') {
                         pos++;
                         octal = (octal << 3) | (c - '0');
@@ -532,12 +550,12 @@ final class Lexer {
     }
 
     // first quick optimistic scan for a simple non-escaped string
-    while (pos < buffer.length) {
-      char c = buffer[pos++];
+    while (pos < bufferLength) {
+      char c = charAt(pos++);
       switch (c) {
         case '\n':
           error("unterminated string literal at eol", literalStartPos, pos);
-          setToken(TokenKind.STRING, literalStartPos, pos, bufferSlice(contentStartPos, pos - 1));
+          setToken(TokenKind.STRING, literalStartPos, pos, intern(contentStartPos, pos - 1));
           return;
         case '\\':
           if (isRaw) {
@@ -560,8 +578,7 @@ final class Lexer {
         case '"':
           if (c == quot) {
             // close-quote, all done.
-            setToken(
-                TokenKind.STRING, literalStartPos, pos, bufferSlice(contentStartPos, pos - 1));
+            setToken(TokenKind.STRING, literalStartPos, pos, intern(contentStartPos, pos - 1));
             return;
           }
           break;
@@ -571,8 +588,8 @@ final class Lexer {
 
     // If the current position is beyond the end of the file, need to move it backwards
     // Possible if the file ends with `r"\` (unterminated raw string literal with a backslash)
-    if (pos > buffer.length) {
-      pos = buffer.length;
+    if (pos > bufferLength) {
+      pos = bufferLength;
     }
 
     error("unterminated string literal at eof", literalStartPos, pos);
@@ -636,8 +653,8 @@ final class Lexer {
 
   private String scanIdentifier() {
     int oldPos = pos - 1;
-    while (pos < buffer.length) {
-      switch (buffer[pos]) {
+    while (pos < bufferLength) {
+      switch (charAt(pos)) {
         case '_':
         case 'a': case 'b': case 'c': case 'd': case 'e': case 'f':
         case 'g': case 'h': case 'i': case 'j': case 'k': case 'l':
@@ -654,16 +671,16 @@ final class Lexer {
           pos++;
           break;
        default:
-          return bufferSlice(oldPos, pos);
+          return intern(oldPos, pos);
       }
     }
-    return bufferSlice(oldPos, pos);
+    return intern(oldPos, pos);
   }
 
   private String scanInteger() {
     int oldPos = pos - 1;
-    while (pos < buffer.length) {
-      char c = buffer[pos];
+    while (pos < bufferLength) {
+      char c = charAt(pos);
       switch (c) {
         case 'X': case 'x': // for hexadecimal prefix
         case 'O': case 'o': // for octal prefix
@@ -733,11 +750,11 @@ final class Lexer {
    * @return true if it tokenized an operator
    */
   private boolean tokenizeTwoChars() {
-    if (pos + 2 >= buffer.length) {
+    if (pos + 2 >= bufferLength) {
       return false;
     }
-    char c1 = buffer[pos];
-    char c2 = buffer[pos + 1];
+    char c1 = charAt(pos);
+    char c2 = charAt(pos + 1);
     TokenKind tok = null;
     if (c2 == '=') {
       tok = EQUAL_TOKENS.get(c1);
@@ -754,7 +771,7 @@ final class Lexer {
 
   /** Test if the character at pos+p is c. */
   private boolean lookaheadIs(int p, char c) {
-    return pos + p < buffer.length && buffer[pos + p] == c;
+    return pos + p < bufferLength && charAt(pos + p) == c;
   }
 
   /**
@@ -779,12 +796,12 @@ final class Lexer {
       return;
     }
 
-    while (pos < buffer.length) {
+    while (pos < bufferLength) {
       if (tokenizeTwoChars()) {
         pos += 2;
         return;
       }
-      char c = buffer[pos];
+      char c = charAt(pos);
       pos++;
       switch (c) {
         case '{':
@@ -904,8 +921,8 @@ final class Lexer {
           break;
         case '#':
           int oldPos = pos - 1;
-          while (pos < buffer.length) {
-            c = buffer[pos];
+          while (pos < bufferLength) {
+            c = charAt(pos);
             if (c == '\n') {
               break;
             } else {
@@ -920,8 +937,8 @@ final class Lexer {
           break;
         default:
           // detect raw strings, e.g. r"str"
-          if (c == 'r' && pos < buffer.length && (buffer[pos] == '\'' || buffer[pos] == '\"')) {
-            c = buffer[pos];
+          if (c == 'r' && pos < bufferLength && (charAt(pos) == '\'' || charAt(pos) == '\"')) {
+            c = charAt(pos);
             pos++;
             stringLiteral(c, true);
             break;
@@ -964,6 +981,11 @@ final class Lexer {
     return bufferSlice(offsets.first, offsets.second);
   }
 
+  /** Returns the character at the given offset of the input. */
+  private char charAt(int offset) {
+    return latin1Buffer != null ? (char) (latin1Buffer[offset] & 0xff) : buffer[offset];
+  }
+
   /**
    * Returns parts of the source buffer based on offsets
    *
@@ -972,7 +994,63 @@ final class Lexer {
    * @return the text at offset start with length end - start
    */
   private String bufferSlice(int start, int end) {
-    return new String(this.buffer, start, end - start);
+    return latin1Buffer != null
+        ? new String(latin1Buffer, start, end - start, StandardCharsets.ISO_8859_1)
+        : new String(buffer, start, end - start);
+  }
+
+  /**
+   * Returns the text between the given offsets, as the same String instance for all equal texts
+   * in this file. Allocates only if the text has not been seen before.
+   */
+  private String intern(int start, int end) {
+    // Same as String.hashCode, so that the cached hash codes of the table entries can be compared.
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + charAt(i);
+    }
+    int mask = interned.length - 1;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    for (String s = interned[slot]; s != null; s = interned[slot]) {
+      if (s.hashCode() == hash && regionEquals(s, start, end)) {
+        return s;
+      }
+      slot = (slot + 1) & mask;
+    }
+    String s = bufferSlice(start, end);
+    interned[slot] = s;
+    if (++internedCount * 2 > interned.length) {
+      growInterned();
+    }
+    return s;
+  }
+
+  private boolean regionEquals(String s, int start, int end) {
+    if (s.length() != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i - start) != charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void growInterned() {
+    String[] old = interned;
+    interned = new String[old.length * 2];
+    int mask = interned.length - 1;
+    for (String s : old) {
+      if (s != null) {
+        int hash = s.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (interned[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        interned[slot] = s;
+      }
+    }
   }
 
   private void makeComment(int start, int end, String content) {
@@ -42,10 +42,6 @@ class LineNumberTable implements Serializable {
   private final PathFragment path;
   private final int bufferLength;
 
-  private LineNumberTable(char[] buffer, PathFragment path) {
-    this(computeLinestart(buffer), path, buffer.length);
-  }
-
   private LineNumberTable(int[] linestart, PathFragment path, int bufferLength) {
     this.linestart = linestart;
     this.path = path;
@@ -59,7 +55,16 @@ class LineNumberTable implements Serializable {
   }
 
   static LineNumberTable create(char[] buffer, PathFragment path) {
-    return new LineNumberTable(buffer, path);
+    return new LineNumberTable(computeLinestart(buffer), path, buffer.length);
+  }
+
+  /** Creates the table for the given input, without copying Latin-1 encoded content. */
+  static LineNumberTable create(ParserInputSource input) {
+    byte[] latin1 = input.getLatin1Content();
+    if (latin1 == null) {
+      return create(input.getContent(), input.getPath());
+    }
+    return new LineNumberTable(computeLinestart(latin1), input.getPath(), latin1.length);
   }
 
   private int getLineAt(int offset) {
@@ -127,18 +132,12 @@ class LineNumberTable implements Serializable {
         size++;
       }
     }
-    int[] linestart = new int[size];
-
-    int index = 0;
-    linestart[index++] = 0; // The 0th line does not exist - so we fill something in
-    // to make sure the start pos for the 1st line ends up at
-    // linestart[1]. Using 0 is useful for tables that are
-    // completely empty.
-    linestart[index++] = 0; // The first line ("line 1") starts at offset 0.
+    int[] linestart = newLinestart(size);
 
     // Scan the buffer and record the offset of each line start. Doing this
     // once upfront is faster than checking each char as it is pulled from
     // the buffer.
+    int index = 2;
     for (int i = 0; i < buffer.length; i++) {
       if (buffer[i] == '\n') {
         linestart[index++] = i + 1;
@@ -146,4 +145,31 @@ class LineNumberTable implements Serializable {
     }
     return linestart;
   }
+
+  private static int[] computeLinestart(byte[] latin1) {
+    int size = 2;
+    for (int i = 0; i < latin1.length; i++) {
+      if (latin1[i] == '\n') {
+        size++;
+      }
+    }
+    int[] linestart = newLinestart(size);
+    int index = 2;
+    for (int i = 0; i < latin1.length; i++) {
+      if (latin1[i] == '\n') {
+        linestart[index++] = i + 1;
+      }
+    }
+    return linestart;
+  }
+
+  private static int[] newLinestart(int size) {
+    int[] linestart = new int[size];
+    linestart[0] = 0; // The 0th line does not exist - so we fill something in
+    // to make sure the start pos for the 1st line ends up at
+    // linestart[1]. Using 0 is useful for tables that are
+    // completely empty.
+    linestart[1] = 0; // The first line ("line 1") starts at offset 0.
+    return linestart;
+  }
 }
@@ -19,8 +19,12 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkCallable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Arrays;
 
 /**
@@ -28,10 +32,17 @@ import java.util.Arrays;
  * metadata. This is needed because the annotation is sometimes in a superclass.
  *
  * <p>The annotation metadata is duplicated in this class to avoid usage of Java dynamic proxies
- * which are ~7X slower.
+ * which are ~7X slower. Likewise, the method is called through a {@link MethodHandle} rather than
+ * {@link Method#invoke}, which saves the access checks and the boxing of the arguments into a new
+ * array on every call.
  */
 public final class MethodDescriptor {
+  /** The type of {@link #methodHandle}: {@code (Object receiver, Object[] args) -> Object}. */
+  private static final MethodType CALL_TYPE =
+      MethodType.methodType(Object.class, Object.class, Object[].class);
+
   private final Method method;
+  private final MethodHandle methodHandle;
   private final SkylarkCallable annotation;
 
   private final String name;
@@ -67,6 +78,7 @@ public final class MethodDescriptor {
       boolean useStarlarkSemantics,
       boolean useContext) {
     this.method = method;
+    this.methodHandle = toMethodHandle(method);
     this.annotation = annotation;
     this.name = name;
     this.doc = doc;
@@ -84,6 +96,25 @@ public final class MethodDescriptor {
     this.useContext = useContext;
   }
 
+  /**
+   * Returns a handle for the given accessible method that takes the receiver and an array of the
+   * arguments, and returns the result (null for void methods).
+   */
+  private static MethodHandle toMethodHandle(Method method) {
+    MethodHandle handle;
+    try {
+      handle = MethodHandles.lookup().unreflect(method);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("cannot access " + method, e);
+    }
+    if (Modifier.isStatic(method.getModifiers())) {
+      handle = MethodHandles.dropArguments(handle, 0, Object.class);
+    }
+    return handle
+        .asSpreader(Object[].class, method.getParameterCount())
+        .asType(CALL_TYPE);
+  }
+
   /** Returns the SkylarkCallable annotation corresponding to this method. */
   public SkylarkCallable getAnnotation() {
     return annotation;
@@ -132,21 +163,9 @@ public final class MethodDescriptor {
     Preconditions.checkNotNull(obj);
     Object result;
     try {
-      result = method.invoke(obj, args);
-    } catch (IllegalAccessException e) {
-      // TODO(bazel-team): Print a nice error message. Maybe the method exists
-      // and an argument is missing or has the wrong type.
-      throw new EvalException(loc, "Method invocation failed: " + e);
-    } catch (InvocationTargetException x) {
-      Throwable e = x.getCause();
-      if (e == null) {
-        // This is unlikely to happen.
-        throw new IllegalStateException(
-            String.format(
-                "causeless InvocationTargetException when calling %s with arguments %s at %s",
-                obj, Arrays.toString(args), loc),
-            x);
-      }
+      result = (Object) methodHandle.invokeExact(obj, args);
+    } catch (Throwable e) {
+      // Unlike Method#invoke, the handle throws whatever the method throws, without wrapping it.
       Throwables.propagateIfPossible(e, InterruptedException.class);
       if (e instanceof FuncallExpression.FuncallException) {
         throw new EvalException(loc, e.getMessage());
@@ -594,11 +594,13 @@ public class MethodLibrary {
       useEnvironment = true)
   public SkylarkDict<?, ?> dict(
       Object args, SkylarkDict<?, ?> kwargs, Location loc, Environment env) throws EvalException {
-    SkylarkDict<?, ?> argsDict =
-        (args instanceof SkylarkDict)
-            ? (SkylarkDict<?, ?>) args
-            : SkylarkDict.getDictFromArgs(args, loc, env);
-    return SkylarkDict.plus(argsDict, kwargs, env);
+    if (args instanceof SkylarkDict) {
+      return SkylarkDict.plus((SkylarkDict<?, ?>) args, kwargs, env);
+    }
+    // The dict built from the entries is new, so the keyword arguments can go straight into it.
+    SkylarkDict<Object, Object> dict = SkylarkDict.getDictFromArgs(args, loc, env);
+    dict.putAll(kwargs, loc, env.mutability(), env);
+    return dict;
   }
 
   @SkylarkCallable(
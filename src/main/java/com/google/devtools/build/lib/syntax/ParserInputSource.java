@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.syntax;
 
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * An abstraction for reading input from a file or taking it as a pre-cooked
@@ -35,9 +36,42 @@ public abstract class ParserInputSource {
    */
   public abstract PathFragment getPath();
 
+  /**
+   * Returns the content of the input source as Latin-1 encoded bytes, or null if it is only
+   * available as characters. The lexer reads such content directly, without the {@code char[]}
+   * copy that {@link #getContent} makes.
+   */
+  @Nullable
+  byte[] getLatin1Content() {
+    return null;
+  }
+
   public static ParserInputSource create(byte[] bytes, PathFragment path) throws IOException {
-    char[] content = convertFromLatin1(bytes);
-    return create(content, path);
+    return createFromLatin1(bytes, path);
+  }
+
+  /**
+   * Create an input source from the given Latin-1 encoded content, and associate path with this
+   * source. The bytes are not copied, and must not be modified afterwards.
+   */
+  public static ParserInputSource createFromLatin1(final byte[] content, final PathFragment path) {
+    return new ParserInputSource() {
+
+      @Override
+      public char[] getContent() {
+        return convertFromLatin1(content);
+      }
+
+      @Override
+      byte[] getLatin1Content() {
+        return content;
+      }
+
+      @Override
+      public PathFragment getPath() {
+        return path;
+      }
+    };
   }
 
   /**
@@ -221,8 +221,9 @@ public final class SkylarkDict<K, V> extends MutableMap<K, V>
       Object args, SkylarkDict<?, ?> kwargs, Location loc, Environment env) throws EvalException {
     SkylarkDict<K, V> dict =
         (args instanceof SkylarkDict) ? (SkylarkDict<K, V>) args : getDictFromArgs(args, loc, env);
-    dict = SkylarkDict.plus(dict, (SkylarkDict<K, V>) kwargs, env);
+    // Insert both directly, rather than first copying them into a temporary dict.
     putAll(dict, loc, env.mutability(), env);
+    putAll((SkylarkDict<K, V>) kwargs, loc, env.mutability(), env);
     return Runtime.NONE;
   }
 
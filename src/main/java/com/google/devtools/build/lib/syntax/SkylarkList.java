@@ -26,11 +26,13 @@ import com.google.devtools.build.lib.skylarkinterface.SkylarkModuleCategory;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
 import com.google.devtools.build.lib.skylarkinterface.StarlarkContext;
 import com.google.devtools.build.lib.syntax.StarlarkMutable.BaseMutableList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.RandomAccess;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * A Skylark list or tuple.
@@ -227,7 +229,72 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
   )
   public static final class MutableList<E> extends SkylarkList<E> {
 
-    private final ArrayList<E> contents;
+    /**
+     * Concatenations with fewer elements than this are copied right away, since sharing their
+     * operands would save little.
+     */
+    private static final int MIN_LAZY_CONCAT_SIZE = 32;
+
+    /**
+     * An immutable binary tree whose leaves, from left to right, hold the elements of a lazy
+     * concatenation. Concatenating two lazy lists creates a new root over their trees without
+     * copying either of them, so a chain of n concatenations takes time linear in n.
+     */
+    private static final class Segments {
+      /** The elements of a leaf, which never change; null for an inner node. */
+      @Nullable private final List<?> leaf;
+
+      @Nullable private final Segments left;
+      @Nullable private final Segments right;
+
+      private Segments(List<?> leaf) {
+        this.leaf = leaf;
+        this.left = null;
+        this.right = null;
+      }
+
+      private Segments(Segments left, Segments right) {
+        this.leaf = null;
+        this.left = left;
+        this.right = right;
+      }
+
+      /**
+       * Adds the elements of all leaves to {@code result}. Iterative, since chains of
+       * concatenations build trees as deep as they are long.
+       */
+      @SuppressWarnings("unchecked")
+      private <E> void addTo(ArrayList<E> result) {
+        ArrayDeque<Segments> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+          Segments node = stack.pop();
+          if (node.leaf != null) {
+            result.addAll((List<? extends E>) node.leaf);
+          } else {
+            stack.push(node.right);
+            stack.push(node.left);
+          }
+        }
+      }
+    }
+
+    /**
+     * The elements of the list, or null while the list is a lazy concatenation of {@link
+     * #segments}. Must only be read through {@link #contents()}, except to check for laziness.
+     */
+    @Nullable private volatile ArrayList<E> contents;
+
+    /**
+     * The lists that this list is the concatenation of, while {@link #contents} is null. Each one
+     * is either the contents of a frozen list or a private copy, so none of them ever changes.
+     */
+    @GuardedBy("this")
+    @Nullable
+    private Segments segments;
+
+    /** The number of elements in {@link #segments}. */
+    private final int lazySize;
 
     /** Final except for {@link #unsafeShallowFreeze}; must not be modified any other way. */
     private Mutability mutability;
@@ -236,9 +303,33 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
         ArrayList<E> rawContents,
         @Nullable Mutability mutability) {
       this.contents = Preconditions.checkNotNull(rawContents);
+      this.lazySize = 0;
       this.mutability = mutability == null ? Mutability.IMMUTABLE : mutability;
     }
 
+    private MutableList(
+        Segments segments, int size, @Nullable Mutability mutability) {
+      this.segments = segments;
+      this.lazySize = size;
+      this.mutability = mutability == null ? Mutability.IMMUTABLE : mutability;
+    }
+
+    /** Returns the elements of the list, first concatenating its segments if it is lazy. */
+    private ArrayList<E> contents() {
+      ArrayList<E> result = contents;
+      return result != null ? result : materialize();
+    }
+
+    private synchronized ArrayList<E> materialize() {
+      if (contents == null) {
+        ArrayList<E> result = new ArrayList<>(lazySize);
+        segments.addTo(result);
+        segments = null;
+        contents = result;
+      }
+      return contents;
+    }
+
     /**
      * Creates an instance, taking ownership of the supplied {@link ArrayList}. This is exposed for
      * performance reasons. May be used when the calling code will not modify the supplied list
@@ -325,29 +416,75 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
 
     @Override
     public ImmutableList<E> getImmutableList() {
-      return ImmutableList.copyOf(contents);
+      return ImmutableList.copyOf(contents());
     }
 
     @Override
     protected List<E> getContentsUnsafe() {
-      return contents;
+      return contents();
+    }
+
+    @Override
+    public int size() {
+      // The size of a lazy concatenation is known without concatenating it.
+      ArrayList<E> result = contents;
+      return result != null ? result.size() : lazySize;
     }
 
     /**
      * Returns a new {@code MutableList} that is the concatenation of two {@code MutableList}s. The
      * new list will have the given {@link Mutability}.
+     *
+     * <p>If one of the operands is frozen, as are lists loaded from other .bzl files, or is itself
+     * the result of such a concatenation, the new list shares its elements instead of copying them,
+     * and only concatenates them when it is first read or modified. This keeps expressions such as
+     * {@code srcs = COMMON_SRCS + x + y} linear in the size of the result, as well as loops that
+     * repeatedly extend such a list, as long as the list is not read in between.
      */
     public static <T> MutableList<T> concat(
         MutableList<? extends T> left,
         MutableList<? extends T> right,
         Mutability mutability) {
+      int size = left.size() + right.size();
+      if (size >= MIN_LAZY_CONCAT_SIZE && (left.isShareable() || right.isShareable())) {
+        Segments leftSegments = segmentsOf(left);
+        Segments rightSegments = segmentsOf(right);
+        Segments segments =
+            leftSegments == null
+                ? rightSegments
+                : rightSegments == null ? leftSegments : new Segments(leftSegments, rightSegments);
+        return new MutableList<>(segments, size, mutability);
+      }
 
-      ArrayList<T> newContents = new ArrayList<>(left.size() + right.size());
-      addAll(newContents, left.contents);
-      addAll(newContents, right.contents);
+      ArrayList<T> newContents = new ArrayList<>(size);
+      addAll(newContents, left.contents());
+      addAll(newContents, right.contents());
       return new MutableList<>(newContents, mutability);
     }
 
+    /** Whether the elements of this list can be shared by a lazy concatenation. */
+    private boolean isShareable() {
+      return contents == null || mutability.isFrozen();
+    }
+
+    /**
+     * Returns segments making up the elements of {@code list}: the segments of a lazy list, the
+     * contents of a frozen list, or else a copy of the contents; null if the list is empty.
+     */
+    @Nullable
+    private static Segments segmentsOf(MutableList<?> list) {
+      synchronized (list) {
+        if (list.segments != null) {
+          return list.segments;
+        }
+      }
+      ArrayList<?> contents = list.contents;
+      if (contents.isEmpty()) {
+        return null;
+      }
+      return new Segments(list.mutability.isFrozen() ? contents : ImmutableList.copyOf(contents));
+    }
+
     /** More efficient {@link List#addAll} replacement when both lists are {@link ArrayList}s. */
     private static <T> void addAll(ArrayList<T> addTo, ArrayList<? extends T> addFrom) {
       // Hot code path, skip iterator.
@@ -391,7 +528,7 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
      */
     public void add(E element, Location loc, Mutability mutability) throws EvalException {
       checkMutable(loc, mutability);
-      contents.add(element);
+      contents().add(element);
     }
 
     /**
@@ -405,7 +542,7 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
     public void add(int index, E element, Location loc, Mutability mutability)
         throws EvalException {
       checkMutable(loc, mutability);
-      contents.add(index, element);
+      contents().add(index, element);
     }
 
     /**
@@ -418,7 +555,7 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
     public void addAll(Iterable<? extends E> elements, Location loc, Mutability mutability)
         throws EvalException {
       checkMutable(loc, mutability);
-      Iterables.addAll(contents, elements);
+      Iterables.addAll(contents(), elements);
     }
 
     /**
@@ -431,7 +568,7 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
      */
     public void remove(int index, Location loc, Mutability mutability) throws EvalException {
       checkMutable(loc, mutability);
-      contents.remove(index);
+      contents().remove(index);
     }
 
     @SkylarkCallable(
@@ -467,7 +604,7 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
      */
     public void set(int index, E value, Location loc, Mutability mutability) throws EvalException {
       checkMutable(loc, mutability);
-      contents.set(index, value);
+      contents().set(index, value);
     }
 
     @SkylarkCallable(
@@ -496,7 +633,7 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
         useEnvironment = true)
     public Runtime.NoneType clearMethod(Location loc, Environment env) throws EvalException {
       checkMutable(loc, env.mutability());
-      contents.clear();
+      contents().clear();
       return Runtime.NONE;
     }
 
@@ -136,6 +136,8 @@ public abstract class StarlarkSemantics {
 
   public abstract boolean experimentalStarlarkConfigTransitions();
 
+  public abstract boolean experimentalStarlarkLocalSlots();
+
   public abstract boolean experimentalStarlarkUnusedInputsList();
 
   public abstract boolean incompatibleBzlDisallowLoadAfterStatement();
@@ -254,6 +256,7 @@ public abstract class StarlarkSemantics {
           .experimentalGoogleLegacyApi(false)
           .experimentalPlatformsApi(false)
           .experimentalStarlarkConfigTransitions(true)
+          .experimentalStarlarkLocalSlots(false)
           .experimentalStarlarkUnusedInputsList(true)
           .incompatibleBzlDisallowLoadAfterStatement(true)
           .incompatibleDepsetIsNotIterable(true)
@@ -314,6 +317,8 @@ public abstract class StarlarkSemantics {
 
     public abstract Builder experimentalStarlarkConfigTransitions(boolean value);
 
+    public abstract Builder experimentalStarlarkLocalSlots(boolean value);
+
     public abstract Builder experimentalStarlarkUnusedInputsList(boolean value);
 
     public abstract Builder incompatibleAllowTagsPropagation(boolean value);
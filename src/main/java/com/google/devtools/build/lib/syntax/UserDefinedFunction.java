@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.syntax;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.Location;
@@ -21,6 +22,8 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.profiler.SilentCloseable;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
 import com.google.devtools.build.lib.syntax.Environment.LexicalFrame;
+import com.google.devtools.build.lib.syntax.Environment.SlotLayout;
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the parsed code
@@ -33,15 +36,36 @@ public class UserDefinedFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Environment.GlobalFrame definitionGlobals;
 
+  // The slots of the local variables, or null if the function body was not validated.
+  @Nullable private final SlotLayout slotLayout;
+
   public UserDefinedFunction(
       String name,
       Location location,
       FunctionSignature.WithValues<Object, SkylarkType> signature,
       ImmutableList<Statement> statements,
       Environment.GlobalFrame definitionGlobals) {
+    this(name, location, signature, statements, definitionGlobals, /*slotLayout=*/ null);
+  }
+
+  UserDefinedFunction(
+      String name,
+      Location location,
+      FunctionSignature.WithValues<Object, SkylarkType> signature,
+      ImmutableList<Statement> statements,
+      Environment.GlobalFrame definitionGlobals,
+      @Nullable SlotLayout slotLayout) {
     super(name, signature, location);
     this.statements = statements;
     this.definitionGlobals = definitionGlobals;
+    if (slotLayout != null) {
+      ImmutableList<String> names = signature.getSignature().getNames();
+      Preconditions.checkArgument(
+          slotLayout.getNames().subList(0, names.size()).equals(names),
+          "slots of %s do not start with its parameters",
+          name);
+    }
+    this.slotLayout = slotLayout;
   }
 
   public ImmutableList<Statement> getStatements() {
@@ -65,14 +89,19 @@ public class UserDefinedFunction extends BaseFunction {
     }
 
     ImmutableList<String> names = signature.getSignature().getNames();
-    LexicalFrame lexicalFrame = LexicalFrame.create(env.mutability(), /*numArgs=*/ names.size());
+    boolean slotted = slotLayout != null && env.getSemantics().experimentalStarlarkLocalSlots();
+    LexicalFrame lexicalFrame =
+        slotted
+            ? LexicalFrame.createSlotted(env.mutability(), slotLayout, arguments, names.size())
+            : LexicalFrame.create(env.mutability(), /*numArgs=*/ names.size());
     try (SilentCloseable c =
         Profiler.instance().profile(ProfilerTask.STARLARK_USER_FN, getName())) {
       env.enterScope(this, lexicalFrame, ast, definitionGlobals);
 
       // Registering the functions's arguments as variables in the local Environment
       // foreach loop is not used to avoid iterator overhead
-      for (int i = 0; i < names.size(); ++i) {
+      // (a slotted frame already holds them).
+      for (int i = 0; !slotted && i < names.size(); ++i) {
         env.update(names.get(i), arguments[i]);
       }
 
@@ -15,12 +15,15 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nullable;
 
@@ -33,6 +36,10 @@ import javax.annotation.Nullable;
  * <p>When a variable is defined, it is visible in the entire block. For example, a global variable
  * is visible in the entire file; a variable in a function is visible in the entire function block
  * (even on the lines before its first assignment).
+ *
+ * <p>Each variable local to a function is also assigned a slot in the frame of the function (see
+ * {@link Environment.SlotLayout}), which allows the evaluator to access it without a lookup by
+ * name.
  */
 public final class ValidationEnvironment extends SyntaxTreeVisitor {
 
@@ -60,9 +67,17 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
     private final Scope scope;
     @Nullable private final Block parent;
 
-    Block(Scope scope, @Nullable Block parent) {
+    /**
+     * Slots of the local variables of the enclosing function, or null outside of functions.
+     * Comprehensions share the slots of their function because their variables live in the frame
+     * of the function at runtime.
+     */
+    @Nullable private final Map<String, Integer> slots;
+
+    Block(Scope scope, @Nullable Block parent, @Nullable Map<String, Integer> slots) {
       this.scope = scope;
       this.parent = parent;
+      this.slots = slots;
     }
   }
 
@@ -97,7 +112,7 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
     Preconditions.checkArgument(env.isGlobal());
     this.env = env;
     this.isBuildFile = isBuildFile;
-    block = new Block(Scope.Universe, null);
+    block = new Block(Scope.Universe, null, null);
     Set<String> builtinVariables = env.getVariableNames();
     block.variables.addAll(builtinVariables);
   }
@@ -158,10 +173,14 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
 
   private void assign(Expression lhs) {
     if (lhs instanceof Identifier) {
+      Identifier id = (Identifier) lhs;
       if (!isBuildFile && env.getSemantics().incompatibleAssignmentIdentifiersHaveLocalScope()) {
-        ((Identifier) lhs).setScope(block.scope);
+        id.setScope(block.scope);
+      }
+      // Variables assigned in a function always live in its frame, whatever their scope.
+      if (!isBuildFile && block.slots != null) {
+        setSlot(id, block.slots);
       }
-      // no-op
     } else if (lhs instanceof IndexExpression) {
       visit(lhs);
     } else if (lhs instanceof ListLiteral) {
@@ -191,6 +210,16 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
     // because some AST nodes are shared across multipe ASTs (due to the prelude file).
     if (!isBuildFile) {
       node.setScope(b.scope);
+      if (b.slots != null) {
+        setSlot(node, b.slots);
+      }
+    }
+  }
+
+  private static void setSlot(Identifier node, Map<String, Integer> slots) {
+    Integer slot = slots.get(node.getName());
+    if (slot != null) {
+      node.setSlot(slot);
     }
   }
 
@@ -231,7 +260,7 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
 
   @Override
   public void visit(AbstractComprehension node) {
-    openBlock(Scope.Local);
+    openBlock(Scope.Local, block.slots);
     for (AbstractComprehension.Clause clause : node.getClauses()) {
       if (clause.getLHS() != null) {
         collectDefinitions(clause.getLHS());
@@ -255,7 +284,12 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
         visit(param.getDefaultValue());
       }
     }
-    openBlock(Scope.Local);
+    // The parameters take the first slots, in the order in which arguments are passed.
+    Map<String, Integer> slots = new LinkedHashMap<>();
+    for (String name : node.getSignature().getSignature().getNames()) {
+      slots.putIfAbsent(name, slots.size());
+    }
+    openBlock(Scope.Local, slots);
     for (Parameter<Expression, Expression> param : node.getParameters()) {
       if (param.hasName()) {
         declare(param.getName(), param.getLocation());
@@ -264,6 +298,9 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
     collectDefinitions(node.getStatements());
     visitAll(node.getStatements());
     closeBlock();
+    if (!isBuildFile) {
+      node.setSlotLayout(new Environment.SlotLayout(ImmutableList.copyOf(slots.keySet())));
+    }
   }
 
   @Override
@@ -305,6 +342,9 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
           "https://bazel.build/versions/master/docs/skylark/errors/read-only-variable.html");
     }
     block.variables.add(varname);
+    if (block.slots != null) {
+      block.slots.putIfAbsent(varname, block.slots.size());
+    }
   }
 
   /** Returns the nearest Block that defines a symbol. */
@@ -363,7 +403,7 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
       checkLoadAfterStatement(statements);
     }
 
-    openBlock(Scope.Module);
+    openBlock(Scope.Module, null);
 
     // Add each variable defined by statements, not including definitions that appear in
     // sub-scopes of the given statements (function bodies and comprehensions).
@@ -398,9 +438,12 @@ public final class ValidationEnvironment extends SyntaxTreeVisitor {
     }
   }
 
-  /** Open a new lexical block that will contain the future declarations. */
-  private void openBlock(Scope scope) {
-    block = new Block(scope, block);
+  /**
+   * Open a new lexical block that will contain the future declarations, whose variables are
+   * assigned slots in the given map if not null.
+   */
+  private void openBlock(Scope scope, @Nullable Map<String, Integer> slots) {
+    block = new Block(scope, block, slots);
   }
 
   /** Close a lexical block (and lose all declarations it contained). */
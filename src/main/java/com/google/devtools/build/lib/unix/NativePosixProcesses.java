@@ -0,0 +1,86 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.unix;
+
+import com.google.devtools.build.lib.UnixJniLoader;
+import java.io.IOException;
+
+/**
+ * Native methods for starting and managing UNIX processes without forking the JVM.
+ *
+ * <p>Processes are started with vfork(2) followed by execve(2), so the cost of starting a process
+ * does not depend on the size of the Java heap. All strings are passed to the native code as
+ * Latin1, like file names elsewhere in this package.
+ */
+public final class NativePosixProcesses {
+
+  private NativePosixProcesses() {}
+
+  static {
+    if (!"0".equals(System.getProperty("io.bazel.EnableJni"))) {
+      UnixJniLoader.loadJni();
+    }
+  }
+
+  /**
+   * Starts a new process.
+   *
+   * @param argv the command line of the process; {@code argv[0]} is looked up on the {@code PATH}
+   *     of the Bazel server if it does not contain a slash
+   * @param env the environment of the process as {@code NAME=value} strings, or null to inherit
+   *     the environment of the Bazel server
+   * @param workingDirectory the working directory of the process, or null to inherit it
+   * @param stdoutFile file to append the stdout of the process to, or null to create a pipe
+   * @param stderrFile file to append the stderr of the process to, or null to create a pipe
+   * @param redirectErrorStream whether stderr should go to the same place as stdout
+   * @param fds an array of length 3 that receives the file descriptors of the parent's end of the
+   *     stdin, stdout and stderr pipes, or -1 for streams that are not connected to a pipe
+   * @return the process id of the new process
+   * @throws IOException if the process could not be started
+   */
+  public static native int spawn(
+      String[] argv,
+      String[] env,
+      String workingDirectory,
+      String stdoutFile,
+      String stderrFile,
+      boolean redirectErrorStream,
+      int[] fds)
+      throws IOException;
+
+  /**
+   * Waits for the given child process to terminate and reaps it.
+   *
+   * @return the exit code of the process, or 128 plus the signal number if it was terminated by a
+   *     signal
+   */
+  public static native int waitFor(int pid) throws IOException;
+
+  /** Sends a signal to the given process. Does nothing if the process does not exist anymore. */
+  public static native void kill(int pid, int signal) throws IOException;
+
+  /**
+   * Reads up to {@code len} bytes from a file descriptor.
+   *
+   * @return the number of bytes read, or -1 at end of file
+   */
+  public static native int read(int fd, byte[] buf, int off, int len) throws IOException;
+
+  /** Writes all {@code len} bytes to a file descriptor. */
+  public static native void write(int fd, byte[] buf, int off, int len) throws IOException;
+
+  /** Closes a file descriptor. */
+  public static native void close(int fd) throws IOException;
+}
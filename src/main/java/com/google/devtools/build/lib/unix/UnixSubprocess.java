@@ -0,0 +1,275 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.unix;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.shell.Subprocess;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/** A UNIX subprocess started by {@link UnixSubprocessFactory}. */
+final class UnixSubprocess implements Subprocess {
+  private static final int SIGKILL = 9;
+  private static final int SIGTERM = 15;
+
+  private static final ExecutorService WAITER_POOL =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder()
+              .setNameFormat("unix-process-waiter-%d")
+              .setDaemon(true)
+              .build());
+
+  /** Output stream for writing to the stdin of a process. */
+  private static final class FdOutputStream extends OutputStream {
+    private int fd;
+
+    FdOutputStream(int fd) {
+      this.fd = fd;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (fd == -1) {
+        throw new IOException("Stream closed");
+      }
+      NativePosixProcesses.write(fd, b, off, len);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (fd != -1) {
+        int toClose = fd;
+        fd = -1;
+        NativePosixProcesses.close(toClose);
+      }
+    }
+  }
+
+  /**
+   * Input stream for reading the stdout or stderr of a process.
+   *
+   * <p>Closing the stream does not wait for a read that is blocked on another thread. The last
+   * such read closes the descriptor when it returns, so the descriptor is never reused while it is
+   * still being read.
+   */
+  private static final class FdInputStream extends InputStream {
+    private final int fd;
+
+    @GuardedBy("this")
+    private boolean closed;
+
+    @GuardedBy("this")
+    private int pendingReads;
+
+    FdInputStream(int fd) {
+      this.fd = fd;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buf = new byte[1];
+      return read(buf, 0, 1) == 1 ? buf[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      synchronized (this) {
+        if (closed) {
+          throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+          return 0;
+        }
+        pendingReads++;
+      }
+      try {
+        return NativePosixProcesses.read(fd, b, off, len);
+      } finally {
+        synchronized (this) {
+          pendingReads--;
+          if (closed && pendingReads == 0) {
+            closeQuietly(fd);
+          }
+        }
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (pendingReads == 0) {
+        NativePosixProcesses.close(fd);
+      }
+    }
+  }
+
+  private final int pid;
+  private final String commandLine;
+  private final FdOutputStream stdinStream;
+  @Nullable private final FdInputStream stdoutStream;
+  @Nullable private final FdInputStream stderrStream;
+  private final Future<Integer> exitCode;
+  private final long deadlineMillis;
+  private final AtomicBoolean deadlineExceeded = new AtomicBoolean();
+
+  UnixSubprocess(int pid, String commandLine, int[] fds, long deadlineMillis) {
+    this.pid = pid;
+    this.commandLine = commandLine;
+    this.stdinStream = new FdOutputStream(fds[0]);
+    this.stdoutStream = fds[1] == -1 ? null : new FdInputStream(fds[1]);
+    this.stderrStream = fds[2] == -1 ? null : new FdInputStream(fds[2]);
+    this.deadlineMillis = deadlineMillis;
+    // Every process consumes a thread here, like for java.lang.Process, because waitpid(2) is the
+    // only way to learn about the termination of a specific child without a signal handler.
+    this.exitCode = WAITER_POOL.submit(() -> NativePosixProcesses.waitFor(pid));
+  }
+
+  @Override
+  public synchronized boolean destroy() {
+    return signal(SIGTERM);
+  }
+
+  private synchronized boolean signal(int signal) {
+    // Once the process has been reaped, its pid may be reused by an unrelated process.
+    if (exitCode.isDone()) {
+      return false;
+    }
+    try {
+      NativePosixProcesses.kill(pid, signal);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public int exitValue() {
+    if (!exitCode.isDone()) {
+      throw new IllegalThreadStateException("Process " + pid + " has not exited");
+    }
+    try {
+      return exitCode.get();
+    } catch (InterruptedException e) {
+      // Cannot happen, the future is done.
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Waiting for process " + pid + " failed", e.getCause());
+    }
+  }
+
+  @Override
+  public boolean finished() {
+    if (deadlineMillis > 0
+        && System.currentTimeMillis() > deadlineMillis
+        && deadlineExceeded.compareAndSet(false, true)) {
+      destroy();
+    }
+    return exitCode.isDone();
+  }
+
+  @Override
+  public boolean timedout() {
+    return deadlineExceeded.get();
+  }
+
+  @Override
+  public void waitFor() throws InterruptedException {
+    try {
+      if (deadlineMillis > 0) {
+        try {
+          exitCode.get(
+              Math.max(0, deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+          return;
+        } catch (TimeoutException e) {
+          if (deadlineExceeded.compareAndSet(false, true)) {
+            destroy();
+          }
+        }
+      }
+      exitCode.get();
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException("Waiting for process " + pid + " failed", e.getCause());
+    }
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return stdinStream;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return stdoutStream;
+  }
+
+  @Override
+  public InputStream getErrorStream() {
+    return stderrStream;
+  }
+
+  @Override
+  public void close() {
+    signal(SIGKILL);
+    closeQuietly(stdinStream);
+    closeQuietly(stdoutStream);
+    closeQuietly(stderrStream);
+  }
+
+  private static void closeQuietly(@Nullable Closeable stream) {
+    if (stream == null) {
+      return;
+    }
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // Nothing sensible to do; the descriptor is gone either way.
+    }
+  }
+
+  private static void closeQuietly(int fd) {
+    try {
+      NativePosixProcesses.close(fd);
+    } catch (IOException e) {
+      // Nothing sensible to do; the descriptor is gone either way.
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s:[%s]", super.toString(), commandLine);
+  }
+}
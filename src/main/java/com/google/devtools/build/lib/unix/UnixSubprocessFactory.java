@@ -0,0 +1,103 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.unix;
+
+import com.google.common.base.Joiner;
+import com.google.devtools.build.lib.shell.Subprocess;
+import com.google.devtools.build.lib.shell.SubprocessBuilder;
+import com.google.devtools.build.lib.shell.SubprocessBuilder.StreamAction;
+import com.google.devtools.build.lib.shell.SubprocessFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A subprocess factory that starts processes through JNI using vfork(2) and execve(2).
+ *
+ * <p>Unlike {@link com.google.devtools.build.lib.shell.JavaSubprocessFactory}, the cost of starting
+ * a process does not grow with the size of the Java heap, because the page tables of the server
+ * are never copied. The child also only inherits its stdin, stdout and stderr; all other file
+ * descriptors are closed before the new program is executed.
+ */
+public final class UnixSubprocessFactory implements SubprocessFactory {
+  public static final UnixSubprocessFactory INSTANCE = new UnixSubprocessFactory();
+
+  private UnixSubprocessFactory() {
+    // We are a singleton
+  }
+
+  @Override
+  public Subprocess create(SubprocessBuilder params) throws IOException {
+    List<String> argv = params.getArgv();
+    String stdoutFile = getRedirectPath(params.getStdout(), params.getStdoutFile());
+    String stderrFile = getRedirectPath(params.getStderr(), params.getStderrFile());
+    File workingDirectory = params.getWorkingDirectory();
+
+    int[] fds = new int[3];
+    int pid =
+        NativePosixProcesses.spawn(
+            argv.toArray(new String[0]),
+            convertEnv(params.getEnv()),
+            workingDirectory == null ? null : workingDirectory.getPath(),
+            stdoutFile,
+            stderrFile,
+            params.redirectErrorStream(),
+            fds);
+
+    // Deadline is now + given timeout.
+    long deadlineMillis =
+        params.getTimeoutMillis() > 0
+            ? Math.addExact(System.currentTimeMillis(), params.getTimeoutMillis())
+            : 0;
+    return new UnixSubprocess(pid, Joiner.on(' ').join(argv), fds, deadlineMillis);
+  }
+
+  /**
+   * Returns the file the stream should be appended to, or null if it should be connected to a
+   * pipe. If a file redirected to exists, deletes the file before redirecting to it, like {@link
+   * com.google.devtools.build.lib.shell.JavaSubprocessFactory} does.
+   */
+  private static String getRedirectPath(StreamAction action, File file) {
+    switch (action) {
+      case DISCARD:
+        return "/dev/null";
+
+      case REDIRECT:
+        if (file.exists()) {
+          file.delete();
+        }
+        return file.getPath();
+
+      case STREAM:
+        return null;
+
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private static String[] convertEnv(Map<String, String> env) {
+    if (env == null) {
+      return null;
+    }
+    String[] result = new String[env.size()];
+    int i = 0;
+    for (Map.Entry<String, String> entry : env.entrySet()) {
+      result[i++] = entry.getKey() + "=" + entry.getValue();
+    }
+    return result;
+  }
+}
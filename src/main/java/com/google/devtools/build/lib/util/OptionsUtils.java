@@ -131,6 +131,30 @@ public final class OptionsUtils {
     }
   }
 
+  /** Converter from String to PathFragment. If the input is empty returns {@code null} instead. */
+  public static class EmptyToNullAbsolutePathFragmentConverter implements Converter<PathFragment> {
+
+    @Override
+    public PathFragment convert(String input) throws OptionsParsingException {
+      if (input.isEmpty()) {
+        return null;
+      }
+
+      PathFragment pathFragment = convertOptionsPathFragment(input);
+
+      if (!pathFragment.isAbsolute()) {
+        throw new OptionsParsingException("Expected absolute path but got '" + input + "'.");
+      }
+
+      return pathFragment;
+    }
+
+    @Override
+    public String getTypeDescription() {
+      return "an absolute path";
+    }
+  }
+
   /** Converts from a colon-separated list of strings into a list of PathFragment instances. */
   public static class PathFragmentListConverter implements Converter<ImmutableList<PathFragment>> {
 
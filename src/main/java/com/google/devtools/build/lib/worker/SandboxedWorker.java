@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxInputs;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxOutputs;
 import com.google.devtools.build.lib.vfs.Path;
@@ -26,8 +27,13 @@ final class SandboxedWorker extends Worker {
   private final Path workDir;
   private WorkerExecRoot workerExecRoot;
 
-  SandboxedWorker(WorkerKey workerKey, int workerId, Path workDir, Path logFile) {
-    super(workerKey, workerId, workDir, logFile);
+  SandboxedWorker(
+      WorkerKey workerKey,
+      int workerId,
+      Path workDir,
+      Path logFile,
+      ImmutableList<String> jvmFlags) {
+    super(workerKey, workerId, workDir, logFile, jvmFlags);
     this.workDir = workDir;
   }
 
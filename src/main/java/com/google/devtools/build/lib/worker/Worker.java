@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxInputs;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxOutputs;
@@ -45,15 +46,26 @@ class Worker {
   private final int workerId;
   private final Path workDir;
   private final Path logFile;
+  private final ImmutableList<String> jvmFlags;
 
   private Subprocess process;
   private Thread shutdownHook;
 
-  Worker(WorkerKey workerKey, int workerId, final Path workDir, Path logFile) {
+  /**
+   * @param jvmFlags additional flags that are passed to the JVM launcher right after its path, for
+   *     workers that are started with a JVM launcher
+   */
+  Worker(
+      WorkerKey workerKey,
+      int workerId,
+      final Path workDir,
+      Path logFile,
+      ImmutableList<String> jvmFlags) {
     this.workerKey = workerKey;
     this.workerId = workerId;
     this.workDir = workDir;
     this.logFile = logFile;
+    this.jvmFlags = jvmFlags;
 
     final Worker self = this;
     this.shutdownHook =
@@ -76,6 +88,10 @@ class Worker {
       args = new ArrayList<>(args);
       args.set(0, new File(workDir.getPathFile(), args.get(0)).getAbsolutePath());
     }
+    if (!jvmFlags.isEmpty()) {
+      args = new ArrayList<>(args);
+      args.addAll(1, jvmFlags);
+    }
     SubprocessBuilder processBuilder = new SubprocessBuilder();
     processBuilder.setArgv(args);
     processBuilder.setWorkingDirectory(workDir.getPathFile());
@@ -84,6 +100,16 @@ class Worker {
     this.process = processBuilder.start();
   }
 
+  /**
+   * Starts the worker process ahead of its first request, if it is not running yet. This lets the
+   * process load its classes and warm up while other actions are still being scheduled.
+   */
+  void prewarm() throws IOException {
+    if (process == null) {
+      createProcess();
+    }
+  }
+
   void destroy() throws IOException {
     if (shutdownHook != null) {
       Runtime.getRuntime().removeShutdownHook(shutdownHook);
@@ -127,6 +153,11 @@ class Worker {
     return this.workerId;
   }
 
+  /** Returns the additional flags that were passed to the JVM launcher of this worker. */
+  ImmutableList<String> getJvmFlags() {
+    return jvmFlags;
+  }
+
   HashCode getWorkerFilesCombinedHash() {
     return workerKey.getWorkerFilesCombinedHash();
   }
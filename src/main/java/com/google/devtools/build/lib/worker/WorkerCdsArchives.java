@@ -0,0 +1,123 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Manages JVM class-data-sharing (AppCDS) archives for Java-based persistent workers.
+ *
+ * <p>The first worker process started for a given worker key dumps the classes it loaded into a
+ * dynamic archive when it exits. Once that archive has been published, all later worker processes
+ * for the same key map it at startup instead of loading and verifying the classes again. Only one
+ * worker process dumps a given archive at a time, and the archive is written to a temporary file
+ * that is renamed only after the process has exited, so that no worker ever starts with a
+ * partially written archive.
+ *
+ * <p>Dynamic archives require JDK 13 or newer, and older JVMs refuse to start with the flags that
+ * dump them, so the flags are preceded by {@code -XX:+IgnoreUnrecognizedVMOptions}. Older workers
+ * then just don't dump an archive. The JVM validates archives itself and silently ignores ones that
+ * do not match its version or class path.
+ */
+@ThreadSafe
+final class WorkerCdsArchives {
+  private static final ImmutableSet<String> JAVA_LAUNCHER_NAMES =
+      ImmutableSet.of("java", "java.exe");
+  /** Keeps JVMs older than JDK 13 from refusing to start with the other flags. */
+  private static final String IGNORE_UNRECOGNIZED_FLAG = "-XX:+IgnoreUnrecognizedVMOptions";
+  private static final String DUMP_FLAG = "-XX:ArchiveClassesAtExit=";
+  private static final String USE_FLAG = "-XX:SharedArchiveFile=";
+
+  private final Path archiveDir;
+  private final Set<Path> archivesBeingDumped = Sets.newConcurrentHashSet();
+
+  WorkerCdsArchives(Path archiveDir) {
+    this.archiveDir = archiveDir;
+  }
+
+  /** Returns whether the worker described by the given key is started with a JVM launcher. */
+  static boolean isJavaWorker(WorkerKey key) {
+    List<String> args = key.getArgs();
+    return !args.isEmpty()
+        && JAVA_LAUNCHER_NAMES.contains(PathFragment.create(args.get(0)).getBaseName());
+  }
+
+  /**
+   * Returns the JVM flags a new worker process for the given key should be started with: either
+   * flags to use an existing archive, flags to dump a new one, or no flags at all if another
+   * worker process is currently dumping the archive.
+   */
+  ImmutableList<String> getJvmFlags(WorkerKey key) throws IOException {
+    if (!isJavaWorker(key)) {
+      return ImmutableList.of();
+    }
+    Path archive = getArchivePath(key);
+    if (archive.exists()) {
+      return ImmutableList.of(
+          IGNORE_UNRECOGNIZED_FLAG, "-Xshare:auto", USE_FLAG + archive.getPathString());
+    }
+    if (!archivesBeingDumped.add(archive)) {
+      return ImmutableList.of();
+    }
+    archiveDir.createDirectoryAndParents();
+    Path tmpArchive = getTemporaryArchivePath(archive);
+    // Left over from a worker that did not shut down cleanly.
+    tmpArchive.delete();
+    return ImmutableList.of(IGNORE_UNRECOGNIZED_FLAG, DUMP_FLAG + tmpArchive.getPathString());
+  }
+
+  /**
+   * Must be called after the process of a worker that was started with the flags returned by
+   * {@link #getJvmFlags} has exited. Publishes the archive dumped by that process, if any.
+   */
+  void workerExited(WorkerKey key, List<String> jvmFlags) throws IOException {
+    if (jvmFlags.stream().noneMatch(flag -> flag.startsWith(DUMP_FLAG))) {
+      return;
+    }
+    Path archive = getArchivePath(key);
+    try {
+      Path tmpArchive = getTemporaryArchivePath(archive);
+      if (tmpArchive.exists() && tmpArchive.getFileSize() > 0) {
+        tmpArchive.renameTo(archive);
+      } else {
+        tmpArchive.delete();
+      }
+    } finally {
+      archivesBeingDumped.remove(archive);
+    }
+  }
+
+  private Path getArchivePath(WorkerKey key) {
+    String digest =
+        new Fingerprint()
+            .addStrings(key.getArgs())
+            .addStringMap(key.getEnv())
+            .addString(key.getWorkerFilesCombinedHash().toString())
+            .hexDigestAndReset();
+    return archiveDir.getRelative(key.getMnemonic() + "-" + digest + ".jsa");
+  }
+
+  private static Path getTemporaryArchivePath(Path archive) {
+    return archive.getParentDirectory().getRelative(archive.getBaseName() + ".tmp");
+  }
+}
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
@@ -36,11 +37,13 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
 
   private WorkerOptions workerOptions;
   private final Path workerBaseDir;
+  private final WorkerCdsArchives cdsArchives;
   private Reporter reporter;
 
   public WorkerFactory(WorkerOptions workerOptions, Path workerBaseDir) {
     this.workerOptions = workerOptions;
     this.workerBaseDir = workerBaseDir;
+    this.cdsArchives = new WorkerCdsArchives(workerBaseDir.getRelative("cds"));
   }
 
   public void setReporter(Reporter reporter) {
@@ -57,13 +60,19 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
     Path logFile =
         workerBaseDir.getRelative("worker-" + workerId + "-" + key.getMnemonic() + ".log");
 
+    ImmutableList<String> jvmFlags =
+        workerOptions.workerJavaCds ? cdsArchives.getJvmFlags(key) : ImmutableList.of();
     Worker worker;
     boolean sandboxed = workerOptions.workerSandboxing || key.mustBeSandboxed();
     if (sandboxed) {
       Path workDir = getSandboxedWorkerPath(key, workerId);
-      worker = new SandboxedWorker(key, workerId, workDir, logFile);
+      worker = new SandboxedWorker(key, workerId, workDir, logFile, jvmFlags);
     } else {
-      worker = new Worker(key, workerId, key.getExecRoot(), logFile);
+      worker = new Worker(key, workerId, key.getExecRoot(), logFile, jvmFlags);
+      // Sandboxed workers can only be started once their inputs have been staged.
+      if (workerOptions.workerPrewarm) {
+        worker.prewarm();
+      }
     }
     if (workerOptions.workerVerbose) {
       reporter.handle(
@@ -105,6 +114,7 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
                   "Destroying %s worker (id %d)", key.getMnemonic(), p.getObject().getWorkerId())));
     }
     p.getObject().destroy();
+    cdsArchives.workerExited(key, p.getObject().getJvmFlags());
   }
 
   /** The worker is considered to be valid when its files have not changed on disk. */
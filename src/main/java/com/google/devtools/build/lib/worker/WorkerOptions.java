@@ -149,4 +149,27 @@ public class WorkerOptions extends OptionsBase {
   )
   public boolean workerSandboxing;
 
+  @Option(
+      name = "experimental_worker_prewarm",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If enabled, worker processes are started as soon as the first action for their "
+              + "mnemonic is scheduled, up to the limit given by --worker_max_instances, instead "
+              + "of one by one when an action needs them. Does not apply to sandboxed workers.")
+  public boolean workerPrewarm;
+
+  @Option(
+      name = "experimental_worker_java_cds",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If enabled, workers that are started with a Java launcher dump the classes they load "
+              + "into a class-data-sharing archive when they exit, and later workers with the "
+              + "same command line and tools are started with that archive. Workers running "
+              + "on a JDK older than 13 ignore the archive flags.")
+  public boolean workerJavaCds;
+
 }
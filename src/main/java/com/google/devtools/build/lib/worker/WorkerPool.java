@@ -16,9 +16,14 @@ package com.google.devtools.build.lib.worker;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -34,6 +39,10 @@ final class WorkerPool {
   private final ImmutableSet<String> highPriorityWorkerMnemonics;
   private final ImmutableMap<String, Integer> config;
   private final ImmutableMap<Integer, SimpleWorkerPool> pools;
+  private final Set<WorkerKey> prewarmedKeys = Sets.newConcurrentHashSet();
+  private final ExecutorService prewarmExecutor =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("worker-prewarm-%d").setDaemon(true).build());
 
   /**
    * @param factory worker factory
@@ -120,6 +129,27 @@ final class WorkerPool {
     return result;
   }
 
+  /**
+   * Asynchronously fills the pool for the given key up to its maximum number of workers, so that
+   * the worker processes are already running by the time more actions for the key are executed.
+   * Only the first call for each key has an effect.
+   */
+  public void prewarm(WorkerKey key) {
+    if (!prewarmedKeys.add(key)) {
+      return;
+    }
+    SimpleWorkerPool pool = getPool(key);
+    prewarmExecutor.execute(
+        () -> {
+          try {
+            pool.preparePool(key);
+          } catch (Exception e) {
+            // Workers that fail to start here will fail again, with a proper error message, when
+            // an action tries to borrow them.
+          }
+        });
+  }
+
   public void returnObject(WorkerKey key, Worker obj) {
     if (highPriorityWorkerMnemonics.contains(key.getMnemonic())) {
       decrementHighPriorityWorkerCount();
@@ -163,6 +193,7 @@ final class WorkerPool {
   }
 
   public void close() {
+    prewarmExecutor.shutdownNow();
     for (SimpleWorkerPool pool : pools.values()) {
       pool.close();
     }
@@ -82,6 +82,7 @@ final class WorkerSpawnRunner implements SpawnRunner {
   private final boolean sandboxUsesExpandedTreeArtifactsInRunfiles;
   private final BinTools binTools;
   private final ResourceManager resourceManager;
+  private final boolean prewarmWorkers;
 
   public WorkerSpawnRunner(
       Path execRoot,
@@ -92,7 +93,8 @@ final class WorkerSpawnRunner implements SpawnRunner {
       LocalEnvProvider localEnvProvider,
       boolean sandboxUsesExpandedTreeArtifactsInRunfiles,
       BinTools binTools,
-      ResourceManager resourceManager) {
+      ResourceManager resourceManager,
+      boolean prewarmWorkers) {
     this.execRoot = execRoot;
     this.workers = Preconditions.checkNotNull(workers);
     this.extraFlags = extraFlags;
@@ -102,6 +104,7 @@ final class WorkerSpawnRunner implements SpawnRunner {
     this.sandboxUsesExpandedTreeArtifactsInRunfiles = sandboxUsesExpandedTreeArtifactsInRunfiles;
     this.binTools = binTools;
     this.resourceManager = resourceManager;
+    this.prewarmWorkers = prewarmWorkers;
   }
 
   @Override
@@ -170,6 +173,10 @@ final class WorkerSpawnRunner implements SpawnRunner {
             workerFiles,
             context.speculating());
 
+    if (prewarmWorkers) {
+      workers.prewarm(key);
+    }
+
     WorkRequest workRequest = createWorkRequest(spawn, context, flagFiles, inputFileCache);
 
     long startTime = System.currentTimeMillis();
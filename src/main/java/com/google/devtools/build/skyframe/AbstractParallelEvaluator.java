@@ -29,6 +29,7 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.memory.CurrentSkyFunctionTracker;
 import com.google.devtools.build.lib.supplier.InterruptibleSupplier;
 import com.google.devtools.build.lib.util.BigIntegerFingerprintUtils;
 import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
@@ -448,8 +449,10 @@ abstract class AbstractParallelEvaluator {
         try {
           try {
             evaluatorContext.getProgressReceiver().stateStarting(skyKey, NodeState.COMPUTE);
+            CurrentSkyFunctionTracker.beginSkyFunction(functionName.getName());
             value = factory.compute(skyKey, env);
           } finally {
+            CurrentSkyFunctionTracker.endSkyFunction();
             long elapsedTimeNanos = BlazeClock.instance().nanoTime() - startTimeNanos;
             evaluatorContext
                 .getProgressReceiver()
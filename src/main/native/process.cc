@@ -12,10 +12,31 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+#include <errno.h>
+#include <fcntl.h>
 #include <jni.h>
-
+#include <limits.h>
+#include <pthread.h>
+#include <signal.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#if defined(__linux__)
+#include <sys/syscall.h>
+#endif
+#include <sys/types.h>
+#include <sys/wait.h>
 #include <unistd.h>
 
+#include <string>
+#include <vector>
+
+#include "src/main/native/latin1_jni_path.h"
+#include "src/main/native/unix_jni.h"
+
+extern char **environ;
+
 /*
  * Class:     com.google.devtools.build.lib.unix.ProcessUtils
  * Method:    getgid
@@ -45,3 +66,496 @@ extern "C" JNIEXPORT jint JNICALL
 Java_com_google_devtools_build_lib_unix_ProcessUtils_getuid(JNIEnv *env, jclass clazz) {
   return getuid();
 }
+
+namespace {
+
+// Owns the Latin1 copies of the elements of a Java String[] and exposes them
+// as a NULL-terminated char* array, as expected by execve(2).
+class CStringArray {
+ public:
+  CStringArray(JNIEnv *env, jobjectArray array) {
+    if (array == NULL) {
+      return;
+    }
+    jsize len = env->GetArrayLength(array);
+    for (jsize i = 0; i < len; i++) {
+      jstring s = static_cast<jstring>(env->GetObjectArrayElement(array, i));
+      ptrs_.push_back(GetStringLatin1Chars(env, s));
+      env->DeleteLocalRef(s);
+    }
+    ptrs_.push_back(NULL);
+  }
+
+  ~CStringArray() {
+    for (char *p : ptrs_) {
+      if (p != NULL) {
+        ReleaseStringLatin1Chars(p);
+      }
+    }
+  }
+
+  bool empty() const { return ptrs_.size() <= 1; }
+  char **get() { return ptrs_.empty() ? NULL : ptrs_.data(); }
+
+ private:
+  std::vector<char *> ptrs_;
+};
+
+// Like CStringArray, but for a single, possibly null, Java String.
+class CString {
+ public:
+  CString(JNIEnv *env, jstring s)
+      : chars_(s == NULL ? NULL : GetStringLatin1Chars(env, s)) {}
+  ~CString() {
+    if (chars_ != NULL) {
+      ReleaseStringLatin1Chars(chars_);
+    }
+  }
+  const char *get() const { return chars_; }
+
+ private:
+  char *chars_;
+};
+
+// Resolves argv0 against the PATH of this process, like execvp(3) does. This
+// happens before vfork(2), because the child must not allocate memory.
+std::string ResolveExecutable(const char *argv0) {
+  if (strchr(argv0, '/') != NULL) {
+    return argv0;
+  }
+  const char *path = getenv("PATH");
+  if (path == NULL) {
+    path = "/bin:/usr/bin";
+  }
+  std::string dirs(path);
+  size_t start = 0;
+  while (start <= dirs.size()) {
+    size_t end = dirs.find(':', start);
+    if (end == std::string::npos) {
+      end = dirs.size();
+    }
+    std::string dir = dirs.substr(start, end - start);
+    std::string candidate = (dir.empty() ? "." : dir) + "/" + argv0;
+    struct stat st;
+    if (stat(candidate.c_str(), &st) == 0 && S_ISREG(st.st_mode) &&
+        access(candidate.c_str(), X_OK) == 0) {
+      return candidate;
+    }
+    start = end + 1;
+  }
+  return argv0;
+}
+
+// Returns one more than the highest file descriptor this process may open.
+// Computed before vfork(2), since sysconf(3) is not async-signal-safe.
+int DescriptorLimit() {
+  long limit = sysconf(_SC_OPEN_MAX);
+  return limit > 0 && limit < INT_MAX ? static_cast<int>(limit) : 1024;
+}
+
+#if defined(__linux__)
+// The record layout returned by getdents64(2), which glibc does not declare.
+struct LinuxDirent64 {
+  uint64_t d_ino;
+  int64_t d_off;
+  unsigned short d_reclen;
+  unsigned char d_type;
+  char d_name[];
+};
+
+// Closes every descriptor above stderr except keep_fd by reading
+// /proc/self/fd, like glibc's closefrom(3) fallback. Only uses system calls
+// and a buffer on the stack. Returns false if /proc/self/fd can't be read.
+bool CloseDescriptorsFromProc(int keep_fd) {
+  int dir_fd = open("/proc/self/fd", O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+  if (dir_fd == -1) {
+    return false;
+  }
+  alignas(LinuxDirent64) char buffer[1024];
+  bool closed_any;
+  do {
+    closed_any = false;
+    long n;
+    while ((n = syscall(SYS_getdents64, dir_fd, buffer, sizeof(buffer))) > 0) {
+      for (long offset = 0; offset < n;) {
+        LinuxDirent64 *entry =
+            reinterpret_cast<LinuxDirent64 *>(buffer + offset);
+        offset += entry->d_reclen;
+        int fd = 0;
+        const char *c = entry->d_name;
+        for (; *c >= '0' && *c <= '9'; c++) {
+          fd = fd * 10 + (*c - '0');
+        }
+        if (*c == '\0' && c != entry->d_name && fd > STDERR_FILENO &&
+            fd != keep_fd && fd != dir_fd) {
+          close(fd);
+          closed_any = true;
+        }
+      }
+    }
+    if (n == -1) {
+      close(dir_fd);
+      return false;
+    }
+    // Closing descriptors while reading the directory may skip entries, so
+    // read it again until a pass finds nothing left to close.
+  } while (closed_any && lseek(dir_fd, 0, SEEK_SET) == 0);
+  close(dir_fd);
+  return true;
+}
+#endif
+
+// Closes every descriptor above stderr except keep_fd. Runs in the child, so
+// descriptors opened by other threads of the parent after vfork(2) was
+// prepared don't leak into the new program.
+void CloseDescriptorsExcept(int keep_fd, int fd_limit) {
+#if defined(__linux__)
+#if defined(SYS_close_range)
+  if ((keep_fd == STDERR_FILENO + 1 ||
+       syscall(SYS_close_range, STDERR_FILENO + 1, keep_fd - 1, 0) == 0) &&
+      syscall(SYS_close_range, keep_fd + 1, ~0U, 0) == 0) {
+    return;
+  }
+#endif
+  if (CloseDescriptorsFromProc(keep_fd)) {
+    return;
+  }
+#endif
+  for (int fd = STDERR_FILENO + 1; fd < fd_limit; fd++) {
+    if (fd != keep_fd) {
+      close(fd);
+    }
+  }
+}
+
+// Resets the disposition of every signal with a handler to SIG_DFL. The
+// handlers are those of the JVM, which must not run in the child: it shares
+// the parent's memory until execve(2). Ignored signals stay ignored.
+void ResetSignalHandlers() {
+  struct sigaction default_action;
+  memset(&default_action, 0, sizeof(default_action));
+  default_action.sa_handler = SIG_DFL;
+  sigemptyset(&default_action.sa_mask);
+  for (int sig = 1; sig < NSIG; sig++) {
+    struct sigaction action;
+    if (sigaction(sig, NULL, &action) == 0 && action.sa_handler != SIG_DFL &&
+        action.sa_handler != SIG_IGN) {
+      sigaction(sig, &default_action, NULL);
+    }
+  }
+}
+
+int PipeCloexec(int fds[2]) {
+  if (pipe(fds) == -1) {
+    return -1;
+  }
+  fcntl(fds[0], F_SETFD, FD_CLOEXEC);
+  fcntl(fds[1], F_SETFD, FD_CLOEXEC);
+  return 0;
+}
+
+void CloseIfOpen(int *fd) {
+  if (*fd != -1) {
+    close(*fd);
+    *fd = -1;
+  }
+}
+
+// Runs in the child between vfork(2) and execve(2). It shares the memory of
+// the parent, so it may only make async-signal-safe system calls and must not
+// allocate or modify any memory except its own stack.
+void ExecChild(const char *executable, char **argv, char **envp,
+               const char *cwd, int stdin_fd, int stdout_fd, int stderr_fd,
+               int fd_limit, int error_fd) {
+  if (dup2(stdin_fd, STDIN_FILENO) == -1 ||
+      dup2(stdout_fd, STDOUT_FILENO) == -1 ||
+      dup2(stderr_fd, STDERR_FILENO) == -1) {
+    goto fail;
+  }
+  CloseDescriptorsExcept(error_fd, fd_limit);
+  if (cwd != NULL && chdir(cwd) == -1) {
+    goto fail;
+  }
+  // The parent blocked all signals around vfork(2). Only unblock them once no
+  // JVM handler can run here anymore, and also drop any signal mask the JVM
+  // might have set up for this thread.
+  ResetSignalHandlers();
+  sigset_t empty_set;
+  sigemptyset(&empty_set);
+  sigprocmask(SIG_SETMASK, &empty_set, NULL);
+  execve(executable, argv, envp);
+
+fail:
+  int error = errno;
+  while (write(error_fd, &error, sizeof(error)) == -1 && errno == EINTR) {
+  }
+  _exit(127);
+}
+
+}  // namespace
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixProcesses
+ * Method:    spawn
+ * Signature: ([Ljava/lang/String;[Ljava/lang/String;Ljava/lang/String;
+ *             Ljava/lang/String;Ljava/lang/String;Z[I)I
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixProcesses_spawn(
+    JNIEnv *env, jclass clazz, jobjectArray java_argv, jobjectArray java_env,
+    jstring java_cwd, jstring java_stdout_file, jstring java_stderr_file,
+    jboolean redirect_error_stream, jintArray java_fds) {
+  CStringArray argv(env, java_argv);
+  CStringArray envp(env, java_env);
+  CString cwd(env, java_cwd);
+  CString stdout_file(env, java_stdout_file);
+  CString stderr_file(env, java_stderr_file);
+  if (argv.empty()) {
+    PostException(env, EINVAL, "empty argv");
+    return -1;
+  }
+  std::string executable = ResolveExecutable(argv.get()[0]);
+
+  // Index 0 is the child's end, index 1 is the parent's end.
+  int stdin_pipe[2] = {-1, -1};
+  int stdout_pipe[2] = {-1, -1};
+  int stderr_pipe[2] = {-1, -1};
+  int error_pipe[2] = {-1, -1};
+  int stdout_fd = -1;
+  int stderr_fd = -1;
+  int child_errno = 0;
+  pid_t pid = -1;
+  int fd_limit = DescriptorLimit();
+  sigset_t all_signals;
+  sigset_t old_mask;
+  int vfork_errno = 0;
+  std::string error_context = executable;
+
+  {
+    int fds[2];
+    if (PipeCloexec(fds) == -1) goto error;
+    stdin_pipe[0] = fds[0];
+    stdin_pipe[1] = fds[1];
+  }
+
+  if (stdout_file.get() != NULL) {
+    stdout_fd = open(stdout_file.get(),
+                     O_WRONLY | O_CREAT | O_APPEND | O_CLOEXEC, 0666);
+    if (stdout_fd == -1) {
+      error_context = stdout_file.get();
+      goto error;
+    }
+  } else {
+    int fds[2];
+    if (PipeCloexec(fds) == -1) goto error;
+    stdout_pipe[1] = fds[0];
+    stdout_pipe[0] = fds[1];
+    stdout_fd = stdout_pipe[0];
+  }
+
+  if (redirect_error_stream) {
+    stderr_fd = stdout_fd;
+  } else if (stderr_file.get() != NULL) {
+    stderr_fd = open(stderr_file.get(),
+                     O_WRONLY | O_CREAT | O_APPEND | O_CLOEXEC, 0666);
+    if (stderr_fd == -1) {
+      error_context = stderr_file.get();
+      goto error;
+    }
+  } else {
+    int fds[2];
+    if (PipeCloexec(fds) == -1) goto error;
+    stderr_pipe[1] = fds[0];
+    stderr_pipe[0] = fds[1];
+    stderr_fd = stderr_pipe[0];
+  }
+
+  if (PipeCloexec(error_pipe) == -1) goto error;
+
+  // Block all signals until the child has replaced the handlers of the JVM,
+  // as posix_spawn(3) does: a handler running in the child would run on the
+  // parent's stack.
+  sigfillset(&all_signals);
+  pthread_sigmask(SIG_SETMASK, &all_signals, &old_mask);
+  pid = vfork();
+  if (pid == 0) {
+    ExecChild(executable.c_str(), argv.get(),
+              envp.get() != NULL ? envp.get() : environ, cwd.get(),
+              stdin_pipe[0], stdout_fd, stderr_fd, fd_limit, error_pipe[1]);
+    // Not reached.
+  }
+  vfork_errno = errno;
+  pthread_sigmask(SIG_SETMASK, &old_mask, NULL);
+  if (pid == -1) {
+    errno = vfork_errno;
+    goto error;
+  }
+
+  // Wait until the child has either called execve(2) successfully, which
+  // closes the write end of the error pipe, or reported an error through it.
+  CloseIfOpen(&error_pipe[1]);
+  {
+    ssize_t n;
+    while ((n = read(error_pipe[0], &child_errno, sizeof(child_errno))) == -1 &&
+           errno == EINTR) {
+    }
+    if (n != sizeof(child_errno)) {
+      child_errno = 0;
+    }
+  }
+  CloseIfOpen(&error_pipe[0]);
+
+  // Close the child's ends of the pipes and files.
+  CloseIfOpen(&stdin_pipe[0]);
+  if (stdout_pipe[0] == -1) {
+    CloseIfOpen(&stdout_fd);
+  }
+  CloseIfOpen(&stdout_pipe[0]);
+  if (!redirect_error_stream && stderr_pipe[0] == -1) {
+    CloseIfOpen(&stderr_fd);
+  }
+  CloseIfOpen(&stderr_pipe[0]);
+
+  if (child_errno != 0) {
+    while (waitpid(pid, NULL, 0) == -1 && errno == EINTR) {
+    }
+    CloseIfOpen(&stdin_pipe[1]);
+    CloseIfOpen(&stdout_pipe[1]);
+    CloseIfOpen(&stderr_pipe[1]);
+    PostException(env, child_errno,
+                  "Cannot run program \"" + executable +
+                      "\": " + ErrorMessage(child_errno));
+    return -1;
+  }
+
+  {
+    jint fds[3] = {stdin_pipe[1], stdout_pipe[1], stderr_pipe[1]};
+    env->SetIntArrayRegion(java_fds, 0, 3, fds);
+  }
+  return pid;
+
+error:
+  int saved_errno = errno;
+  CloseIfOpen(&stdin_pipe[0]);
+  CloseIfOpen(&stdin_pipe[1]);
+  if (stdout_pipe[0] == -1) {
+    CloseIfOpen(&stdout_fd);
+  }
+  CloseIfOpen(&stdout_pipe[0]);
+  CloseIfOpen(&stdout_pipe[1]);
+  if (!redirect_error_stream && stderr_pipe[0] == -1) {
+    CloseIfOpen(&stderr_fd);
+  }
+  CloseIfOpen(&stderr_pipe[0]);
+  CloseIfOpen(&stderr_pipe[1]);
+  CloseIfOpen(&error_pipe[0]);
+  CloseIfOpen(&error_pipe[1]);
+  PostException(env, saved_errno,
+                error_context + " (" + ErrorMessage(saved_errno) + ")");
+  return -1;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixProcesses
+ * Method:    waitFor
+ * Signature: (I)I
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixProcesses_waitFor(
+    JNIEnv *env, jclass clazz, jint pid) {
+  int status;
+  while (waitpid(pid, &status, 0) == -1) {
+    if (errno != EINTR) {
+      PostException(env, errno, "waitpid (" + ErrorMessage(errno) + ")");
+      return -1;
+    }
+  }
+  if (WIFEXITED(status)) {
+    return WEXITSTATUS(status);
+  }
+  if (WIFSIGNALED(status)) {
+    return 128 + WTERMSIG(status);
+  }
+  return status;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixProcesses
+ * Method:    kill
+ * Signature: (II)V
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixProcesses_kill(
+    JNIEnv *env, jclass clazz, jint pid, jint signal) {
+  if (::kill(pid, signal) == -1 && errno != ESRCH) {
+    PostException(env, errno, "kill (" + ErrorMessage(errno) + ")");
+  }
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixProcesses
+ * Method:    read
+ * Signature: (I[BII)I
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixProcesses_read(
+    JNIEnv *env, jclass clazz, jint fd, jbyteArray buf, jint off, jint len) {
+  char chunk[8192];
+  size_t to_read = len < static_cast<jint>(sizeof(chunk)) ? len : sizeof(chunk);
+  ssize_t n;
+  while ((n = ::read(fd, chunk, to_read)) == -1 && errno == EINTR) {
+  }
+  if (n == -1) {
+    PostException(env, errno, "read (" + ErrorMessage(errno) + ")");
+    return -1;
+  }
+  if (n == 0 && to_read > 0) {
+    return -1;
+  }
+  env->SetByteArrayRegion(buf, off, n, reinterpret_cast<jbyte *>(chunk));
+  return n;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixProcesses
+ * Method:    write
+ * Signature: (I[BII)V
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixProcesses_write(
+    JNIEnv *env, jclass clazz, jint fd, jbyteArray buf, jint off, jint len) {
+  char chunk[8192];
+  while (len > 0) {
+    jint to_write =
+        len < static_cast<jint>(sizeof(chunk)) ? len : sizeof(chunk);
+    env->GetByteArrayRegion(buf, off, to_write,
+                            reinterpret_cast<jbyte *>(chunk));
+    jint written = 0;
+    while (written < to_write) {
+      ssize_t n = ::write(fd, chunk + written, to_write - written);
+      if (n == -1) {
+        if (errno == EINTR) {
+          continue;
+        }
+        PostException(env, errno, "write (" + ErrorMessage(errno) + ")");
+        return;
+      }
+      written += n;
+    }
+    off += to_write;
+    len -= to_write;
+  }
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixProcesses
+ * Method:    close
+ * Signature: (I)V
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixProcesses_close(
+    JNIEnv *env, jclass clazz, jint fd) {
+  if (::close(fd) == -1 && errno != EINTR) {
+    PostException(env, errno, "close (" + ErrorMessage(errno) + ")");
+  }
+}
@@ -334,6 +334,24 @@ public class ResourceManagerTest {
     thread2.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
   }
 
+  @Test
+  public void testObservedMemoryUsageDecays() throws Exception {
+    ResourceSet declared = ResourceSet.create(/*memoryMb=*/ 100, /*cpuUsage=*/ 1, 0);
+    assertThat(rm.adjustForObservedUsage("Javac", declared)).isSameInstanceAs(declared);
+
+    rm.recordObservedMemoryUsage("Javac", 200);
+    rm.recordObservedMemoryUsage("Javac", 4000);
+    assertThat(rm.adjustForObservedUsage("Javac", declared).getMemoryMb()).isEqualTo(4000.0);
+
+    for (int i = 0; i < 20; i++) {
+      rm.recordObservedMemoryUsage("Javac", 200);
+    }
+    ResourceSet adjusted = rm.adjustForObservedUsage("Javac", declared);
+    assertThat(adjusted.getMemoryMb()).isEqualTo(200.0);
+    assertThat(adjusted.getCpuUsage()).isEqualTo(1.0);
+    assertThat(rm.adjustForObservedUsage("CppCompile", declared)).isSameInstanceAs(declared);
+  }
+
   @Test
   public void testOutOfOrderAllocation() throws Exception {
     final CyclicBarrier sync3 = new CyclicBarrier(2);
@@ -20,12 +20,14 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.devtools.build.lib.actions.ActionKeyContext;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
 import com.google.devtools.build.lib.cmdline.LabelConstants;
 import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.testutil.FoundationTestCase;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Root;
 import java.util.HashMap;
@@ -455,4 +457,35 @@ public class RunfilesTest extends FoundationTestCase {
     assertThat(runfiles.getEmptyFilenames())
         .containsExactly("my-artifact-empty", "my-symlink-empty");
   }
+
+  private static String fingerprint(ActionKeyContext actionKeyContext, Runfiles runfiles) {
+    Fingerprint fp = new Fingerprint();
+    runfiles.fingerprint(actionKeyContext, fp);
+    return fp.hexDigestAndReset();
+  }
+
+  @Test
+  public void testFingerprintCoversEntries() {
+    ArtifactRoot root = ArtifactRoot.asSourceRoot(Root.fromPath(scratch.resolve("/workspace")));
+    Artifact a = ActionsTestUtil.createArtifact(root, "a");
+    Artifact b = ActionsTestUtil.createArtifact(root, "b");
+    ActionKeyContext actionKeyContext = new ActionKeyContext();
+    Runfiles base = new Runfiles.Builder("TESTING").addArtifact(a).build();
+
+    Runfiles copy = new Runfiles.Builder("TESTING").merge(base).build();
+    Runfiles other = new Runfiles.Builder("TESTING").addArtifact(b).build();
+    Runfiles symlink =
+        new Runfiles.Builder("TESTING").addSymlink(PathFragment.create("a"), b).build();
+    Runfiles rootSymlink =
+        new Runfiles.Builder("TESTING").addRootSymlink(PathFragment.create("a"), b).build();
+    Runfiles otherWorkspace = new Runfiles.Builder("OTHER").addArtifact(a).build();
+
+    String digest = fingerprint(actionKeyContext, base);
+    assertThat(fingerprint(actionKeyContext, copy)).isEqualTo(digest);
+    assertThat(fingerprint(new ActionKeyContext(), copy)).isEqualTo(digest);
+    assertThat(fingerprint(actionKeyContext, other)).isNotEqualTo(digest);
+    assertThat(fingerprint(actionKeyContext, otherWorkspace)).isNotEqualTo(digest);
+    assertThat(fingerprint(actionKeyContext, symlink))
+        .isNotEqualTo(fingerprint(actionKeyContext, rootSymlink));
+  }
 }
@@ -14,11 +14,13 @@
 package com.google.devtools.build.lib.analysis.actions;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionExecutionException;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.actions.ActionInputPrefetcher;
 import com.google.devtools.build.lib.actions.ActionResult;
@@ -29,8 +31,10 @@ import com.google.devtools.build.lib.actions.Artifact.SpecialArtifactType;
 import com.google.devtools.build.lib.actions.Artifact.TreeFileArtifact;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.CommandLine;
+import com.google.devtools.build.lib.actions.CommandLineExpansionException;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.ParameterFile.ParameterFileType;
+import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
 import com.google.devtools.build.lib.analysis.util.ActionTester;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
@@ -44,6 +48,8 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -126,6 +132,35 @@ public class ParamFileWriteActionTest extends BuildViewTestCase {
                 + "--flag1=out/artifact/myTreeFileArtifact/artifacts/treeFileArtifact2");
   }
 
+  @Test
+  public void testExpansionErrorIsAUserErrorAndLeavesNoOutput() throws Exception {
+    CommandLine failing =
+        new CommandLine() {
+          @Override
+          public Iterable<String> arguments() throws CommandLineExpansionException {
+            throw new CommandLineExpansionException("map_each failed");
+          }
+
+          @Override
+          public void expandArguments(
+              @Nullable ArtifactExpander artifactExpander, Consumer<String> args)
+              throws CommandLineExpansionException {
+            // Fails after part of the file has been written.
+            args.accept("--flag1");
+            throw new CommandLineExpansionException("map_each failed");
+          }
+        };
+    Action action = createParameterFileWriteAction(ImmutableList.<Artifact>of(), failing);
+
+    ActionExecutionContext context = actionExecutionContext();
+    ActionExecutionException e =
+        assertThrows(ActionExecutionException.class, () -> action.execute(context));
+
+    assertThat(e).hasMessageThat().contains("map_each failed");
+    assertThat(e).hasCauseThat().isInstanceOf(UserExecException.class);
+    assertThat(outputArtifact.getPath().exists()).isFalse();
+  }
+
   private SpecialArtifact createTreeArtifact(String rootRelativePath) {
     PathFragment relpath = PathFragment.create(rootRelativePath);
     return new SpecialArtifact(
@@ -24,12 +24,17 @@ import com.google.devtools.build.lib.analysis.config.BuildOptions.OptionsDiff;
 import com.google.devtools.build.lib.analysis.config.BuildOptions.OptionsDiffForReconstruction;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.rules.android.AndroidConfiguration;
+import com.google.devtools.build.lib.rules.cpp.CppConfiguration.StripMode;
 import com.google.devtools.build.lib.rules.cpp.CppOptions;
 import com.google.devtools.build.lib.rules.java.JavaOptions;
 import com.google.devtools.build.lib.rules.proto.ProtoConfiguration;
 import com.google.devtools.build.lib.rules.python.PythonOptions;
 import com.google.devtools.build.lib.skyframe.serialization.testutils.TestUtils;
 import com.google.devtools.common.options.OptionsParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.AbstractMap;
 import java.util.stream.Collectors;
 import org.junit.Test;
@@ -111,6 +116,92 @@ public final class BuildOptionsTest {
     assertThat(diffTwoThree.areSame()).isTrue();
   }
 
+  @Test
+  public void derivedOptionsEquality() throws Exception {
+    BuildOptions original =
+        BuildOptions.of(
+            ImmutableList.of(CoreOptions.class, CppOptions.class), "--compilation_mode=opt");
+    BuildOptions unchanged = original.clone();
+    BuildOptions changed = original.clone();
+    changed.get(CoreOptions.class).compilationMode = CompilationMode.DBG;
+
+    assertThat(unchanged).isEqualTo(original);
+    assertThat(unchanged.computeChecksum()).isEqualTo(original.computeChecksum());
+    assertThat(changed).isNotEqualTo(original);
+    assertThat(changed.computeChecksum()).isNotEqualTo(original.computeChecksum());
+    assertThat(changed)
+        .isEqualTo(
+            BuildOptions.of(
+                ImmutableList.of(CoreOptions.class, CppOptions.class), "--compilation_mode=dbg"));
+  }
+
+  @Test
+  public void optionsDiff_derivedOptions() throws Exception {
+    BuildOptions original =
+        BuildOptions.of(
+            ImmutableList.of(CoreOptions.class, CppOptions.class), "--compilation_mode=opt");
+    original.hashCode();
+    BuildOptions changed = original.clone();
+    changed.get(CoreOptions.class).compilationMode = CompilationMode.DBG;
+    changed.hashCode();
+
+    OptionsDiff diff = BuildOptions.diff(original, changed);
+
+    assertThat(diff.getFirst().keySet())
+        .containsExactly(
+            OptionsParser.getOptionDefinitionByName(CoreOptions.class, "compilation_mode"));
+    assertThat(diff.getSecond().values()).containsExactly(CompilationMode.DBG);
+  }
+
+  @Test
+  public void clonesShareTheFragmentsTheyDoNotHandOut() throws Exception {
+    BuildOptions original =
+        BuildOptions.of(
+            ImmutableList.of(CoreOptions.class, CppOptions.class), "--compilation_mode=opt");
+    CppOptions originalCppOptions = original.get(CppOptions.class);
+    BuildOptions clone = original.clone();
+
+    assertThat(clone.getNativeOptions()).contains(originalCppOptions);
+    assertThat(clone.get(CoreOptions.class)).isNotSameInstanceAs(original.get(CoreOptions.class));
+    assertThat(clone.getNativeOptions()).contains(originalCppOptions);
+  }
+
+  @Test
+  public void clonesAreCopiedOnWrite() throws Exception {
+    BuildOptions original =
+        BuildOptions.of(
+            ImmutableList.of(CoreOptions.class, CppOptions.class), "--compilation_mode=opt");
+    BuildOptions clone = original.clone();
+
+    clone.get(CoreOptions.class).compilationMode = CompilationMode.DBG;
+    original.get(CppOptions.class).stripBinaries = StripMode.ALWAYS;
+
+    assertThat(original.get(CoreOptions.class).compilationMode).isEqualTo(CompilationMode.OPT);
+    assertThat(clone.get(CppOptions.class).stripBinaries).isNotEqualTo(StripMode.ALWAYS);
+  }
+
+  @Test
+  public void optionsDiff_deserializedOptions() throws Exception {
+    BuildOptions original =
+        BuildOptions.of(ImmutableList.of(CppOptions.class, PythonOptions.class), "--copt=-O1");
+    original.hashCode();
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(data);
+    out.writeObject(original);
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data.toByteArray()));
+    BuildOptions deserialized = (BuildOptions) in.readObject();
+    BuildOptions changed = original.clone();
+    changed.get(CppOptions.class).coptList = ImmutableList.of("-O2");
+    changed.hashCode();
+
+    OptionsDiff diff = BuildOptions.diff(deserialized, changed);
+
+    assertThat(diff.getFirst().keySet())
+        .containsExactly(OptionsParser.getOptionDefinitionByName(CppOptions.class, "copt"));
+    assertThat(diff.getSecond().values()).containsExactly(ImmutableList.of("-O2"));
+    assertThat(BuildOptions.diff(deserialized, original).areSame()).isTrue();
+  }
+
   @Test
   public void optionsDiff_differentFragments() throws Exception {
     BuildOptions one = BuildOptions.of(ImmutableList.of(CppOptions.class));
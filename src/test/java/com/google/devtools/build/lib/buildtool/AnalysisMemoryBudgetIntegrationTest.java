@@ -0,0 +1,75 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.buildtool;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.buildtool.util.BuildIntegrationTestCase;
+import com.google.devtools.build.lib.skyframe.ConfiguredTargetValue;
+import com.google.devtools.build.lib.skyframe.util.SkyframeExecutorTestUtils;
+import com.google.devtools.build.lib.testutil.Suite;
+import com.google.devtools.build.lib.testutil.TestSpec;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that {@code --experimental_analysis_memory_budget} discards the analysis cache. */
+@TestSpec(size = Suite.MEDIUM_TESTS)
+@RunWith(JUnit4.class)
+public class AnalysisMemoryBudgetIntegrationTest extends BuildIntegrationTestCase {
+
+  @Before
+  public final void writeFiles() throws Exception {
+    write(
+        "pkg/BUILD",
+        "filegroup(name = 'top', srcs = [':dep'])",
+        "filegroup(name = 'dep', srcs = ['dep.txt'])");
+    write("pkg/dep.txt", "dep");
+  }
+
+  private ConfiguredTargetValue getDepValue() throws Exception {
+    return SkyframeExecutorTestUtils.getExistingConfiguredTargetValue(
+        getSkyframeExecutor(), label("//pkg:dep"), getTargetConfiguration());
+  }
+
+  @Test
+  public void analysisCacheDiscardedWhenBudgetExceeded() throws Exception {
+    addOptions("--experimental_analysis_memory_budget=0");
+    buildTarget("//pkg:top");
+
+    events.assertContainsInfo("discarding the analysis cache");
+    ConfiguredTargetValue dep = getDepValue();
+    assertThat(dep).isNotNull();
+    try {
+      dep.getConfiguredTarget();
+      throw new AssertionError("The configured target of //pkg:dep wasn't discarded");
+    } catch (NullPointerException expected) {
+      // The value was cleared.
+    }
+
+    events.clear();
+    buildTarget("//pkg:top");
+    events.assertContainsInfo("The analysis cache was discarded after the analysis phase");
+  }
+
+  @Test
+  public void analysisCacheKeptWithinBudget() throws Exception {
+    addOptions("--experimental_analysis_memory_budget=100");
+    buildTarget("//pkg:top");
+
+    events.assertDoesNotContainEvent("discarding the analysis cache");
+    assertThat(getDepValue().getConfiguredTarget()).isNotNull();
+  }
+}
@@ -0,0 +1,170 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.buildtool;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.NotificationEmitter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/** Tests for {@link AnalysisMemoryBudget}. */
+@RunWith(JUnit4.class)
+public class AnalysisMemoryBudgetTest {
+  private static final long MAX_HEAP_SIZE = 1000;
+
+  private final NotificationEmitter emitter = Mockito.mock(NotificationEmitter.class);
+
+  private static MemoryUsage used(long used) {
+    return new MemoryUsage(0, used, used, MAX_HEAP_SIZE);
+  }
+
+  /**
+   * Returns a budget whose tenured space is full before a garbage collection, and whose garbage
+   * collections report the given collections, in order.
+   */
+  @SafeVarargs
+  private final AnalysisMemoryBudget budget(
+      Map.Entry<String, Map<String, MemoryUsage>>... collections) {
+    AtomicReference<AnalysisMemoryBudget> budget = new AtomicReference<>();
+    budget.set(
+        new AnalysisMemoryBudget(
+            ImmutableList.of(emitter),
+            () -> MAX_HEAP_SIZE,
+            () -> {
+              for (Map.Entry<String, Map<String, MemoryUsage>> collection : collections) {
+                budget.get().recordCollection(collection.getKey(), collection.getValue());
+              }
+            },
+            /*explicitGcReported=*/ true,
+            MAX_HEAP_SIZE));
+    return budget.get();
+  }
+
+  private static Map.Entry<String, Map<String, MemoryUsage>> collection(
+      String gcCause, Map<String, MemoryUsage> memoryUsageAfterGc) {
+    return Maps.immutableEntry(gcCause, memoryUsageAfterGc);
+  }
+
+  @Test
+  public void countsOnlyTheTenuredSpace() throws Exception {
+    AnalysisMemoryBudget budget =
+        budget(
+            collection(
+                "System.gc()",
+                ImmutableMap.of("G1 Old Gen", used(500), "G1 Eden Space", used(300))));
+
+    assertThat(budget.isExceeded(0)).isTrue();
+    assertThat(budget.getRetainedHeapSize()).isEqualTo(500);
+  }
+
+  @Test
+  public void exceededAboveThePercentage() throws Exception {
+    AnalysisMemoryBudget budget =
+        budget(collection("System.gc()", ImmutableMap.of("G1 Old Gen", used(700))));
+
+    assertThat(budget.isExceeded(60)).isTrue();
+    assertThat(budget.isExceeded(70)).isFalse();
+    assertThat(budget.isExceeded(80)).isFalse();
+  }
+
+  @Test
+  public void measuresOnlyTheCollectionItTriggers() throws Exception {
+    AnalysisMemoryBudget budget =
+        budget(
+            collection("G1 Evacuation Pause", ImmutableMap.of("G1 Old Gen", used(900))),
+            collection("System.gc()", ImmutableMap.of("G1 Old Gen", used(400))),
+            collection("System.gc()", ImmutableMap.of("G1 Old Gen", used(800))));
+
+    assertThat(budget.isExceeded(50)).isFalse();
+    assertThat(budget.getRetainedHeapSize()).isEqualTo(400);
+    Mockito.verify(emitter).addNotificationListener(budget, null, null);
+    Mockito.verify(emitter).removeNotificationListener(budget, null, null);
+  }
+
+  @Test
+  public void disabledAtOneHundredPercent() throws Exception {
+    AnalysisMemoryBudget budget =
+        budget(collection("System.gc()", ImmutableMap.of("G1 Old Gen", used(MAX_HEAP_SIZE))));
+
+    assertThat(budget.isExceeded(100)).isFalse();
+    Mockito.verifyZeroInteractions(emitter);
+  }
+
+  @Test
+  public void disabledWithoutAMaximumHeapSize() throws Exception {
+    AnalysisMemoryBudget budget =
+        new AnalysisMemoryBudget(
+            ImmutableList.of(emitter),
+            () -> MAX_HEAP_SIZE,
+            () -> {},
+            /*explicitGcReported=*/ true,
+            Long.MAX_VALUE);
+
+    assertThat(budget.isExceeded(0)).isFalse();
+  }
+
+  @Test
+  public void noCollectionWhileTheTenuredSpaceInUseFitsTheBudget() throws Exception {
+    AtomicInteger collections = new AtomicInteger();
+    AnalysisMemoryBudget budget =
+        new AnalysisMemoryBudget(
+            ImmutableList.of(emitter),
+            () -> 300,
+            collections::incrementAndGet,
+            /*explicitGcReported=*/ true,
+            MAX_HEAP_SIZE);
+
+    assertThat(budget.isExceeded(50)).isFalse();
+    assertThat(budget.getRetainedHeapSize()).isEqualTo(300);
+    assertThat(collections.get()).isEqualTo(0);
+    Mockito.verifyZeroInteractions(emitter);
+  }
+
+  @Test
+  public void usesTheTenuredSpaceInUseIfExplicitCollectionsAreNotReported() throws Exception {
+    AtomicInteger collections = new AtomicInteger();
+    AnalysisMemoryBudget budget =
+        new AnalysisMemoryBudget(
+            ImmutableList.of(emitter),
+            () -> 700,
+            collections::incrementAndGet,
+            /*explicitGcReported=*/ false,
+            MAX_HEAP_SIZE);
+
+    assertThat(budget.isExceeded(60)).isTrue();
+    assertThat(budget.getRetainedHeapSize()).isEqualTo(700);
+    assertThat(budget.isExceeded(70)).isFalse();
+    assertThat(collections.get()).isEqualTo(0);
+    Mockito.verifyZeroInteractions(emitter);
+  }
+
+  @Test
+  public void measuresTheHeapOfThisJvm() throws Exception {
+    AnalysisMemoryBudget budget = new AnalysisMemoryBudget();
+
+    assertThat(budget.isExceeded(0)).isTrue();
+    assertThat(budget.getRetainedHeapSize()).isGreaterThan(0L);
+    assertThat(budget.isExceeded(99)).isFalse();
+  }
+}
@@ -180,6 +180,75 @@ public class NestedSetFingerprintCacheTest {
         });
   }
 
+  @Test
+  public void testPersistentDigestsMatch() {
+    NestedSet<String> a = NestedSetBuilder.<String>stableOrder().add("a0").add("a1").build();
+    NestedSet<String> b =
+        NestedSetBuilder.<String>stableOrder().add("b").addTransitive(a).build();
+
+    Fingerprint fingerprint = new Fingerprint();
+    cache.addNestedSetToFingerprint(fingerprint, b);
+    String digest = fingerprint.hexDigestAndReset();
+
+    NestedSetFingerprintCache persistentCache = new NestedSetFingerprintCache();
+    persistentCache.setPersistent(true);
+    Fingerprint persistentFingerprint = new Fingerprint();
+    persistentCache.addNestedSetToFingerprint(persistentFingerprint, b);
+
+    assertThat(persistentFingerprint.hexDigestAndReset()).isEqualTo(digest);
+  }
+
+  @Test
+  public void testPersistentDigestsSurviveClear() {
+    NestedSet<String> a = NestedSetBuilder.<String>stableOrder().add("a0").add("a1").build();
+    NestedSet<String> b =
+        NestedSetBuilder.<String>stableOrder().add("b").addTransitive(a).build();
+    cache.setPersistent(true);
+
+    cache.addNestedSetToFingerprint(new Fingerprint(), b);
+    assertThat(cache.getComputedDigests()).isEqualTo(2);
+    assertThat(cache.getReusedDigests()).isEqualTo(0);
+
+    cache.clear();
+    cache.addNestedSetToFingerprint(new Fingerprint(), b);
+    assertThat(cache.getComputedDigests()).isEqualTo(0);
+    assertThat(cache.getReusedDigests()).isEqualTo(1);
+    assertThat(cache.fingerprinted.count("a0")).isEqualTo(1);
+  }
+
+  @Test
+  public void testDigestsAreDroppedByClearUnlessPersistent() {
+    NestedSet<String> a = NestedSetBuilder.<String>stableOrder().add("a0").add("a1").build();
+
+    cache.addNestedSetToFingerprint(new Fingerprint(), a);
+    cache.addNestedSetToFingerprint(new Fingerprint(), a);
+    assertThat(cache.getComputedDigests()).isEqualTo(1);
+    assertThat(cache.getReusedDigests()).isEqualTo(1);
+
+    cache.clear();
+    cache.addNestedSetToFingerprint(new Fingerprint(), a);
+    assertThat(cache.getComputedDigests()).isEqualTo(1);
+    assertThat(cache.getReusedDigests()).isEqualTo(0);
+    assertThat(cache.fingerprinted.count("a0")).isEqualTo(2);
+  }
+
+  @Test
+  public void testDigestsOfParametrizedMapFnsAreDroppedByClear() {
+    NestedSet<String> a = NestedSetBuilder.<String>stableOrder().add("a0").add("a1").build();
+    cache.setPersistent(true);
+
+    cache.addNestedSetToFingerprint(new IntParametrizedMapFn(1), new Fingerprint(), a);
+    cache.clear();
+    cache.addNestedSetToFingerprint(new IntParametrizedMapFn(1), new Fingerprint(), a);
+    cache.clear();
+    cache.addNestedSetToFingerprint(new IntParametrizedMapFn(1), new Fingerprint(), a);
+
+    // Each analysis creates new instances, so keeping their digests would leak them.
+    assertThat(cache.getComputedDigests()).isEqualTo(1);
+    assertThat(cache.getReusedDigests()).isEqualTo(0);
+    assertThat(cache.fingerprinted.count("a0")).isEqualTo(3);
+  }
+
   private static class IntParametrizedMapFn extends CommandLineItem.ParametrizedMapFn<String> {
     private final int i;
 
@@ -0,0 +1,164 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.devtools.build.lib.testutil.BenchmarkRunner;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for {@link NestedSet#toList}, with and without the flatten cache and parallel
+ * flattening, on synthetic sets shaped like the transitive sets of large builds.
+ *
+ * <p>Run with {@code bazel run
+ * //src/test/java/com/google/devtools/build/lib:NestedSetFlatteningBenchmark}.
+ */
+public class NestedSetFlatteningBenchmark {
+
+  /** The shape of the benchmarked sets. */
+  public enum Shape {
+    /** A chain of subsets that each add elements to the previous one, like a deep graph. */
+    DEEP,
+    /** Many subsets of distinct elements that all include a common subset, like a wide graph. */
+    WIDE
+  }
+
+  /** How sets are flattened. */
+  public enum Mode {
+    /** With neither the flatten cache nor parallel flattening. */
+    TO_LIST,
+    /** With parallel flattening of the first expansion. */
+    PARALLEL,
+    /** With the flatten cache. */
+    CACHE
+  }
+
+  private static final int[] SIZES = {10000, 100000};
+
+  private final Shape shape;
+  private final int size;
+  private final Mode mode;
+
+  /** The subsets of the benchmarked set, which are built once. */
+  private List<NestedSet<String>> subsets;
+
+  private NestedSet<String> set;
+
+  private NestedSetFlatteningBenchmark(Shape shape, int size, Mode mode) {
+    this.shape = shape;
+    this.size = size;
+    this.mode = mode;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (Shape shape : Shape.values()) {
+      for (int size : SIZES) {
+        for (Mode mode : Mode.values()) {
+          NestedSetFlatteningBenchmark benchmark =
+              new NestedSetFlatteningBenchmark(shape, size, mode);
+          benchmark.setUp();
+          try {
+            String suffix = " shape=" + shape + " size=" + size + " mode=" + mode;
+            BenchmarkRunner.run("flattenNewSet" + suffix, benchmark::flattenNewSet);
+            BenchmarkRunner.run("flattenSameSet" + suffix, benchmark::flattenSameSet);
+          } finally {
+            benchmark.tearDown();
+          }
+        }
+      }
+    }
+  }
+
+  private void setUp() {
+    subsets = shape == Shape.DEEP ? deepSubsets(size) : wideSubsets(size);
+    set = buildSet();
+    switch (mode) {
+      case TO_LIST:
+        break;
+      case PARALLEL:
+        NestedSet.setParallelFlatteningThreshold(1000);
+        break;
+      case CACHE:
+        NestedSet.setFlattenCacheSize(10L * size);
+        break;
+    }
+  }
+
+  private void tearDown() {
+    NestedSet.setParallelFlatteningThreshold(0);
+    NestedSet.setFlattenCacheSize(0);
+  }
+
+  /** Expands a new set every time, as the first action that uses a set does. */
+  int flattenNewSet(int reps) {
+    int elements = 0;
+    for (int i = 0; i < reps; i++) {
+      elements += buildSet().toList().size();
+    }
+    return elements;
+  }
+
+  /** Expands the same set again and again, as the actions that share a set do. */
+  int flattenSameSet(int reps) {
+    int elements = 0;
+    for (int i = 0; i < reps; i++) {
+      elements += set.toList().size();
+    }
+    return elements;
+  }
+
+  private NestedSet<String> buildSet() {
+    NestedSetBuilder<String> builder = NestedSetBuilder.stableOrder();
+    for (NestedSet<String> subset : subsets) {
+      builder.addTransitive(subset);
+    }
+    return builder.add("root").build();
+  }
+
+  /**
+   * Returns the last ten subsets of a chain of subsets that each add a hundred elements. The chain
+   * is not deeper because the walk of a set recurses into its subsets.
+   */
+  private static List<NestedSet<String>> deepSubsets(int size) {
+    List<NestedSet<String>> chain = new ArrayList<>();
+    NestedSet<String> previous = NestedSetBuilder.emptySet(Order.STABLE_ORDER);
+    for (int i = 0; i < size / 100; i++) {
+      NestedSetBuilder<String> builder = NestedSetBuilder.stableOrder();
+      for (int j = 0; j < 100; j++) {
+        builder.add("deep" + (i * 100 + j));
+      }
+      previous = builder.addTransitive(previous).build();
+      chain.add(previous);
+    }
+    return chain.subList(Math.max(0, chain.size() - 10), chain.size());
+  }
+
+  /** Returns subsets of a hundred distinct elements, which all include one common subset. */
+  private static List<NestedSet<String>> wideSubsets(int size) {
+    NestedSetBuilder<String> common = NestedSetBuilder.stableOrder();
+    for (int j = 0; j < 100; j++) {
+      common.add("common" + j);
+    }
+    NestedSet<String> commonSet = common.build();
+    List<NestedSet<String>> subsets = new ArrayList<>();
+    for (int i = 0; i < size / 100; i++) {
+      NestedSetBuilder<String> builder = NestedSetBuilder.stableOrder();
+      for (int j = 0; j < 100; j++) {
+        builder.add("wide" + (i * 100 + j));
+      }
+      subsets.add(builder.addTransitive(commonSet).build());
+    }
+    return subsets;
+  }
+}
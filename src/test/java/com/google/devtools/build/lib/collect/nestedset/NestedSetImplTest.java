@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.collect.nestedset;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.testing.EqualsTester;
 import com.google.common.util.concurrent.Futures;
@@ -234,6 +235,66 @@ public class NestedSetImplTest {
     }
   }
 
+  @Test
+  public void parallelFlatteningKeepsOrder() {
+    for (Order order : Order.values()) {
+      ImmutableList<Integer> expected = createOverlappingNestedSet(order).toList();
+      NestedSet.setParallelFlatteningThreshold(10);
+      try {
+        NestedSet<Integer> set = createOverlappingNestedSet(order);
+        // The first expansion is parallel, the second one walks the set.
+        assertThat(set.toList()).containsExactlyElementsIn(expected).inOrder();
+        assertThat(set.toList()).containsExactlyElementsIn(expected).inOrder();
+        assertThat(set.toList()).containsExactlyElementsIn(expected).inOrder();
+      } finally {
+        NestedSet.setParallelFlatteningThreshold(0);
+      }
+    }
+  }
+
+  @Test
+  public void flattenCacheSharesExpansionsOfLargeSets() {
+    NestedSet.setFlattenCacheSize(100000);
+    try {
+      NestedSet<Integer> large = createOverlappingNestedSet(Order.STABLE_ORDER);
+      ImmutableList<Integer> expansion = large.toList();
+      assertThat(expansion.size()).isAtLeast(1024);
+      assertThat(large.toList()).isSameInstanceAs(expansion);
+      // A set that wraps a single subset shares its children array.
+      NestedSet<Integer> wrapper =
+          NestedSetBuilder.<Integer>stableOrder().addTransitive(large).build();
+      assertThat(wrapper.toList()).isSameInstanceAs(expansion);
+
+      NestedSet<String> small =
+          nestedSetBuilder("a").addTransitive(nestedSetBuilder("b", "c").build()).build();
+      assertThat(small.toList()).isNotSameInstanceAs(small.toList());
+    } finally {
+      NestedSet.setFlattenCacheSize(0);
+    }
+  }
+
+  /**
+   * Creates a set of 2000 elements made of subsets that share most of their elements and subsets.
+   */
+  private static NestedSet<Integer> createOverlappingNestedSet(Order order) {
+    NestedSetBuilder<Integer> builder = new NestedSetBuilder<>(order);
+    NestedSet<Integer> previous = null;
+    for (int i = 0; i < 20; i++) {
+      NestedSetBuilder<Integer> subset = new NestedSetBuilder<>(order);
+      for (int j = 0; j < 100; j++) {
+        subset.add(i * 100 + j);
+      }
+      subset.add((i + 7) % 20 * 100);
+      if (previous != null) {
+        subset.addTransitive(previous);
+      }
+      previous = subset.build();
+      builder.addTransitive(previous);
+      builder.add(i * 100 + 50);
+    }
+    return builder.build();
+  }
+
   private NestedSet<Integer> createNestedSet(Order order, int numDirects, int numTransitives,
       Order transitiveOrder) {
     NestedSetBuilder<Integer> builder = new NestedSetBuilder<>(order);
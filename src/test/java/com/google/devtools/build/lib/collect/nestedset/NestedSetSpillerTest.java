@@ -0,0 +1,278 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.testing.GcFinalization;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.protobuf.ByteString;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link NestedSetSpiller} and {@link MappedFileNestedSetStorageEndpoint}. */
+@RunWith(JUnit4.class)
+public class NestedSetSpillerTest {
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private MappedFileNestedSetStorageEndpoint endpoint;
+
+  @After
+  public void uninstallSpiller() throws Exception {
+    NestedSet.setSpiller(null);
+    if (endpoint != null) {
+      endpoint.close();
+    }
+  }
+
+  private NestedSetSpiller createSpiller(int minChildren) throws Exception {
+    endpoint =
+        MappedFileNestedSetStorageEndpoint.createForTesting(
+            tmp.newFile().toPath(), /*segmentSize=*/ 256);
+    ObjectCodecs codecs = new ObjectCodecs(AutoRegistry.get());
+    NestedSetSpiller spiller =
+        new NestedSetSpiller(
+            new NestedSetStore(endpoint),
+            codecs.getSerializationContext(),
+            codecs.getDeserializationContext(),
+            element -> element instanceof String,
+            minChildren);
+    NestedSet.setSpiller(spiller);
+    return spiller;
+  }
+
+  private static NestedSet<String> createSet(Order order, String prefix, int size) {
+    NestedSetBuilder<String> builder = new NestedSetBuilder<>(order);
+    for (int i = 0; i < size; i++) {
+      builder.add(prefix + i);
+    }
+    return builder.build();
+  }
+
+  private static NestedSet<String> createNestedSet(
+      Order order, NestedSet<String> common, NestedSet<String> other) {
+    return new NestedSetBuilder<String>(order)
+        .add("a")
+        .add("b")
+        .addTransitive(common)
+        .addTransitive(
+            new NestedSetBuilder<String>(order)
+                .add("c")
+                .addTransitive(common)
+                .addTransitive(other)
+                .build())
+        .build();
+  }
+
+  @Test
+  public void spilledSetsKeepTheirElements() throws Exception {
+    for (Order order : Order.values()) {
+      ImmutableList<String> expected =
+          createNestedSet(order, createSet(order, "common", 5), createSet(order, "other", 4))
+              .toList();
+      NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 3);
+      NestedSet<String> common = createSet(order, "common", 5);
+      NestedSet<String> other = createSet(order, "other", 4);
+      int shallowHashCode = common.shallowHashCode();
+
+      assertThat(spiller.spillRegisteredSets()).isEqualTo(2);
+
+      // Sets created later embed the children that are read back.
+      NestedSet<String> set = createNestedSet(order, common, other);
+      assertThat(common.rawChildren()).isInstanceOf(NestedSetSpiller.SpilledChildren.class);
+      assertThat(set.toList()).containsExactlyElementsIn(expected).inOrder();
+      assertThat(set.toList()).containsExactlyElementsIn(expected).inOrder();
+      assertThat(common.shallowHashCode()).isEqualTo(shallowHashCode);
+      assertThat(common.isSingleton()).isFalse();
+      endpoint.close();
+      endpoint = null;
+    }
+  }
+
+  @Test
+  public void embeddedSetsAreNotSpilled() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 3);
+    NestedSet<String> leaf = createSet(Order.STABLE_ORDER, "leaf", 5);
+    NestedSet<String> parent =
+        NestedSetBuilder.<String>stableOrder()
+            .add("a")
+            .add("b")
+            .addTransitive(leaf)
+            .addTransitive(createSet(Order.STABLE_ORDER, "other", 2))
+            .build();
+    NestedSet<String> unembedded = createSet(Order.STABLE_ORDER, "unembedded", 5);
+
+    // The children of the leaf would stay on the heap anyway, as part of those of the parent.
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(1);
+
+    assertThat(leaf.rawChildren()).isInstanceOf(Object[].class);
+    assertThat(parent.rawChildren()).isInstanceOf(Object[].class);
+    assertThat(unembedded.rawChildren()).isInstanceOf(NestedSetSpiller.SpilledChildren.class);
+  }
+
+  @Test
+  public void onlyLargeSetsAreRegistered() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 10);
+    NestedSet<String> small = createSet(Order.STABLE_ORDER, "small", 9);
+    NestedSet<String> large = createSet(Order.STABLE_ORDER, "large", 10);
+
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(1);
+
+    assertThat(small.rawChildren()).isInstanceOf(Object[].class);
+    assertThat(large.rawChildren()).isInstanceOf(NestedSetSpiller.SpilledChildren.class);
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(0);
+  }
+
+  @Test
+  public void setsCreatedWithoutSpillerAreNotSpilled() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 2);
+    NestedSet.setSpiller(null);
+    NestedSet<String> set = createSet(Order.STABLE_ORDER, "a", 10);
+
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(0);
+    assertThat(set.rawChildren()).isInstanceOf(Object[].class);
+  }
+
+  @Test
+  public void spilledChildrenLeaveTheHeapUntilNeeded() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 2);
+    NestedSet<String> set = createSet(Order.STABLE_ORDER, "a", 100);
+    // The expansion of a leaf set shares its children, so copy it.
+    ImmutableList<String> expected = ImmutableList.copyOf(new ArrayList<>(set.toList()));
+    WeakReference<Object> children = new WeakReference<>(set.rawChildren());
+
+    spiller.spillRegisteredSets();
+
+    GcFinalization.awaitClear(children);
+    assertThat(set.toList()).isEqualTo(expected);
+    assertThat(spiller.getSpilledSets()).isEqualTo(1);
+    assertThat(spiller.getRehydratedSets()).isEqualTo(1);
+  }
+
+  @Test
+  public void setsWithSharedChildrenStayShallowEqual() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 2);
+    NestedSet<String> set = createSet(Order.STABLE_ORDER, "a", 10);
+    // A set with a single subset shares the children of the subset.
+    NestedSet<String> wrapper = NestedSetBuilder.fromNestedSet(set).build();
+    assertThat(wrapper.shallowEquals(set)).isTrue();
+
+    spiller.spillRegisteredSets();
+
+    assertThat(wrapper.shallowEquals(set)).isTrue();
+    assertThat(wrapper.shallowHashCode()).isEqualTo(set.shallowHashCode());
+  }
+
+  @Test
+  public void spilledSetsShallowEqualTheirUnspilledCopies() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 2);
+    NestedSet<String> set = createSet(Order.STABLE_ORDER, "a", 10);
+    NestedSet.setSpiller(null);
+    NestedSet<String> copy = createSet(Order.STABLE_ORDER, "a", 10);
+    NestedSet<String> other = createSet(Order.STABLE_ORDER, "b", 10);
+
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(1);
+
+    assertThat(set.shallowEquals(copy)).isTrue();
+    assertThat(copy.shallowEquals(set)).isTrue();
+    assertThat(set.shallowHashCode()).isEqualTo(copy.shallowHashCode());
+    assertThat(set.shallowEquals(other)).isFalse();
+  }
+
+  @Test
+  public void reachableChildrenKeepTheirIdentity() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 2);
+    NestedSet<String> set = createSet(Order.STABLE_ORDER, "a", 100);
+    // Like an identity-keyed cache that holds on to the children.
+    Object children = set.rawChildren();
+
+    spiller.spillRegisteredSets();
+
+    assertThat(set.rawChildren()).isInstanceOf(NestedSetSpiller.SpilledChildren.class);
+    assertThat(set.getChildren()).isSameInstanceAs(children);
+    assertThat(spiller.getRehydratedSets()).isEqualTo(0);
+  }
+
+  @Test
+  public void childrenReadBackFromTheCacheOfTheStoreAreCounted() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 2);
+    NestedSet<String> set = createSet(Order.STABLE_ORDER, "a", 100);
+    NestedSet<String> equalSet = createSet(Order.STABLE_ORDER, "a", 100);
+    WeakReference<Object> children = new WeakReference<>(set.rawChildren());
+    // The store caches the children of the set spilled last under their fingerprint.
+    Object equalChildren = equalSet.rawChildren();
+
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(2);
+
+    GcFinalization.awaitClear(children);
+    assertThat(set.getChildren()).isSameInstanceAs(equalChildren);
+    assertThat(spiller.getRehydratedSets()).isEqualTo(1);
+  }
+
+  @Test
+  public void setsWithoutValueSemanticsAreNotSpilled() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 2);
+    NestedSet<Object> set =
+        NestedSetBuilder.stableOrder().add("a").add("b").add(new Object()).build();
+
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(0);
+    assertThat(set.rawChildren()).isInstanceOf(Object[].class);
+  }
+
+  @Test
+  public void restoreBringsBackTheChildrenOfSpilledSets() throws Exception {
+    NestedSetSpiller spiller = createSpiller(/*minChildren=*/ 2);
+    NestedSet<String> set = createSet(Order.STABLE_ORDER, "a", 10);
+    ImmutableList<String> expected = ImmutableList.copyOf(new ArrayList<>(set.toList()));
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(1);
+    NestedSet<String> unspilled = createSet(Order.STABLE_ORDER, "b", 10);
+
+    assertThat(spiller.restoreSpilledSets()).isEqualTo(1);
+    endpoint.close();
+    endpoint = null;
+
+    assertThat(set.rawChildren()).isInstanceOf(Object[].class);
+    assertThat(set.toList()).isEqualTo(expected);
+    // Sets registered but not spilled are forgotten.
+    assertThat(spiller.spillRegisteredSets()).isEqualTo(0);
+    assertThat(unspilled.rawChildren()).isInstanceOf(Object[].class);
+  }
+
+  @Test
+  public void mappedFileEndpointStoresEntriesAcrossSegments() throws Exception {
+    endpoint =
+        MappedFileNestedSetStorageEndpoint.createForTesting(
+            tmp.newFile("store").toPath(), /*segmentSize=*/ 16);
+    byte[] small = {1, 2, 3};
+    byte[] large = new byte[40];
+    large[39] = 7;
+    endpoint.put(ByteString.copyFromUtf8("small"), small).get();
+    endpoint.put(ByteString.copyFromUtf8("large"), large).get();
+    endpoint.put(ByteString.copyFromUtf8("other"), new byte[] {4, 5}).get();
+
+    assertThat(endpoint.get(ByteString.copyFromUtf8("small")).get()).isEqualTo(small);
+    assertThat(endpoint.get(ByteString.copyFromUtf8("large")).get()).isEqualTo(large);
+    assertThat(endpoint.get(ByteString.copyFromUtf8("other")).get()).isEqualTo(new byte[] {4, 5});
+    assertThat(endpoint.get(ByteString.copyFromUtf8("missing")).get()).isNull();
+    assertThat(endpoint.getMappedBytes()).isEqualTo(16 + 40 + 16);
+  }
+}
@@ -17,8 +17,13 @@ package com.google.devtools.build.lib.exec;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.CommandLine;
 import com.google.devtools.build.lib.actions.ParameterFile;
 import com.google.devtools.build.lib.actions.ParameterFile.ParameterFileType;
+import com.google.devtools.build.lib.analysis.actions.CustomCommandLine;
+import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.VectorArg;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.testutil.FoundationTestCase;
 import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
@@ -69,6 +74,46 @@ public class ParameterFileTest extends FoundationTestCase {
         .containsExactly("--lambda=λ");
   }
 
+  @Test
+  public void testWriteCommandLine() throws Exception {
+    CommandLine commandLine =
+        CustomCommandLine.builder()
+            .add("--foo")
+            .addAll(VectorArg.format("-I%s").addBefore("--inc").each(ImmutableList.of("a b", "c")))
+            .addAll("--joined", VectorArg.join(",").each(ImmutableList.of("d", "e")))
+            .addAll(
+                VectorArg.of(NestedSetBuilder.create(Order.STABLE_ORDER, "f", "g"))
+                    .mapped((value, args) -> args.accept(value + "_mapped")))
+            .build();
+    for (ParameterFileType type : ParameterFileType.values()) {
+      for (Charset charset :
+          ImmutableList.of(
+              StandardCharsets.ISO_8859_1, StandardCharsets.UTF_8, StandardCharsets.UTF_16)) {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ParameterFile.writeParameterFile(expected, commandLine.arguments(), type, charset);
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        ParameterFile.writeParameterFile(
+            streamed, commandLine, /*artifactExpander=*/ null, type, charset);
+        assertThat(streamed.toByteArray()).isEqualTo(expected.toByteArray());
+      }
+    }
+  }
+
+  @Test
+  public void testWriteCommandLineShellQuoted() throws Exception {
+    CommandLine commandLine =
+        CustomCommandLine.builder().addAll(ImmutableList.of("--foo", "a b")).build();
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ParameterFile.writeParameterFile(
+        outputStream,
+        commandLine,
+        /*artifactExpander=*/ null,
+        ParameterFileType.SHELL_QUOTED,
+        StandardCharsets.ISO_8859_1);
+    assertThat(new String(outputStream.toByteArray(), StandardCharsets.ISO_8859_1))
+        .isEqualTo("--foo\n'a b'\n");
+  }
+
   private static ImmutableList<String> writeContent(Charset charset, Iterable<String> content)
       throws Exception {
     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
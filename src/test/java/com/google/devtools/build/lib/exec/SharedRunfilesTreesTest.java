@@ -0,0 +1,187 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SharedRunfilesTrees}. */
+@RunWith(JUnit4.class)
+public final class SharedRunfilesTreesTest {
+  private final FileSystem fs = new InMemoryFileSystem();
+  private final Path execRoot = fs.getPath("/exec");
+  private final Path storeRoot = execRoot.getRelative("out/_runfiles_trees");
+  private final SharedRunfilesTrees sharedRunfilesTrees = new SharedRunfilesTrees();
+
+  private Path createTree(String name, String... lines) throws IOException {
+    for (String line : lines) {
+      String target = line.substring(line.indexOf(' ') + 1);
+      if (!target.isEmpty()) {
+        FileSystemUtils.createEmptyFile(fs.getPath(target));
+      }
+    }
+    Path inputManifest = execRoot.getRelative("out/bin/" + name + ".runfiles_manifest");
+    inputManifest.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeLinesAs(inputManifest, ISO_8859_1, lines);
+    Path tree = execRoot.getRelative("out/bin/" + name + ".runfiles");
+    sharedRunfilesTrees.createSymlinkTree(inputManifest, tree, storeRoot);
+    return tree;
+  }
+
+  @Before
+  public final void createTargetDirectories() throws Exception {
+    for (String directory : new String[] {"pkg", "pkg/lib", "pkg/data", "lib", "external/repo"}) {
+      execRoot.getRelative(directory).createDirectoryAndParents();
+    }
+  }
+
+  @Test
+  public void createsTheEntriesOfTheManifest() throws Exception {
+    Path tree =
+        createTree(
+            "a",
+            "ws/pkg/a /exec/pkg/a",
+            "ws/pkg/data.txt /exec/pkg/data.txt",
+            "ws/pkg/__init__.py ");
+
+    assertThat(tree.getRelative("ws/pkg/a").readSymbolicLink())
+        .isEqualTo(PathFragment.create("/exec/pkg/a"));
+    assertThat(tree.getRelative("ws/pkg/data.txt").readSymbolicLink())
+        .isEqualTo(PathFragment.create("/exec/pkg/data.txt"));
+    assertThat(tree.getRelative("ws/pkg/__init__.py").isFile(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(tree.getRelative("ws/pkg/__init__.py").getFileSize()).isEqualTo(0);
+    assertThat(FileSystemUtils.readLines(tree.getChild("MANIFEST"), ISO_8859_1))
+        .containsExactly(
+            "ws/pkg/a /exec/pkg/a",
+            "ws/pkg/data.txt /exec/pkg/data.txt",
+            "ws/pkg/__init__.py ")
+        .inOrder();
+    assertThat(sharedRunfilesTrees.getLinkedEntries()).isEqualTo(3);
+  }
+
+  @Test
+  public void identicalEntriesAreStoredOnce() throws Exception {
+    createTree("a", "ws/lib/a.so /exec/lib/a.so", "ws/lib/b.so /exec/lib/b.so", "ws/pkg/a ");
+    assertThat(sharedRunfilesTrees.getStoredEntries()).isEqualTo(3);
+
+    Path b =
+        createTree("b", "ws/lib/a.so /exec/lib/a.so", "ws/lib/b.so /exec/lib/b.so", "ws/pkg/b ");
+    assertThat(sharedRunfilesTrees.getStoredEntries()).isEqualTo(3);
+    assertThat(sharedRunfilesTrees.getLinkedEntries()).isEqualTo(6);
+    assertThat(b.getRelative("ws/lib/b.so").readSymbolicLink())
+        .isEqualTo(PathFragment.create("/exec/lib/b.so"));
+    assertThat(b.getRelative("ws/pkg/b").isFile(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(b.getRelative("ws/pkg/a").exists()).isFalse();
+  }
+
+  @Test
+  public void directoriesAreNotLinked() throws Exception {
+    Path tree =
+        createTree(
+            "a",
+            "ws/pkg/lib/x /exec/pkg/lib/x",
+            "ws/pkg/lib/y /exec/pkg/lib/y",
+            "ws/pkg/data/f /exec/pkg/data/f",
+            "repo/file /exec/external/repo/file");
+
+    for (String directory : new String[] {"ws", "ws/pkg", "ws/pkg/lib", "ws/pkg/data", "repo"}) {
+      assertThat(tree.getRelative(directory).isDirectory(Symlinks.NOFOLLOW)).isTrue();
+    }
+  }
+
+  @Test
+  public void parentDirectoriesResolveWithinTheTree() throws Exception {
+    String[] lines = {
+      "ws/pkg/lib/x /exec/pkg/lib/x",
+      "ws/pkg/lib/y /exec/pkg/lib/y",
+      "ws/pkg/data/f /exec/pkg/data/f",
+      "repo/file /exec/external/repo/file"
+    };
+    createTree("a", lines);
+    Path tree = createTree("b", lines);
+
+    // What a program running in ws/pkg/lib, whose entries are all shared, finds at ../data/f and
+    // at ../../../repo/file.
+    Path workingDirectory = tree.getRelative("ws/pkg/lib").resolveSymbolicLinks();
+    assertThat(workingDirectory).isEqualTo(tree.getRelative("ws/pkg/lib"));
+    assertThat(workingDirectory.getParentDirectory().getRelative("data/f").exists()).isTrue();
+    assertThat(
+            workingDirectory
+                .getParentDirectory()
+                .getParentDirectory()
+                .getParentDirectory()
+                .getRelative("repo/file")
+                .exists())
+        .isTrue();
+    assertThat(sharedRunfilesTrees.getStoredEntries()).isEqualTo(4);
+  }
+
+  @Test
+  public void entriesThatCannotBeLinkedAreCreatedInTheTree() throws Exception {
+    Path inputManifest = execRoot.getRelative("out/bin/a.runfiles_manifest");
+    inputManifest.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeLinesAs(inputManifest, ISO_8859_1, "ws/dangling /exec/missing");
+    Path tree = execRoot.getRelative("out/bin/a.runfiles");
+
+    sharedRunfilesTrees.createSymlinkTree(inputManifest, tree, storeRoot);
+
+    assertThat(tree.getRelative("ws/dangling").readSymbolicLink())
+        .isEqualTo(PathFragment.create("/exec/missing"));
+    assertThat(sharedRunfilesTrees.getLinkedEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void replacesThePreviousTree() throws Exception {
+    createTree("a", "ws/pkg/old /exec/pkg/old", "ws/pkg/x /exec/pkg/x");
+    Path tree = createTree("a", "ws/pkg/new /exec/pkg/new", "ws/pkg/x /exec/pkg/x");
+
+    assertThat(tree.getRelative("ws/pkg/old").exists()).isFalse();
+    assertThat(tree.getRelative("ws/pkg/new").readSymbolicLink())
+        .isEqualTo(PathFragment.create("/exec/pkg/new"));
+  }
+
+  @Test
+  public void garbageCollectionDeletesTheEntriesNotUsedSinceTheLastOne() throws Exception {
+    createTree("a", "ws/pkg/old /exec/pkg/old", "ws/pkg/x /exec/pkg/x");
+    Path b = createTree("b", "ws/pkg/y /exec/pkg/y");
+    Path leftover = storeRoot.getChild("0123.tmp-1");
+    FileSystemUtils.createEmptyFile(leftover);
+
+    sharedRunfilesTrees.collectGarbage();
+
+    assertThat(storeRoot.getDirectoryEntries()).hasSize(3);
+
+    Path a = createTree("a", "ws/pkg/new /exec/pkg/new", "ws/pkg/x /exec/pkg/x");
+    sharedRunfilesTrees.collectGarbage();
+
+    // Only the entries of the current tree of "a" are left, but the tree of "b" is unchanged.
+    assertThat(storeRoot.getDirectoryEntries()).hasSize(2);
+    assertThat(a.getRelative("ws/pkg/new").readSymbolicLink())
+        .isEqualTo(PathFragment.create("/exec/pkg/new"));
+    assertThat(b.getRelative("ws/pkg/y").readSymbolicLink())
+        .isEqualTo(PathFragment.create("/exec/pkg/y"));
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec.local;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.actions.SpawnResult.Status;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.time.Duration;
+import java.util.Optional;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SpawnCgroup}. */
+@RunWith(JUnit4.class)
+public class SpawnCgroupTest {
+
+  private final FileSystem fs = new InMemoryFileSystem();
+
+  @Test
+  public void parseFlatKeyed() {
+    assertThat(
+            SpawnCgroup.parseFlatKeyed(
+                "usage_usec 1500\nuser_usec 1000\nsystem_usec 500\nnr_periods max\n"))
+        .containsExactly("usage_usec", 1500L, "user_usec", 1000L, "system_usec", 500L);
+  }
+
+  @Test
+  public void parseIoStat_sumsDevices() {
+    assertThat(
+            SpawnCgroup.parseIoStat(
+                "8:0 rbytes=4096 wbytes=8192 rios=1 wios=2 dbytes=0 dios=0\n"
+                    + "8:16 rbytes=1024 wbytes=0 rios=1 wios=0 dbytes=0 dios=0\n"))
+        .containsAtLeast("rbytes", 5120L, "wbytes", 8192L, "rios", 2L);
+  }
+
+  @Test
+  public void createSetsLimits() throws Exception {
+    Path parent = fs.getPath("/sys/fs/cgroup/bazel");
+    parent.createDirectoryAndParents();
+
+    ResourceSet resources = ResourceSet.createWithRamCpu(/*memoryMb=*/ 100, /*cpuUsage=*/ 2);
+    try (SpawnCgroup cgroup = SpawnCgroup.create(parent, resources, 1.5)) {
+      assertThat(cgroup.getPath().getParentDirectory()).isEqualTo(parent);
+      assertThat(FileSystemUtils.readContentAsLatin1(cgroup.getPath().getRelative("cpu.weight")))
+          .isEqualTo("200".toCharArray());
+      assertThat(FileSystemUtils.readContentAsLatin1(cgroup.getPath().getRelative("memory.max")))
+          .isEqualTo(Long.toString(150L << 20).toCharArray());
+    }
+  }
+
+  @Test
+  public void wrapCommandLine() throws Exception {
+    Path parent = fs.getPath("/cgroup");
+    parent.createDirectoryAndParents();
+
+    try (SpawnCgroup cgroup = SpawnCgroup.create(parent, ResourceSet.ZERO, 0)) {
+      ImmutableList<String> args = cgroup.wrapCommandLine(ImmutableList.of("/bin/true", "arg"));
+      assertThat(args.subList(0, 2)).containsExactly("/bin/sh", "-c").inOrder();
+      assertThat(args.subList(3, args.size()))
+          .containsExactly(cgroup.getPath().getPathString(), "/bin/true", "arg")
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void statisticsAreAddedToSpawnResult() {
+    SpawnResult.Builder builder =
+        new SpawnResult.Builder().setStatus(Status.SUCCESS).setExitCode(0).setRunnerName("local");
+    new SpawnCgroup.Statistics(
+            Optional.of(2048L),
+            Optional.of(Duration.ofSeconds(1)),
+            Optional.empty(),
+            Optional.of(10L),
+            Optional.of(20L),
+            /*oomKilled=*/ false)
+        .addTo(builder);
+
+    SpawnResult result = builder.build();
+    assertThat(result.getMemoryInKb()).hasValue(2048L);
+    assertThat(result.getUserTime()).hasValue(Duration.ofSeconds(1));
+    assertThat(result.getSystemTime()).isEmpty();
+    assertThat(result.getNumBytesRead()).hasValue(10L);
+    assertThat(result.getNumBytesWritten()).hasValue(20L);
+  }
+
+  @Test
+  public void emptyGroupHasNoStatistics() throws Exception {
+    Path parent = fs.getPath("/cgroup");
+    parent.createDirectoryAndParents();
+
+    SpawnCgroup cgroup = SpawnCgroup.create(parent, ResourceSet.ZERO, 0);
+    SpawnCgroup.Statistics statistics = cgroup.getStatistics();
+    cgroup.close();
+
+    assertThat(statistics.getMemoryInKb()).isEmpty();
+    assertThat(statistics.wasOomKilled()).isFalse();
+    assertThat(cgroup.getPath().exists()).isFalse();
+  }
+
+  @Test
+  public void oomKillIsReported() throws Exception {
+    Path parent = fs.getPath("/cgroup");
+    parent.createDirectoryAndParents();
+
+    SpawnCgroup cgroup = SpawnCgroup.create(parent, ResourceSet.ZERO, 0);
+    FileSystemUtils.writeContentAsLatin1(
+        cgroup.getPath().getRelative("memory.events"), "low 0\nhigh 0\nmax 3\noom 1\noom_kill 1\n");
+    FileSystemUtils.writeContentAsLatin1(cgroup.getPath().getRelative("memory.peak"), "1048576\n");
+
+    SpawnCgroup.Statistics statistics = cgroup.getStatistics();
+    assertThat(statistics.wasOomKilled()).isTrue();
+    assertThat(statistics.getMemoryInKb()).hasValue(1024L);
+  }
+}
@@ -23,6 +23,7 @@ import com.google.common.testing.EqualsTester;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.packages.SkylarkInfo.Layout;
+import com.google.devtools.build.lib.packages.SkylarkInfo.MapBackedSkylarkInfo;
 import com.google.devtools.build.lib.syntax.EvalException;
 import java.util.Map;
 import javax.annotation.Nullable;
@@ -101,6 +102,32 @@ public class SkylarkInfoTest {
         .contains("Layout has length 2, but number of given values was 1");
   }
 
+  @Test
+  public void schemalessInstancesWithSameFieldsShareShape() throws Exception {
+    MapBackedSkylarkInfo info1 =
+        (MapBackedSkylarkInfo)
+            SkylarkInfo.createSchemaless(
+                makeProvider(), ImmutableMap.of("b", 1, "a", 2), Location.BUILTIN);
+    MapBackedSkylarkInfo info2 =
+        (MapBackedSkylarkInfo)
+            SkylarkInfo.createSchemaless(
+                makeProvider(), ImmutableMap.of("a", 3, "b", 4), Location.BUILTIN);
+    MapBackedSkylarkInfo info3 =
+        (MapBackedSkylarkInfo)
+            SkylarkInfo.createSchemaless(
+                makeProvider(), ImmutableMap.of("a", 5, "c", 6), Location.BUILTIN);
+    assertThat(info1.getShape()).isSameInstanceAs(info2.getShape());
+    assertThat(info1.getShape()).isNotEqualTo(info3.getShape());
+    assertThat(info1.isCompact()).isFalse();
+    assertThat(info1.getFieldNames()).containsExactly("a", "b").inOrder();
+    assertThat(info1.getValue("a")).isEqualTo(2);
+    assertThat(info1.getValue("b")).isEqualTo(1);
+    assertThat(info1.getValue("c")).isNull();
+    assertThat(info1.hasField("c")).isFalse();
+    assertThat(info2.getValue("a")).isEqualTo(3);
+    assertThat(info3.getValue("c")).isEqualTo(6);
+  }
+
   @Test
   public void instancesOfUnexportedProvidersAreMutable() throws Exception {
     SkylarkProvider provider = makeProvider();
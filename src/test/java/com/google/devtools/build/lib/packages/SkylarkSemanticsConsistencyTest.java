@@ -128,6 +128,7 @@ public class SkylarkSemanticsConsistencyTest {
         "--experimental_google_legacy_api=" + rand.nextBoolean(),
         "--experimental_platforms_api=" + rand.nextBoolean(),
         "--experimental_starlark_config_transitions=" + rand.nextBoolean(),
+        "--experimental_starlark_local_slots=" + rand.nextBoolean(),
         "--experimental_starlark_unused_inputs_list=" + rand.nextBoolean(),
         "--incompatible_allow_tags_propagation=" + rand.nextBoolean(),
         "--incompatible_bzl_disallow_load_after_statement=" + rand.nextBoolean(),
@@ -184,6 +185,7 @@ public class SkylarkSemanticsConsistencyTest {
         .experimentalGoogleLegacyApi(rand.nextBoolean())
         .experimentalPlatformsApi(rand.nextBoolean())
         .experimentalStarlarkConfigTransitions(rand.nextBoolean())
+        .experimentalStarlarkLocalSlots(rand.nextBoolean())
         .experimentalStarlarkUnusedInputsList(rand.nextBoolean())
         .incompatibleAllowTagsPropagation(rand.nextBoolean())
         .incompatibleBzlDisallowLoadAfterStatement(rand.nextBoolean())
@@ -666,6 +666,36 @@ public class ProfilerTest {
     assertThat(expected).hasMessageThat().isEqualTo("Expected failure.");
   }
 
+  @Test
+  public void testCounterSeriesInJsonFormat() throws Exception {
+    ByteArrayOutputStream buffer = start(getAllProfilerTasks(), JSON_TRACE_FILE_FORMAT);
+    profiler.logCounterAtTime(
+        BlazeClock.nanoTime(), ProfilerTask.ALLOCATED_BYTES, "rule class cc_library", 1234);
+    profiler.logCounterAtTime(
+        BlazeClock.nanoTime(), ProfilerTask.ALLOCATED_BYTES, "Skyframe function PACKAGE", 56);
+    profiler.stop();
+
+    String output = new String(buffer.toByteArray(), ISO_8859_1);
+    assertThat(output).contains("\"name\":\"allocated bytes: rule class cc_library\"");
+    assertThat(output).contains("\"args\":{\"bytes\":1234}");
+    assertThat(output).contains("\"name\":\"allocated bytes: Skyframe function PACKAGE\"");
+    assertThat(output).contains("\"args\":{\"bytes\":56}");
+  }
+
+  @Test
+  public void testZeroCountsAreSkippedInJsonFormat() throws Exception {
+    ByteArrayOutputStream buffer = start(getAllProfilerTasks(), JSON_TRACE_FILE_FORMAT);
+    profiler.logEventAtTime(BlazeClock.nanoTime(), ProfilerTask.TREE_DELETION_BACKLOG, "0");
+    profiler.logEventAtTime(BlazeClock.nanoTime(), ProfilerTask.TREE_DELETION_BACKLOG, "3");
+    profiler.logEventAtTime(BlazeClock.nanoTime(), ProfilerTask.LOCAL_CPU_USAGE, "0.0");
+    profiler.stop();
+
+    String output = new String(buffer.toByteArray(), ISO_8859_1);
+    assertThat(output).contains("\"args\":{\"trees\":\"3\"}");
+    assertThat(output).doesNotContain("\"args\":{\"trees\":\"0\"}");
+    assertThat(output).doesNotContain("\"args\":{\"cpu\":\"0.0\"}");
+  }
+
   private ByteArrayOutputStream getJsonProfileOutputStream(boolean slimProfile) throws IOException {
     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
     profiler.start(
@@ -17,20 +17,18 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
-import com.google.devtools.build.lib.events.Location;
-import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.packages.RuleClass;
 import com.google.devtools.build.lib.packages.RuleFunction;
+import com.google.devtools.build.lib.profiler.memory.AllocationTracker.AllocationTotals;
+import com.google.devtools.build.lib.profiler.memory.AllocationTracker.Category;
 import com.google.devtools.build.lib.profiler.memory.AllocationTracker.RuleBytes;
-import com.google.devtools.build.lib.syntax.ASTNode;
-import com.google.devtools.build.lib.syntax.BaseFunction;
+import com.google.devtools.build.lib.profiler.util.CallstackTestUtil.TestFunction;
+import com.google.devtools.build.lib.profiler.util.CallstackTestUtil.TestNode;
 import com.google.devtools.build.lib.syntax.Callstack;
-import com.google.devtools.build.lib.syntax.SyntaxTreeVisitor;
-import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.perftools.profiles.ProfileProto.Function;
 import com.google.perftools.profiles.ProfileProto.Profile;
 import com.google.perftools.profiles.ProfileProto.Sample;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -47,25 +45,6 @@ public class AllocationTrackerTest {
 
   private AllocationTracker allocationTracker;
 
-  static class TestNode extends ASTNode {
-    TestNode(String file, int line) {
-      setLocation(location(file, line));
-    }
-
-    @Override
-    public void prettyPrint(Appendable buffer, int indentLevel) throws IOException {}
-
-    @Override
-    public void accept(SyntaxTreeVisitor visitor) {}
-  }
-
-  static class TestFunction extends BaseFunction {
-    TestFunction(String file, String name, int line) {
-      super(name);
-      this.location = location(file, line);
-    }
-  }
-
   static class TestRuleFunction extends TestFunction implements RuleFunction {
 
     private final RuleClass ruleClass;
@@ -87,6 +66,7 @@ public class AllocationTrackerTest {
   public void setup() {
     Callstack.setEnabled(true);
     CurrentRuleTracker.setEnabled(true);
+    CurrentSkyFunctionTracker.setEnabled(true);
     allocationTracker = new AllocationTracker(1, 0);
   }
 
@@ -94,6 +74,7 @@ public class AllocationTrackerTest {
   public void tearDown() {
     Callstack.resetStateForTest();
     CurrentRuleTracker.setEnabled(false);
+    CurrentSkyFunctionTracker.setEnabled(false);
   }
 
   @Test
@@ -184,6 +165,100 @@ public class AllocationTrackerTest {
         .containsExactly("proto_library", new RuleBytes("proto_library").addBytes(128L));
   }
 
+  @Test
+  public void testAllocationTotals() {
+    RuleClass ruleClass = mock(RuleClass.class);
+    when(ruleClass.getName()).thenReturn("rule");
+    when(ruleClass.getKey()).thenReturn("rule");
+    CurrentSkyFunctionTracker.beginSkyFunction("CONFIGURED_TARGET");
+    CurrentRuleTracker.beginConfiguredTarget(ruleClass);
+    Callstack.push(new TestFunction("fileA", "impl", 10));
+    Callstack.push(new TestNode("fileA", 12));
+    allocationTracker.sampleAllocation(1, "", new Object(), 10);
+    Callstack.pop();
+    Callstack.pop();
+    allocationTracker.sampleAllocation(1, "", new Object(), 20);
+    CurrentRuleTracker.endConfiguredTarget();
+    CurrentSkyFunctionTracker.endSkyFunction();
+
+    CurrentSkyFunctionTracker.beginSkyFunction("PACKAGE");
+    Callstack.push(new TestFunction("fileB", "macro", 5));
+    Callstack.push(new TestNode("fileB", 7));
+    Callstack.push(new TestRuleFunction("<native>", "proto_library", -1));
+    allocationTracker.sampleAllocation(1, "", new Object(), 128);
+    for (int i = 0; i < 3; ++i) {
+      Callstack.pop();
+    }
+    allocationTracker.sampleAllocation(1, "", new Object(), 4);
+    CurrentSkyFunctionTracker.endSkyFunction();
+
+    AllocationTotals totals = allocationTracker.getAllocationTotals();
+    assertThat(totals.getBytes(Category.RULE_CLASS))
+        .containsExactly("rule", 30L, "proto_library", 128L);
+    assertThat(totals.getBytes(Category.ASPECT_CLASS)).isEmpty();
+    assertThat(totals.getBytes(Category.STARLARK_FUNCTION))
+        .containsExactly("impl (fileA)", 10L, "macro (fileB)", 128L);
+    assertThat(totals.getBytes(Category.SKY_FUNCTION))
+        .containsExactly("CONFIGURED_TARGET", 30L, "PACKAGE", 132L);
+    assertThat(totals.getTotalBytes(Category.SKY_FUNCTION)).isEqualTo(162L);
+    assertThat(totals.getLargest(Category.SKY_FUNCTION, 1))
+        .containsExactly(Maps.immutableEntry("PACKAGE", 132L));
+
+    // Allocations outside of any SkyFunction, rule or Starlark code are not sampled.
+    allocationTracker.sampleAllocation(1, "", new Object(), 1000);
+    assertThat(allocationTracker.getAllocationTotals().getTotalBytes(Category.SKY_FUNCTION))
+        .isEqualTo(162L);
+  }
+
+  @Test
+  public void testAllocationTotalsSince() {
+    CurrentSkyFunctionTracker.beginSkyFunction("PACKAGE");
+    allocationTracker.sampleAllocation(1, "", new Object(), 10);
+    AllocationTotals before = allocationTracker.getAllocationTotals();
+    allocationTracker.sampleAllocation(1, "", new Object(), 20);
+    CurrentSkyFunctionTracker.endSkyFunction();
+    CurrentSkyFunctionTracker.beginSkyFunction("GLOB");
+    allocationTracker.sampleAllocation(1, "", new Object(), 5);
+    CurrentSkyFunctionTracker.endSkyFunction();
+
+    AllocationTotals since = allocationTracker.getAllocationTotals().since(before);
+    assertThat(since.getBytes(Category.SKY_FUNCTION)).containsExactly("PACKAGE", 20L, "GLOB", 5L);
+    assertThat(since.getBytes(Category.RULE_CLASS)).isEmpty();
+  }
+
+  @Test
+  public void testContinuousModeKeepsReservoirOfSamples() {
+    allocationTracker = new AllocationTracker(1, 0, 2);
+    RuleClass ruleClass = mock(RuleClass.class);
+    when(ruleClass.getName()).thenReturn("rule");
+    when(ruleClass.getKey()).thenReturn("rule");
+    CurrentRuleTracker.beginConfiguredTarget(ruleClass);
+    Callstack.push(new TestFunction("fileA", "fn", 120));
+    Callstack.push(new TestNode("fileA", 10));
+    for (int i = 0; i < 8; i++) {
+      allocationTracker.sampleAllocation(1, "", new Object(), 16);
+    }
+    Callstack.pop();
+    Callstack.pop();
+    CurrentRuleTracker.endConfiguredTarget();
+
+    // Live objects are not tracked in continuous mode, but the totals are complete.
+    Map<String, RuleBytes> rules = new HashMap<>();
+    Map<String, RuleBytes> aspects = new HashMap<>();
+    allocationTracker.getRuleMemoryConsumption(rules, aspects);
+    assertThat(rules).isEmpty();
+    assertThat(allocationTracker.getAllocationTotals().getBytes(Category.RULE_CLASS))
+        .containsExactly("rule", 128L);
+
+    // Each of the samples kept stands for four of the eight samples taken.
+    Profile profile = allocationTracker.buildMemoryProfile();
+    assertThat(profile.getSampleList()).hasSize(2);
+    for (Sample sample : profile.getSampleList()) {
+      assertThat(sample.getValueList()).containsExactly(64L);
+      assertThat(sampleToCallstack(profile, sample)).containsExactly("fileA:fn:10");
+    }
+  }
+
   /** Formats a callstack as (file):(method name):(line) */
   private List<String> sampleToCallstack(Profile profile, Sample sample) {
     List<String> result = new ArrayList<>();
@@ -202,9 +277,4 @@ public class AllocationTrackerTest {
     }
     return result;
   }
-
-  private static Location location(String path, int line) {
-    return Location.fromPathAndStartColumn(
-        PathFragment.create(path), 0, 0, new LineAndColumn(line, 0));
-  }
 }
@@ -0,0 +1,203 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.profiler.starlark;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.profiler.util.CallstackTestUtil.TestFunction;
+import com.google.devtools.build.lib.profiler.util.CallstackTestUtil.TestNode;
+import com.google.devtools.build.lib.syntax.Callstack;
+import com.google.perftools.profiles.ProfileProto.Function;
+import com.google.perftools.profiles.ProfileProto.Profile;
+import com.google.perftools.profiles.ProfileProto.Sample;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StarlarkCpuProfiler}. */
+@RunWith(JUnit4.class)
+public class StarlarkCpuProfilerTest {
+
+  private StarlarkCpuProfiler profiler;
+
+  @Before
+  public void setup() {
+    Callstack.setEnabled(true);
+    profiler = new StarlarkCpuProfiler(Duration.ofMillis(10));
+  }
+
+  @After
+  public void tearDown() {
+    Callstack.resetStateForTest();
+    Callstack.setEnabled(false);
+  }
+
+  @Test
+  public void testEmptyCallstackIsNotSampled() {
+    profiler.sample();
+
+    assertThat(profiler.getCounts()).isEmpty();
+  }
+
+  @Test
+  public void testFramesAreAttributedTheInnermostNodeOfTheirFunction() throws Exception {
+    Callstack.push(new TestNode("BUILD", 3));
+    Callstack.push(new TestFunction("defs.bzl", "macro", 1));
+    Callstack.push(new TestNode("defs.bzl", 2));
+    Callstack.push(new TestNode("defs.bzl", 5));
+    Callstack.push(new TestFunction("lib.bzl", "helper", 10));
+    Callstack.push(new TestNode("lib.bzl", 12));
+    profiler.sample();
+    profiler.sample();
+    Callstack.pop();
+    Callstack.pop();
+    profiler.sample();
+
+    assertThat(collapsedStacks())
+        .isEqualTo(
+            "<toplevel> (BUILD);macro (defs.bzl) 1\n"
+                + "<toplevel> (BUILD);macro (defs.bzl);helper (lib.bzl) 2\n");
+  }
+
+  @Test
+  public void testFunctionWithoutNodesUsesItsOwnLocation() {
+    Callstack.push(new TestFunction("defs.bzl", "macro", 1));
+    Callstack.push(new TestNode("defs.bzl", 2));
+    Callstack.push(new TestFunction("lib.bzl", "helper", 10));
+    profiler.sample();
+
+    assertThat(profiler.getCounts().keySet())
+        .containsExactly(
+            StarlarkCpuProfiler.toFrames(
+                new Object[] {
+                  new TestFunction("defs.bzl", "macro", 1),
+                  new TestNode("defs.bzl", 2),
+                  new TestFunction("lib.bzl", "helper", 10)
+                }));
+    assertThat(samplesToCallstacks(profiler.buildPprof()))
+        .containsExactly("lib.bzl:helper:10,defs.bzl:macro:2 x1");
+  }
+
+  @Test
+  public void testPprofProfile() throws Exception {
+    Callstack.push(new TestFunction("defs.bzl", "macro", 1));
+    Callstack.push(new TestNode("defs.bzl", 2));
+    profiler.sample();
+    Callstack.push(new TestFunction("lib.bzl", "helper", 10));
+    Callstack.push(new TestNode("lib.bzl", 12));
+    profiler.sample();
+    profiler.sample();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    profiler.writePprof(out);
+    Profile profile =
+        Profile.parseFrom(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+
+    assertThat(profile.getPeriod()).isEqualTo(Duration.ofMillis(10).toNanos());
+    assertThat(profile.getSampleTypeCount()).isEqualTo(2);
+    assertThat(profile.getStringTable((int) profile.getSampleType(1).getType())).isEqualTo("cpu");
+    assertThat(samplesToCallstacks(profile))
+        .containsExactly("defs.bzl:macro:2 x1", "lib.bzl:helper:12,defs.bzl:macro:2 x2");
+    // Both samples share the location of the outer frame.
+    assertThat(profile.getLocationCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testPprofTimeIsTheStartOfProfiling() throws Exception {
+    long before = epochNanos(Instant.now());
+    profiler = StarlarkCpuProfiler.start(Duration.ofMillis(1));
+    long after = epochNanos(Instant.now());
+    Thread.sleep(20);
+    profiler.stop();
+
+    Profile profile = profiler.buildPprof();
+    assertThat(profile.getTimeNanos()).isAtLeast(before);
+    assertThat(profile.getTimeNanos()).isAtMost(after);
+    assertThat(profile.getDurationNanos()).isAtLeast(Duration.ofMillis(20).toNanos());
+  }
+
+  @Test
+  public void testSamplesOtherThreads() throws Exception {
+    CountDownLatch pushed = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            () -> {
+              Callstack.push(new TestFunction("defs.bzl", "spin", 1));
+              Callstack.push(new TestNode("defs.bzl", 2));
+              pushed.countDown();
+              while (!Thread.currentThread().isInterrupted()) {
+                // Busy, so that the thread is runnable when sampled.
+              }
+              Callstack.pop();
+              Callstack.pop();
+            });
+    thread.start();
+    pushed.await();
+    profiler = StarlarkCpuProfiler.start(Duration.ofMillis(1));
+    while (profiler.getCounts().isEmpty()) {
+      Thread.sleep(10);
+    }
+    profiler.stop();
+    thread.interrupt();
+    thread.join();
+
+    assertThat(collapsedStacks()).startsWith("spin (defs.bzl) ");
+  }
+
+  private static long epochNanos(Instant instant) {
+    return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+  }
+
+  private String collapsedStacks() throws IOException {
+    StringWriter out = new StringWriter();
+    profiler.writeCollapsedStacks(out);
+    return out.toString();
+  }
+
+  /** Formats each sample as (file):(function):(line), innermost first, followed by x(count). */
+  private static List<String> samplesToCallstacks(Profile profile) {
+    List<String> result = new ArrayList<>();
+    for (Sample sample : profile.getSampleList()) {
+      List<String> frames = new ArrayList<>();
+      for (long locationId : sample.getLocationIdList()) {
+        com.google.perftools.profiles.ProfileProto.Location location =
+            profile.getLocation((int) locationId - 1);
+        assertThat(location.getLineList()).hasSize(1);
+        Function function = profile.getFunction((int) location.getLine(0).getFunctionId() - 1);
+        frames.add(
+            String.format(
+                "%s:%s:%d",
+                profile.getStringTable((int) function.getFilename()),
+                profile.getStringTable((int) function.getName()),
+                location.getLine(0).getLine()));
+      }
+      result.add(String.join(",", frames) + " x" + sample.getValue(0));
+    }
+    return result;
+  }
+}
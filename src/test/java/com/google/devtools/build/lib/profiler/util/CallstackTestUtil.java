@@ -0,0 +1,54 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.util;
+
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.devtools.build.lib.syntax.ASTNode;
+import com.google.devtools.build.lib.syntax.BaseFunction;
+import com.google.devtools.build.lib.syntax.SyntaxTreeVisitor;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+
+/** Entries for the {@link com.google.devtools.build.lib.syntax.Callstack} of profiler tests. */
+public final class CallstackTestUtil {
+
+  private CallstackTestUtil() {}
+
+  /** A node at the given line of a file. */
+  public static class TestNode extends ASTNode {
+    public TestNode(String file, int line) {
+      setLocation(location(file, line));
+    }
+
+    @Override
+    public void prettyPrint(Appendable buffer, int indentLevel) throws IOException {}
+
+    @Override
+    public void accept(SyntaxTreeVisitor visitor) {}
+  }
+
+  /** A function defined at the given line of a file. */
+  public static class TestFunction extends BaseFunction {
+    public TestFunction(String file, String name, int line) {
+      super(name);
+      this.location = location(file, line);
+    }
+  }
+
+  private static Location location(String path, int line) {
+    return Location.fromPathAndStartColumn(
+        PathFragment.create(path), 0, 0, new LineAndColumn(line, 0));
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AsynchronousTreeDeleter}. */
+@RunWith(JUnit4.class)
+public final class AsynchronousTreeDeleterTest {
+
+  /** Permits for deleting trash batches, so that tests can hold up the deletion threads. */
+  private final Semaphore deletions = new Semaphore(Integer.MAX_VALUE);
+
+  private final FileSystem fs =
+      new InMemoryFileSystem() {
+        @Override
+        public void deleteTree(Path path) throws IOException {
+          if (path.startsWith(trashBase)) {
+            deletions.acquireUninterruptibly();
+          }
+          super.deleteTree(path);
+        }
+      };
+  private Path sandboxBase;
+  private Path trashBase;
+  private AsynchronousTreeDeleter deleter;
+
+  @Before
+  public void setUp() throws IOException {
+    sandboxBase = fs.getPath("/sandbox");
+    sandboxBase.createDirectoryAndParents();
+    trashBase = sandboxBase.getChild(AsynchronousTreeDeleter.MOVED_TRASH_DIR);
+  }
+
+  @After
+  public void tearDown() {
+    deletions.release(Integer.MAX_VALUE - deletions.availablePermits());
+    if (deleter != null) {
+      deleter.shutdown();
+    }
+  }
+
+  private Path createTree(String name) throws IOException {
+    Path tree = sandboxBase.getRelative(name);
+    tree.getRelative("a/b").createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(tree.getRelative("a/b/file"), "content");
+    return tree;
+  }
+
+  private void awaitNoPendingDeletions() throws InterruptedException {
+    for (int i = 0; i < 1000 && deleter.getPendingCount() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(deleter.getPendingCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void deleteTree_movesTreeAwayAndDeletesItEventually() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 100);
+    List<Integer> backlog = Collections.synchronizedList(new ArrayList<>());
+    deleter.setBacklogListener(backlog::add);
+    Path tree = createTree("linux-sandbox/1");
+
+    deleter.deleteTree(tree);
+
+    assertThat(tree.exists()).isFalse();
+    awaitNoPendingDeletions();
+    assertThat(trashBase.getDirectoryEntries()).isEmpty();
+    for (int i = 0; i < 1000 && !backlog.contains(0); i++) {
+      Thread.sleep(10);
+    }
+    assertThat(backlog).contains(0);
+  }
+
+  @Test
+  public void deleteTree_deletesFullBatches() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 1000);
+    for (int i = 0; i < AsynchronousTreeDeleter.BATCH_SIZE * 3; i++) {
+      deleter.deleteTree(createTree("linux-sandbox/" + i));
+    }
+
+    assertThat(sandboxBase.getRelative("linux-sandbox").getDirectoryEntries()).isEmpty();
+    awaitNoPendingDeletions();
+    assertThat(trashBase.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void deleteTree_deletesSynchronouslyWhenBacklogIsFull() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 1);
+    deleter.setThrottled(true);
+    Path first = createTree("linux-sandbox/1");
+    Path second = createTree("linux-sandbox/2");
+
+    deleter.deleteTree(first);
+    deleter.deleteTree(second);
+
+    assertThat(first.exists()).isFalse();
+    assertThat(second.exists()).isFalse();
+    assertThat(deleter.getPendingCount()).isAtMost(1);
+    awaitNoPendingDeletions();
+  }
+
+  @Test
+  public void setThreads_shrinksPoolWhileThereIsABacklog() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 1000);
+    deleter.setThreads(4);
+    deletions.drainPermits();
+    for (int i = 0; i < AsynchronousTreeDeleter.BATCH_SIZE * 8; i++) {
+      deleter.deleteTree(createTree("linux-sandbox/" + i));
+    }
+    for (int i = 0; i < 1000 && deletions.getQueueLength() < 4; i++) {
+      Thread.sleep(10);
+    }
+
+    deleter.setThreads(1);
+    deletions.release(4);
+
+    for (int i = 0; i < 1000 && deleter.getRunningThreads() > 1; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(deleter.getRunningThreads()).isEqualTo(1);
+    assertThat(deleter.getPendingCount()).isGreaterThan(0);
+    deletions.release(Integer.MAX_VALUE - deletions.availablePermits());
+    awaitNoPendingDeletions();
+  }
+
+  @Test
+  public void setMaxPending_appliesToFurtherTrees() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 1000);
+    deletions.drainPermits();
+    deleter.setMaxPending(1);
+    Path first = createTree("linux-sandbox/1");
+    Path second = createTree("linux-sandbox/2");
+
+    deleter.deleteTree(first);
+    deleter.deleteTree(second);
+
+    assertThat(first.exists()).isFalse();
+    assertThat(second.exists()).isFalse();
+    assertThat(deleter.getPendingCount()).isEqualTo(1);
+    deletions.release(Integer.MAX_VALUE - deletions.availablePermits());
+    awaitNoPendingDeletions();
+  }
+
+  @Test
+  public void deleteTreesBelow_keepsTrashDirectory() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 100);
+    createTree("linux-sandbox/1");
+    createTree("processwrapper-sandbox/1");
+
+    deleter.deleteTreesBelow(sandboxBase);
+
+    assertThat(sandboxBase.getDirectoryEntries()).containsExactly(trashBase);
+    awaitNoPendingDeletions();
+  }
+
+  @Test
+  public void throttledRate() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 100);
+    assertThat(deleter.getThrottledRate()).isEqualTo(0.0);
+
+    deleter.setThrottled(true);
+    assertThat(deleter.getThrottledRate()).isGreaterThan(0.0);
+
+    deleter.setThrottled(false);
+    assertThat(deleter.getThrottledRate()).isEqualTo(0.0);
+  }
+}
@@ -173,4 +173,54 @@ abstract class BaseSandboxfsProcessTest {
       process.destroy();
     }
   }
+
+  @Test
+  public void testMapShared() throws IOException {
+    Path mountPoint = tmpDir.getRelative("mnt");
+    mountPoint.createDirectory();
+    SandboxfsProcess process = mount(mountPoint);
+    try {
+      Path oneFile = tmpDir.getRelative("one");
+      FileSystemUtils.writeContent(oneFile, UTF_8, "One test data");
+      Path twoFile = tmpDir.getRelative("two");
+      FileSystemUtils.writeContent(twoFile, UTF_8, "Two test data");
+
+      PathFragment sharedDir =
+          process.mapShared(
+              "name",
+              ImmutableList.of(
+                  Mapping.builder()
+                      .setPath(PathFragment.create("/dir/file"))
+                      .setTarget(oneFile.asFragment())
+                      .setWritable(false)
+                      .build()));
+      assertThat(sharedDir).isEqualTo(PathFragment.create("/_shared/name"));
+      assertThat(
+          FileSystemUtils.readContent(mountPoint.getRelative("_shared/name/dir/file"), UTF_8))
+          .isEqualTo("One test data");
+
+      // Mapping the same name again reuses the existing directory.
+      assertThat(
+              process.mapShared(
+                  "name",
+                  ImmutableList.of(
+                      Mapping.builder()
+                          .setPath(PathFragment.create("/dir/file"))
+                          .setTarget(twoFile.asFragment())
+                          .setWritable(false)
+                          .build())))
+          .isEqualTo(sharedDir);
+      assertThat(
+          FileSystemUtils.readContent(mountPoint.getRelative("_shared/name/dir/file"), UTF_8))
+          .isEqualTo("One test data");
+
+      // The directory is unmapped once both references are released.
+      process.unmapShared("name");
+      assertThat(mountPoint.getRelative("_shared/name/dir/file").exists()).isTrue();
+      process.unmapShared("name");
+      assertThat(mountPoint.getRelative("_shared/name").exists()).isFalse();
+    } finally {
+      process.destroy();
+    }
+  }
 }
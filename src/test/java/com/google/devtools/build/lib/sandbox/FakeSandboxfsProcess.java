@@ -15,12 +15,15 @@
 package com.google.devtools.build.lib.sandbox;
 
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A fake in-process sandboxfs implementation that uses symlinks on the Bazel file system API.
@@ -44,6 +47,9 @@ final class FakeSandboxfsProcess implements SandboxfsProcess {
    */
   private boolean alive = true;
 
+  /** Number of references to each shared directory that is currently mapped, by name. */
+  private final Map<String, Integer> sharedDirs = new HashMap<>();
+
   /**
    * Initializes a new sandboxfs process instance.
    *
@@ -107,6 +113,29 @@ final class FakeSandboxfsProcess implements SandboxfsProcess {
     }
   }
 
+  @Override
+  public synchronized PathFragment mapShared(String name, List<Mapping> mappings)
+      throws IOException {
+    PathFragment dir = SHARED_DIR.getRelative(name);
+    if (!sharedDirs.containsKey(name)) {
+      map(mappings.stream().map(mapping -> mapping.relocate(dir)).collect(toImmutableList()));
+    }
+    sharedDirs.merge(name, 1, Integer::sum);
+    return dir;
+  }
+
+  @Override
+  public synchronized void unmapShared(String name) throws IOException {
+    int references = sharedDirs.getOrDefault(name, 0);
+    checkState(references > 0, "Shared directory %s is not mapped", name);
+    if (references > 1) {
+      sharedDirs.put(name, references - 1);
+    } else {
+      sharedDirs.remove(name);
+      unmap(SHARED_DIR.getRelative(name));
+    }
+  }
+
   @Override
   public synchronized void unmap(PathFragment mapping) throws IOException {
     checkState(alive, "Cannot be called after destroy()");
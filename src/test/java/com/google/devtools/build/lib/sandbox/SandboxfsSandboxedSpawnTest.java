@@ -77,6 +77,7 @@ public class SandboxfsSandboxedSpawnTest {
                 ImmutableSet.of(PathFragment.create("very/output.txt")), ImmutableSet.of()),
             ImmutableSet.of(PathFragment.create("wow/writable")),
             /* mapSymlinkTargets= */ false,
+            /* sharedSubtrees= */ ImmutableSet.of(),
             new SynchronousTreeDeleter());
 
     spawn.createFileSystem();
@@ -106,6 +107,7 @@ public class SandboxfsSandboxedSpawnTest {
                 ImmutableSet.of(PathFragment.create("very/output.txt")), ImmutableSet.of()),
             ImmutableSet.of(PathFragment.create("wow/writable")),
             /* mapSymlinkTargets= */ false,
+            /* sharedSubtrees= */ ImmutableSet.of(),
             new SynchronousTreeDeleter());
     spawn.createFileSystem();
     Path execRoot = spawn.getSandboxExecRoot();
@@ -136,6 +138,7 @@ public class SandboxfsSandboxedSpawnTest {
             SandboxOutputs.create(ImmutableSet.of(outputFile), ImmutableSet.of()),
             ImmutableSet.of(),
             /* mapSymlinkTargets= */ false,
+            /* sharedSubtrees= */ ImmutableSet.of(),
             new SynchronousTreeDeleter());
     spawn.createFileSystem();
     Path execRoot = spawn.getSandboxExecRoot();
@@ -149,6 +152,122 @@ public class SandboxfsSandboxedSpawnTest {
     assertThat(outputsDir.getRelative(outputFile).isFile(Symlinks.NOFOLLOW)).isTrue();
   }
 
+  private SandboxedSpawn createSpawnWithSharedSubtree(
+      Path sandboxPath, ImmutableMap<PathFragment, Path> inputs, String output) throws IOException {
+    sandboxPath.createDirectory();
+    return new SandboxfsSandboxedSpawn(
+        sandboxfs,
+        sandboxPath,
+        ImmutableList.of("/bin/true"),
+        ImmutableMap.of(),
+        new SandboxInputs(inputs, ImmutableMap.of()),
+        SandboxOutputs.create(ImmutableSet.of(PathFragment.create(output)), ImmutableSet.of()),
+        ImmutableSet.of(),
+        /* mapSymlinkTargets= */ false,
+        /* sharedSubtrees= */ ImmutableSet.of(PathFragment.create("external/tools")),
+        new SynchronousTreeDeleter());
+  }
+
+  @Test
+  public void testSharedSubtree_ReusedAcrossSandboxes() throws Exception {
+    Path compiler = workspaceDir.getRelative("tools/bin/cc");
+    compiler.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.createEmptyFile(compiler);
+    Path source = workspaceDir.getRelative("main.c");
+    FileSystemUtils.createEmptyFile(source);
+    ImmutableMap<PathFragment, Path> inputs =
+        ImmutableMap.of(
+            PathFragment.create("external/tools/bin/cc"), compiler,
+            PathFragment.create("main.c"), source);
+
+    SandboxedSpawn first = createSpawnWithSharedSubtree(outerDir.getRelative("1"), inputs, "a.o");
+    first.createFileSystem();
+    SandboxedSpawn second = createSpawnWithSharedSubtree(outerDir.getRelative("2"), inputs, "b.o");
+    second.createFileSystem();
+
+    Path firstTools = first.getSandboxExecRoot().getRelative("external/tools");
+    Path secondTools = second.getSandboxExecRoot().getRelative("external/tools");
+    assertThat(firstTools.isSymbolicLink()).isTrue();
+    assertThat(secondTools.readSymbolicLink()).isEqualTo(firstTools.readSymbolicLink());
+    assertThat(firstTools.readSymbolicLink().startsWith(sandboxfs.getMountPoint().asFragment()))
+        .isTrue();
+    assertThat(secondTools.getRelative("bin/cc").resolveSymbolicLinks()).isEqualTo(compiler);
+    assertThat(second.getSandboxExecRoot().getRelative("main.c").resolveSymbolicLinks())
+        .isEqualTo(source);
+    assertThat(sandboxfs.getMountPoint().getRelative("_shared").getDirectoryEntries()).hasSize(1);
+  }
+
+  @Test
+  public void testSharedSubtree_UnmappedWithTheLastSandbox() throws Exception {
+    Path compiler = workspaceDir.getRelative("tools/bin/cc");
+    compiler.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.createEmptyFile(compiler);
+    ImmutableMap<PathFragment, Path> inputs =
+        ImmutableMap.of(PathFragment.create("external/tools/bin/cc"), compiler);
+    Path shared = sandboxfs.getMountPoint().getRelative("_shared");
+
+    SandboxedSpawn first = createSpawnWithSharedSubtree(outerDir.getRelative("1"), inputs, "a.o");
+    first.createFileSystem();
+    SandboxedSpawn second = createSpawnWithSharedSubtree(outerDir.getRelative("2"), inputs, "b.o");
+    second.createFileSystem();
+
+    first.delete();
+    assertThat(shared.getDirectoryEntries()).hasSize(1);
+    assertThat(second.getSandboxExecRoot().getRelative("external/tools/bin/cc").exists())
+        .isTrue();
+
+    second.delete();
+    assertThat(shared.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testSharedSubtree_NotSharedWithDifferentInputs() throws Exception {
+    Path compiler = workspaceDir.getRelative("tools/bin/cc");
+    compiler.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.createEmptyFile(compiler);
+    Path linker = workspaceDir.getRelative("tools/bin/ld");
+    FileSystemUtils.createEmptyFile(linker);
+
+    SandboxedSpawn first =
+        createSpawnWithSharedSubtree(
+            outerDir.getRelative("1"),
+            ImmutableMap.of(PathFragment.create("external/tools/bin/cc"), compiler),
+            "a.o");
+    first.createFileSystem();
+    SandboxedSpawn second =
+        createSpawnWithSharedSubtree(
+            outerDir.getRelative("2"),
+            ImmutableMap.of(PathFragment.create("external/tools/bin/ld"), linker),
+            "b.o");
+    second.createFileSystem();
+
+    assertThat(first.getSandboxExecRoot().getRelative("external/tools/bin/ld").exists())
+        .isFalse();
+    assertThat(second.getSandboxExecRoot().getRelative("external/tools/bin/cc").exists())
+        .isFalse();
+    assertThat(sandboxfs.getMountPoint().getRelative("_shared").getDirectoryEntries()).hasSize(2);
+  }
+
+  @Test
+  public void testSharedSubtree_NotSharedIfWrittenTo() throws Exception {
+    Path compiler = workspaceDir.getRelative("tools/bin/cc");
+    compiler.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.createEmptyFile(compiler);
+
+    SandboxedSpawn spawn =
+        createSpawnWithSharedSubtree(
+            outerDir.getRelative("1"),
+            ImmutableMap.of(PathFragment.create("external/tools/bin/cc"), compiler),
+            "external/tools/bin/cc.log");
+    spawn.createFileSystem();
+
+    Path execRoot = spawn.getSandboxExecRoot();
+    assertThat(execRoot.getRelative("external/tools").isSymbolicLink()).isFalse();
+    assertThat(execRoot.getRelative("external/tools/bin/cc").resolveSymbolicLinks())
+        .isEqualTo(compiler);
+    assertThat(sandboxfs.getMountPoint().getRelative("_shared").exists()).isFalse();
+  }
+
   public void testSymlinks(boolean mapSymlinkTargets) throws Exception {
     Path input1 = workspaceDir.getRelative("dir1/input-1.txt");
     input1.getParentDirectory().createDirectory();
@@ -199,6 +318,7 @@ public class SandboxfsSandboxedSpawnTest {
                 ImmutableSet.of(PathFragment.create("very/output.txt")), ImmutableSet.of()),
             ImmutableSet.of(),
             mapSymlinkTargets,
+            /* sharedSubtrees= */ ImmutableSet.of(),
             new SynchronousTreeDeleter());
 
     spawn.createFileSystem();
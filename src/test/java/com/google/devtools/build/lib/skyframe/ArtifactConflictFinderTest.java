@@ -0,0 +1,190 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.testing.GcFinalization;
+import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
+import com.google.devtools.build.lib.actions.ActionKeyContext;
+import com.google.devtools.build.lib.actions.ActionLookupValue;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.BasicActionLookupValue;
+import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ConflictException;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ArtifactConflictFinder}. */
+@RunWith(JUnit4.class)
+public final class ArtifactConflictFinderTest {
+  private final FileSystem fileSystem = new InMemoryFileSystem();
+  private final Path execRoot = fileSystem.getPath("/exec");
+  private final ArtifactRoot outputRoot =
+      ArtifactRoot.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+  private final ArtifactConflictFinder finder = new ArtifactConflictFinder(new ActionKeyContext());
+  private int actionCount = 0;
+
+  private Artifact output(String path) {
+    return ActionsTestUtil.createArtifact(outputRoot, path);
+  }
+
+  /** Returns an action which can't be shared with the actions of other calls. */
+  private ActionAnalysisMetadata action(Artifact... outputs) {
+    Artifact input = ActionsTestUtil.createArtifact(outputRoot, "in/" + actionCount++);
+    return new NullAction(ImmutableList.of(input), outputs);
+  }
+
+  private static ActionLookupValue value(ActionAnalysisMetadata... actions) {
+    return new BasicActionLookupValue(ImmutableList.copyOf(actions), /*nonceVersion=*/ null) {};
+  }
+
+  private ImmutableMap<ActionAnalysisMetadata, ConflictException> check(
+      ActionLookupValue... values) throws InterruptedException {
+    return finder.findConflicts(ImmutableList.copyOf(values));
+  }
+
+  @Test
+  public void unshareableActionsWithTheSameOutputConflict() throws Exception {
+    ActionAnalysisMetadata first = action(output("a/x"));
+    ActionAnalysisMetadata second = action(output("a/x"));
+
+    ImmutableMap<ActionAnalysisMetadata, ConflictException> conflicts =
+        check(value(first), value(second));
+
+    // The values are added in parallel, so either action may be the one reported.
+    assertThat(conflicts).hasSize(1);
+    assertThat(conflicts.keySet()).containsAnyOf(first, second);
+    assertThrows(
+        ActionConflictException.class,
+        () -> conflicts.values().iterator().next().rethrowTyped());
+  }
+
+  @Test
+  public void sharedActionsDontConflict() throws Exception {
+    Artifact output = output("a/x");
+    ActionAnalysisMetadata action = new NullAction(output);
+    ActionAnalysisMetadata sharedAction = new NullAction(output);
+
+    assertThat(check(value(action), value(sharedAction), value(action))).isEmpty();
+  }
+
+  @Test
+  public void prefixConflictsReportBothActions() throws Exception {
+    ActionAnalysisMetadata prefix = action(output("a/x"));
+    ActionAnalysisMetadata inside = action(output("a/x/y"));
+    ActionAnalysisMetadata deeper = action(output("a/x/y/z"));
+    ActionAnalysisMetadata beside = action(output("a/xy"));
+
+    ImmutableMap<ActionAnalysisMetadata, ConflictException> conflicts =
+        check(value(prefix), value(inside), value(deeper), value(beside));
+
+    assertThat(conflicts.keySet()).containsExactly(prefix, inside, deeper);
+    ArtifactPrefixConflictException e =
+        assertThrows(
+            ArtifactPrefixConflictException.class, () -> conflicts.get(deeper).rethrowTyped());
+    assertThat(e).hasMessageThat().contains("'out/a/x' (belonging to");
+    assertThat(e).hasMessageThat().contains("'out/a/x/y/z'");
+  }
+
+  @Test
+  public void conflictGoesAwayWithTheConflictingValue() throws Exception {
+    ActionLookupValue first = value(action(output("a/x")));
+    ActionLookupValue second = value(action(output("a/x")));
+    ActionLookupValue third = value(action(output("a/x/y")));
+
+    assertThat(check(first, second)).hasSize(1);
+    assertThat(check(second)).isEmpty();
+    assertThat(check(second, third)).hasSize(2);
+    assertThat(check(first)).isEmpty();
+  }
+
+  @Test
+  public void laterActionConflictsWithTheRemainingOne() throws Exception {
+    ActionAnalysisMetadata first = action(output("a/x"));
+    ActionAnalysisMetadata second = action(output("a/x"));
+
+    check(value(first));
+    ActionLookupValue secondValue = value(second);
+    assertThat(check(secondValue)).isEmpty();
+    assertThat(check(secondValue, value(first)).keySet()).containsExactly(first);
+  }
+
+  @Test
+  public void onlyPathsAroundTheChangeAreChecked() throws Exception {
+    List<ActionLookupValue> values = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      values.add(value(action(output("pkg" + i + "/a"), output("pkg" + i + "/b"))));
+    }
+    assertThat(finder.findConflicts(values)).isEmpty();
+    assertThat(finder.getLastCheckedNodes()).isEqualTo(200);
+
+    assertThat(finder.findConflicts(values)).isEmpty();
+    assertThat(finder.getLastCheckedNodes()).isEqualTo(0);
+
+    values.set(7, value(action(output("pkg7/a"), output("pkg7/c"))));
+    assertThat(finder.findConflicts(values)).isEmpty();
+    assertThat(finder.getLastCheckedNodes()).isEqualTo(3);
+
+    values.add(value(action(output("pkg8"))));
+    ImmutableMap<ActionAnalysisMetadata, ConflictException> conflicts =
+        finder.findConflicts(values);
+    assertThat(conflicts.keySet())
+        .containsExactly(values.get(8).getActions().get(0), values.get(100).getActions().get(0));
+  }
+
+  @Test
+  public void outputsOfCollectedValuesAreRemoved() throws Exception {
+    WeakReference<ActionLookupValue> collected = checkAndForget(action(output("a/x")));
+    ActionLookupValue later = value(action(output("a/x")));
+
+    GcFinalization.awaitClear(collected);
+
+    assertThat(check(later)).isEmpty();
+    // The path of the collected value is examined again along with the new one.
+    assertThat(finder.getLastCheckedNodes()).isEqualTo(1);
+  }
+
+  private WeakReference<ActionLookupValue> checkAndForget(ActionAnalysisMetadata action)
+      throws InterruptedException {
+    ActionLookupValue value = value(action);
+    check(value);
+    return new WeakReference<>(value);
+  }
+
+  @Test
+  public void clearChecksEverythingAgain() throws Exception {
+    ActionLookupValue value = value(action(output("a/x"), output("a/y")));
+    check(value);
+
+    finder.clear();
+    check(value);
+
+    assertThat(finder.getLastCheckedNodes()).isEqualTo(2);
+  }
+}
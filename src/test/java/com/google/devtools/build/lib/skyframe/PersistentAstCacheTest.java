@@ -0,0 +1,208 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.cmdline.RepositoryName;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.packages.BazelLibrary;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.Environment;
+import com.google.devtools.build.lib.syntax.Mutability;
+import com.google.devtools.build.lib.syntax.StarlarkSemantics;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PersistentAstCache}. */
+@RunWith(JUnit4.class)
+public class PersistentAstCacheTest {
+
+  private static final long MAX_BYTES = 1 << 20;
+  private static final PathFragment PATH = PathFragment.create("/workspace/pkg/defs.bzl");
+  private static final byte[] CONTENT =
+      ("def f(x, y = 2):\n"
+              + "    z = [i * y for i in range(x)]\n"
+              + "    return z + [len(z)]\n"
+              + "r = f(3)\n")
+          .getBytes(StandardCharsets.ISO_8859_1);
+
+  private Path cacheDir;
+  private PersistentAstCache cache;
+
+  @Before
+  public void createCache() {
+    cacheDir = new InMemoryFileSystem().getPath("/output_base/ast_cache");
+    cache = new PersistentAstCache(cacheDir, "install_md5", MAX_BYTES);
+  }
+
+  private static Environment newEnvironment(Mutability mutability, StarlarkSemantics semantics) {
+    return Environment.builder(mutability)
+        .setSemantics(semantics)
+        .setGlobals(BazelLibrary.GLOBALS)
+        .setEventHandler(NullEventHandler.INSTANCE)
+        .build();
+  }
+
+  private static BuildFileAST parseAndValidate(byte[] content, StarlarkSemantics semantics)
+      throws IOException {
+    try (Mutability mutability = Mutability.create("validate")) {
+      return BuildFileAST.parseSkylarkFile(
+              content, new byte[] {1, 2, 3}, PATH, NullEventHandler.INSTANCE)
+          .validate(newEnvironment(mutability, semantics), NullEventHandler.INSTANCE);
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    StarlarkSemantics semantics = StarlarkSemantics.DEFAULT_SEMANTICS;
+    String key = cache.bzlKey(PATH, CONTENT, semantics);
+    assertThat(cache.get(key)).isNull();
+
+    BuildFileAST ast = parseAndValidate(CONTENT, semantics);
+    cache.put(key, ast);
+    BuildFileAST cached = new PersistentAstCache(cacheDir, "install_md5", MAX_BYTES).get(key);
+
+    assertThat(cached).isNotNull();
+    assertThat(cached.toString()).isEqualTo(ast.toString());
+    assertThat(cached.getContentHashCode()).isEqualTo(ast.getContentHashCode());
+    assertThat(cached.getLocation().toString()).isEqualTo(ast.getLocation().toString());
+    try (Mutability mutability = Mutability.create("eval")) {
+      Environment env = newEnvironment(mutability, semantics);
+      assertThat(cached.exec(env, NullEventHandler.INSTANCE)).isTrue();
+      assertThat(env.moduleLookup("r").toString()).isEqualTo("[0, 2, 4, 3]");
+    }
+  }
+
+  @Test
+  public void testRoundTripWithLocalSlots() throws Exception {
+    // Validation resolves local variables to slots; the cached AST must keep them.
+    StarlarkSemantics semantics =
+        StarlarkSemantics.builderWithDefaults().experimentalStarlarkLocalSlots(true).build();
+    String key = cache.bzlKey(PATH, CONTENT, semantics);
+    cache.put(key, parseAndValidate(CONTENT, semantics));
+
+    try (Mutability mutability = Mutability.create("eval")) {
+      Environment env = newEnvironment(mutability, semantics);
+      assertThat(cache.get(key).exec(env, NullEventHandler.INSTANCE)).isTrue();
+      assertThat(env.moduleLookup("r").toString()).isEqualTo("[0, 2, 4, 3]");
+    }
+  }
+
+  @Test
+  public void testKeysDependOnEverythingTheAstDependsOn() {
+    StarlarkSemantics semantics = StarlarkSemantics.DEFAULT_SEMANTICS;
+    String key = cache.bzlKey(PATH, CONTENT, semantics);
+
+    assertThat(cache.bzlKey(PATH, CONTENT, semantics)).isEqualTo(key);
+    assertThat(cache.bzlKey(PathFragment.create("/workspace/other.bzl"), CONTENT, semantics))
+        .isNotEqualTo(key);
+    assertThat(cache.bzlKey(PATH, "x = 1\n".getBytes(StandardCharsets.ISO_8859_1), semantics))
+        .isNotEqualTo(key);
+    assertThat(
+            cache.bzlKey(
+                PATH,
+                CONTENT,
+                StarlarkSemantics.builderWithDefaults()
+                    .experimentalStarlarkLocalSlots(true)
+                    .build()))
+        .isNotEqualTo(key);
+    assertThat(
+            new PersistentAstCache(cacheDir, "other_md5", MAX_BYTES)
+                .bzlKey(PATH, CONTENT, semantics))
+        .isNotEqualTo(key);
+    assertThat(cache.buildFileKey(PATH, CONTENT, ImmutableMap.of(), semantics)).isNotEqualTo(key);
+    assertThat(
+            cache.buildFileKey(
+                PATH,
+                CONTENT,
+                ImmutableMap.of(
+                    RepositoryName.createFromValidStrippedName("a"),
+                    RepositoryName.createFromValidStrippedName("b")),
+                semantics))
+        .isNotEqualTo(cache.buildFileKey(PATH, CONTENT, ImmutableMap.of(), semantics));
+  }
+
+  @Test
+  public void testAstsWithErrorsAreNotStored() throws Exception {
+    byte[] content = "def f(:\n".getBytes(StandardCharsets.ISO_8859_1);
+    String key = cache.bzlKey(PATH, content, StarlarkSemantics.DEFAULT_SEMANTICS);
+    cache.put(key, parseAndValidate(content, StarlarkSemantics.DEFAULT_SEMANTICS));
+
+    assertThat(cache.get(key)).isNull();
+    assertThat(cacheDir.exists()).isFalse();
+  }
+
+  @Test
+  public void testCorruptEntryIsAMissAndIsDeleted() throws Exception {
+    String key = cache.bzlKey(PATH, CONTENT, StarlarkSemantics.DEFAULT_SEMANTICS);
+    cacheDir.createDirectoryAndParents();
+    FileSystemUtils.writeContent(cacheDir.getChild(key), new byte[] {(byte) 0xff, 0x12, 0x34});
+
+    assertThat(cache.get(key)).isNull();
+    assertThat(cacheDir.getChild(key).exists()).isFalse();
+  }
+
+  @Test
+  public void testTrimEvictsLeastRecentlyUsedEntries() throws Exception {
+    cacheDir.createDirectoryAndParents();
+    for (int i = 0; i < 4; i++) {
+      Path entry = cacheDir.getChild("entry" + i);
+      FileSystemUtils.writeContent(entry, new byte[100]);
+      entry.setLastModifiedTime(1000L * (i + 1));
+    }
+    // Reading entry0 would make it the most recently used one.
+    cacheDir.getChild("entry0").setLastModifiedTime(10000L);
+
+    new PersistentAstCache(cacheDir, "install_md5", 250).trim();
+
+    assertThat(cacheDir.getChild("entry0").exists()).isTrue();
+    assertThat(cacheDir.getChild("entry1").exists()).isFalse();
+    assertThat(cacheDir.getChild("entry2").exists()).isFalse();
+    assertThat(cacheDir.getChild("entry3").exists()).isTrue();
+  }
+
+  @Test
+  public void testHitMarksEntryAsRecentlyUsed() throws Exception {
+    String key = cache.bzlKey(PATH, CONTENT, StarlarkSemantics.DEFAULT_SEMANTICS);
+    cache.put(key, parseAndValidate(CONTENT, StarlarkSemantics.DEFAULT_SEMANTICS));
+    cacheDir.getChild(key).setLastModifiedTime(1000L);
+
+    assertThat(cache.get(key)).isNotNull();
+    assertThat(cacheDir.getChild(key).getLastModifiedTime()).isGreaterThan(1000L);
+  }
+
+  @Test
+  public void testWritesTrimTheCache() throws Exception {
+    StarlarkSemantics semantics = StarlarkSemantics.DEFAULT_SEMANTICS;
+    PersistentAstCache small = new PersistentAstCache(cacheDir, "install_md5", 1);
+    for (int i = 0; i < 3; i++) {
+      PathFragment path = PathFragment.create("/workspace/pkg" + i + "/defs.bzl");
+      small.put(small.bzlKey(path, CONTENT, semantics), parseAndValidate(CONTENT, semantics));
+    }
+
+    // Every write exceeds the limit, so at most the entry being written survives a trim.
+    assertThat(cacheDir.getDirectoryEntries().size()).isAtMost(1);
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.packages.Attribute.attr;
+
+import com.google.common.collect.ObjectArrays;
+import com.google.devtools.build.lib.analysis.BaseRuleClasses;
+import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
+import com.google.devtools.build.lib.analysis.ConfiguredTarget;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.analysis.util.AnalysisTestCase;
+import com.google.devtools.build.lib.analysis.util.MockRule;
+import com.google.devtools.build.lib.packages.BuildType;
+import com.google.devtools.build.lib.packages.RuleClass;
+import com.google.devtools.build.lib.skyframe.trimming.TrimmableTestConfigurationFragments.AConfig;
+import com.google.devtools.build.lib.skyframe.trimming.TrimmableTestConfigurationFragments.BConfig;
+import com.google.devtools.build.lib.skyframe.trimming.TrimmableTestConfigurationFragments.DepsCollectingFactory;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import com.google.devtools.build.lib.util.FileTypeSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that with retroactive trimming, configured targets are reused across configurations which
+ * only differ in fragments the targets don't require.
+ */
+@RunWith(JUnit4.class)
+public final class RetroactiveTrimmingReuseTest extends AnalysisTestCase {
+
+  private static final MockRule ALPHA_RULE =
+      () ->
+          MockRule.ancestor(BaseRuleClasses.BaseRule.class)
+              .factory(DepsCollectingFactory.class)
+              .define("alpha_rule", (builder, env) -> define(builder, AConfig.class));
+
+  private static final MockRule BRAVO_RULE =
+      () ->
+          MockRule.ancestor(BaseRuleClasses.BaseRule.class)
+              .factory(DepsCollectingFactory.class)
+              .define("bravo_rule", (builder, env) -> define(builder, BConfig.class));
+
+  private static void define(
+      RuleClass.Builder builder, Class<? extends BuildConfiguration.Fragment> fragment) {
+    builder
+        .add(attr("deps", BuildType.LABEL_LIST).allowedFileTypes(FileTypeSet.ANY_FILE))
+        .requiresConfigurationFragments(fragment);
+  }
+
+  @Before
+  public void setUpRulesAndFragments() throws Exception {
+    ConfiguredRuleClassProvider.Builder builder = new ConfiguredRuleClassProvider.Builder();
+    TestRuleClassProvider.addStandardRules(builder);
+    builder
+        .addConfigurationFragment(AConfig.FACTORY)
+        .addConfigurationFragment(BConfig.FACTORY)
+        .addRuleDefinition(ALPHA_RULE)
+        .addRuleDefinition(BRAVO_RULE);
+    useRuleClassProvider(builder.build());
+    scratch.file(
+        "test/BUILD",
+        "alpha_rule(name = 'alpha')",
+        "alpha_rule(name = 'alpha_with_bravo', deps = [':bravo'])",
+        "bravo_rule(name = 'bravo')",
+        "cc_library(name = 'cc', srcs = ['cc.cc'])",
+        "java_library(name = 'java', srcs = ['Java.java'])");
+  }
+
+  private ConfiguredTarget analyze(String label, String... args) throws Exception {
+    useConfiguration(ObjectArrays.concat("--experimental_dynamic_configs=retroactive", args));
+    update(label);
+    return getConfiguredTarget(label);
+  }
+
+  @Test
+  public void reusedWhenUnrequiredFragmentChanges() throws Exception {
+    ConfiguredTarget first = analyze("//test:alpha", "--bravo=1");
+    ConfiguredTarget second = analyze("//test:alpha", "--bravo=2");
+
+    assertThat(second).isSameInstanceAs(first);
+  }
+
+  @Test
+  public void reanalyzedWhenRequiredFragmentChanges() throws Exception {
+    ConfiguredTarget first = analyze("//test:alpha", "--alpha=1");
+    ConfiguredTarget second = analyze("//test:alpha", "--alpha=2");
+
+    assertThat(second).isNotSameInstanceAs(first);
+  }
+
+  @Test
+  public void reanalyzedWhenFragmentOfDependencyChanges() throws Exception {
+    ConfiguredTarget first = analyze("//test:alpha_with_bravo", "--bravo=1");
+    ConfiguredTarget second = analyze("//test:alpha_with_bravo", "--bravo=2");
+
+    assertThat(second).isNotSameInstanceAs(first);
+  }
+
+  @Test
+  public void reusedAfterTogglingBack() throws Exception {
+    ConfiguredTarget first = analyze("//test:alpha", "--bravo=1");
+    analyze("//test:alpha", "--alpha=2", "--bravo=1");
+    ConfiguredTarget third = analyze("//test:alpha", "--bravo=3");
+
+    assertThat(third).isSameInstanceAs(first);
+  }
+
+  // The real C++ and Java rules use toolchain resolution, so their trimmed configurations include
+  // the fragments of their resolved toolchains.
+
+  @Test
+  public void ruleWithToolchainsReusedWhenUnrequiredFragmentChanges() throws Exception {
+    ConfiguredTarget first = analyze("//test:cc", "--javacopt=-g:none");
+    ConfiguredTarget second = analyze("//test:cc", "--javacopt=-g");
+
+    assertThat(second).isSameInstanceAs(first);
+  }
+
+  @Test
+  public void ruleWithToolchainsReanalyzedWhenRequiredFragmentChanges() throws Exception {
+    ConfiguredTarget first = analyze("//test:cc", "--copt=-O1");
+    ConfiguredTarget second = analyze("//test:cc", "--copt=-O2");
+
+    assertThat(second).isNotSameInstanceAs(first);
+  }
+
+  @Test
+  public void javaRuleReusedWhenUnrequiredFragmentChanges() throws Exception {
+    ConfiguredTarget first = analyze("//test:java", "--bravo=1");
+    ConfiguredTarget second = analyze("//test:java", "--bravo=2");
+
+    assertThat(second).isSameInstanceAs(first);
+  }
+
+  @Test
+  public void javaRuleReanalyzedWhenRequiredFragmentChanges() throws Exception {
+    ConfiguredTarget first = analyze("//test:java", "--javacopt=-g:none");
+    ConfiguredTarget second = analyze("//test:java", "--javacopt=-g");
+
+    assertThat(second).isNotSameInstanceAs(first);
+  }
+}
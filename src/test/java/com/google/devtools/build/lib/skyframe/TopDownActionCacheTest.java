@@ -15,8 +15,7 @@ package com.google.devtools.build.lib.skyframe;
 
 import static com.google.common.truth.Truth.assertThat;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.actions.ActionKeyContext;
@@ -25,8 +24,8 @@ import com.google.devtools.build.lib.actions.util.TestAction;
 import com.google.devtools.build.lib.actionsketch.ActionSketch;
 import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import java.math.BigInteger;
 import java.util.Collection;
-import javax.annotation.Nullable;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -37,7 +36,7 @@ public class TopDownActionCacheTest extends TimestampBuilderTestCase {
 
   @Override
   protected TopDownActionCache initTopDownActionCache() {
-    return new InMemoryTopDownActionCache();
+    return new LocalTopDownActionCache(/*maxEntries=*/ 1000);
   }
 
   private void buildArtifacts(Artifact... artifacts) throws Exception {
@@ -166,20 +165,109 @@ public class TopDownActionCacheTest extends TimestampBuilderTestCase {
     assertThat(button.pressed).isFalse(); // top-down cached
   }
 
-  private static class InMemoryTopDownActionCache implements TopDownActionCache {
-    private final Cache<ActionSketch, ActionExecutionValue> cache =
-        CacheBuilder.newBuilder().build();
+  @Test
+  public void testDeletedOutputIsRebuilt() throws Exception {
+    Artifact hello = createDerivedArtifact("hello");
+    Artifact hello2 = createDerivedArtifact("hello2");
+    Button button = createActionButton(emptySet, ImmutableSet.of(hello));
+    Button button2 = createActionButton(ImmutableSet.of(hello), ImmutableSet.of(hello2));
 
-    @Nullable
-    @Override
-    public ActionExecutionValue get(ActionSketch sketch) {
-      return cache.getIfPresent(sketch);
-    }
+    buildArtifacts(hello2);
+    assertThat(button.pressed).isTrue();
+    assertThat(button2.pressed).isTrue();
 
-    @Override
-    public void put(ActionSketch sketch, ActionExecutionValue value) {
-      cache.put(sketch, value);
-    }
+    hello2.getPath().delete();
+    button.pressed = false;
+    button2.pressed = false;
+    buildArtifacts(hello2);
+    assertThat(button.pressed).isFalse(); // top-down cached
+    assertThat(button2.pressed).isTrue(); // output was deleted
+    assertThat(hello2.getPath().exists()).isTrue();
+
+    button.pressed = false;
+    button2.pressed = false;
+    buildArtifacts(hello2);
+    assertThat(button.pressed).isFalse();
+    assertThat(button2.pressed).isFalse();
+  }
+
+  @Test
+  public void testUnconditionalActionReruns() throws Exception {
+    Artifact hello = createDerivedArtifact("hello");
+    Button button = createUnconditionalActionButton(emptySet, ImmutableSet.of(hello));
+
+    buildArtifacts(hello);
+    assertThat(button.pressed).isTrue();
+
+    button.pressed = false;
+    buildArtifacts(hello);
+    assertThat(button.pressed).isTrue();
+  }
+
+  @Test
+  public void testConsumerOfVolatileActionReruns() throws Exception {
+    Artifact status = createDerivedArtifact("status");
+    Artifact stamped = createDerivedArtifact("stamped");
+    Button statusButton = createUnconditionalActionButton(emptySet, ImmutableSet.of(status));
+    Button stampedButton = createActionButton(ImmutableSet.of(status), ImmutableSet.of(stamped));
+
+    buildArtifacts(stamped);
+    assertThat(statusButton.pressed).isTrue();
+    assertThat(stampedButton.pressed).isTrue();
+
+    statusButton.pressed = false;
+    stampedButton.pressed = false;
+    buildArtifacts(stamped);
+    // The sketch of the consumer does not cover the new contents of the volatile output.
+    assertThat(statusButton.pressed).isTrue();
+    assertThat(stampedButton.pressed).isTrue();
+  }
+
+  @Test
+  public void testCacheKeepsAtMostMaxEntries() {
+    LocalTopDownActionCache cache = new LocalTopDownActionCache(/*maxEntries=*/ 1);
+    ActionSketch sketch1 = sketch(1);
+    ActionSketch sketch2 = sketch(2);
+    ActionExecutionValue value =
+        ActionExecutionValue.create(
+            ImmutableMap.of(),
+            ImmutableMap.of(),
+            /*outputSymlinks=*/ null,
+            /*discoveredModules=*/ null,
+            /*actionDependsOnBuildId=*/ false);
+
+    cache.put(sketch1, value);
+    assertThat(cache.get(sketch1)).isSameInstanceAs(value);
+    cache.put(sketch2, value);
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.get(sketch2)).isSameInstanceAs(value);
+    assertThat(cache.get(sketch1)).isNull();
+  }
+
+  /** Creates an action that runs in every build, like the workspace status action. */
+  private Button createUnconditionalActionButton(
+      Collection<Artifact> inputs, Collection<Artifact> outputs) {
+    Button button = new Button();
+    registerAction(
+        new TestAction(button, inputs, outputs) {
+          @Override
+          public boolean executeUnconditionally() {
+            return true;
+          }
+
+          @Override
+          public boolean isVolatile() {
+            return true;
+          }
+        });
+    return button;
+  }
+
+  private static ActionSketch sketch(long hash) {
+    return ActionSketch.builder()
+        .setTransitiveActionLookupHash(BigInteger.valueOf(hash))
+        .setTransitiveSourceHash(BigInteger.ONE)
+        .build();
   }
 
   private static class MutableActionKeyAction extends TestAction {
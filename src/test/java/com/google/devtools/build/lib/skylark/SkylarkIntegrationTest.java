@@ -42,6 +42,8 @@ import com.google.devtools.build.lib.analysis.test.InstrumentedFilesInfo;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.packages.AttributeContainer;
 import com.google.devtools.build.lib.packages.BuildFileContainsErrorsException;
 import com.google.devtools.build.lib.packages.BuildSetting;
@@ -62,6 +64,7 @@ import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
@@ -3131,6 +3134,42 @@ public class SkylarkIntegrationTest extends BuildViewTestCase {
               "Starlark import cycle: [//test/skylark:ext2.bzl, "
                   + "//test/skylark:ext3.bzl, //test/skylark:ext4.bzl]");
     }
+
+    @Test
+    public void testIndependentImportsReportEventsInLoadOrder() throws Exception {
+      scratch.file("test/skylark/ext1.bzl", "print('ext1')", "symbol1 = 1");
+      scratch.file(
+          "test/skylark/ext2.bzl",
+          "load('//test/skylark:ext1.bzl', 'symbol1')",
+          "print('ext2')",
+          "symbol2 = symbol1 + 1");
+      scratch.file(
+          "test/skylark/ext3.bzl",
+          "load('//test/skylark:ext1.bzl', 'symbol1')",
+          "print('ext3')",
+          "symbol3 = symbol1 + 2");
+      scratch.file(
+          "test/skylark/ext4.bzl",
+          "load('//test/skylark:ext2.bzl', 'symbol2')",
+          "load('//test/skylark:ext3.bzl', 'symbol3')",
+          "print('ext4')",
+          "symbol4 = symbol2 + symbol3");
+      scratch.file("test/skylark/ext5.bzl", "print('ext5')", "symbol5 = 5");
+      scratch.file(
+          "test/skylark/BUILD",
+          "load('//test/skylark:ext4.bzl', 'symbol4')",
+          "load('//test/skylark:ext5.bzl', 'symbol5')",
+          "genrule(name = 'rule', outs = ['out_%d' % (symbol4 + symbol5)], cmd = 'touch $@')");
+
+      assertThat(getTarget("//test/skylark:out_10")).isNotNull();
+      List<String> prints = new ArrayList<>();
+      for (Event event : eventCollector) {
+        if (event.getKind() == EventKind.DEBUG && event.getMessage().startsWith("ext")) {
+          prints.add(event.getMessage());
+        }
+      }
+      assertThat(prints).containsExactly("ext1", "ext2", "ext3", "ext4", "ext5").inOrder();
+    }
   }
 
   @Test
@@ -24,6 +24,7 @@ import com.google.devtools.build.lib.events.Location.LineAndColumn;
 import com.google.devtools.build.lib.syntax.Debuggable.ReadyToPause;
 import com.google.devtools.build.lib.syntax.Debuggable.Stepping;
 import com.google.devtools.build.lib.syntax.Environment.LexicalFrame;
+import com.google.devtools.build.lib.syntax.Environment.SlotLayout;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -102,6 +103,32 @@ public class EnvironmentDebuggingTest {
                 .build());
   }
 
+  @Test
+  public void testListFramesFromSlottedFrame() throws Exception {
+    Environment env = newEnvironment();
+    env.update("a", 1);
+    env.enterScope(
+        new BaseFunction("function") {},
+        LexicalFrame.createSlotted(
+            env.mutability(),
+            new SlotLayout(ImmutableList.of("x", "y", "z")),
+            new Object[] {2},
+            /*numArgs=*/ 1),
+        new FuncallExpression(Identifier.of("test"), ImmutableList.of()),
+        env.getGlobals());
+    env.updateLocal("z", 2, 3);
+    env.update("w", 4); // not a slot of the function
+
+    ImmutableList<DebugFrame> frames = env.listFrames(Location.BUILTIN);
+
+    assertThat(frames.get(0).lexicalFrameBindings())
+        .containsExactly("x", 2, "z", 3, "w", 4)
+        .inOrder();
+    assertThat(env.localLookup("x", 0)).isEqualTo(2);
+    assertThat(env.localLookup("y", 1)).isNull();
+    assertThat(env.localLookup("w")).isEqualTo(4);
+  }
+
   @Test
   public void testStepIntoFunction() {
     Environment env = newEnvironment();
@@ -0,0 +1,141 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.testutil.BenchmarkRunner;
+
+/**
+ * Microbenchmarks for the evaluation of Starlark code: {@link Eval}, calls of builtins through
+ * {@link FuncallExpression}, and the {@link MethodLibrary}, {@link StringModule}, {@link
+ * SkylarkList}, {@link SkylarkDict} and {@link SelectorList} operations that BUILD files and macros
+ * use most.
+ *
+ * <p>Run with {@code bazel run //src/test/java/com/google/devtools/build/lib:EvalBenchmark}.
+ */
+public class EvalBenchmark {
+
+  private static final int[] SIZES = {100, 1000};
+
+  private final int size;
+
+  private Mutability mutability;
+  private Environment env;
+  private BuildFileAST macros;
+  private BuildFileAST buildFile;
+  private BuildFileAST formatStrings;
+  private BuildFileAST comprehensions;
+  private BuildFileAST concatSelects;
+  private BuildFileAST builtinMethods;
+
+  private EvalBenchmark(int size) {
+    this.size = size;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (int size : SIZES) {
+      EvalBenchmark benchmark = new EvalBenchmark(size);
+      benchmark.setUp();
+      try {
+        String suffix = " size=" + size;
+        BenchmarkRunner.run("evalBuildFile" + suffix, benchmark::evalBuildFile);
+        BenchmarkRunner.run("stringFormatting" + suffix, benchmark::stringFormatting);
+        BenchmarkRunner.run(
+            "dictAndListComprehensions" + suffix, benchmark::dictAndListComprehensions);
+        BenchmarkRunner.run("selectConcatenation" + suffix, benchmark::selectConcatenation);
+        BenchmarkRunner.run("builtinMethodCalls" + suffix, benchmark::builtinMethodCalls);
+      } finally {
+        benchmark.tearDown();
+      }
+    }
+  }
+
+  private void setUp() throws Exception {
+    mutability = Mutability.create("benchmark");
+    env = newEnvironment(mutability);
+    macros = StarlarkBenchmarkWorkloads.parseAndValidate(env, StarlarkBenchmarkWorkloads.MACROS);
+    macros.eval(env);
+    buildFile =
+        StarlarkBenchmarkWorkloads.parseAndValidate(
+            env, StarlarkBenchmarkWorkloads.buildFile(size));
+    formatStrings = call("format_strings");
+    comprehensions = call("comprehensions");
+    // Each concatenation copies the list so far, so keep this one short.
+    concatSelects = call("concat_selects", size / 10);
+    builtinMethods = call("builtin_methods");
+  }
+
+  private void tearDown() {
+    mutability.close();
+  }
+
+  private static Environment newEnvironment(Mutability mutability) {
+    return StarlarkBenchmarkWorkloads.newEnvironment(
+        mutability, StarlarkSemantics.DEFAULT_SEMANTICS);
+  }
+
+  private BuildFileAST call(String function) throws EvalException {
+    return call(function, size);
+  }
+
+  private BuildFileAST call(String function, int n) throws EvalException {
+    return StarlarkBenchmarkWorkloads.parseAndValidate(env, function + "(" + n + ")");
+  }
+
+  /** Evaluates a large BUILD file whose targets are all declared through macros. */
+  Object evalBuildFile(int reps) throws Exception {
+    Object result = null;
+    for (int i = 0; i < reps; i++) {
+      try (Mutability mutability = Mutability.create("build file")) {
+        // The macros record the targets in a global, so start afresh every time.
+        Environment env = newEnvironment(mutability);
+        macros.eval(env);
+        result = buildFile.eval(env);
+      }
+    }
+    return result;
+  }
+
+  Object stringFormatting(int reps) throws Exception {
+    Object result = null;
+    for (int i = 0; i < reps; i++) {
+      result = formatStrings.eval(env);
+    }
+    return result;
+  }
+
+  Object dictAndListComprehensions(int reps) throws Exception {
+    Object result = null;
+    for (int i = 0; i < reps; i++) {
+      result = comprehensions.eval(env);
+    }
+    return result;
+  }
+
+  Object selectConcatenation(int reps) throws Exception {
+    Object result = null;
+    for (int i = 0; i < reps; i++) {
+      result = concatSelects.eval(env);
+    }
+    return result;
+  }
+
+  Object builtinMethodCalls(int reps) throws Exception {
+    Object result = null;
+    for (int i = 0; i < reps; i++) {
+      result = builtinMethods.eval(env);
+    }
+    return result;
+  }
+}
@@ -20,9 +20,11 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.skyframe.serialization.testutils.SerializationTester;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -42,7 +44,10 @@ public class LexerTest {
    */
   private Lexer createLexer(String input) {
     PathFragment somePath = PathFragment.create("/some/path.txt");
-    ParserInputSource inputSource = ParserInputSource.create(input, somePath);
+    return createLexer(ParserInputSource.create(input, somePath));
+  }
+
+  private Lexer createLexer(ParserInputSource inputSource) {
     Reporter reporter = new Reporter(new EventBus());
     reporter.addHandler(new EventHandler() {
       @Override
@@ -514,6 +519,41 @@ public class LexerTest {
                 + " instead.");
   }
 
+  @Test
+  public void testLatin1Input() throws Exception {
+    String input =
+        "def f(x = 0x1f):\r\n"
+            + "  # caf\u00e9\n"
+            + "  return [r'a\\b', \"\\t\\351\", '''x\ny'''] + x // 2\n"
+            + "s = 'caf\u00e9' + f$\n";
+    Token[] chars = tokens(input);
+    String charErrors = lastError;
+    Lexer lexer =
+        createLexer(
+            ParserInputSource.createFromLatin1(
+                input.getBytes(StandardCharsets.ISO_8859_1),
+                PathFragment.create("/some/path.txt")));
+    Token[] bytes = allTokens(lexer).toArray(new Token[0]);
+
+    assertThat(values(bytes)).isEqualTo(values(chars));
+    assertThat(positions(bytes)).isEqualTo(positions(chars));
+    assertThat(lexer.getComments().get(0).getValue()).isEqualTo("# caf\u00e9");
+    assertThat(lexer.createLocation(bytes[bytes.length - 3].left, 0).getStartLineAndColumn())
+        .isEqualTo(new LineAndColumn(5, 14));
+    assertThat(lastError).isEqualTo(charErrors);
+  }
+
+  @Test
+  public void testIdentifiersAndStringsAreShared() throws Exception {
+    Token[] tokens = tokens("foo = 'x' + foo + \"x\" + 'x\\n'");
+    assertThat(values(tokens))
+        .isEqualTo(
+            "IDENTIFIER(foo) EQUALS STRING(x) PLUS IDENTIFIER(foo) PLUS STRING(x) PLUS STRING(x\n) "
+                + "NEWLINE EOF");
+    assertThat(tokens[4].value).isSameInstanceAs(tokens[0].value);
+    assertThat(tokens[6].value).isSameInstanceAs(tokens[2].value);
+  }
+
   @Test
   public void testLexerLocationCodec() throws Exception {
     new SerializationTester(createLexer("foo").createLocation(0, 2)).runTests();
@@ -0,0 +1,145 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.testutil.BenchmarkRunner;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Microbenchmarks for the {@link Lexer}, the {@link Parser} and {@link ValidationEnvironment}.
+ *
+ * <p>Run with {@code bazel run //src/test/java/com/google/devtools/build/lib:ParserBenchmark}.
+ */
+public class ParserBenchmark {
+
+  // 10000 components make a BUILD file of about 5 MB, like the larger generated ones.
+  private static final int[] COMPONENTS = {100, 1000, 10000};
+
+  private final int components;
+
+  private ParserInputSource buildFile;
+  private byte[] buildFileBytes;
+  private ParserInputSource bzlFile;
+  private Mutability mutability;
+  private Environment env;
+
+  private ParserBenchmark(int components) {
+    this.components = components;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (int components : COMPONENTS) {
+      ParserBenchmark benchmark = new ParserBenchmark(components);
+      benchmark.setUp();
+      try {
+        String suffix = " components=" + components;
+        BenchmarkRunner.run("lexBuildFile" + suffix, benchmark::lexBuildFile);
+        BenchmarkRunner.run("parseBuildFile" + suffix, benchmark::parseBuildFile);
+        BenchmarkRunner.run("parseBuildFileBytes" + suffix, benchmark::parseBuildFileBytes);
+        BenchmarkRunner.run(
+            "parseLatin1BuildFileBytes" + suffix, benchmark::parseLatin1BuildFileBytes);
+        if (components == COMPONENTS[0]) {
+          // The .bzl file doesn't depend on the size of the BUILD file.
+          BenchmarkRunner.run("parseBzlFile", benchmark::parseBzlFile);
+          BenchmarkRunner.run("parseAndValidateBzlFile", benchmark::parseAndValidateBzlFile);
+        }
+      } finally {
+        benchmark.tearDown();
+      }
+    }
+  }
+
+  private void setUp() {
+    buildFile =
+        StarlarkBenchmarkWorkloads.input(
+            StarlarkBenchmarkWorkloads.buildFile(components), "/pkg/BUILD");
+    buildFileBytes =
+        StarlarkBenchmarkWorkloads.buildFile(components).getBytes(StandardCharsets.ISO_8859_1);
+    bzlFile = StarlarkBenchmarkWorkloads.input(StarlarkBenchmarkWorkloads.MACROS, "/pkg/defs.bzl");
+    mutability = Mutability.create("benchmark");
+    env =
+        StarlarkBenchmarkWorkloads.newEnvironment(mutability, StarlarkSemantics.DEFAULT_SEMANTICS);
+  }
+
+  private void tearDown() {
+    mutability.close();
+  }
+
+  int lexBuildFile(int reps) {
+    int tokens = 0;
+    for (int i = 0; i < reps; i++) {
+      Lexer lexer = new Lexer(buildFile, NullEventHandler.INSTANCE);
+      while (lexer.nextToken().kind != TokenKind.EOF) {
+        tokens++;
+      }
+    }
+    return tokens;
+  }
+
+  int parseBuildFile(int reps) {
+    int statements = 0;
+    for (int i = 0; i < reps; i++) {
+      statements += Parser.parseFile(buildFile, NullEventHandler.INSTANCE).statements.size();
+    }
+    return statements;
+  }
+
+  /** Parses a BUILD file from the bytes it was read as, decoding them into a {@code char[]}. */
+  int parseBuildFileBytes(int reps) {
+    PathFragment path = PathFragment.create("/pkg/BUILD");
+    int statements = 0;
+    for (int i = 0; i < reps; i++) {
+      ParserInputSource input =
+          ParserInputSource.create(FileSystemUtils.convertFromLatin1(buildFileBytes), path);
+      statements += Parser.parseFile(input, NullEventHandler.INSTANCE).statements.size();
+    }
+    return statements;
+  }
+
+  /** Parses a BUILD file from the bytes it was read as, lexing them directly. */
+  int parseLatin1BuildFileBytes(int reps) {
+    PathFragment path = PathFragment.create("/pkg/BUILD");
+    int statements = 0;
+    for (int i = 0; i < reps; i++) {
+      ParserInputSource input = ParserInputSource.createFromLatin1(buildFileBytes, path);
+      statements += Parser.parseFile(input, NullEventHandler.INSTANCE).statements.size();
+    }
+    return statements;
+  }
+
+  int parseBzlFile(int reps) {
+    int statements = 0;
+    for (int i = 0; i < reps; i++) {
+      statements += Parser.parseFile(bzlFile, NullEventHandler.INSTANCE).statements.size();
+    }
+    return statements;
+  }
+
+  boolean parseAndValidateBzlFile(int reps) {
+    boolean valid = true;
+    for (int i = 0; i < reps; i++) {
+      // Validation annotates the AST, so every repetition needs a fresh one.
+      valid &=
+          ValidationEnvironment.validateAst(
+              env,
+              Parser.parseFile(bzlFile, NullEventHandler.INSTANCE).statements,
+              NullEventHandler.INSTANCE);
+    }
+    return valid;
+  }
+}
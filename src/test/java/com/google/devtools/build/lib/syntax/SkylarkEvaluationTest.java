@@ -1407,6 +1407,53 @@ public class SkylarkEvaluationTest extends EvaluationTest {
         .testLookup("b", "with_args_and_kwargs(foo, args(), kwargs())");
   }
 
+  @Test
+  public void testCallSiteWithSeveralReceiverTypes() throws Exception {
+    new SkylarkTest()
+        .update("mock", new Mock())
+        .setUp(
+            "def index(x, y):",
+            "  return x.index(y)",
+            "def call(m, *args, **kwargs):",
+            "  return m.with_args_and_kwargs('foo', *args, **kwargs)",
+            "a = index('abc', 'b')",
+            "b = index(['a', 'b'], 'b')",
+            "c = index('xyz', 'z')",
+            "d = call(mock, 'bar', extraKey1=True)",
+            "e = call(mock.proxy_methods_object())")
+        .testLookup("a", 1)
+        .testLookup("b", 1)
+        .testLookup("c", 2)
+        .testLookup("d", "with_args_and_kwargs(foo, args(bar), kwargs(extraKey1=true))")
+        .testLookup("e", "with_args_and_kwargs(foo, args(), kwargs())");
+  }
+
+  @Test
+  public void testCallSiteReportsErrorsAfterSuccessfulCalls() throws Exception {
+    new SkylarkTest()
+        .update("mock", new Mock())
+        .testIfErrorContains(
+            "expected value of type 'string' for parameter 'pos', for call to function MockFn(pos)",
+            "def call(f, x):",
+            "  return f(x)",
+            "call(mock, 'a')",
+            "call(mock, 1)");
+    new SkylarkTest()
+        .testIfErrorContains(
+            "type 'int' has no method upper()",
+            "def upper(x):",
+            "  return x.upper()",
+            "upper('a')",
+            "upper(1)");
+    new SkylarkTest()
+        .testIfErrorContains(
+            "expected value of type 'string' for parameter 'sub'",
+            "def count(x, y):",
+            "  return x.count(y)",
+            "count('abc', 'a')",
+            "count('abc', None)");
+  }
+
   @Test
   public void testProxyMethodsObjectWithArgsAndKwargs() throws Exception {
     // Foo is used positionally
@@ -1831,6 +1878,35 @@ public class SkylarkEvaluationTest extends EvaluationTest {
             "res = foo()");
   }
 
+  @Test
+  public void testLocalSlots() throws Exception {
+    for (String flag :
+        new String[] {
+          "--experimental_starlark_local_slots=false", "--experimental_starlark_local_slots=true"
+        }) {
+      new SkylarkTest(flag)
+          .setUp(
+              "def f(a, b = 2, *args, **kwargs):",
+              "    c = a + b",
+              "    c += len(args) + len(kwargs)",
+              "    s = [x * c for x in range(3) if x != a]",
+              "    d = {k: v for k, v in kwargs.items()}",
+              "    for i, j in [(1, 2), (3, 4)]:",
+              "        c += i * j",
+              "    return s, d, c",
+              "res = str(f(1, 5, 6, k = 'v'))")
+          .testLookup("res", "([0, 16], {\"k\": \"v\"}, 22)");
+      new SkylarkTest(flag)
+          .testIfErrorContains(
+              "local variable 'gl' is referenced before assignment",
+              "gl = 5",
+              "def foo(x):",
+              "    if x: gl = 2",
+              "    return gl",
+              "res = foo(False)");
+    }
+  }
+
   @Test
   public void testShadowBuiltin() throws Exception {
     new SkylarkTest()
@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.syntax.SkylarkList.MutableList;
 import com.google.devtools.build.lib.syntax.SkylarkList.Tuple;
 import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
 import java.util.ArrayList;
+import java.util.Collections;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -270,6 +271,65 @@ public class SkylarkListTest extends EvaluationTestCase {
     assertThat(e).hasMessageThat().isEqualTo("trying to mutate a frozen object");
   }
 
+  @Test
+  public void testConcatOfFrozenListSharesItsElements() throws Exception {
+    Mutability frozen = Mutability.create("frozen");
+    MutableList<Object> common = MutableList.copyOf(frozen, Collections.nCopies(100, "common"));
+    frozen.freeze();
+    Mutability mutability = Mutability.create("test");
+    MutableList<Object> suffix = MutableList.of(null, "a", "b");
+    MutableList<Object> mutableSuffix = MutableList.copyOf(mutability, ImmutableList.of("c"));
+
+    MutableList<Object> left = MutableList.concat(common, suffix, mutability);
+    MutableList<Object> list = MutableList.concat(left, mutableSuffix, mutability);
+    // Modifying an operand must not affect the lazy concatenations it is part of.
+    left.add("x", /*loc=*/ null, mutability);
+    mutableSuffix.add("y", /*loc=*/ null, mutability);
+
+    assertThat(list).hasSize(103);
+    assertThat(list.get(99)).isEqualTo("common");
+    assertThat(list.subList(100, 103)).containsExactly("a", "b", "c").inOrder();
+    assertThat(left).hasSize(103);
+    assertThat(left.get(102)).isEqualTo("x");
+    list.add("d", /*loc=*/ null, mutability);
+    assertThat(list).hasSize(104);
+    assertThat(common).hasSize(100);
+  }
+
+  @Test
+  public void testLongChainOfConcatsOfFrozenList() throws Exception {
+    update("common", MutableList.copyOf((Mutability) null, Collections.nCopies(50, "x")));
+    eval(
+        "def f():",
+        "  srcs = common",
+        "  for i in range(200):",
+        "    srcs = srcs + [i]",
+        "  return srcs",
+        "srcs = f()");
+    SkylarkList<?> srcs = (SkylarkList<?>) lookup("srcs");
+    assertThat(srcs).hasSize(250);
+    assertThat(srcs.get(49)).isEqualTo("x");
+    assertThat(srcs.get(249)).isEqualTo(199);
+    assertThat(eval("srcs == common + list(range(200))")).isEqualTo(true);
+  }
+
+  @Test
+  public void testVeryLongChainOfConcatsOfFrozenList() throws Exception {
+    // Deep enough that a recursive concatenation of the segments would overflow the stack.
+    update("common", MutableList.copyOf((Mutability) null, Collections.nCopies(50, "x")));
+    eval(
+        "def f():",
+        "  srcs = common",
+        "  for i in range(100000):",
+        "    srcs = srcs + [i]",
+        "  return srcs",
+        "srcs = f()");
+    SkylarkList<?> srcs = (SkylarkList<?>) lookup("srcs");
+    assertThat(srcs).hasSize(100050);
+    assertThat(srcs.get(50)).isEqualTo(0);
+    assertThat(srcs.get(100049)).isEqualTo(99999);
+  }
+
   @Test
   public void testCopyOfTakesCopy() throws EvalException {
     ArrayList<String> copyFrom = Lists.newArrayList("hi");
@@ -0,0 +1,154 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Joiner;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.packages.BazelLibrary;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+/** Starlark sources shared by the interpreter benchmarks. */
+final class StarlarkBenchmarkWorkloads {
+
+  private StarlarkBenchmarkWorkloads() {}
+
+  /**
+   * A .bzl file in the style of a large rule set: a rule-like function, a few layers of macros
+   * calling it, and helpers doing the string and collection work that macros typically do.
+   */
+  static final String MACROS =
+      Joiner.on('\n')
+          .join(
+              "_targets = {}",
+              "",
+              "def _normalize(path):",
+              "    if path.startswith('./'):",
+              "        path = path[2:]",
+              "    return path.replace('\\\\', '/')",
+              "",
+              "def _label(dep):",
+              "    if dep.startswith(':'):",
+              "        return '//pkg' + dep",
+              "    return dep",
+              "",
+              "def _check_name(name):",
+              "    if not name or ' ' in name:",
+              "        fail('invalid name: ' + name)",
+              "",
+              "def cc_library(name, srcs = [], hdrs = [], deps = [], copts = [], **kwargs):",
+              "    _check_name(name)",
+              "    _targets[name] = {",
+              "        'srcs': [_normalize(s) for s in srcs],",
+              "        'hdrs': sorted(hdrs),",
+              "        'deps': [_label(d) for d in deps],",
+              "        'copts': copts,",
+              "        'attrs': {k: v for k, v in kwargs.items() if v != None},",
+              "    }",
+              "",
+              "def cc_component(name, srcs, deps = [], tests = [], visibility = None):",
+              "    cc_library(",
+              "        name = name,",
+              "        srcs = srcs,",
+              "        hdrs = [s.replace('.cc', '.h') for s in srcs],",
+              "        deps = deps,",
+              "        copts = ['-Wall'] + select({",
+              "            ':opt': ['-O3'],",
+              "            '//conditions:default': ['-g'],",
+              "        }),",
+              "        visibility = visibility,",
+              "    )",
+              "    for t in tests:",
+              "        cc_library(",
+              "            name = '%s_%s' % (name, t),",
+              "            srcs = ['{}_{}.cc'.format(name, t)],",
+              "            deps = deps + [':' + name],",
+              "            testonly = True,",
+              "        )",
+              "",
+              "def format_strings(n):",
+              "    out = []",
+              "    for i in range(n):",
+              "        out.append('%s/%s_%d.o' % ('bazel-out', 'obj', i))",
+              "        out.append('{}-{}'.format('lib', i))",
+              "        out.append(' '.join(['-I', 'include', str(i)]).upper().strip())",
+              "    return len(out)",
+              "",
+              "def comprehensions(n):",
+              "    d = {'k%d' % i: i for i in range(n)}",
+              "    l = [v * 2 for k, v in d.items() if v % 3 != 0]",
+              "    return len({k: v for k, v in zip(sorted(d.keys()), l)})",
+              "",
+              "def concat_selects(n):",
+              "    s = ['-O2']",
+              "    for i in range(n):",
+              "        s = s + select({'//conditions:default': ['-g%d' % i]})",
+              "    return s",
+              "",
+              "def builtin_methods(n):",
+              "    l = []",
+              "    d = {}",
+              "    for i in range(n):",
+              "        l.append(i)",
+              "        d[str(i)] = str(d.get(str(i - 1), 'x')).endswith('e')",
+              "        l.extend('a,b'.split(','))",
+              "    return len(l) + len(d) + l.index(0)",
+              "");
+
+  /**
+   * Returns a BUILD file with the given number of components, each of which calls the macros in
+   * {@link #MACROS} with a handful of sources, dependencies on earlier components and tests.
+   */
+  static String buildFile(int components) {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < components; i++) {
+      content
+          .append("cc_component(\n")
+          .append("    name = 'lib").append(i).append("',\n")
+          .append("    srcs = [\n");
+      for (int j = 0; j < 5; j++) {
+        content.append("        './lib").append(i).append("/src").append(j).append(".cc',\n");
+      }
+      content.append("    ],\n").append("    deps = [\n");
+      for (int j = Math.max(0, i - 3); j < i; j++) {
+        content.append("        ':lib").append(j).append("',\n");
+      }
+      content
+          .append("        '//third_party:base',\n")
+          .append("    ],\n")
+          .append("    tests = ['unit', 'integration'],\n")
+          .append("    visibility = ['//visibility:public'],\n")
+          .append(")\n\n");
+    }
+    return content.toString();
+  }
+
+  static ParserInputSource input(String content, String path) {
+    return ParserInputSource.create(content, PathFragment.create(path));
+  }
+
+  /** Returns a new environment for evaluating the workloads with the given semantics. */
+  static Environment newEnvironment(Mutability mutability, StarlarkSemantics semantics) {
+    return Environment.builder(mutability)
+        .setSemantics(semantics)
+        .setGlobals(BazelLibrary.GLOBALS)
+        .setEventHandler(NullEventHandler.INSTANCE)
+        .build();
+  }
+
+  /** Parses and validates the given Starlark source in the given environment. */
+  static BuildFileAST parseAndValidate(Environment env, String content) throws EvalException {
+    return BuildFileAST.parseAndValidateSkylarkString(env, new String[] {content});
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.packages.BazelLibrary;
+import com.google.devtools.build.lib.testutil.BenchmarkRunner;
+
+/**
+ * Microbenchmarks for calls of Starlark functions that spend most of their time reading and
+ * writing local variables, with and without {@code --experimental_starlark_local_slots}.
+ *
+ * <p>Run with {@code bazel run
+ * //src/test/java/com/google/devtools/build/lib:StarlarkFunctionCallBenchmark}.
+ */
+public class StarlarkFunctionCallBenchmark {
+
+  private static final String[] DEFINITIONS = {
+    "def collatz(n, limit = 1000):",
+    "    steps = 0",
+    "    for _ in range(limit):",
+    "        if n == 1:",
+    "            break",
+    "        if n % 2 == 0:",
+    "            n = n // 2",
+    "        else:",
+    "            n = 3 * n + 1",
+    "        steps += 1",
+    "    return steps",
+    "",
+    "def macro(name, srcs, deps = [], **kwargs):",
+    "    outs = [name + '_' + src for src in srcs if not src.startswith('_')]",
+    "    attrs = {k: v for k, v in kwargs.items() if v != None}",
+    "    all_deps = [':' + d for d in deps]",
+    "    total = len(outs) + len(attrs) + len(all_deps)",
+    "    return total",
+  };
+
+  private final boolean localSlots;
+
+  private Mutability mutability;
+  private Environment env;
+  private BuildFileAST collatzCall;
+  private BuildFileAST macroCall;
+
+  private StarlarkFunctionCallBenchmark(boolean localSlots) {
+    this.localSlots = localSlots;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (boolean localSlots : new boolean[] {false, true}) {
+      StarlarkFunctionCallBenchmark benchmark = new StarlarkFunctionCallBenchmark(localSlots);
+      benchmark.setUp();
+      try {
+        String suffix = " localSlots=" + localSlots;
+        BenchmarkRunner.run("loopOverLocals" + suffix, benchmark::loopOverLocals);
+        BenchmarkRunner.run("macroWithComprehensions" + suffix, benchmark::macroWithComprehensions);
+      } finally {
+        benchmark.tearDown();
+      }
+    }
+  }
+
+  private void setUp() throws Exception {
+    mutability = Mutability.create("benchmark");
+    env =
+        Environment.builder(mutability)
+            .setSemantics(
+                StarlarkSemantics.builderWithDefaults()
+                    .experimentalStarlarkLocalSlots(localSlots)
+                    .build())
+            .setGlobals(BazelLibrary.GLOBALS)
+            .build();
+    BuildFileAST.eval(env, DEFINITIONS);
+    collatzCall = BuildFileAST.parseAndValidateSkylarkString(env, new String[] {"collatz(27)"});
+    macroCall =
+        BuildFileAST.parseAndValidateSkylarkString(
+            env,
+            new String[] {
+              "macro('lib', ['a.cc', 'b.cc', '_c.cc', 'd.cc'], deps = ['x', 'y'], visibility = 1,"
+                  + " testonly = None, tags = ['manual'])"
+            });
+  }
+
+  private void tearDown() {
+    mutability.close();
+  }
+
+  Object loopOverLocals(int reps) throws Exception {
+    Object result = null;
+    for (int i = 0; i < reps; i++) {
+      result = collatzCall.eval(env);
+    }
+    return result;
+  }
+
+  Object macroWithComprehensions(int reps) throws Exception {
+    Object result = null;
+    for (int i = 0; i < reps; i++) {
+      result = macroCall.eval(env);
+    }
+    return result;
+  }
+}
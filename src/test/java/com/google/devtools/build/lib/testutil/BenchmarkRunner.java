@@ -0,0 +1,66 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.testutil;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal harness for microbenchmarks that are run as plain {@code java_binary} targets.
+ *
+ * <p>A benchmark is a method that performs the measured operation a given number of times, like the
+ * methods of a Caliper benchmark. {@link #run} doubles the number of repetitions until a batch
+ * takes long enough to be timed reliably, which also warms up the JIT, and then prints the median
+ * time per repetition of several batches of that size.
+ */
+public final class BenchmarkRunner {
+
+  /** The measured operation. */
+  @FunctionalInterface
+  public interface Benchmark {
+    /**
+     * Performs the measured operation {@code reps} times and returns any result of it, so that the
+     * JIT cannot optimize the operation away.
+     */
+    Object run(int reps) throws Exception;
+  }
+
+  private static final long MIN_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+  private static final int BATCHES = 5;
+
+  private static volatile Object sink;
+
+  private BenchmarkRunner() {}
+
+  /** Measures the given benchmark and prints its time per repetition under the given name. */
+  public static void run(String name, Benchmark benchmark) throws Exception {
+    int reps = 1;
+    while (time(benchmark, reps) < MIN_BATCH_NANOS && reps < Integer.MAX_VALUE / 2) {
+      reps *= 2;
+    }
+    double[] nanosPerRep = new double[BATCHES];
+    for (int i = 0; i < BATCHES; i++) {
+      nanosPerRep[i] = (double) time(benchmark, reps) / reps;
+    }
+    Arrays.sort(nanosPerRep);
+    System.out.printf(
+        "%-64s %,16.1f ns/op (%d reps)%n", name, nanosPerRep[BATCHES / 2], reps);
+  }
+
+  private static long time(Benchmark benchmark, int reps) throws Exception {
+    long start = System.nanoTime();
+    sink = benchmark.run(reps);
+    return System.nanoTime() - start;
+  }
+}
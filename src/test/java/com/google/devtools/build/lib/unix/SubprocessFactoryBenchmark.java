@@ -0,0 +1,109 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.devtools.build.lib.shell.JavaSubprocessFactory;
+import com.google.devtools.build.lib.shell.Subprocess;
+import com.google.devtools.build.lib.shell.SubprocessBuilder;
+import com.google.devtools.build.lib.shell.SubprocessBuilder.StreamAction;
+import com.google.devtools.build.lib.shell.SubprocessFactory;
+import com.google.devtools.build.lib.testutil.BenchmarkRunner;
+
+/**
+ * Microbenchmarks for the cost of starting a trivial process with {@link JavaSubprocessFactory} and
+ * {@link UnixSubprocessFactory}, depending on how much memory the JVM has touched.
+ *
+ * <p>Run with {@code bazel run
+ * //src/test/java/com/google/devtools/build/lib:SubprocessFactoryBenchmark -- --jvm_flag=-Xmx32g}
+ * or so to reproduce the behavior of a big Bazel server.
+ */
+public class SubprocessFactoryBenchmark {
+  enum Factory {
+    JAVA(JavaSubprocessFactory.INSTANCE),
+    UNIX(UnixSubprocessFactory.INSTANCE);
+
+    private final SubprocessFactory factory;
+
+    Factory(SubprocessFactory factory) {
+      this.factory = factory;
+    }
+  }
+
+  /** Amounts of live heap to retain while spawning processes, in megabytes. */
+  private static final int[] RETAINED_HEAP_MB = {0, 4096, 16384};
+
+  private final Factory factory;
+  private final int retainedHeapMb;
+
+  private byte[][] retainedHeap;
+
+  private SubprocessFactoryBenchmark(Factory factory, int retainedHeapMb) {
+    this.factory = factory;
+    this.retainedHeapMb = retainedHeapMb;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long maxHeapMb = Runtime.getRuntime().maxMemory() >> 20;
+    for (int retainedHeapMb : RETAINED_HEAP_MB) {
+      if (retainedHeapMb > maxHeapMb / 2) {
+        System.out.println("Skipping " + retainedHeapMb + " MB of retained heap, raise -Xmx");
+        continue;
+      }
+      for (Factory factory : Factory.values()) {
+        SubprocessFactoryBenchmark benchmark =
+            new SubprocessFactoryBenchmark(factory, retainedHeapMb);
+        benchmark.fillHeap();
+        try {
+          BenchmarkRunner.run(
+              "spawnTrue factory=" + factory + " retainedHeapMb=" + retainedHeapMb,
+              benchmark::spawnTrue);
+        } finally {
+          benchmark.releaseHeap();
+        }
+      }
+    }
+  }
+
+  private void fillHeap() {
+    retainedHeap = new byte[retainedHeapMb][];
+    for (int i = 0; i < retainedHeapMb; i++) {
+      retainedHeap[i] = new byte[1 << 20];
+      // Touch every page, so that it is actually mapped.
+      for (int j = 0; j < retainedHeap[i].length; j += 4096) {
+        retainedHeap[i][j] = 1;
+      }
+    }
+  }
+
+  private void releaseHeap() {
+    retainedHeap = null;
+  }
+
+  int spawnTrue(int reps) throws Exception {
+    int exitCodes = 0;
+    for (int i = 0; i < reps; i++) {
+      Subprocess process =
+          new SubprocessBuilder(factory.factory)
+              .setArgv("/bin/true")
+              .setStdout(StreamAction.DISCARD)
+              .setStderr(StreamAction.DISCARD)
+              .start();
+      process.getOutputStream().close();
+      process.waitFor();
+      exitCodes += process.exitValue();
+      process.close();
+    }
+    return exitCodes;
+  }
+}
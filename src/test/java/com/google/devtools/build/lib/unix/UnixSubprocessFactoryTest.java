@@ -0,0 +1,175 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.shell.Subprocess;
+import com.google.devtools.build.lib.shell.SubprocessBuilder;
+import com.google.devtools.build.lib.shell.SubprocessBuilder.StreamAction;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link UnixSubprocessFactory}. */
+@RunWith(JUnit4.class)
+public class UnixSubprocessFactoryTest {
+
+  private static SubprocessBuilder builder() {
+    return new SubprocessBuilder(UnixSubprocessFactory.INSTANCE);
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    try {
+      return new String(ByteStreams.toByteArray(in), ISO_8859_1);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testStdoutAndExitCode() throws Exception {
+    Subprocess process = builder().setArgv("echo", "hello", "world").start();
+
+    assertThat(readFully(process.getInputStream())).isEqualTo("hello world\n");
+    process.waitFor();
+    assertThat(process.exitValue()).isEqualTo(0);
+    assertThat(process.timedout()).isFalse();
+    process.close();
+  }
+
+  @Test
+  public void testStdinStderrEnvironmentAndWorkingDirectory() throws Exception {
+    File workingDirectory = new File(TestUtils.tmpDir()).getCanonicalFile();
+    Subprocess process =
+        builder()
+            .setArgv("/bin/sh", "-c", "cat; pwd; echo $GREETING >&2; exit 3")
+            .setEnv(ImmutableMap.of("GREETING", "hi"))
+            .setWorkingDirectory(workingDirectory)
+            .start();
+
+    process.getOutputStream().write("input\n".getBytes(ISO_8859_1));
+    process.getOutputStream().close();
+
+    assertThat(readFully(process.getInputStream()))
+        .isEqualTo("input\n" + workingDirectory.getPath() + "\n");
+    assertThat(readFully(process.getErrorStream())).isEqualTo("hi\n");
+    process.waitFor();
+    assertThat(process.exitValue()).isEqualTo(3);
+    process.close();
+  }
+
+  @Test
+  public void testRedirectToFile() throws Exception {
+    File log = new File(TestUtils.tmpDir(), "unix_subprocess_factory_test.log");
+    Files.write(log.toPath(), "stale".getBytes(ISO_8859_1));
+    Subprocess process =
+        builder()
+            .setArgv("/bin/sh", "-c", "echo out; echo err >&2")
+            .setStdout(log)
+            .redirectErrorStream(true)
+            .start();
+    process.waitFor();
+    process.close();
+
+    assertThat(process.getInputStream()).isNull();
+    assertThat(new String(Files.readAllBytes(log.toPath()), ISO_8859_1)).isEqualTo("out\nerr\n");
+  }
+
+  @Test
+  public void testDescriptorsOfTheServerAreNotInherited() throws Exception {
+    File file = new File(TestUtils.tmpDir(), "unix_subprocess_factory_test.open");
+    Files.write(file.toPath(), "open".getBytes(ISO_8859_1));
+    try (InputStream open = new FileInputStream(file)) {
+      // Only the standard streams and the descriptor ls(1) uses to read the directory.
+      Subprocess process = builder().setArgv("/bin/ls", "/dev/fd/").start();
+
+      assertThat(readFully(process.getInputStream()).split("\n"))
+          .asList()
+          .containsExactly("0", "1", "2", "3");
+      process.waitFor();
+      process.close();
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    Subprocess process =
+        builder()
+            .setArgv("sleep", "60")
+            .setStdout(StreamAction.DISCARD)
+            .setStderr(StreamAction.DISCARD)
+            .setTimeoutMillis(100)
+            .start();
+    process.waitFor();
+
+    assertThat(process.timedout()).isTrue();
+    assertThat(process.exitValue()).isEqualTo(128 + 15);
+    process.close();
+  }
+
+  @Test
+  public void testCloseClosesTheOutputStreams() throws Exception {
+    Subprocess process = builder().setArgv("sleep", "60").start();
+    process.close();
+
+    assertThrows(IOException.class, () -> process.getInputStream().read());
+    assertThrows(IOException.class, () -> process.getErrorStream().read());
+  }
+
+  @Test
+  public void testCloseWhileReading() throws Exception {
+    Subprocess process = builder().setArgv("sleep", "60").start();
+    CountDownLatch reading = new CountDownLatch(1);
+    AtomicInteger read = new AtomicInteger();
+    Thread reader =
+        new Thread(
+            () -> {
+              reading.countDown();
+              try {
+                read.set(process.getInputStream().read());
+              } catch (IOException e) {
+                // The stream was closed before the read started.
+                read.set(-1);
+              }
+            });
+    reader.start();
+    reading.await();
+    process.close();
+    reader.join();
+
+    assertThat(read.get()).isEqualTo(-1);
+    assertThrows(IOException.class, () -> process.getInputStream().read());
+  }
+
+  @Test
+  public void testMissingExecutable() throws Exception {
+    IOException e =
+        assertThrows(
+            IOException.class, () -> builder().setArgv("/nonexistent/executable").start());
+    assertThat(e).hasMessageThat().contains("/nonexistent/executable");
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerCdsArchives}. */
+@RunWith(JUnit4.class)
+public class WorkerCdsArchivesTest {
+
+  private final FileSystem fs = new InMemoryFileSystem();
+  private final Path archiveDir = fs.getPath("/outputbase/bazel-workers/cds");
+
+  private WorkerKey createKey(String... args) {
+    return new WorkerKey(
+        ImmutableList.copyOf(args),
+        ImmutableMap.of(),
+        fs.getPath("/outputbase/execroot/workspace"),
+        "Javac",
+        HashCode.fromInt(0),
+        ImmutableSortedMap.of(),
+        false);
+  }
+
+  @Test
+  public void nonJavaWorkerGetsNoFlags() throws Exception {
+    WorkerCdsArchives archives = new WorkerCdsArchives(archiveDir);
+
+    assertThat(archives.getJvmFlags(createKey("tools/worker.sh", "--persistent_worker")))
+        .isEmpty();
+  }
+
+  @Test
+  public void onlyOneWorkerDumpsArchive() throws Exception {
+    WorkerCdsArchives archives = new WorkerCdsArchives(archiveDir);
+    WorkerKey key = createKey("external/jdk/bin/java", "-jar", "JavaBuilder_deploy.jar");
+
+    List<String> first = archives.getJvmFlags(key);
+    List<String> second = archives.getJvmFlags(key);
+
+    assertThat(first).hasSize(2);
+    assertThat(first.get(0)).isEqualTo("-XX:+IgnoreUnrecognizedVMOptions");
+    assertThat(first.get(1)).startsWith("-XX:ArchiveClassesAtExit=");
+    assertThat(second).isEmpty();
+  }
+
+  @Test
+  public void dumpedArchiveIsUsedByLaterWorkers() throws Exception {
+    WorkerCdsArchives archives = new WorkerCdsArchives(archiveDir);
+    WorkerKey key = createKey("external/jdk/bin/java", "-jar", "JavaBuilder_deploy.jar");
+
+    List<String> dumpFlags = archives.getJvmFlags(key);
+    String tmpArchive = dumpFlags.get(1).substring("-XX:ArchiveClassesAtExit=".length());
+    FileSystemUtils.writeContentAsLatin1(fs.getPath(tmpArchive), "archive");
+    archives.workerExited(key, dumpFlags);
+
+    String archive = tmpArchive.substring(0, tmpArchive.length() - ".tmp".length());
+    assertThat(archives.getJvmFlags(key))
+        .containsExactly(
+            "-XX:+IgnoreUnrecognizedVMOptions", "-Xshare:auto", "-XX:SharedArchiveFile=" + archive)
+        .inOrder();
+  }
+
+  @Test
+  public void missingArchiveIsDumpedAgain() throws Exception {
+    WorkerCdsArchives archives = new WorkerCdsArchives(archiveDir);
+    WorkerKey key = createKey("external/jdk/bin/java", "-jar", "JavaBuilder_deploy.jar");
+
+    archives.workerExited(key, archives.getJvmFlags(key));
+
+    List<String> flags = archives.getJvmFlags(key);
+    assertThat(flags).hasSize(2);
+    assertThat(flags.get(1)).startsWith("-XX:ArchiveClassesAtExit=");
+  }
+}